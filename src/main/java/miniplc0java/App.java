@@ -1,15 +1,18 @@
 package miniplc0java;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
 
 import miniplc0java.analyser.AnalyseResult;
 import miniplc0java.analyser.Analyser;
 import miniplc0java.error.CompileError;
 import miniplc0java.generator.Generator;
-import miniplc0java.instruction.Instruction;
+import miniplc0java.generator.O0Writer;
+import miniplc0java.generator.StreamingGenerator;
+import miniplc0java.optimizer.PassManager;
 import miniplc0java.tokenizer.StringIter;
-import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
 
@@ -35,13 +38,13 @@ public class App {
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
 
-        InputStream input;
+        StringIter iter;
         if (inputFileName.equals("-")) {
-            input = System.in;
+            iter = new StringIter(new BufferedInputStream(System.in));
         } else {
             try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
+                iter = StringIter.map(Path.of(inputFileName));
+            } catch (IOException e) {
                 System.err.println("Cannot find input file.");
                 e.printStackTrace();
                 System.exit(2);
@@ -50,11 +53,14 @@ public class App {
         }
 
         PrintStream output;
+        // 输出到文件时才能边分析边写出
+        FileOutputStream outputFile = null;
         if (outputFileName.equals("-")) {
             output = System.out;
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                outputFile = new FileOutputStream(outputFileName);
+                output = new PrintStream(outputFile);
             } catch (FileNotFoundException e) {
                 System.err.println("Cannot open output file.");
                 e.printStackTrace();
@@ -63,36 +69,32 @@ public class App {
             }
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
         var tokenizer = tokenize(iter);
+        boolean pipelined = result.getBoolean("pipeline");
 
         if (result.getBoolean("tokenize")) {
             // tokenize
-            var tokens = new ArrayList<Token>();
+            var tokens = new TokenBuffer(tokenizer, pipelined);
+            long startTime = System.nanoTime();
+            int count;
             try {
-                while (true) {
-                    var token = tokenizer.nextToken();
-                    if (token.getTokenType().equals(TokenType.EOF)) {
-                        break;
-                    }
-                    tokens.add(token);
-                }
+                count = tokens.fillAll() - 1;
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
                 System.err.println(e);
                 System.exit(0);
                 return;
             }
-            for (Token token : tokens) {
-                output.println(token.toString());
+            if (result.getBoolean("stats")) {
+                printTokenStats(tokenizer, System.nanoTime() - startTime);
+            }
+            for (int i = 0; i < count; i++) {
+                output.println(tokens.toString(i));
             }
         } else if (result.getBoolean("analyse")) {
             // analyze
-            var analyzer = new Analyser(tokenizer, true);
+            var analyzer = new Analyser(new TokenBuffer(tokenizer, pipelined), true);
             AnalyseResult analyseResult;
-            List<Instruction> instructions;
             try {
                 analyseResult = analyzer.analyse();
             } catch (Exception e) {
@@ -105,31 +107,59 @@ public class App {
 
         } else if (result.getBoolean("generate")) {
             // analyze
-            var analyzer = new Analyser(tokenizer, false);
-            AnalyseResult analyseResult;
-            List<Instruction> instructions;
+            var analyzer = new Analyser(new TokenBuffer(tokenizer, pipelined), false);
+            int jobs = result.getInt("jobs");
+            PassManager passManager;
             try {
-                analyseResult = analyzer.analyse();
-            } catch (Exception e) {
-                // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(-1);
+                passManager = buildPassManager(result);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(2);
                 return;
             }
-            Generator generator = new Generator(analyseResult);
-            generator.generate();
-            FileOutputStream fp = new FileOutputStream(outputFileName, true);
-            String res = generator.toString();
-            for (int i = 0; (i + 1) * 2 <= res.length(); i++) {
-//                System.out.println(res.substring(i * 2, (i + 1) * 2));
-                output.write(hexStringToBytes(res.substring(i * 2, (i + 1) * 2)));
+            boolean toFile = outputFile != null && result.getString("emit").equals("o0");
+            StreamingGenerator streamingGenerator = null;
+            // 优化遍要看到整个程序，只有不优化时才能边分析边写出
+            if (toFile && jobs == 1 && passManager.isEmpty()) {
+                // 每个函数分析完就写出并释放
+                streamingGenerator = new StreamingGenerator(outputFile.getChannel());
+                analyzer.setFunctionListener(streamingGenerator);
+            }
+            try {
+                AnalyseResult analyseResult;
+                try {
+                    analyseResult = analyzer.analyse(jobs);
+                } catch (Exception e) {
+                    // 遇到错误不输出，直接退出；System.exit 不执行 finally，先删除临时文件
+                    System.err.println(e);
+                    if (streamingGenerator != null) {
+                        streamingGenerator.close();
+                    }
+                    System.exit(-1);
+                    return;
+                }
+                if (!passManager.isEmpty()) {
+                    passManager.run(analyseResult, jobs);
+                    if (result.getBoolean("stats")) {
+                        passManager.printStatistics(System.err);
+                    }
+                }
+                if (streamingGenerator != null) {
+                    streamingGenerator.finish(analyseResult.getSymbolList());
+                } else {
+                    Generator generator = new Generator(analyseResult);
+                    generator.generate(jobs);
+                    if (toFile) {
+                        generator.write(outputFile.getChannel());
+                    } else {
+                        generator.write(new O0Writer(output, result.getString("emit").equals("hex")));
+                    }
+                }
+            } finally {
+                if (streamingGenerator != null) {
+                    streamingGenerator.close();
+                }
             }
-//            for (int i = 0; (i + 1) * 2 <= res.length(); i++) {
-////                System.out.println(res.substring(i * 2, (i + 1) * 2));
-//                output.write(hexStringToBytes(res.substring(i * 2, (i + 1) * 2)));
-//            }
-            System.out.println(res);
-//            output.println(generator);
 
         } else {
             System.err.println("Please specify either '--analyse' or '--tokenize' or '--generate'.");
@@ -137,30 +167,49 @@ public class App {
         }
     }
 
-    private static byte[] hexStringToBytes(String str) {
-        if (str == null || str.trim().equals("")) {
-            return new byte[0];
-        }
-        byte[] bytes = new byte[str.length() / 2];
-        for (int i = 0; i < str.length() / 2; i++) {
-            String subStr = str.substring(i * 2, i * 2 + 2);
-            bytes[i] = (byte) Integer.parseInt(subStr, 16);
-        }
-        return bytes;
-    }
-
     private static ArgumentParser buildArgparse() {
         var builder = ArgumentParsers.newFor("miniplc0-java");
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-a", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-g", "--generate").help("Generate hex code").action(Arguments.storeTrue());
+        parser.addArgument("-g", "--generate").help("Generate o0 binary code").action(Arguments.storeTrue());
+        parser.addArgument("--emit").help("Output format of '--generate': binary o0 or hex text for debugging")
+                .choices("o0", "hex").setDefault("o0").action(Arguments.store());
+        parser.addArgument("-j", "--jobs").help("Number of threads analysing and encoding functions in '--generate'; "
+                        + "with more than 1 the whole program is kept in memory instead of streamed")
+                .type(Integer.class).choices(Arguments.range(1, Integer.MAX_VALUE)).setDefault(1).action(Arguments.store());
+        parser.addArgument("--pipeline").help("Run the tokenizer on its own thread, overlapping lexing with parsing")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-O", "--optimize").help("Optimisation level of '--generate': 0 keeps the analyser's code unchanged")
+                .type(Integer.class).choices(Arguments.range(0, PassManager.MAX_LEVEL)).setDefault(0).dest("optimize")
+                .action(Arguments.store());
+        parser.addArgument("--passes").help("Comma separated optimisation passes to run instead of the '-O' pipeline, from: "
+                + String.join(", ", PassManager.getPassNames())).dest("passes").action(Arguments.store());
+        parser.addArgument("--stats").help("Print tokenizer throughput with '--tokenize', or the time and instruction count "
+                + "change of each optimisation pass (and reports such as the local slots saved) with '--generate', to stderr").action(Arguments.storeTrue());
         parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
                 .action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
 
+    /**
+     * --passes 给出时按它的列表，否则按 -O 的级别
+     */
+    private static PassManager buildPassManager(Namespace result) {
+        String passes = result.getString("passes");
+        if (passes != null) {
+            return PassManager.parse(passes);
+        }
+        return PassManager.forLevel(result.getInt("optimize"));
+    }
+
+    private static void printTokenStats(Tokenizer tokenizer, long nanos) {
+        double millis = nanos / 1e6;
+        double perSecond = nanos == 0 ? 0 : tokenizer.getTokenCount() * 1e9 / nanos;
+        System.err.printf("%d tokens in %.2f ms (%.0f tokens/sec)%n", tokenizer.getTokenCount(), millis, perSecond);
+    }
+
     private static Tokenizer tokenize(StringIter iter) {
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
@@ -2,46 +2,45 @@ package miniplc0java.analyser;
 
 import miniplc0java.generator.Function;
 import miniplc0java.generator.Global;
-import miniplc0java.instruction.Instruction;
 
 import java.util.*;
 
 public class AnalyseResult {
-    private HashMap<String, SymbolEntry> symbolTable;
-    private ArrayList<Map.Entry<String, SymbolEntry>> symbolList;
-    private HashMap<String, FunctionEntry> functionSymbolTable;
-    private ArrayList<Map.Entry<String, FunctionEntry>> functionList;
+    private ArrayList<SymbolEntry> symbolList;
+    private ArrayList<FunctionEntry> functionList;
 
-    public AnalyseResult(HashMap<String, SymbolEntry> symbolTable, HashMap<String, FunctionEntry> functionSymbolTable) {
-        this.symbolTable = symbolTable;
-        this.functionSymbolTable = functionSymbolTable;
-        symbolList = new ArrayList<>(symbolTable.entrySet());
-        symbolList.sort(Comparator.comparingInt(o -> o.getValue().getStackOffset()));
-        functionList = new ArrayList<>(functionSymbolTable.entrySet());
-        functionList.sort(Comparator.comparingInt(o -> o.getValue().getStackOffset()));
+    public AnalyseResult(SymbolTable globalSymbolTable, ArrayList<FunctionEntry> functions) {
+        symbolList = new ArrayList<>(globalSymbolTable.getEntries());
+        symbolList.sort(Comparator.comparingInt(SymbolEntry::getStackOffset));
+        functionList = new ArrayList<>(functions);
+        functionList.sort(Comparator.comparingInt(FunctionEntry::getStackOffset));
     }
 
-    public HashMap<String, SymbolEntry> getSymbolTable() {
-        return symbolTable;
+    /**
+     * 全局符号，按栈偏移排序
+     */
+    public ArrayList<SymbolEntry> getSymbolList() {
+        return symbolList;
     }
 
-    public HashMap<String, FunctionEntry> getFunctionSymbolTable() {
-        return functionSymbolTable;
+    /**
+     * 函数，按编号排序
+     */
+    public ArrayList<FunctionEntry> getFunctionList() {
+        return functionList;
     }
 
     @Override
     public String toString() {
         StringBuilder functionStringBuilder = new StringBuilder();
-        for (Map.Entry<String, FunctionEntry> entry: functionList) {
-            FunctionEntry functionEntry = entry.getValue();
-            functionStringBuilder.append("functionName:").append(entry.getKey()).append("\n");
+        for (FunctionEntry functionEntry: functionList) {
+            functionStringBuilder.append("functionName:").append(functionEntry.getName()).append("\n");
             functionStringBuilder.append(functionEntry).append("\n");
             functionStringBuilder.append("\n");
         }
         StringBuilder symbolStringBuilder = new StringBuilder();
-        for (Map.Entry<String, SymbolEntry> entry: symbolList) {
-            SymbolEntry symbolEntry = entry.getValue();
-            symbolStringBuilder.append("VariableName:").append(entry.getKey()).append("\n");
+        for (SymbolEntry symbolEntry: symbolList) {
+            symbolStringBuilder.append("VariableName:").append(symbolEntry.getName()).append("\n");
             symbolStringBuilder.append(symbolEntry).append("\n");
             symbolStringBuilder.append("\n");
         }
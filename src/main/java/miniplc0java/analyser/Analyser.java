@@ -1,250 +1,232 @@
 package miniplc0java.analyser;
 
+import miniplc0java.ast.Ast;
+import miniplc0java.ast.Lowering;
+import miniplc0java.ast.NodeKind;
 import miniplc0java.error.AnalyzeError;
 import miniplc0java.error.CompileError;
 import miniplc0java.error.ErrorCode;
 import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
 import miniplc0java.instruction.Operation;
-import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.IdentPool;
 import miniplc0java.tokenizer.IdentType;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.IntMap;
 import miniplc0java.util.Pos;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class Analyser {
 
-    Tokenizer tokenizer;
+    TokenBuffer tokens;
 
-
-    /** 当前偷看的 token */
-    Token peekedToken = null;
+    /** 下一个 token 在 tokens 中的下标 */
+    int cursor = 0;
 
     /** 符号表 */
-    ArrayList<SymbolTable> listOfSymbolTable = new ArrayList<>();
-    HashMap<String, FunctionEntry> functionSymbolTable = new HashMap<>();
+    ScopeStack scopes = new ScopeStack();
+    IntMap<FunctionEntry> functionSymbolTable = new IntMap<>();
     int globalStringIndex = 0;
     boolean isTest;
 
     /** 下一个变量的栈偏移 */
     int nextOffset = 0;
 
-//    int[][] OPGMatrix = new int[12][12];
-    HashMap<TokenType, Integer> operatorPriority = new HashMap<>();
-    HashMap<TokenType, HashMap<IdentType, ArrayList<Operation>>> binaryOperation = new HashMap<>();
-    ArrayList<Integer> whileStack = new ArrayList<>();
-    ArrayList<ArrayList<Instruction>> breakStack = new ArrayList<>();
+    /** 运算符的优先级，按 TokenType 的序号存放，负号用 PRE_MINUS 表示 */
+    private static final int[] PRIORITY = new int[TokenType.values().length];
+    /** 是否是二元运算符（int 和 double 都可以使用），对应的指令由 Lowering 决定 */
+    private static final boolean[] BINARY_OPERATOR = new boolean[TokenType.values().length];
+    /** 比较运算的结果类型，算术运算的位置为 null（结果与操作数类型相同） */
+    private static final IdentType[] COMPARE_RESULT = new IdentType[TokenType.values().length];
+
+    static {
+        PRIORITY[TokenType.PRE_MINUS.ordinal()] = 6;
+        PRIORITY[TokenType.AS_KW.ordinal()] = 5;
+        PRIORITY[TokenType.MUL.ordinal()] = 4;
+        PRIORITY[TokenType.DIV.ordinal()] = 4;
+        PRIORITY[TokenType.PLUS.ordinal()] = 3;
+        PRIORITY[TokenType.MINUS.ordinal()] = 3;
+        PRIORITY[TokenType.EQ.ordinal()] = 2;
+        PRIORITY[TokenType.NEQ.ordinal()] = 2;
+        PRIORITY[TokenType.LT.ordinal()] = 2;
+        PRIORITY[TokenType.GT.ordinal()] = 2;
+        PRIORITY[TokenType.LE.ordinal()] = 2;
+        PRIORITY[TokenType.GE.ordinal()] = 2;
+        PRIORITY[TokenType.ASSIGN.ordinal()] = 1;
+
+        binaryOperation(TokenType.PLUS, null);
+        binaryOperation(TokenType.MINUS, null);
+        binaryOperation(TokenType.MUL, null);
+        binaryOperation(TokenType.DIV, null);
+        // 比较的结果类型表示栈上的值与条件的关系：TRUE 时非 0 表示成立，FALSE 时非 0 表示不成立
+        binaryOperation(TokenType.EQ, IdentType.FALSE);
+        binaryOperation(TokenType.NEQ, IdentType.TRUE);
+        binaryOperation(TokenType.GT, IdentType.TRUE);
+        binaryOperation(TokenType.LT, IdentType.TRUE);
+        binaryOperation(TokenType.GE, IdentType.FALSE);
+        binaryOperation(TokenType.LE, IdentType.FALSE);
+    }
+
+    /** 表达式分析用的运算符栈（运算符种类和 token 下标）与操作数栈（语法树节点） */
+    TokenType[] operatorKinds = new TokenType[16];
+    int[] operatorTokens = new int[16];
+    int operatorTop = 0;
+    int[] operandNodes = new int[16];
+    int operandTop = 0;
+
+    /** 当前所在的循环层数 */
+    int loopDepth = 0;
     String curFunctionName;
     ArrayList<SymbolTable> curFunctionSymbolTable = new ArrayList<>();
-    HashMap<String, Instruction> standardFunctionInstruction = new HashMap<>();
+    /** 正在分析的全局声明或函数的语法树，生成指令以后清空 */
+    Ast ast = new Ast();
+    Lowering lowering = new Lowering();
+    IdentPool identPool;
+    /** 函数分析完成时的回调，为 null 时所有函数保留到分析结束 */
+    FunctionListener functionListener;
+
+    /** 并行分析函数体的线程数，为 1 时按顺序一遍分析 */
+    int parallelism = 1;
+    // 每个任务至少分析的函数个数
+    private static final int FUNCTIONS_PER_TASK = 8;
+    /** 声明扫描中跳过的函数体，按函数编号的顺序；为 null 时函数体在读到时直接分析 */
+    ArrayList<DeferredFunction> deferredFunctions;
+    /** 正在分析的推迟的函数体，只在分析函数体的分析器中不为 null */
+    DeferredFunction curDeferred;
+    /** 函数体中下一个字符串字面量的全局偏移，已经在声明扫描中分配好 */
+    int nextStringSlot;
+
+    /**
+     * 推迟分析的函数体，以及分析时需要恢复的、顺序分析到这个函数时的状态
+     */
+    static class DeferredFunction {
+        // fn 关键字的下标
+        int fnToken;
+        // 函数编号，编号更大的函数在这个函数中还不可见
+        int number;
+        // 可见的全局声明个数
+        int globalCount;
+        // 函数体中第一个字符串字面量的全局偏移
+        int firstStringSlot;
+
+        // 分析结果
+        int name;
+        Pos namePos;
+        ArrayList<IdentType> function_param_list;
+        IdentType returnValueType;
+        InstructionBuffer instructions;
+        ArrayList<SymbolTable> listOfSymbolTable;
+        CompileError error;
+
+        DeferredFunction(int fnToken, int number, int globalCount, int firstStringSlot) {
+            this.fnToken = fnToken;
+            this.number = number;
+            this.globalCount = globalCount;
+            this.firstStringSlot = firstStringSlot;
+        }
+    }
 
     public Analyser(Tokenizer tokenizer, boolean isTest) throws AnalyzeError {
-        this.tokenizer = tokenizer;
-        buildOperatorPriorityTable();
-        buildBinaryOperationTable();
-        buildStandardFunctionInstruction();
+        this(new TokenBuffer(tokenizer), isTest);
+    }
+
+    public Analyser(TokenBuffer tokens, boolean isTest) throws AnalyzeError {
+        this.tokens = tokens;
+        this.identPool = tokens.getIdentPool();
         this.isTest = isTest;
     }
 
+    /**
+     * 分析推迟的函数体用的分析器，与 program 共用 token、全局符号表和函数表（都只读），其余状态各自独立
+     */
+    private Analyser(Analyser program) {
+        this.tokens = program.tokens;
+        this.identPool = program.identPool;
+        this.isTest = program.isTest;
+        this.functionSymbolTable = program.functionSymbolTable;
+        this.scopes = new ScopeStack(program.scopes);
+    }
+
     private void buildStandardFunctionLibrary() throws AnalyzeError {
         this.curFunctionSymbolTable.clear();
-        this.curFunctionSymbolTable.add(this.listOfSymbolTable.get(0));
-        addFunctionSymbol("getint", new ArrayList<IdentType>(), IdentType.INT, new Pos(0, 0));
-        addFunctionSymbol("getdouble", new ArrayList<IdentType>(), IdentType.DOUBLE, new Pos(0, 0));
-        addFunctionSymbol("getchar", new ArrayList<IdentType>(), IdentType.INT, new Pos(0, 0));
-        addFunctionSymbol("putint", new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
-        addFunctionSymbol("putdouble", new ArrayList<IdentType>(Collections.singletonList(IdentType.DOUBLE)), IdentType.VOID, new Pos(0, 0));
-        addFunctionSymbol("putchar", new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
-        addFunctionSymbol("putstr", new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
-        addFunctionSymbol("putln", new ArrayList<IdentType>(), IdentType.VOID, new Pos(0, 0));
-    }
-
-    private void buildOperatorPriorityTable() {
-        operatorPriority.put(TokenType.PRE_MINUS, 6);
-        operatorPriority.put(TokenType.AS_KW, 5);
-        operatorPriority.put(TokenType.MUL, 4);
-        operatorPriority.put(TokenType.DIV, 4);
-        operatorPriority.put(TokenType.PLUS, 3);
-        operatorPriority.put(TokenType.MINUS, 3);
-        operatorPriority.put(TokenType.EQ, 2);
-        operatorPriority.put(TokenType.NEQ, 2);
-        operatorPriority.put(TokenType.LT, 2);
-        operatorPriority.put(TokenType.GT, 2);
-        operatorPriority.put(TokenType.LE, 2);
-        operatorPriority.put(TokenType.GE, 2);
-        operatorPriority.put(TokenType.ASSIGN, 1);
-        operatorPriority.put(TokenType.None, 0);
-//        OPGMatrix[operatorPriority.get(TokenType.PLUS)][operatorPriority.get(TokenType.PLUS)] = 1;  // >
+        this.curFunctionSymbolTable.add(this.scopes.get(0));
+        addFunctionSymbol(IdentPool.GETINT, new ArrayList<IdentType>(), IdentType.INT, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.GETDOUBLE, new ArrayList<IdentType>(), IdentType.DOUBLE, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.GETCHAR, new ArrayList<IdentType>(), IdentType.INT, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.PUTINT, new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.PUTDOUBLE, new ArrayList<IdentType>(Collections.singletonList(IdentType.DOUBLE)), IdentType.VOID, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.PUTCHAR, new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.PUTSTR, new ArrayList<IdentType>(Collections.singletonList(IdentType.INT)), IdentType.VOID, new Pos(0, 0));
+        addFunctionSymbol(IdentPool.PUTLN, new ArrayList<IdentType>(), IdentType.VOID, new Pos(0, 0));
     }
 
-    @SuppressWarnings("unchecked")
-    private void buildBinaryOperationTable() {
-        HashMap<IdentType, ArrayList<Operation>> intOrDouble = new HashMap<>();
-        ArrayList<Operation> operations = new ArrayList<>();
-
-        operations.add(Operation.add_i);
-        intOrDouble.put(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.add_f);
-        intOrDouble.put(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.PLUS, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.sub_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.sub_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.MINUS, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.mul_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.mul_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.MUL, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.div_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.div_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-//        intOrDouble.replace(IdentType.DOUBLE, Operation.div_u);
-        binaryOperation.put(TokenType.DIV, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.EQ, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.EQ, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.EQ, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.EQ, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.NEQ, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        operations.add(Operation.set_gt);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        operations.add(Operation.set_gt);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.GT, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        operations.add(Operation.set_lt);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        operations.add(Operation.set_lt);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.LT, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        operations.add(Operation.set_lt);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        operations.add(Operation.set_lt);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.GE, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_i);
-        operations.add(Operation.set_gt);
-        intOrDouble.replace(IdentType.INT, (ArrayList<Operation>) operations.clone());
-        operations = new ArrayList<>();
-        operations.add(Operation.cmp_f);
-        operations.add(Operation.set_gt);
-        intOrDouble.replace(IdentType.DOUBLE, (ArrayList<Operation>) operations.clone());
-        binaryOperation.put(TokenType.LE, (HashMap<IdentType, ArrayList<Operation>>) intOrDouble.clone());
-//        System.out.println(binaryOperation);
-        }
+    private static void binaryOperation(TokenType operator, IdentType compareResult) {
+        BINARY_OPERATOR[operator.ordinal()] = true;
+        COMPARE_RESULT[operator.ordinal()] = compareResult;
+    }
 
-    private void buildStandardFunctionInstruction() {
-        standardFunctionInstruction.put("getint", new Instruction(Operation.scan_i));
-        standardFunctionInstruction.put("getdouble", new Instruction(Operation.scan_f));
-        standardFunctionInstruction.put("getchar", new Instruction(Operation.scan_c));
-        standardFunctionInstruction.put("putint", new Instruction(Operation.print_i));
-        standardFunctionInstruction.put("putdouble", new Instruction(Operation.print_f));
-        standardFunctionInstruction.put("putchar", new Instruction(Operation.print_c));
-        standardFunctionInstruction.put("putstr", new Instruction(Operation.print_s));
-        standardFunctionInstruction.put("putln", new Instruction(Operation.println));
+    public void setFunctionListener(FunctionListener functionListener) {
+        this.functionListener = functionListener;
     }
 
     public AnalyseResult analyse() throws CompileError {
+        return analyse(1);
+    }
+
+    /**
+     * @param parallelism 大于 1 时先扫描全部声明、跳过函数体，再用这么多线程同时分析函数体；
+     *                    结果和报告的错误都与顺序分析相同，但要把全部 token 保留在内存中
+     */
+    public AnalyseResult analyse(int parallelism) throws CompileError {
+        this.parallelism = parallelism;
+        if (parallelism > 1) {
+            this.deferredFunctions = new ArrayList<>();
+        }
         analyseProgram();
         // analyse时要返回：
         //1. 全局符号表
         //2. 函数表（函数的所有属性和指令集）
-        return new AnalyseResult(listOfSymbolTable.get(0).getTable(), functionSymbolTable);
+        return new AnalyseResult(scopes.get(0), functionSymbolTable.values());
     }
 
     /**
      * 查看下一个 Token
      * 
+     * @return 这个 token 在 tokens 中的下标
+     * @throws TokenizeError
+     */
+    private int peek() throws TokenizeError {
+        return tokens.fill(cursor);
+    }
+
+    /**
+     * 查看下一个 Token 的类型
+     *
      * @return
      * @throws TokenizeError
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private TokenType peekType() throws TokenizeError {
+        return tokens.getTokenType(peek());
     }
 
     /**
      * 获取下一个 Token
      * 
-     * @return
+     * @return 这个 token 在 tokens 中的下标
      * @throws TokenizeError
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() throws TokenizeError {
+        int token = peek();
+        cursor = token + 1;
+        return token;
     }
 
     /**
@@ -255,23 +237,21 @@ public final class Analyser {
      * @throws TokenizeError
      */
     private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+        return peekType() == tt;
     }
 
     /**
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
      * 
      * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
+     * @return 如果匹配则返回这个 token 的下标，否则返回 -1
      * @throws TokenizeError
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int nextIf(TokenType tt) throws TokenizeError {
+        if (peekType() == tt) {
             return next();
         } else {
-            return null;
+            return -1;
         }
     }
 
@@ -279,15 +259,15 @@ public final class Analyser {
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
      * 
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 的下标
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+    private int expect(TokenType tt) throws CompileError {
+        int token = peek();
+        if (tokens.getTokenType(token) == tt) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.getToken(token));
         }
     }
 
@@ -303,128 +283,91 @@ public final class Analyser {
     /**
      * 添加一个符号
      * 
-     * @param name          名字
+     * @param name          名字（addSymbol 中是标识符 ID）
      * @param isInitialized 是否已赋值
      * @param isConstant    是否是常量
      * @param curPos        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
     private int addGlobalSymbol(String name, boolean isInitialized, boolean isConstant, Pos curPos, IdentType identType, String content) throws AnalyzeError {
-        SymbolTable symbolTable = this.listOfSymbolTable.get(0);
-        if (symbolTable.get(name) != null) {
-            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-        } else {
-            //            if (this.listOfSymbolTable.size() > 2 && this.listOfSymbolTable.size() > maxSize) {
-//                maxSize = this.listOfSymbolTable.size();
-//                ArrayList<SymbolTable> localTable = (ArrayList<SymbolTable>) this.listOfSymbolTable.clone();
-//                localTable.remove(0);
-//                localTable.remove(1);
-//                addFunctionLocalTable(localTable, curPos);
-//            } else {
-//
-//            }
-            return symbolTable.put(name, isInitialized, isConstant, identType, content);
-        }
+        // 字符串常量和函数名的名字由编号生成，不会与标识符或彼此重复，不需要按名字查找
+        SymbolTable symbolTable = this.scopes.get(0);
+        return symbolTable.put(name, isInitialized, isConstant, identType, content).getStackOffset();
     }
 
-    private int addSymbol(String name, boolean isInitialized, boolean isConstant, Pos curPos, IdentType identType) throws AnalyzeError {
-        SymbolTable symbolTable = this.listOfSymbolTable.get(this.listOfSymbolTable.size() - 1);
-        if (symbolTable.get(name) != null) {
+    private SymbolEntry addSymbol(int name, boolean isInitialized, boolean isConstant, Pos curPos, IdentType identType) throws AnalyzeError {
+        if (this.scopes.isDeclaredInTop(name)) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
-            //            if (this.listOfSymbolTable.size() > 2 && this.listOfSymbolTable.size() > maxSize) {
-//                maxSize = this.listOfSymbolTable.size();
-//                ArrayList<SymbolTable> localTable = (ArrayList<SymbolTable>) this.listOfSymbolTable.clone();
-//                localTable.remove(0);
-//                localTable.remove(1);
-//                addFunctionLocalTable(localTable, curPos);
-//            } else {
-//
-//            }
-            return symbolTable.put(name, isInitialized, isConstant, identType, "");
+            return this.scopes.declare(name, identPool.getName(name), isInitialized, isConstant, identType);
         }
     }
 
-    private int addGlobalSymbol(String name, boolean isInitialized, boolean isConstant, Pos curPos, IdentType identType) throws AnalyzeError {
-        SymbolTable symbolTable = this.listOfSymbolTable.get(this.listOfSymbolTable.size() - 1);
-        if (symbolTable.get(name) != null) {
-            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-        } else {
-            //            if (this.listOfSymbolTable.size() > 2 && this.listOfSymbolTable.size() > maxSize) {
-//                maxSize = this.listOfSymbolTable.size();
-//                ArrayList<SymbolTable> localTable = (ArrayList<SymbolTable>) this.listOfSymbolTable.clone();
-//                localTable.remove(0);
-//                localTable.remove(1);
-//                addFunctionLocalTable(localTable, curPos);
-//            } else {
-//
-//            }
-            return symbolTable.put(name, isInitialized, isConstant, identType, "");
-        }
-    }
-
-    private SymbolEntry getSymbol(String name, Pos curPos) throws AnalyzeError {
-        for (int index = this.listOfSymbolTable.size() - 1; index >= 0; index--) {
-            SymbolTable symbolTable = this.listOfSymbolTable.get(index);
-            var entry = symbolTable.get(name);
-            if (entry != null) {
-                return entry;
-            }
+    private SymbolEntry getSymbol(int name, Pos curPos) throws AnalyzeError {
+        var entry = this.scopes.lookup(name);
+        if (entry != null) {
+            return entry;
         }
         throw new AnalyzeError(ErrorCode.VariableNotDeclared, curPos);
     }
 
     private boolean curIsGlobal() {
-        return this.listOfSymbolTable.size() == 1;
+        return this.scopes.size() == 1;
     }
 
-    private void addFunctionSymbol(String name, ArrayList<IdentType> function_param_list, IdentType returnValueType, ArrayList<Instruction> instructions, ArrayList<SymbolTable> listOfSymbolTable, Pos curPos) throws AnalyzeError {
-        SymbolTable globalSymbolTable = this.listOfSymbolTable.get(0);
-        if (globalSymbolTable.get(name) != null || functionSymbolTable.get(name) != null) {
+    private void addFunctionSymbol(int name, ArrayList<IdentType> function_param_list, IdentType returnValueType, InstructionBuffer instructions, ArrayList<SymbolTable> listOfSymbolTable, Pos curPos) throws AnalyzeError {
+        if (scopes.lookupGlobal(name) != null || functionSymbolTable.get(name) != null) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
             String functionName;
             if (isTest) {
-                functionName = this.globalStringIndex++ + name;
+                functionName = this.globalStringIndex++ + identPool.getName(name);
             } else {
                 functionName = String.valueOf(this.globalStringIndex++);
             }
-            int functionNameOffset = addGlobalSymbol(functionName, true, true, curPos, IdentType.STRING_LITERAL, name);
-            this.functionSymbolTable.put(name, new FunctionEntry(function_param_list, returnValueType, instructions, listOfSymbolTable, functionSymbolTable.size(), functionNameOffset));
+            int functionNameOffset = addGlobalSymbol(functionName, true, true, curPos, IdentType.STRING_LITERAL, identPool.getName(name));
+            this.functionSymbolTable.put(name, new FunctionEntry(identPool.getName(name), function_param_list, returnValueType, instructions, listOfSymbolTable, functionSymbolTable.size(), functionNameOffset));
         }
     }
 
-    private void addFunctionSymbol(String name, ArrayList<IdentType> function_param_list, IdentType returnValueType, Pos curPos) throws AnalyzeError {
-        SymbolTable globalSymbolTable = this.listOfSymbolTable.get(0);
-        if (globalSymbolTable.get(name) != null || functionSymbolTable.get(name) != null) {
+    private void addFunctionSymbol(int name, ArrayList<IdentType> function_param_list, IdentType returnValueType, Pos curPos) throws AnalyzeError {
+        if (scopes.lookupGlobal(name) != null || functionSymbolTable.get(name) != null) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
             String functionName;
             if (isTest) {
-                functionName = this.globalStringIndex++ + name;
+                functionName = this.globalStringIndex++ + identPool.getName(name);
             } else {
                 functionName = String.valueOf(this.globalStringIndex++);
             }
-            int functionNameOffset = addGlobalSymbol(functionName, true, true, curPos, IdentType.STRING_LITERAL, name);
-//            System.out.println(name);
-            this.functionSymbolTable.put(name, new FunctionEntry(function_param_list, returnValueType, functionSymbolTable.size(), functionNameOffset));
+            int functionNameOffset = addGlobalSymbol(functionName, true, true, curPos, IdentType.STRING_LITERAL, identPool.getName(name));
+            this.functionSymbolTable.put(name, new FunctionEntry(identPool.getName(name), function_param_list, returnValueType, functionSymbolTable.size(), functionNameOffset));
         }
     }
 
-    private void setFunctionSymbol(String name, ArrayList<IdentType> function_param_list, IdentType returnValueType, ArrayList<Instruction> instructions, ArrayList<SymbolTable> listOfSymbolTable, Pos curPos) throws AnalyzeError {
-        SymbolTable globalSymbolTable = this.listOfSymbolTable.get(0);
+    private void setFunctionSymbol(int name, ArrayList<IdentType> function_param_list, IdentType returnValueType, InstructionBuffer instructions, ArrayList<SymbolTable> listOfSymbolTable, Pos curPos) throws CompileError {
         if (functionSymbolTable.get(name) == null) {
             throw new AnalyzeError(ErrorCode.FunctionNotDeclared, curPos);
         } else {
             int offset = getFunctionSymbol(name, curPos).getStackOffset();
             int functionNameOffset = getFunctionSymbol(name, curPos).getFunctionNameOffset();
-            this.functionSymbolTable.replace(name, new FunctionEntry(function_param_list, returnValueType, instructions, listOfSymbolTable, offset, functionNameOffset));
+            FunctionEntry functionEntry = new FunctionEntry(identPool.getName(name), function_param_list, returnValueType, instructions, listOfSymbolTable, offset, functionNameOffset);
+            this.functionSymbolTable.put(name, functionEntry);
+            if (functionListener != null) {
+                try {
+                    functionListener.functionAnalysed(functionEntry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                functionEntry.releaseBody();
+            }
         }
     }
 
-    private FunctionEntry getFunctionSymbol(String name, Pos curPos) throws AnalyzeError {
+    private FunctionEntry getFunctionSymbol(int name, Pos curPos) throws AnalyzeError {
         FunctionEntry functionEntry = functionSymbolTable.get(name);
-        if (functionEntry == null) {
+        // 分析推迟的函数体时函数表中已经有全部函数，编号更大的函数顺序分析到这里时还没有声明
+        if (functionEntry == null || curDeferred != null && functionEntry.getStackOffset() > curDeferred.number) {
             throw new AnalyzeError(ErrorCode.FunctionNotDeclared, curPos);
         } else {
             return functionEntry;
@@ -432,46 +375,39 @@ public final class Analyser {
     }
 
     private void addFunctionLocalTable(SymbolTable symbolTable, Pos curPos) throws AnalyzeError {
-//        FunctionEntry functionEntry = functionSymbolTable.get(this.curFunctionName);
-//        if (functionEntry == null) {
-//            throw new AnalyzeError(ErrorCode.FunctionNotDeclared, curPos);
-//        } else {
-//            functionEntry.addSymbolTable(symbolTable);
-//        }
         this.curFunctionSymbolTable.add(symbolTable);
     }
 
     private SymbolTable addScope() {
         int level, basePoint;
-        if (listOfSymbolTable.size() < 3) {
-            level = listOfSymbolTable.size();
+        if (scopes.size() < 3) {
+            level = scopes.size();
             basePoint = 0;
         } else {
-            SymbolTable lastSymbolTable = listOfSymbolTable.get(listOfSymbolTable.size() - 1);
+            SymbolTable lastSymbolTable = scopes.top();
             level = lastSymbolTable.getLevel() + 1;
             basePoint = lastSymbolTable.getOffset();
         }
         SymbolTable symbolTable = new SymbolTable(level, basePoint);
-        listOfSymbolTable.add(symbolTable);
+        scopes.push(symbolTable);
         return symbolTable;
     }
 
     private SymbolTable addScope(int basePoint) {
         int level;
-        SymbolTable lastSymbolTable = listOfSymbolTable.get(listOfSymbolTable.size() - 1);
+        SymbolTable lastSymbolTable = scopes.top();
         level = lastSymbolTable.getLevel() + 1;
         SymbolTable symbolTable = new SymbolTable(level, basePoint);
-        listOfSymbolTable.add(symbolTable);
+        scopes.push(symbolTable);
         return symbolTable;
     }
 
     private void setScopeBasePoint(int basePoint) {
-        SymbolTable lastSymbolTable = listOfSymbolTable.get(listOfSymbolTable.size() - 1);
-        lastSymbolTable.setBasePoint(basePoint);
+        scopes.top().setBasePoint(basePoint);
     }
 
     private void removeScope() {
-        this.listOfSymbolTable.remove(this.listOfSymbolTable.size() - 1);
+        this.scopes.pop();
     }
 
     private void checkTypeMatch(IdentType I1, IdentType I2, Pos curPos) throws AnalyzeError {
@@ -480,185 +416,212 @@ public final class Analyser {
         }
     }
 
-    /**
-     * 设置符号为已赋值
-     * 
-     * @param name   符号名称
-     * @param curPos 当前位置（报错用）
-     * @throws AnalyzeError 如果未定义则抛异常
-     */
-    private void initializeSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = getSymbol(name, curPos);
-        entry.setInitialized(true);
-    }
-
-    /**
-     * 获取变量在栈上的偏移
-     *
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 栈偏移
-     * @throws AnalyzeError
-     */
-    private int getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = getSymbol(name, curPos);
-        return entry.getStackOffset();
-    }
-
-    /**
-     * 获取变量是否是常量
-     *
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 是否为常量
-     * @throws AnalyzeError
-     */
-    private boolean isConstant(String name, Pos curPos) throws AnalyzeError {
-        var entry = getSymbol(name, curPos);
-        return entry.isConstant();
-    }
-
-    @SuppressWarnings("unchecked")
     private void analyseProgram() throws CompileError {
         // 程序 -> 'begin' 主过程 'end'
         // 示例函数，示例如何调用子程序
         addScope();
-        addFunctionSymbol("_start", new ArrayList<>(), IdentType.VOID, new Pos(0, 0));
-        ArrayList<Instruction> instructions = new ArrayList<>();
-        // 添加标准库函数
-//        buildStandardFunctionLibrary();
+        addFunctionSymbol(IdentPool.START, new ArrayList<>(), IdentType.VOID, new Pos(0, 0));
+        InstructionBuffer instructions = new InstructionBuffer();
+        try {
+            analyseItems(instructions);
+        } catch (CompileError e) {
+            // 顺序分析时，出错位置之前的函数体中的错误先被报告
+            analyseDeferredFunctions();
+            throw e;
+        }
+        analyseDeferredFunctions();
+        this.curFunctionSymbolTable.clear();
+        this.curFunctionSymbolTable.add(this.scopes.get(0));
+        FunctionEntry mainFunction = getFunctionSymbol(IdentPool.MAIN, new Pos(0, 0));
+        if (mainFunction.getReturnValueType() != IdentType.VOID) {
+            instructions.add(Operation.stackalloc, 1);
+        }
+        instructions.add(Operation.call, mainFunction.getStackOffset());
+        setFunctionSymbol(IdentPool.START, new ArrayList<>(), IdentType.VOID, instructions, new ArrayList<SymbolTable>(), new Pos(0, 0));
+        // 不销毁全局符号表
+    }
+
+    /**
+     * 依次分析全局声明和函数，直到 EOF
+     * 全局变量的初始化指令加入 instructions（_start 的函数体）
+     */
+    private void analyseItems(InstructionBuffer instructions) throws CompileError {
         while (true) {
-            switch (peek().getTokenType()) {
+            if (deferredFunctions == null) {
+                // 已经分析完的全局声明和函数不会再访问，丢弃它们的 token
+                tokens.discardBefore(cursor);
+            }
+            switch (peekType()) {
                 case LET_KW:
-                    analyse_let_decl_stmt(instructions);
-                    break;
                 case CONST_KW:
-                    analyse_const_decl_stmt(instructions);
+                    analyse_global_decl_stmt(instructions);
                     break;
                 case FN_KW:
                     analyse_function();
                     break;
                 default:
-//                    throw new AnalyzeError(ErrorCode.InvalidIdentType, peek().getStartPos());
                     expect(TokenType.EOF);
-//                    addFunctionLocalTable(this.listOfSymbolTable.get(0), new Pos(0, 0));
-                    this.curFunctionSymbolTable.clear();
-                    this.curFunctionSymbolTable.add(this.listOfSymbolTable.get(0));
-                    FunctionEntry mainFunction = getFunctionSymbol("main", new Pos(0, 0));
-                    if (mainFunction.getReturnValueType() != IdentType.VOID) {
-                        instructions.add(new Instruction(Operation.stackalloc, 1));
-                    }
-                    instructions.add(new Instruction(Operation.call, mainFunction.getStackOffset()));
-                    setFunctionSymbol("_start", new ArrayList<>(), IdentType.VOID, instructions, new ArrayList<SymbolTable>(), new Pos(0, 0));
                     return;
             }
         }
-        // 不销毁全局符号表
-//        removeScope();
-    }
-
-//    private void analyseItem(ArrayList<Instruction> instructions) throws CompileError {
-//        switch (peek().getTokenType()) {
-//            case LET_KW:
-//                analyse_let_decl_stmt(instructions);
-//                break;
-//            case CONST_KW:
-//                analyse_const_decl_stmt(instructions);
-//                break;
-//            case FN_KW:
-//                analyse_function();
-//                break;
-//            default:
-//                throw new AnalyzeError(ErrorCode.InvalidIdentType, peek().getStartPos());
-//        }
-//    }
+    }
+
+    /**
+     * 全局变量或常量的声明，初始化的指令加入 instructions（_start 的函数体）
+     */
+    private void analyse_global_decl_stmt(InstructionBuffer instructions) throws CompileError {
+        int block = ast.list(NodeKind.BLOCK);
+        if (peekType() == TokenType.LET_KW) {
+            analyse_let_decl_stmt(block);
+        } else {
+            analyse_const_decl_stmt(block);
+        }
+        lowering.lowerStatement(ast, block, instructions);
+        ast.clear();
+    }
+
+    /**
+     * 并行分析声明扫描中跳过的函数体，再按编号顺序登记到函数表
+     * 有错误时抛出编号最小的函数中的错误，也就是顺序分析时最先遇到的错误
+     */
+    private void analyseDeferredFunctions() throws CompileError {
+        if (deferredFunctions == null || deferredFunctions.isEmpty()) {
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new FunctionBodyTask(0, deferredFunctions.size()));
+        } finally {
+            pool.shutdown();
+        }
+        for (DeferredFunction function: deferredFunctions) {
+            if (function.error != null) {
+                throw function.error;
+            }
+            setFunctionSymbol(function.name, function.function_param_list, function.returnValueType, function.instructions, function.listOfSymbolTable, function.namePos);
+        }
+        deferredFunctions.clear();
+    }
+
+    /**
+     * 分析 [from, to) 范围内推迟的函数体，范围较大时一分为二并行执行
+     * 每个任务用一个自己的分析器按顺序分析，遇到错误就停止（之后的函数的错误不会被报告）
+     */
+    private class FunctionBodyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        FunctionBodyTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FUNCTIONS_PER_TASK) {
+                Analyser analyser = new Analyser(Analyser.this);
+                for (int i = from; i < to; i++) {
+                    DeferredFunction function = deferredFunctions.get(i);
+                    try {
+                        analyser.analyseDeferredFunction(function);
+                    } catch (CompileError e) {
+                        function.error = e;
+                        return;
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FunctionBodyTask(from, mid), new FunctionBodyTask(mid, to));
+        }
+    }
+
+    /**
+     * 从 fn 关键字开始重新分析一个函数，状态恢复成顺序分析到这个函数时的样子
+     */
+    private void analyseDeferredFunction(DeferredFunction function) throws CompileError {
+        this.curDeferred = function;
+        this.cursor = function.fnToken;
+        this.nextStringSlot = function.firstStringSlot;
+        this.scopes.showGlobals(function.globalCount);
+        analyse_function();
+    }
+
 // TODO: 2020/12/10 loca 偏移有问题 
-    private void analyse_let_decl_stmt(ArrayList<Instruction> instructions) throws CompileError {
+    private void analyse_let_decl_stmt(int block) throws CompileError {
         expect(TokenType.LET_KW);
         var nameToken = expect(TokenType.IDENT);
         boolean initialized = false;
         expect(TokenType.COLON);
         var type = expect(TokenType.IDENT);
         IdentType identType;
-        switch ((String) type.getValue()) {
-            case "int":
+        switch (tokens.getIdent(type)) {
+            case IdentPool.INT:
                 identType = IdentType.INT;
                 break;
-            case "double":
+            case IdentPool.DOUBLE:
                 identType = IdentType.DOUBLE;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidIdentType, type.getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidIdentType, tokens.getStartPos(type));
         }
         // 下个 token 是等于号吗？如果是的话分析初始化
-        Token operator = nextIf(TokenType.ASSIGN);
-        Instruction address = null;
-        if (operator != null) {
-            if (curIsGlobal()) {
-                address = new Instruction(Operation.globa);
-            } else {
-                address = new Instruction(Operation.loca);
-            }
-            instructions.add(address);
-            checkTypeMatch(identType, analyse_expr(instructions, TokenType.None), operator.getStartPos());
+        int operator = nextIf(TokenType.ASSIGN);
+        int value = -1;
+        if (operator >= 0) {
+            value = analyse_expr();
+            checkTypeMatch(identType, ast.getType(value), tokens.getStartPos(operator));
             initialized = true;
         }
 
         // 分号
         expect(TokenType.SEMICOLON);
 
-        String name = (String) nameToken.getValue(); /* 名字 */
-        var offset = addSymbol(name, initialized, false, /* 当前位置 */ nameToken.getStartPos(), identType);
+        int name = tokens.getIdent(nameToken); /* 名字 */
+        var symbol = addSymbol(name, initialized, false, /* 当前位置 */ tokens.getStartPos(nameToken), identType);
 
         if (initialized) {
-            address.setValue(offset);
-            instructions.add(new Instruction(Operation.store64));
+            ast.append(block, ast.node(NodeKind.EXPR_STMT, ast.assign(ast.address(symbol), value), -1));
         }
     }
 
-    private void analyse_const_decl_stmt(ArrayList<Instruction> instructions) throws CompileError {
+    private void analyse_const_decl_stmt(int block) throws CompileError {
         expect(TokenType.CONST_KW);
         var nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         var type = expect(TokenType.IDENT);
         IdentType identType;
-        switch ((String) type.getValue()) {
-            case "int":
+        switch (tokens.getIdent(type)) {
+            case IdentPool.INT:
                 identType = IdentType.INT;
                 break;
-            case "double":
+            case IdentPool.DOUBLE:
                 identType = IdentType.DOUBLE;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidIdentType, type.getStartPos());
-        }
-        Instruction address;
-        if (curIsGlobal()) {
-            address = new Instruction(Operation.globa);
-        } else {
-            address = new Instruction(Operation.loca);
+                throw new AnalyzeError(ErrorCode.InvalidIdentType, tokens.getStartPos(type));
         }
-        instructions.add(address);
         // 下个 token 是等于号吗？如果是的话分析初始化
-        Token operator = expect(TokenType.ASSIGN);
-        checkTypeMatch(identType, analyse_expr(instructions, TokenType.None), operator.getStartPos());
+        int operator = expect(TokenType.ASSIGN);
+        int value = analyse_expr();
+        checkTypeMatch(identType, ast.getType(value), tokens.getStartPos(operator));
 
         // 分号
         expect(TokenType.SEMICOLON);
 
-        String name = (String) nameToken.getValue(); /* 名字 */
-        var offset = addSymbol(name, true, true, /* 当前位置 */ nameToken.getStartPos(), identType);
+        int name = tokens.getIdent(nameToken); /* 名字 */
+        var symbol = addSymbol(name, true, true, /* 当前位置 */ tokens.getStartPos(nameToken), identType);
 
-        address.setValue(offset);
-        instructions.add(new Instruction(Operation.store64));
+        ast.append(block, ast.node(NodeKind.EXPR_STMT, ast.assign(ast.address(symbol), value), -1));
     }
 
     @SuppressWarnings("unchecked")
     private void analyse_function() throws CompileError {
         addScope();
         this.curFunctionSymbolTable.clear();
-        ArrayList<Instruction> instructions = new ArrayList<>();
-        expect(TokenType.FN_KW);
+        int fn_kw = expect(TokenType.FN_KW);
         var nameToken = expect(TokenType.IDENT);
         expect(TokenType.L_PAREN);
         ArrayList<IdentType> function_param_list = analyse_function_param_list();
@@ -666,45 +629,89 @@ public final class Analyser {
         expect(TokenType.ARROW);
         var type = expect(TokenType.IDENT);
         IdentType identType;
-        switch ((String) type.getValue()) {
-            case "int":
+        switch (tokens.getIdent(type)) {
+            case IdentPool.INT:
                 identType = IdentType.INT;
                 setScopeBasePoint(1);
-//                function_param_list.add(0, identType);
-//                addSymbol("0returnValue", false, false, nameToken.getStartPos(), identType);
                 break;
-            case "double":
+            case IdentPool.DOUBLE:
                 identType = IdentType.DOUBLE;
                 setScopeBasePoint(1);
-//                function_param_list.add(0, identType);
-//                addSymbol("0returnValue", false, false, nameToken.getStartPos(), identType);
                 break;
-            case "void":
+            case IdentPool.VOID:
                 identType = IdentType.VOID;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidReturnValueType, type.getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidReturnValueType, tokens.getStartPos(type));
+        }
+        int name = tokens.getIdent(nameToken);
+        if (curDeferred == null) {
+            addFunctionSymbol(name, function_param_list, identType, tokens.getStartPos(nameToken));
         }
-        String name = (String) nameToken.getValue();
-        addFunctionSymbol(name, function_param_list, identType, nameToken.getStartPos());
-        boolean hasReturned = analyse_block_stmt(instructions, (identType == IdentType.VOID), identType);
+        if (deferredFunctions != null) {
+            // 声明扫描：函数体留到全部声明读完以后再分析
+            DeferredFunction function = new DeferredFunction(fn_kw, getFunctionSymbol(name, tokens.getStartPos(nameToken)).getStackOffset(), scopes.globalCount(), scopes.get(0).getOffset());
+            deferredFunctions.add(function);
+            skip_block_stmt();
+            removeScope();
+            return;
+        }
+        int body = ast.list(NodeKind.BLOCK);
+        boolean hasReturned = analyse_block_stmt(body, (identType == IdentType.VOID), identType);
         if (!hasReturned) {
-            throw new AnalyzeError(ErrorCode.NoReturn, nameToken.getStartPos());
+            throw new AnalyzeError(ErrorCode.NoReturn, tokens.getStartPos(nameToken));
         }
-        if (identType == IdentType.VOID) {
-            instructions.add(new Instruction(Operation.ret));
+        InstructionBuffer instructions = new InstructionBuffer();
+        lowering.lowerFunction(ast, body, identType, instructions);
+        ast.clear();
+
+        if (curDeferred != null) {
+            curDeferred.name = name;
+            curDeferred.namePos = tokens.getStartPos(nameToken);
+            curDeferred.function_param_list = function_param_list;
+            curDeferred.returnValueType = identType;
+            curDeferred.instructions = instructions;
+            curDeferred.listOfSymbolTable = (ArrayList<SymbolTable>) this.curFunctionSymbolTable.clone();
+        } else {
+            setFunctionSymbol(name, function_param_list, identType, instructions, (ArrayList<SymbolTable>) this.curFunctionSymbolTable.clone(), tokens.getStartPos(nameToken));
         }
 
-        setFunctionSymbol(name, function_param_list, identType, instructions, (ArrayList<SymbolTable>) this.curFunctionSymbolTable.clone(), nameToken.getStartPos());
-
         removeScope();
     }
 
+    /**
+     * 声明扫描中跳过函数体：只匹配花括号，并按出现的顺序为其中的字符串字面量分配全局常量，
+     * 与顺序分析时分配的偏移相同
+     * 函数体不完整时抛出错误，但这个函数体仍然会被分析，报告的是分析时最先遇到的错误
+     */
+    private void skip_block_stmt() throws CompileError {
+        expect(TokenType.L_BRACE);
+        int depth = 1;
+        while (depth > 0) {
+            int token = next();
+            switch (tokens.getTokenType(token)) {
+                case L_BRACE:
+                    depth++;
+                    break;
+                case R_BRACE:
+                    depth--;
+                    break;
+                case STRING_LITERAL:
+                    addStringLiteral(token);
+                    break;
+                case EOF:
+                    throw new ExpectedTokenError(TokenType.R_BRACE, tokens.getToken(token));
+                default:
+                    break;
+            }
+        }
+    }
+
     private ArrayList<IdentType> analyse_function_param_list() throws CompileError {
         ArrayList<IdentType> function_param_list = new ArrayList<>();
-        if (peek().getTokenType() == TokenType.IDENT || peek().getTokenType() == TokenType.CONST_KW) {
+        if (peekType() == TokenType.IDENT || peekType() == TokenType.CONST_KW) {
             analyse_function_param(function_param_list);
-            while (nextIf(TokenType.COMMA) != null) {
+            while (nextIf(TokenType.COMMA) >= 0) {
                 analyse_function_param(function_param_list);
             }
         }
@@ -713,36 +720,39 @@ public final class Analyser {
 
     private void analyse_function_param(ArrayList<IdentType> function_param_list) throws CompileError {
         boolean isConstant = false;
-        if (nextIf(TokenType.CONST_KW) != null) {
+        if (nextIf(TokenType.CONST_KW) >= 0) {
             isConstant = true;
         }
         var nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         var type = expect(TokenType.IDENT);
         IdentType identType;
-        switch ((String) type.getValue()) {
-            case "int":
+        switch (tokens.getIdent(type)) {
+            case IdentPool.INT:
                 identType = IdentType.INT;
                 break;
-            case "double":
+            case IdentPool.DOUBLE:
                 identType = IdentType.DOUBLE;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidIdentType, type.getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidIdentType, tokens.getStartPos(type));
         }
         // 加入符号表
-        String name = (String) nameToken.getValue();
-        addSymbol(name, true, isConstant, nameToken.getStartPos(), identType);
+        int name = tokens.getIdent(nameToken);
+        addSymbol(name, true, isConstant, tokens.getStartPos(nameToken), identType);
         function_param_list.add(identType);
     }
 
-    private boolean analyse_block_stmt(ArrayList<Instruction> instructions, boolean hasReturned, IdentType retType) throws CompileError {
+    /**
+     * @param block 语句加入这个 BLOCK 节点
+     */
+    private boolean analyse_block_stmt(int block, boolean hasReturned, IdentType retType) throws CompileError {
         SymbolTable symbolTable = addScope();
-        Token L_BRACE = expect(TokenType.L_BRACE);
-        addFunctionLocalTable(symbolTable, L_BRACE.getStartPos());
+        int L_BRACE = expect(TokenType.L_BRACE);
+        addFunctionLocalTable(symbolTable, tokens.getStartPos(L_BRACE));
         AnalyseStmtResult analyseStmtResult = new AnalyseStmtResult(true, hasReturned);
         while (analyseStmtResult.stmtFlag) {
-            analyseStmtResult = analyse_stmt(instructions, analyseStmtResult.hasReturned, retType);
+            analyseStmtResult = analyse_stmt(block, analyseStmtResult.hasReturned, retType);
         }
         expect(TokenType.R_BRACE);
         removeScope();
@@ -766,51 +776,42 @@ public final class Analyser {
         }
     }
 
-    private AnalyseStmtResult analyse_stmt(ArrayList<Instruction> instructions, boolean hasReturned, IdentType retType) throws CompileError {
+    private AnalyseStmtResult analyse_stmt(int block, boolean hasReturned, IdentType retType) throws CompileError {
         AnalyseStmtResult analyseStmtResult = new AnalyseStmtResult(true, hasReturned);
-        switch (peek().getTokenType()) {
+        switch (peekType()) {
             case IDENT:
             case L_PAREN:
             case MINUS:
-                analyse_expr_stmt(instructions);
+                analyse_expr_stmt(block);
                 break;
             case LET_KW:
-                analyse_let_decl_stmt(instructions);
+                analyse_let_decl_stmt(block);
                 break;
             case CONST_KW:
-                analyse_const_decl_stmt(instructions);
+                analyse_const_decl_stmt(block);
                 break;
             case IF_KW:
-                analyseStmtResult.hasReturned = analyse_if_stmt(instructions, hasReturned, retType);
-//                if (!ifHasReturned) {
-//                    throw new AnalyzeError(ErrorCode.NoReturn, peek().getStartPos());
-//                }
+                analyseStmtResult.hasReturned = analyse_if_stmt(block, hasReturned, retType);
                 break;
             case WHILE_KW:
-                this.whileStack.add(instructions.size());
-                this.breakStack.add(new ArrayList<>());
-                analyse_while_stmt(instructions, hasReturned, retType);
-//                if (!whileHasReturned) {
-//                    throw new AnalyzeError(ErrorCode.NoReturn, peek().getStartPos());
-//                }
-                for (Instruction breakInstruction: this.breakStack.get(this.breakStack.size() -1)) {
-                    breakInstruction.setValue(instructions.size() - breakInstruction.getIntValue() - 1);
-                }
-                this.breakStack.remove(this.breakStack.size() -1);
-                this.whileStack.remove(this.whileStack.size() - 1);
+                this.loopDepth++;
+                analyse_while_stmt(block, hasReturned, retType);
+                this.loopDepth--;
                 break;
             case BREAK_KW:
-                analyse_break_stmt(instructions);
+                analyse_break_stmt(block);
                 break;
             case CONTINUE_KW:
-                analyse_continue_stmt(instructions);
+                analyse_continue_stmt(block);
                 break;
             case RETURN_KW:
-                analyse_return_stmt(instructions, hasReturned, retType);
+                analyse_return_stmt(block, hasReturned, retType);
                 analyseStmtResult.hasReturned = true;
                 break;
             case L_BRACE:
-                analyseStmtResult.hasReturned = analyse_block_stmt(instructions, hasReturned, retType);
+                int innerBlock = ast.list(NodeKind.BLOCK);
+                ast.append(block, innerBlock);
+                analyseStmtResult.hasReturned = analyse_block_stmt(innerBlock, hasReturned, retType);
                 break;
             case SEMICOLON:
                 analyse_empty_stmt();
@@ -822,148 +823,100 @@ public final class Analyser {
         return analyseStmtResult;
     }
 
-    private void analyse_expr_stmt(ArrayList<Instruction> instructions) throws CompileError {
+    private void analyse_expr_stmt(int block) throws CompileError {
         // TODO: 2020/11/18 表达式如果有值，值将会被丢弃
-        analyse_expr(instructions, TokenType.None);
+        int expr = analyse_expr();
         expect(TokenType.SEMICOLON);
+        ast.append(block, ast.node(NodeKind.EXPR_STMT, expr, -1));
     }
 
-    private boolean analyse_if_stmt(ArrayList<Instruction> instructions, boolean hasReturned, IdentType retType) throws CompileError {
-        ArrayList<Instruction> jumpList = new ArrayList<>();
-        Token if_kw = expect(TokenType.IF_KW);
-        Instruction jumpNoStaified = getIfJumpInstruction(instructions, if_kw, hasReturned, retType);
-//        if (!ifHasReturned) {
-//            throw new AnalyzeError(ErrorCode.NoReturn, if_kw.getStartPos());
-//        }
+    private boolean analyse_if_stmt(int block, boolean hasReturned, IdentType retType) throws CompileError {
+        int ifNode = ast.list(NodeKind.IF);
+        ast.append(block, ifNode);
+        int if_kw = expect(TokenType.IF_KW);
+        analyse_if_branch(ifNode, if_kw, hasReturned, retType);
         while (check(TokenType.ELSE_KW)) {
-            jumpNoStaified.setValue(jumpNoStaified.getIntValue() + 1);
-            Token ELSE_KW = expect(TokenType.ELSE_KW);
-            boolean elseHasReturn;
-            if (peek().getTokenType() == TokenType.IF_KW) {
+            expect(TokenType.ELSE_KW);
+            if (peekType() == TokenType.IF_KW) {
                 if_kw = expect(TokenType.IF_KW);
-                Instruction jumpStaified = new Instruction(Operation.br, instructions.size());
-                instructions.add(jumpStaified);
-                jumpList.add(jumpStaified);
-                jumpNoStaified = getIfJumpInstruction(instructions, if_kw, hasReturned, retType);
-//                if (!elseHasReturn) {
-//                    throw new AnalyzeError(ErrorCode.NoReturn, if_kw.getStartPos());
-//                }
+                analyse_if_branch(ifNode, if_kw, hasReturned, retType);
             } else {
-
-                hasReturned =  getElseJumpInstruction(instructions, retType, hasReturned);
+                hasReturned = analyse_else_branch(ifNode, retType, hasReturned);
                 break;
-//                elseHasReturn = analyse_block_stmt(instructions, hasReturned, retType);
-//                if (!elseHasReturn) {
-//                    throw new AnalyzeError(ErrorCode.NoReturn, ELSE_KW.getStartPos());
-//                }
             }
         }
-        System.out.println("s:" + instructions.size());
-        for (Instruction jump: jumpList) {
-            System.out.println(jump.getIntValue());
-            jump.setValue(instructions.size() - jump.getIntValue() - 1);
-        }
         return hasReturned;
     }
 
-    private Instruction getIfJumpInstruction(ArrayList<Instruction> instructions, Token if_kw, boolean hasReturn, IdentType retType) throws CompileError {
-        IdentType exprRet = analyse_expr(instructions, TokenType.None);
-        Instruction jump;
-        switch (exprRet) {
-            case TRUE:
-                jump = new Instruction(Operation.br_false);
-                break;
-            case FALSE:
-                jump = new Instruction(Operation.br_true);
-                break;
-            case INT:
-                jump = new Instruction(Operation.br_false);
-                break;
-            default:
-                throw new AnalyzeError(ErrorCode.InvalidIfExpr, if_kw.getStartPos());
-        }
-        instructions.add(jump);
-        int jumpLength = instructions.size();
-        boolean jumpHasReturned = analyse_block_stmt(instructions, hasReturn, retType);
-//        System.out.println(instructions.size());
-//        System.out.println(jumpLength);
-        jumpLength = instructions.size() - jumpLength;
-        jump.setValue(jumpLength);
-        return jump;
-    }
-
-    private boolean getElseJumpInstruction(ArrayList<Instruction> instructions, IdentType retType, boolean hasReturn) throws CompileError {
-        Instruction jump = new Instruction(Operation.br);
-        instructions.add(jump);
-        int jumpLength = instructions.size();
-        boolean jumpHasReturned = analyse_block_stmt(instructions, hasReturn, retType);
-        jumpLength = instructions.size() - jumpLength;
-        jump.setValue(jumpLength);
-        return jumpHasReturned;
+    /**
+     * 条件和分支依次加入 IF 节点
+     */
+    private void analyse_if_branch(int ifNode, int if_kw, boolean hasReturn, IdentType retType) throws CompileError {
+        int condition = analyse_condition(if_kw);
+        ast.append(ifNode, condition);
+        int branch = ast.list(NodeKind.BLOCK);
+        ast.append(ifNode, branch);
+        boolean jumpHasReturned = analyse_block_stmt(branch, hasReturn, retType);
     }
 
-    private boolean analyse_while_stmt(ArrayList<Instruction> instructions, boolean hasReturned, IdentType retType) throws CompileError {
-        Token while_kw = expect(TokenType.WHILE_KW);
-        int jumpBackwardLength = instructions.size();
-        boolean jumpHasReturned = getWhileJumpInstruction(instructions, while_kw, hasReturned, retType);
-        jumpBackwardLength = - (instructions.size() - jumpBackwardLength + 1);
-        instructions.add(new Instruction(Operation.br, jumpBackwardLength));
+    private boolean analyse_else_branch(int ifNode, IdentType retType, boolean hasReturn) throws CompileError {
+        int branch = ast.list(NodeKind.BLOCK);
+        ast.append(ifNode, branch);
+        boolean jumpHasReturned = analyse_block_stmt(branch, hasReturn, retType);
         return jumpHasReturned;
     }
 
-    private boolean getWhileJumpInstruction(ArrayList<Instruction> instructions, Token if_kw, boolean hasReturn, IdentType retType) throws CompileError {
-        IdentType exprRet = analyse_expr(instructions, TokenType.None);
-        Instruction jump;
-        switch (exprRet) {
+    /**
+     * if 和 while 的条件：比较的结果或者 int
+     */
+    private int analyse_condition(int if_kw) throws CompileError {
+        int condition = analyse_expr();
+        switch (ast.getType(condition)) {
             case TRUE:
-                jump = new Instruction(Operation.br_false);
-                break;
             case FALSE:
-                jump = new Instruction(Operation.br_true);
-                break;
             case INT:
-                jump = new Instruction(Operation.br_false);
-                break;
+                return condition;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidIfExpr, if_kw.getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidIfExpr, tokens.getStartPos(if_kw));
         }
-        instructions.add(jump);
-        int jumpLength = instructions.size();
-        boolean jumpHasReturned = analyse_block_stmt(instructions, hasReturn, retType);
-        jumpLength = instructions.size() - jumpLength + 1;
-        jump.setValue(jumpLength);
+    }
+
+    private boolean analyse_while_stmt(int block, boolean hasReturned, IdentType retType) throws CompileError {
+        int while_kw = expect(TokenType.WHILE_KW);
+        int condition = analyse_condition(while_kw);
+        int body = ast.list(NodeKind.BLOCK);
+        boolean jumpHasReturned = analyse_block_stmt(body, hasReturned, retType);
+        ast.append(block, ast.node(NodeKind.WHILE, condition, body));
         return jumpHasReturned;
     }
 
-    private void analyse_break_stmt(ArrayList<Instruction> instructions) throws CompileError {
-        Token break_kw = expect(TokenType.BREAK_KW);
-        if (this.whileStack.size() == 0) {
-            throw new AnalyzeError(ErrorCode.BreakError, break_kw.getStartPos());
+    private void analyse_break_stmt(int block) throws CompileError {
+        int break_kw = expect(TokenType.BREAK_KW);
+        if (this.loopDepth == 0) {
+            throw new AnalyzeError(ErrorCode.BreakError, tokens.getStartPos(break_kw));
         }
-        Instruction breakInstruction = new Instruction(Operation.br, instructions.size());
-        instructions.add(breakInstruction);
-        this.breakStack.get(this.breakStack.size() - 1).add(breakInstruction);
+        ast.append(block, ast.node(NodeKind.BREAK, -1, -1));
         expect(TokenType.SEMICOLON);
     }
 
-    private void analyse_continue_stmt(ArrayList<Instruction> instructions) throws CompileError {
-        Token continue_kw = expect(TokenType.CONTINUE_KW);
-        if (this.whileStack.size() == 0) {
-            throw new AnalyzeError(ErrorCode.ContinueError, continue_kw.getStartPos());
+    private void analyse_continue_stmt(int block) throws CompileError {
+        int continue_kw = expect(TokenType.CONTINUE_KW);
+        if (this.loopDepth == 0) {
+            throw new AnalyzeError(ErrorCode.ContinueError, tokens.getStartPos(continue_kw));
         }
-        instructions.add(new Instruction(Operation.br, - (instructions.size() - this.whileStack.get(this.whileStack.size() - 1) + 1)));
+        ast.append(block, ast.node(NodeKind.CONTINUE, -1, -1));
         expect(TokenType.SEMICOLON);
     }
 
     // TODO: return
-    private void analyse_return_stmt(ArrayList<Instruction> instructions, boolean hasReturned, IdentType retType) throws CompileError {
-        Token ret = expect(TokenType.RETURN_KW);
+    private void analyse_return_stmt(int block, boolean hasReturned, IdentType retType) throws CompileError {
+        int ret = expect(TokenType.RETURN_KW);
+        int value = -1;
         if (retType != IdentType.VOID) {
-            instructions.add(new Instruction(Operation.arga, 0));
-            checkTypeMatch(retType, analyse_expr(instructions, TokenType.None), ret.getStartPos());
-            instructions.add(new Instruction(Operation.store64, 0));
+            value = analyse_expr();
+            checkTypeMatch(retType, ast.getType(value), tokens.getStartPos(ret));
         }
-        instructions.add(new Instruction(Operation.ret));
+        ast.append(block, ast.node(NodeKind.RETURN, value, -1));
         expect(TokenType.SEMICOLON);
     }
 
@@ -971,243 +924,269 @@ public final class Analyser {
         expect(TokenType.SEMICOLON);
     }
 
-    private IdentType analyse_expr(ArrayList<Instruction> instructions, TokenType stackTop) throws CompileError {
-        SymbolEntry symbolEntry;
-        IdentType exprRet;  // 下一层递归的返回值
-        IdentType result = IdentType.VOID;
-        switch (peek().getTokenType()) {
-            case IDENT:
-                var nameToken = expect(TokenType.IDENT);
-                switch (peek().getTokenType()) {
-                    case ASSIGN:    // assign_expr
-                        if (operatorPriority.get(TokenType.ASSIGN) <= operatorPriority.get(stackTop)) {
-                            return result;
-                        }
-                        symbolEntry = getSymbol((String) nameToken.getValue(), nameToken.getStartPos());
-                        if (symbolEntry.isConstant()) {
-                            throw new AnalyzeError(ErrorCode.AssignToConstant, nameToken.getStartPos());
-                        }
-                        instructions.add(new Instruction(symbolEntry.getOperationByLocation(), symbolEntry.getStackOffset()));  // 压地址
-                        Token assign = expect(TokenType.ASSIGN);
-                        exprRet = analyse_expr(instructions, TokenType.ASSIGN);   // 压值
-                        checkTypeMatch(symbolEntry.getIdentType(), exprRet, assign.getStartPos());
-                        instructions.add(new Instruction(Operation.store64));
-                        result = IdentType.VOID;
-                        break;
-                    case L_PAREN:   // call_expr
-                        String functionName= (String) nameToken.getValue();
-                        expect(TokenType.L_PAREN);
-                        if (standardFunctionInstruction.containsKey(functionName)) {
-                            switch (functionName) {
-                                case "getint":
-                                case "getchar":
-                                    expect(TokenType.R_PAREN);
-                                    instructions.add(standardFunctionInstruction.get(functionName));
-                                    result = IdentType.INT;
-                                    break;
-                                case "getdouble":
-                                    expect(TokenType.R_PAREN);
-                                    instructions.add(standardFunctionInstruction.get(functionName));
-                                    result = IdentType.DOUBLE;
-                                    break;
-                                case "putint":
-                                case "putchar":
-                                case "putstr":
-                                    checkTypeMatch(analyse_expr(instructions, TokenType.None), IdentType.INT, nameToken.getStartPos());
-                                    expect(TokenType.R_PAREN);
-                                    instructions.add(standardFunctionInstruction.get(functionName));
-                                    result = IdentType.VOID;
-                                    break;
-                                case "putdouble":
-                                    checkTypeMatch(analyse_expr(instructions, TokenType.None), IdentType.DOUBLE, nameToken.getStartPos());
-                                    expect(TokenType.R_PAREN);
-                                    instructions.add(standardFunctionInstruction.get(functionName));
-                                    result = IdentType.VOID;
-                                    break;
-                                case "putln":
-                                    expect(TokenType.R_PAREN);
-                                    instructions.add(standardFunctionInstruction.get(functionName));
-                                    result = IdentType.VOID;
-                                    break;
-                            }
-                        } else {
-                            FunctionEntry functionEntry = getFunctionSymbol(functionName, nameToken.getStartPos());
-                            switch (functionEntry.getReturnValueType()) {
-                                case INT:
-                                case DOUBLE:
-                                    instructions.add(new Instruction(Operation.stackalloc, 1));  // 压返回值
-//                                case VOID:
-//                                    instructions.add(new Instruction(Operation.stackalloc, 0));  // 压返回值
-//                                default:
-//                                    throw new AnalyzeError(ErrorCode.InvalidReturnValueType, nameToken.getStartPos());
-                            }
-//                            instructions.add(new Instruction(Operation.push, 0));  // 压返回值
-                            analyse_call_param_list(functionEntry.getFunction_param_list(), instructions, nameToken.getStartPos()); // 压参数
-                            instructions.add(new Instruction(Operation.call, functionEntry.getStackOffset()));
-                            expect(TokenType.R_PAREN);
-                            result = functionEntry.getReturnValueType();
-                        }
-                        break;
-                    default:    // ident_expr
-                        symbolEntry = getSymbol((String) nameToken.getValue(), nameToken.getStartPos());
-                        instructions.add(new Instruction(symbolEntry.getOperationByLocation(), symbolEntry.getStackOffset()));
-                        instructions.add(new Instruction(Operation.load64));
-                        result = symbolEntry.getIdentType();
-                        break;
-                }
-                break;
-            case L_PAREN:   // group_expr
-                expect(TokenType.L_PAREN);
-                result = analyse_expr(instructions, TokenType.None);
-                expect(TokenType.R_PAREN);
-                break;
-            case MINUS:     // negate_expr
-                if (operatorPriority.get(TokenType.PRE_MINUS) < operatorPriority.get(stackTop)) {
-                    return result;
+    /**
+     * 分析一个表达式，用算符优先法，运算符和操作数都放在显式的栈里，不随运算符个数递归
+     * 两个栈是 Analyser 的成员，函数调用参数里的表达式从当前栈顶继续使用，节点分配在 ast 中
+     * 与逐层递归的写法相比，归约的时机和建立的语法树都完全相同：
+     * 读到优先级为 p 的二元运算符时，先把栈中优先级不低于 p 的运算符全部归约（左结合），
+     * 负号（6）比 as（5）优先，赋值（1）只能出现在表达式开头或括号内的开头
+     *
+     * @return 表达式的节点，类型用 ast.getType 读取
+     */
+    private int analyse_expr() throws CompileError {
+        int operatorBase = operatorTop;
+        while (true) {
+            analyse_operand(operatorBase);
+            while (true) {
+                TokenType tokenType = peekType();
+                if (BINARY_OPERATOR[tokenType.ordinal()]) {  // binary_operator
+                    reduce(operatorBase, PRIORITY[tokenType.ordinal()]);
+                    pushOperator(tokenType, next());
+                    break;
+                } else if (tokenType == TokenType.AS_KW) {  // as_expr
+                    reduce(operatorBase, PRIORITY[TokenType.AS_KW.ordinal()]);
+                    analyse_as_expr();
+                } else {
+                    reduce(operatorBase, PRIORITY[TokenType.ASSIGN.ordinal()]);
+                    if (operatorTop == operatorBase) {
+                        return operandNodes[--operandTop];
+                    }
+                    // 栈顶是左括号，group_expr 结束
+                    expect(TokenType.R_PAREN);
+                    operatorTop--;
                 }
-                Token minus = expect(TokenType.MINUS);
-                result = analyse_expr(instructions, TokenType.PRE_MINUS);
-//                System.out.println(result);
-                Operation negative;
+            }
+        }
+    }
+
+    /**
+     * 分析一个操作数以及它前面的负号和左括号，操作数的节点压入操作数栈
+     * 赋值表达式的左侧也在这里处理：变量的地址作为操作数，赋值作为运算符入栈
+     */
+    private void analyse_operand(int operatorBase) throws CompileError {
+        while (true) {
+            switch (peekType()) {
+                case MINUS:     // negate_expr
+                    pushOperator(TokenType.PRE_MINUS, next());
+                    break;
+                case L_PAREN:   // group_expr
+                    pushOperator(TokenType.L_PAREN, next());
+                    break;
+                case IDENT:
+                    var nameToken = expect(TokenType.IDENT);
+                    if (peekType() != TokenType.ASSIGN) {
+                        pushOperand(analyse_ident_expr(nameToken));
+                        return;
+                    }
+                    // assign_expr
+                    if (operatorTop > operatorBase && operatorKinds[operatorTop - 1] != TokenType.L_PAREN) {
+                        // 不在表达式开头，不作为赋值分析，之后在归约或匹配括号时报错
+                        pushOperand(ast.node(NodeKind.EMPTY, -1, -1));
+                        return;
+                    }
+                    SymbolEntry symbolEntry = getSymbol(tokens.getIdent(nameToken), tokens.getStartPos(nameToken));
+                    if (symbolEntry.isConstant()) {
+                        throw new AnalyzeError(ErrorCode.AssignToConstant, tokens.getStartPos(nameToken));
+                    }
+                    pushOperand(ast.address(symbolEntry));  // 地址
+                    pushOperator(TokenType.ASSIGN, expect(TokenType.ASSIGN));
+                    break;
+                case UINT_LITERAL:  // literal_expr
+                    int uint = expect(TokenType.UINT_LITERAL);
+                    long intValue = tokens.getLong(uint);
+                    pushOperand(ast.literal(NodeKind.INT_LITERAL, IdentType.INT, intValue));
+                    return;
+                case DOUBLE_LITERAL:
+                    int DOUBLE_LITERAL = expect(TokenType.DOUBLE_LITERAL);
+                    double doubleValue = tokens.getDouble(DOUBLE_LITERAL);
+                    pushOperand(ast.doubleLiteral(doubleValue));
+                    return;
+                // TODO: 2020/11/18 字符串字面量 只会在 putstr 调用中出现，语义是对应的全局常量的编号
+                case STRING_LITERAL:
+                    int STRING_LITERAL = expect(TokenType.STRING_LITERAL);
+                    var offset = addStringLiteral(STRING_LITERAL);
+                    pushOperand(ast.literal(NodeKind.STRING_LITERAL, IdentType.INT, offset));
+                    return;
+                case CHAR_LITERAL:
+                    int CHAR_LITERAL = expect(TokenType.CHAR_LITERAL);
+                    // TODO: 2020/12/5 转换是否有问题
+                    int charValue = (int) tokens.getChar(CHAR_LITERAL);
+                    pushOperand(ast.literal(NodeKind.INT_LITERAL, IdentType.INT, charValue));
+                    return;
+                default:
+                    throw new AnalyzeError(ErrorCode.InvalidExpr, tokens.getStartPos(peek()));
+            }
+        }
+    }
+
+    /**
+     * 把字符串字面量加入全局符号表，返回它的偏移
+     * 分析推迟的函数体时不修改全局符号表，偏移在声明扫描中已经按出现的顺序分配好
+     */
+    private int addStringLiteral(int token) throws AnalyzeError {
+        if (curDeferred != null) {
+            return nextStringSlot++;
+        }
+        String string;
+        if (isTest) {
+            string = this.globalStringIndex++ + tokens.getString(token);
+        } else {
+            string = String.valueOf(this.globalStringIndex++);
+        }
+        return addGlobalSymbol(string, true, true, /* 当前位置 */ tokens.getStartPos(token), IdentType.STRING_LITERAL, tokens.getString(token));
+    }
+
+    /**
+     * 函数调用或者变量，标识符已经读入
+     *
+     * @return 表达式的节点
+     */
+    private int analyse_ident_expr(int nameToken) throws CompileError {
+        if (peekType() != TokenType.L_PAREN) {  // ident_expr
+            SymbolEntry symbolEntry = getSymbol(tokens.getIdent(nameToken), tokens.getStartPos(nameToken));
+            return ast.load(ast.address(symbolEntry));
+        }
+        // call_expr
+        int result;
+        int functionName = tokens.getIdent(nameToken);
+        expect(TokenType.L_PAREN);
+        if (IdentPool.isStandardFunction(functionName)) {
+            int argument;
+            switch (functionName) {
+                case IdentPool.GETINT:
+                case IdentPool.GETCHAR:
+                    expect(TokenType.R_PAREN);
+                    result = ast.standardCall(functionName, IdentType.INT, -1);
+                    break;
+                case IdentPool.GETDOUBLE:
+                    expect(TokenType.R_PAREN);
+                    result = ast.standardCall(functionName, IdentType.DOUBLE, -1);
+                    break;
+                case IdentPool.PUTINT:
+                case IdentPool.PUTCHAR:
+                case IdentPool.PUTSTR:
+                    argument = analyse_expr();
+                    checkTypeMatch(ast.getType(argument), IdentType.INT, tokens.getStartPos(nameToken));
+                    expect(TokenType.R_PAREN);
+                    result = ast.standardCall(functionName, IdentType.VOID, argument);
+                    break;
+                case IdentPool.PUTDOUBLE:
+                    argument = analyse_expr();
+                    checkTypeMatch(ast.getType(argument), IdentType.DOUBLE, tokens.getStartPos(nameToken));
+                    expect(TokenType.R_PAREN);
+                    result = ast.standardCall(functionName, IdentType.VOID, argument);
+                    break;
+                default:    // PUTLN
+                    expect(TokenType.R_PAREN);
+                    result = ast.standardCall(functionName, IdentType.VOID, -1);
+                    break;
+            }
+        } else {
+            FunctionEntry functionEntry = getFunctionSymbol(functionName, tokens.getStartPos(nameToken));
+            int firstArgument = analyse_call_param_list(functionEntry.getFunction_param_list(), tokens.getStartPos(nameToken)); // 参数
+            expect(TokenType.R_PAREN);
+            result = ast.call(functionEntry, firstArgument);
+        }
+        return result;
+    }
+
+    /**
+     * as 作用在操作数栈顶的值上
+     */
+    private void analyse_as_expr() throws CompileError {
+        var as = expect(TokenType.AS_KW);
+        var type = expect(TokenType.IDENT);
+        int operand = operandNodes[operandTop - 1];
+        IdentType result = ast.getType(operand);
+        // TODO: 2020/11/18 强制类型转换
+        switch (tokens.getIdent(type)) {
+            case IdentPool.INT:
                 if (result == IdentType.INT) {
-                    negative = Operation.neg_i;
+                    break;
                 } else if (result == IdentType.DOUBLE) {
-                    negative = Operation.neg_f;
+                    operand = ast.unary(NodeKind.CONVERT, IdentType.INT, operand);
                 } else {
-                    throw new AnalyzeError(ErrorCode.TypeMisMatch, minus.getStartPos());
+                    throw new AnalyzeError(ErrorCode.InvalidAsExpr, tokens.getStartPos(as));
                 }
-                instructions.add(new Instruction(negative));
                 break;
-            case UINT_LITERAL:  // literal_expr
-                Token uint = expect(TokenType.UINT_LITERAL);
-                long intValue = (long)uint.getValue();
-                instructions.add(new Instruction(Operation.push, intValue));
-                result = IdentType.INT;
-                break;
-            case DOUBLE_LITERAL:
-                Token DOUBLE_LITERAL = expect(TokenType.DOUBLE_LITERAL);
-                double doubleValue = (double)DOUBLE_LITERAL.getValue();
-                instructions.add(new Instruction(Operation.push, doubleValue));
-                result = IdentType.DOUBLE;
-                break;
-            // TODO: 2020/11/18 字符串字面量 只会在 putstr 调用中出现，语义是对应的全局常量的编号
-            case STRING_LITERAL:
-                Token STRING_LITERAL = expect(TokenType.STRING_LITERAL);
-                String string;
-                if (isTest) {
-                    string = this.globalStringIndex++ + (String)STRING_LITERAL.getValue();
+            case IdentPool.DOUBLE:
+                if (result == IdentType.INT) {
+                    operand = ast.unary(NodeKind.CONVERT, IdentType.DOUBLE, operand);
+                } else if (result == IdentType.DOUBLE) {
+                    break;
                 } else {
-                    string = String.valueOf(this.globalStringIndex++);
+                    throw new AnalyzeError(ErrorCode.InvalidAsExpr, tokens.getStartPos(as));
                 }
-                var offset = addGlobalSymbol(string, true, true, /* 当前位置 */ STRING_LITERAL.getStartPos(), IdentType.STRING_LITERAL, (String)STRING_LITERAL.getValue());
-//                instructions.add(new Instruction(Operation.globa, offset));
-//                instructions.add(new Instruction(Operation.push, (String)STRING_LITERAL.getValue()));
-//                instructions.add(new Instruction(Operation.store64));
-                instructions.add(new Instruction(Operation.push, offset));
-                result = IdentType.INT;
-                break;
-            case CHAR_LITERAL:
-                Token CHAR_LITERAL = expect(TokenType.CHAR_LITERAL);
-                // TODO: 2020/12/5 转换是否有问题
-                int charValue = (int) (char) CHAR_LITERAL.getValue();
-                instructions.add(new Instruction(Operation.push, charValue));
-                result = IdentType.INT;
                 break;
             default:
-                throw new AnalyzeError(ErrorCode.InvalidExpr, peek().getStartPos());
+                throw new AnalyzeError(ErrorCode.InvalidIdentType, tokens.getStartPos(type));
         }
-        Set<TokenType> binary_operator = new HashSet<>();
-        binary_operator.add(TokenType.PLUS);
-        binary_operator.add(TokenType.MINUS);
-        binary_operator.add(TokenType.MUL);
-        binary_operator.add(TokenType.DIV);
-        binary_operator.add(TokenType.EQ);
-        binary_operator.add(TokenType.NEQ);
-        binary_operator.add(TokenType.LT);
-        binary_operator.add(TokenType.GT);
-        binary_operator.add(TokenType.LE);
-        binary_operator.add(TokenType.GE);
-        while (true) {
-            if (binary_operator.contains(peek().getTokenType())) {  // binary_operator
-                if (operatorPriority.get(peek().getTokenType()) <= operatorPriority.get(stackTop)) {
-                    return result;
-                }
-                var operator = next();
-                exprRet = analyse_expr(instructions, operator.getTokenType());
-                checkTypeMatch(result, exprRet, operator.getStartPos());
-                switch (operator.getTokenType()) {
-                    case PLUS:
-                    case MINUS:
-                    case MUL:
-                    case DIV:
-//                        System.out.println(operator.getTokenType());
-//                        System.out.println(binaryOperation.get(operator.getTokenType()).get(result));
-                        for (Operation operation: binaryOperation.get(operator.getTokenType()).get(result)) {
-                            instructions.add(new Instruction(operation));
-                        }
-                        break;
-                    case EQ:
-                    case GE:
-                    case LE:
-                        for (Operation operation: binaryOperation.get(operator.getTokenType()).get(result)) {
-                            instructions.add(new Instruction(operation));
-                        }
-                        result = IdentType.FALSE;
-                        break;
-                    case NEQ:
-                    case LT:
-                    case GT:
-                        for (Operation operation: binaryOperation.get(operator.getTokenType()).get(result)) {
-                            instructions.add(new Instruction(operation));
-                        }
-                        result = IdentType.TRUE;
-                        break;
-                    default:
-                        // not reach
-                        throw new AnalyzeError(ErrorCode.InvalidBinaryOperator, operator.getStartPos());
-                }
-            } else if (peek().getTokenType() == TokenType.AS_KW) {  // as_expr
-                if (operatorPriority.get(peek().getTokenType()) <= operatorPriority.get(stackTop)) {
-                    return result;
-                }
-                var as = expect(TokenType.AS_KW);
-                var type = expect(TokenType.IDENT);
-                // TODO: 2020/11/18 强制类型转换
-                switch ((String) type.getValue()) {
-                    case "int":
-                        if (result == IdentType.INT) {
-                            break;
-                        } else if (result == IdentType.DOUBLE) {
-                            instructions.add(new Instruction(Operation.ftoi));
-                            result = IdentType.INT;
-                        } else {
-                            throw new AnalyzeError(ErrorCode.InvalidAsExpr, as.getStartPos());
-                        }
-                        break;
-                    case "double":
-                        if (result == IdentType.INT) {
-                            instructions.add(new Instruction(Operation.itof));
-                            result = IdentType.DOUBLE;
-                        } else if (result == IdentType.DOUBLE) {
-                            break;
-                        } else {
-                            throw new AnalyzeError(ErrorCode.InvalidAsExpr, as.getStartPos());
-                        }
-                        break;
-                    default:
-                        throw new AnalyzeError(ErrorCode.InvalidIdentType, type.getStartPos());
+        operandNodes[operandTop - 1] = operand;
+    }
+
+    /**
+     * 归约运算符栈中 operatorBase 以上、优先级不低于 priority 的运算符，遇到左括号停止
+     */
+    private void reduce(int operatorBase, int priority) throws AnalyzeError {
+        while (operatorTop > operatorBase) {
+            TokenType operator = operatorKinds[operatorTop - 1];
+            if (operator == TokenType.L_PAREN || PRIORITY[operator.ordinal()] < priority) {
+                return;
+            }
+            // 位置只在报错时才换算，避免长表达式中反复计算列号
+            int operatorToken = operatorTokens[--operatorTop];
+            if (operator == TokenType.PRE_MINUS) {
+                int operand = operandNodes[operandTop - 1];
+                IdentType result = ast.getType(operand);
+                if (result != IdentType.INT && result != IdentType.DOUBLE) {
+                    throw new AnalyzeError(ErrorCode.TypeMisMatch, tokens.getStartPos(operatorToken));
                 }
-            } else {
-                break;
+                operandNodes[operandTop - 1] = ast.unary(NodeKind.NEGATE, result, operand);
+                continue;
+            }
+            int right = operandNodes[--operandTop];
+            int left = operandNodes[operandTop - 1];
+            IdentType result = ast.getType(left);
+            if (result != ast.getType(right)) {
+                throw new AnalyzeError(ErrorCode.TypeMisMatch, tokens.getStartPos(operatorToken));
             }
+            if (operator == TokenType.ASSIGN) {
+                operandNodes[operandTop - 1] = ast.assign(left, right);
+                continue;
+            }
+            if (result != IdentType.INT && result != IdentType.DOUBLE) {
+                throw new AnalyzeError(ErrorCode.InvalidBinaryOperator, tokens.getStartPos(operatorToken));
+            }
+            if (COMPARE_RESULT[operator.ordinal()] != null) {
+                result = COMPARE_RESULT[operator.ordinal()];
+            }
+            operandNodes[operandTop - 1] = ast.binary(operator.ordinal(), result, left, right);
         }
-        return result;
+    }
+
+    private void pushOperator(TokenType operator, int token) {
+        if (operatorTop == operatorKinds.length) {
+            operatorKinds = Arrays.copyOf(operatorKinds, operatorTop * 2);
+            operatorTokens = Arrays.copyOf(operatorTokens, operatorTop * 2);
+        }
+        operatorKinds[operatorTop] = operator;
+        operatorTokens[operatorTop++] = token;
+    }
+
+    private void pushOperand(int node) {
+        if (operandTop == operandNodes.length) {
+            operandNodes = Arrays.copyOf(operandNodes, operandTop * 2);
+        }
+        operandNodes[operandTop++] = node;
     }
 
 
 
     // TODO: 2020/11/18
-    private void analyse_call_param_list(ArrayList<IdentType> function_param_list, ArrayList<Instruction> instructions, Pos curPos) throws CompileError {
+    /**
+     * @return 第一个参数的节点，参数之间用 next 相连；没有参数时为 -1
+     */
+    private int analyse_call_param_list(ArrayList<IdentType> function_param_list, Pos curPos) throws CompileError {
         // TODO: 2020/11/18 判断与函数定义参数类型数量是否一致
         ArrayList<TokenType> prefixOfExpr = new ArrayList<>();
         prefixOfExpr.add(TokenType.IDENT);
@@ -1219,26 +1198,34 @@ public final class Analyser {
         prefixOfExpr.add(TokenType.CHAR_LITERAL);
         int paramIndex = 0;
         int lengthOfParamList = function_param_list.size();
-        if (prefixOfExpr.contains(peek().getTokenType())) {
-            paramIndex = analyse_call_param(function_param_list, instructions, curPos, paramIndex, lengthOfParamList);
+        int first = -1;
+        int last = -1;
+        if (prefixOfExpr.contains(peekType())) {
+            first = last = analyse_call_param(function_param_list, curPos, paramIndex++, lengthOfParamList);
         }
-        while (nextIf(TokenType.COMMA) != null) {
-            paramIndex = analyse_call_param(function_param_list, instructions, curPos, paramIndex, lengthOfParamList);
+        while (nextIf(TokenType.COMMA) >= 0) {
+            int param = analyse_call_param(function_param_list, curPos, paramIndex++, lengthOfParamList);
+            if (last >= 0) {
+                ast.setNext(last, param);
+            } else {
+                first = param;
+            }
+            last = param;
         }
         if (paramIndex < lengthOfParamList) {
             throw new AnalyzeError(ErrorCode.TooShortParamList, curPos);
         }
+        return first;
     }
 
-    private int analyse_call_param(ArrayList<IdentType> function_param_list, ArrayList<Instruction> instructions, Pos curPos, int paramIndex, int lengthOfParamList) throws CompileError {
-        IdentType exprRet = analyse_expr(instructions, TokenType.None);
+    private int analyse_call_param(ArrayList<IdentType> function_param_list, Pos curPos, int paramIndex, int lengthOfParamList) throws CompileError {
+        int param = analyse_expr();
         if (paramIndex >= lengthOfParamList) {
             throw new AnalyzeError(ErrorCode.TooLongParamList, curPos);
         }
-        if (function_param_list.get(paramIndex) != exprRet) {
+        if (function_param_list.get(paramIndex) != ast.getType(param)) {
             throw new AnalyzeError(ErrorCode.TypeMisMatch, curPos);
         }
-        paramIndex++;
-        return paramIndex;
+        return param;
     }
 }
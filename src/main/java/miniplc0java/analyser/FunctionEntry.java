@@ -1,24 +1,29 @@
 package miniplc0java.analyser;
 
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
 import miniplc0java.tokenizer.IdentType;
 
 import java.util.ArrayList;
 
 public class FunctionEntry {
+    private String name;
     private ArrayList<IdentType> function_param_list;
     private IdentType returnValueType;
-    private ArrayList<Instruction> instructions;
+    private InstructionBuffer instructions;
     private ArrayList<SymbolTable> listOfSymbolTable;
     private int stackOffset;
     private int functionNameOffset;
+    // 优化后局部变量的格子数，-1 表示按局部符号表计算
+    private int locSlots = -1;
 
     /**
+     * @param name:
      * @param function_param_list:
      * @param returnValueType:
      * @param stackOffset:
      */
-    public FunctionEntry(ArrayList<IdentType> function_param_list, IdentType returnValueType, ArrayList<Instruction> instructions, ArrayList<SymbolTable> functionSymbolTable, int stackOffset, int functionNameOffset) {
+    public FunctionEntry(String name, ArrayList<IdentType> function_param_list, IdentType returnValueType, InstructionBuffer instructions, ArrayList<SymbolTable> functionSymbolTable, int stackOffset, int functionNameOffset) {
+        this.name = name;
         this.function_param_list = function_param_list;
         this.returnValueType = returnValueType;
         this.instructions = instructions;
@@ -30,20 +35,33 @@ public class FunctionEntry {
     public FunctionEntry() {
     }
 
-    public FunctionEntry(ArrayList<IdentType> function_param_list, IdentType returnValueType, int stackOffset, int functionNameOffset) {
+    public FunctionEntry(String name, ArrayList<IdentType> function_param_list, IdentType returnValueType, int stackOffset, int functionNameOffset) {
+        this.name = name;
         this.function_param_list = function_param_list;
         this.returnValueType = returnValueType;
-        this.instructions = new ArrayList<>();
+        this.instructions = new InstructionBuffer(0);
         this.listOfSymbolTable = new ArrayList<>();
         this.stackOffset = stackOffset;
         this.functionNameOffset = functionNameOffset;
     }
 
+    /**
+     * 函数已经输出，释放指令和局部符号表，只保留调用它时需要的信息
+     */
+    void releaseBody() {
+        this.instructions = null;
+        this.listOfSymbolTable = null;
+    }
+
     public void addSymbolTable(SymbolTable symbolTable) {
         this.listOfSymbolTable.add(symbolTable);
     }
 
-    public ArrayList<Instruction> getInstructions() {
+    public String getName() {
+        return name;
+    }
+
+    public InstructionBuffer getInstructions() {
         return instructions;
     }
 
@@ -62,7 +80,18 @@ public class FunctionEntry {
         return returnValueType;
     }
 
+    /**
+     * 优化遍改写函数体时调用，改写后局部变量的格子数可能和局部符号表不同
+     */
+    public void setInstructions(InstructionBuffer instructions, int locSlots) {
+        this.instructions = instructions;
+        this.locSlots = locSlots;
+    }
+
     public int getSizeOfListOfSymbolTable() {
+        if (locSlots >= 0) {
+            return locSlots;
+        }
         int size = 0;
         for (SymbolTable symbolTable: listOfSymbolTable) {
             size += symbolTable.size();
@@ -85,6 +114,10 @@ public class FunctionEntry {
         this.stackOffset = stackOffset;
     }
 
+    public void setFunctionNameOffset(int functionNameOffset) {
+        this.functionNameOffset = functionNameOffset;
+    }
+
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
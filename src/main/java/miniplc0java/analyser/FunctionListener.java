@@ -0,0 +1,15 @@
+package miniplc0java.analyser;
+
+import miniplc0java.error.CompileError;
+
+import java.io.IOException;
+
+/**
+ * 每个函数分析完成时的回调，用于边分析边输出
+ */
+public interface FunctionListener {
+    /**
+     * @param functionEntry 刚分析完的函数，回调返回后它的指令和局部符号表会被释放
+     */
+    void functionAnalysed(FunctionEntry functionEntry) throws CompileError, IOException;
+}
@@ -0,0 +1,141 @@
+package miniplc0java.analyser;
+
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 作用域栈（LeBlanc-Cook 式的符号表）
+ * 所有作用域共用一个以标识符 ID 为下标的数组，保存每个名字当前可见的符号，
+ * 被遮蔽的同名符号通过 SymbolEntry.shadowed 串成链；
+ * 每次声明都在撤销日志里记下标识符 ID，退出作用域时按日志恢复被遮蔽的符号
+ * 查找、声明和退出作用域都是 O(1)（均摊），与嵌套深度无关
+ */
+class ScopeStack {
+    private SymbolEntry[] visible = new SymbolEntry[256];
+    private ArrayList<SymbolTable> tables = new ArrayList<>();
+    // 撤销日志，以及每个作用域开始时日志的长度
+    private int[] undoLog = new int[256];
+    private int undoSize = 0;
+    private int[] scopeMarks = new int[16];
+    // 并行分析函数体时全局声明所在的栈，以及其中已经在这个栈里可见的个数
+    private ScopeStack program;
+    private int shownGlobals = 0;
+
+    ScopeStack() {
+    }
+
+    /**
+     * 与 program 共用全局符号表的栈，初始时没有可见的全局声明，用 showGlobals 逐步放开
+     * 每个分析函数体的线程各用一个，互不影响
+     */
+    ScopeStack(ScopeStack program) {
+        this.program = program;
+        push(program.get(0));
+    }
+
+    void push(SymbolTable symbolTable) {
+        int depth = tables.size();
+        if (depth == scopeMarks.length) {
+            scopeMarks = Arrays.copyOf(scopeMarks, depth * 2);
+        }
+        scopeMarks[depth] = undoSize;
+        tables.add(symbolTable);
+    }
+
+    void pop() {
+        int depth = tables.size() - 1;
+        int mark = scopeMarks[depth];
+        while (undoSize > mark) {
+            int id = undoLog[--undoSize];
+            visible[id] = visible[id].shadowed;
+        }
+        tables.remove(depth);
+    }
+
+    int size() {
+        return tables.size();
+    }
+
+    SymbolTable get(int depth) {
+        return tables.get(depth);
+    }
+
+    SymbolTable top() {
+        return tables.get(tables.size() - 1);
+    }
+
+    /**
+     * 当前可见的符号，没有则返回 null
+     */
+    SymbolEntry lookup(int id) {
+        return id < visible.length ? visible[id] : null;
+    }
+
+    /**
+     * 全局作用域中的符号，没有则返回 null
+     */
+    SymbolEntry lookupGlobal(int id) {
+        SymbolEntry entry = lookup(id);
+        while (entry != null && entry.getLevel() != 0) {
+            entry = entry.shadowed;
+        }
+        return entry;
+    }
+
+    /**
+     * 是否已经在最内层作用域中声明过
+     * 作用域的 level 与它在栈中的深度相同
+     */
+    boolean isDeclaredInTop(int id) {
+        SymbolEntry entry = lookup(id);
+        return entry != null && entry.getLevel() == tables.size() - 1;
+    }
+
+    /**
+     * 全局作用域中用 declare 声明的符号个数（撤销日志中属于全局作用域的部分）
+     */
+    int globalCount() {
+        return tables.size() > 1 ? scopeMarks[1] : undoSize;
+    }
+
+    /**
+     * 让 program 中前 count 个全局声明可见，count 只能递增
+     * 只在栈中只有全局作用域时调用，program 此时不能再修改
+     */
+    void showGlobals(int count) {
+        for (; shownGlobals < count; shownGlobals++) {
+            int id = program.undoLog[shownGlobals];
+            // 全局声明之前没有同名的可见符号，entry.shadowed 始终是 null，不需要修改共用的符号
+            SymbolEntry entry = program.lookupGlobal(id);
+            if (id >= visible.length) {
+                visible = Arrays.copyOf(visible, Math.max(visible.length * 2, id + 1));
+            }
+            visible[id] = entry;
+            if (undoSize == undoLog.length) {
+                undoLog = Arrays.copyOf(undoLog, undoSize * 2);
+            }
+            undoLog[undoSize++] = id;
+        }
+    }
+
+    /**
+     * 在最内层作用域中声明一个符号
+     *
+     * @return 新声明的符号
+     */
+    SymbolEntry declare(int id, String name, boolean isInitialized, boolean isConstant, IdentType identType) {
+        SymbolEntry entry = top().put(name, isInitialized, isConstant, identType, "");
+        if (id >= visible.length) {
+            visible = Arrays.copyOf(visible, Math.max(visible.length * 2, id + 1));
+        }
+        entry.shadowed = visible[id];
+        visible[id] = entry;
+        if (undoSize == undoLog.length) {
+            undoLog = Arrays.copyOf(undoLog, undoSize * 2);
+        }
+        undoLog[undoSize++] = id;
+        return entry;
+    }
+}
@@ -4,6 +4,7 @@ import miniplc0java.instruction.Operation;
 import miniplc0java.tokenizer.IdentType;
 
 public class SymbolEntry {
+    private String name;
     private boolean isConstant;
     private boolean isInitialized;
     private int stackOffset;
@@ -12,15 +13,19 @@ public class SymbolEntry {
     private Operation operation;
     private String stringContent;
     private int stringLength;
+    // 同一作用域链上被这个符号遮蔽的同名符号，由 ScopeStack 维护
+    SymbolEntry shadowed;
 
     /**
+     * @param name:
      * @param isConstant:
      * @param isInitialized:
      * @param stackOffset:
      * @param identType:
      * @param level:
      */
-    public SymbolEntry(boolean isConstant, boolean isInitialized, int stackOffset, IdentType identType, int level, String content) {
+    public SymbolEntry(String name, boolean isConstant, boolean isInitialized, int stackOffset, IdentType identType, int level, String content) {
+        this.name = name;
         this.isConstant = isConstant;
         this.isInitialized = isInitialized;
         this.stackOffset = stackOffset;
@@ -44,6 +49,10 @@ public class SymbolEntry {
         return stackOffset;
     }
 
+    public String getName() {
+        return name;
+    }
+
     public IdentType getIdentType() {
         return identType;
     }
@@ -2,37 +2,37 @@ package miniplc0java.analyser;
 
 import miniplc0java.tokenizer.IdentType;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
+/**
+ * 一个作用域中声明的全部符号，负责分配栈偏移
+ * 按名字查找由 ScopeStack 完成
+ */
 public class SymbolTable {
-    HashMap<String, SymbolEntry> table;
+    // 全部符号，按加入的顺序，也就是栈偏移的顺序
+    ArrayList<SymbolEntry> entries;
     private int level;
     private int basePoint;
     private int curPoint;
 
     public SymbolTable(int level, int basePoint) {
-        this.table = new HashMap<>();
+        this.entries = new ArrayList<>();
         this.level = level;
         this.basePoint = basePoint;
         this.curPoint = basePoint;
     }
 
-    public SymbolEntry get(String name) {
-        return this.table.get(name);
-    }
-
-    public int put(String name, boolean isInitialized, boolean isConstant, IdentType identType, String content) {
-        this.table.put(name, new SymbolEntry(isConstant, isInitialized, this.curPoint, identType, this.level, content));
-//        System.out.println(table);
-//        System.out.println("n:" + name);
-//        System.out.println("c:" + curPoint);
-        return this.curPoint++;
+    public SymbolEntry put(String name, boolean isInitialized, boolean isConstant, IdentType identType, String content) {
+        SymbolEntry symbolEntry = new SymbolEntry(name, isConstant, isInitialized, this.curPoint++, identType, this.level, content);
+        this.entries.add(symbolEntry);
+        return symbolEntry;
     }
 
     public void setBasePoint(int basePoint) {
         this.basePoint = basePoint;
         this.curPoint = basePoint;
-        for (SymbolEntry symbolEntry: table.values()) {
+        for (SymbolEntry symbolEntry: entries) {
             symbolEntry.setStackOffset(symbolEntry.getStackOffset() + 1);
         }
     }
@@ -45,18 +45,29 @@ public class SymbolTable {
         return this.curPoint;
     }
 
+    public ArrayList<SymbolEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * 按名字组织的符号表，只用于输出
+     */
     public HashMap<String, SymbolEntry> getTable() {
-        return table;
+        HashMap<String, SymbolEntry> result = new HashMap<>();
+        for (SymbolEntry symbolEntry: entries) {
+            result.put(symbolEntry.getName(), symbolEntry);
+        }
+        return result;
     }
 
     public int size() {
-        return this.table.size();
+        return this.entries.size();
     }
 
     @Override
     public String toString() {
         return "SymbolTable{" +
-                "table=" + table +
+                "table=" + getTable() +
                 ", level=" + level +
                 ", basePoint=" + basePoint +
                 ", curPoint=" + curPoint +
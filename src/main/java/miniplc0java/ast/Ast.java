@@ -0,0 +1,193 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.Arrays;
+
+/**
+ * 按列存储的语法树，所有节点都分配在这几个数组里，用下标引用
+ * 每个节点占 kinds/types/lefts/rights/nexts/values/refs 各一格，子节点列表用 next 串起来
+ * Analyser 每分析完一个全局声明或函数就把它交给 Lowering 生成指令，然后 clear() 重复使用这些数组
+ */
+public class Ast {
+    private static final NodeKind[] NODE_KINDS = NodeKind.values();
+
+    private byte[] kinds;
+    private IdentType[] types;
+    private int[] lefts;
+    private int[] rights;
+    private int[] nexts;
+    private long[] values;
+    // 解析好的 SymbolEntry 或 FunctionEntry
+    private Object[] refs;
+    private int size = 0;
+
+    public Ast() {
+        this(64);
+    }
+
+    public Ast(int capacity) {
+        kinds = new byte[capacity];
+        types = new IdentType[capacity];
+        lefts = new int[capacity];
+        rights = new int[capacity];
+        nexts = new int[capacity];
+        values = new long[capacity];
+        refs = new Object[capacity];
+    }
+
+    /**
+     * 丢弃所有节点，数组留着给下一棵树用
+     */
+    public void clear() {
+        Arrays.fill(types, 0, size, null);
+        Arrays.fill(refs, 0, size, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int add(NodeKind kind, IdentType type, int left, int right, long value, Object ref) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            types = Arrays.copyOf(types, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            nexts = Arrays.copyOf(nexts, capacity);
+            values = Arrays.copyOf(values, capacity);
+            refs = Arrays.copyOf(refs, capacity);
+        }
+        kinds[size] = (byte) kind.ordinal();
+        types[size] = type;
+        lefts[size] = left;
+        rights[size] = right;
+        nexts[size] = -1;
+        values[size] = value;
+        refs[size] = ref;
+        return size++;
+    }
+
+    // 以下方法创建节点，返回节点的下标
+
+    public int literal(NodeKind kind, IdentType type, long value) {
+        return add(kind, type, -1, -1, value, null);
+    }
+
+    public int doubleLiteral(double value) {
+        return add(NodeKind.DOUBLE_LITERAL, IdentType.DOUBLE, -1, -1, Double.doubleToRawLongBits(value), null);
+    }
+
+    public int address(SymbolEntry symbol) {
+        return add(NodeKind.ADDRESS, symbol.getIdentType(), -1, -1, 0, symbol);
+    }
+
+    public int load(int address) {
+        return add(NodeKind.LOAD, types[address], address, -1, 0, null);
+    }
+
+    public int assign(int address, int value) {
+        return add(NodeKind.ASSIGN, IdentType.VOID, address, value, 0, null);
+    }
+
+    /**
+     * 一元运算（NEGATE、CONVERT）
+     */
+    public int unary(NodeKind kind, IdentType type, int operand) {
+        return add(kind, type, operand, -1, 0, null);
+    }
+
+    /**
+     * @param operator 运算符 TokenType 的序号
+     */
+    public int binary(int operator, IdentType type, int left, int right) {
+        return add(NodeKind.BINARY, type, left, right, operator, null);
+    }
+
+    /**
+     * @param firstArgument 第一个参数，参数之间已经用 setNext 相连
+     */
+    public int call(FunctionEntry function, int firstArgument) {
+        return add(NodeKind.CALL, function.getReturnValueType(), firstArgument, -1, 0, function);
+    }
+
+    public int standardCall(int function, IdentType type, int argument) {
+        return add(NodeKind.STANDARD_CALL, type, argument, -1, function, null);
+    }
+
+    /**
+     * 没有类型的节点（语句和 EMPTY）
+     */
+    public int node(NodeKind kind, int left, int right) {
+        return add(kind, IdentType.VOID, left, right, 0, null);
+    }
+
+    /**
+     * 空的 BLOCK 或 IF，子节点用 append 加入
+     */
+    public int list(NodeKind kind) {
+        return add(kind, IdentType.VOID, -1, -1, 0, null);
+    }
+
+    /**
+     * 把 child 加到 BLOCK 或 IF 的子节点末尾
+     */
+    public void append(int list, int child) {
+        if (lefts[list] < 0) {
+            lefts[list] = child;
+        } else {
+            nexts[rights[list]] = child;
+        }
+        rights[list] = child;
+    }
+
+    public void setNext(int node, int next) {
+        nexts[node] = next;
+    }
+
+    // 以下方法读取节点
+
+    public NodeKind getKind(int node) {
+        return NODE_KINDS[kinds[node]];
+    }
+
+    public IdentType getType(int node) {
+        return types[node];
+    }
+
+    public void setType(int node, IdentType type) {
+        types[node] = type;
+    }
+
+    public int getLeft(int node) {
+        return lefts[node];
+    }
+
+    public int getRight(int node) {
+        return rights[node];
+    }
+
+    public int getNext(int node) {
+        return nexts[node];
+    }
+
+    public long getValue(int node) {
+        return values[node];
+    }
+
+    public double getDoubleValue(int node) {
+        return Double.longBitsToDouble(values[node]);
+    }
+
+    public SymbolEntry getSymbol(int node) {
+        return (SymbolEntry) refs[node];
+    }
+
+    public FunctionEntry getFunction(int node) {
+        return (FunctionEntry) refs[node];
+    }
+}
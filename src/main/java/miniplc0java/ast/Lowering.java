@@ -0,0 +1,249 @@
+package miniplc0java.ast;
+
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.IdentPool;
+import miniplc0java.tokenizer.IdentType;
+import miniplc0java.tokenizer.TokenType;
+
+import java.util.ArrayList;
+
+/**
+ * 把类型检查过的语法树翻译成指令
+ * 语法树中的错误都已经由 Analyser 报告，这里不会失败
+ * 跳转偏移的计算方式与之前边分析边生成时完全相同，生成的指令序列也相同
+ */
+public class Lowering {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    /** 二元运算符对 int/double 生成的指令，按 TokenType 的序号存放 */
+    private static final Operation[][] INT_OPERATION = new Operation[TOKEN_TYPES.length][];
+    private static final Operation[][] DOUBLE_OPERATION = new Operation[TOKEN_TYPES.length][];
+    /** 标准库函数对应的指令，按标识符 ID 存放 */
+    private static final Operation[] STANDARD_FUNCTION = new Operation[IdentPool.PUTLN + 1];
+
+    static {
+        binaryOperation(TokenType.PLUS, Operation.add_i, Operation.add_f);
+        binaryOperation(TokenType.MINUS, Operation.sub_i, Operation.sub_f);
+        binaryOperation(TokenType.MUL, Operation.mul_i, Operation.mul_f);
+        binaryOperation(TokenType.DIV, Operation.div_i, Operation.div_f);
+        binaryOperation(TokenType.EQ, Operation.cmp_i, Operation.cmp_f);
+        binaryOperation(TokenType.NEQ, Operation.cmp_i, Operation.cmp_f);
+        binaryOperation(TokenType.GT, Operation.cmp_i, Operation.cmp_f, Operation.set_gt);
+        binaryOperation(TokenType.LT, Operation.cmp_i, Operation.cmp_f, Operation.set_lt);
+        binaryOperation(TokenType.GE, Operation.cmp_i, Operation.cmp_f, Operation.set_lt);
+        binaryOperation(TokenType.LE, Operation.cmp_i, Operation.cmp_f, Operation.set_gt);
+
+        STANDARD_FUNCTION[IdentPool.GETINT] = Operation.scan_i;
+        STANDARD_FUNCTION[IdentPool.GETDOUBLE] = Operation.scan_f;
+        STANDARD_FUNCTION[IdentPool.GETCHAR] = Operation.scan_c;
+        STANDARD_FUNCTION[IdentPool.PUTINT] = Operation.print_i;
+        STANDARD_FUNCTION[IdentPool.PUTDOUBLE] = Operation.print_f;
+        STANDARD_FUNCTION[IdentPool.PUTCHAR] = Operation.print_c;
+        STANDARD_FUNCTION[IdentPool.PUTSTR] = Operation.print_s;
+        STANDARD_FUNCTION[IdentPool.PUTLN] = Operation.println;
+    }
+
+    private static void binaryOperation(TokenType operator, Operation intOperation, Operation doubleOperation, Operation... set) {
+        INT_OPERATION[operator.ordinal()] = concat(intOperation, set);
+        DOUBLE_OPERATION[operator.ordinal()] = concat(doubleOperation, set);
+    }
+
+    private static Operation[] concat(Operation operation, Operation[] set) {
+        Operation[] operations = new Operation[set.length + 1];
+        operations[0] = operation;
+        System.arraycopy(set, 0, operations, 1, set.length);
+        return operations;
+    }
+
+    private Ast ast;
+    private InstructionBuffer instructions;
+    /** 每层循环开头的下标 */
+    private ArrayList<Integer> whileStack = new ArrayList<>();
+    /** 每层循环中 break 的回填链：链头是最后一条 br 的下标，每条 br 的操作数暂存上一条的下标，-1 结束 */
+    private ArrayList<Integer> breakStack = new ArrayList<>();
+
+    /**
+     * 翻译一个函数体
+     *
+     * @param body       函数体的 BLOCK
+     * @param returnType 返回类型，void 函数在末尾补一条 ret
+     */
+    public void lowerFunction(Ast ast, int body, IdentType returnType, InstructionBuffer instructions) {
+        lowerStatement(ast, body, instructions);
+        if (returnType == IdentType.VOID) {
+            instructions.add(Operation.ret);
+        }
+    }
+
+    /**
+     * 翻译一条语句（全局变量的初始化也是一条 EXPR_STMT），追加到 instructions
+     */
+    public void lowerStatement(Ast ast, int statement, InstructionBuffer instructions) {
+        this.ast = ast;
+        this.instructions = instructions;
+        statement(statement);
+        this.ast = null;
+        this.instructions = null;
+    }
+
+    private void statement(int node) {
+        switch (ast.getKind(node)) {
+            case EXPR_STMT:
+                expression(ast.getLeft(node));
+                break;
+            case BLOCK:
+                for (int child = ast.getLeft(node); child >= 0; child = ast.getNext(child)) {
+                    statement(child);
+                }
+                break;
+            case IF:
+                ifStatement(node);
+                break;
+            case WHILE:
+                whileStatement(node);
+                break;
+            case BREAK:
+                int breakInstruction = instructions.add(Operation.br, breakStack.get(breakStack.size() - 1));
+                breakStack.set(breakStack.size() - 1, breakInstruction);
+                break;
+            case CONTINUE:
+                instructions.add(Operation.br, -(instructions.size() - whileStack.get(whileStack.size() - 1) + 1));
+                break;
+            case RETURN:
+                if (ast.getLeft(node) >= 0) {
+                    instructions.add(Operation.arga, 0);
+                    expression(ast.getLeft(node));
+                    instructions.add(Operation.store64, 0);
+                }
+                instructions.add(Operation.ret);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a statement: " + ast.getKind(node));
+        }
+    }
+
+    /**
+     * 条件不成立时跳过分支；后面还有 else 时分支末尾多一条 br 跳到整个 if 的末尾
+     */
+    private void ifStatement(int node) {
+        ArrayList<Integer> jumpList = new ArrayList<>();
+        int child = ast.getLeft(node);
+        while (child >= 0) {
+            int block = ast.getNext(child);
+            if (block < 0) {
+                // else 分支
+                int jump = instructions.add(Operation.br);
+                int start = instructions.size();
+                statement(child);
+                instructions.setValue(jump, instructions.size() - start);
+                break;
+            }
+            if (child != ast.getLeft(node)) {
+                jumpList.add(instructions.add(Operation.br));
+            }
+            int jump = conditionalJump(child);
+            int start = instructions.size();
+            statement(block);
+            int length = instructions.size() - start;
+            child = ast.getNext(block);
+            instructions.setValue(jump, child >= 0 ? length + 1 : length);
+        }
+        for (int jump: jumpList) {
+            instructions.setValue(jump, instructions.size() - jump - 1);
+        }
+    }
+
+    private void whileStatement(int node) {
+        int start = instructions.size();
+        whileStack.add(start);
+        breakStack.add(-1);
+        int jump = conditionalJump(ast.getLeft(node));
+        int bodyStart = instructions.size();
+        statement(ast.getRight(node));
+        instructions.setValue(jump, instructions.size() - bodyStart + 1);
+        instructions.add(Operation.br, -(instructions.size() - start + 1));
+        for (int breakInstruction = breakStack.get(breakStack.size() - 1); breakInstruction >= 0; ) {
+            int previous = instructions.getIntValue(breakInstruction);
+            instructions.setValue(breakInstruction, instructions.size() - breakInstruction - 1);
+            breakInstruction = previous;
+        }
+        breakStack.remove(breakStack.size() - 1);
+        whileStack.remove(whileStack.size() - 1);
+    }
+
+    /**
+     * 计算条件，并加入条件不成立时跳转的指令（偏移之后回填）
+     * 比较的结果类型表示栈上的值与条件的关系：TRUE 时非 0 表示成立，FALSE 时非 0 表示不成立
+     *
+     * @return 跳转指令的下标
+     */
+    private int conditionalJump(int condition) {
+        expression(condition);
+        return instructions.add(ast.getType(condition) == IdentType.FALSE ? Operation.br_true : Operation.br_false);
+    }
+
+    private void expression(int node) {
+        switch (ast.getKind(node)) {
+            case INT_LITERAL:
+                instructions.add(Operation.push, ast.getValue(node));
+                break;
+            case STRING_LITERAL:
+                instructions.addGlobalIndex((int) ast.getValue(node));
+                break;
+            case DOUBLE_LITERAL:
+                instructions.add(Operation.push, ast.getDoubleValue(node));
+                break;
+            case ADDRESS:
+                SymbolEntry symbol = ast.getSymbol(node);
+                instructions.add(symbol.getOperationByLocation(), symbol.getStackOffset());
+                break;
+            case LOAD:
+                expression(ast.getLeft(node));
+                instructions.add(Operation.load64);
+                break;
+            case ASSIGN:
+                expression(ast.getLeft(node));
+                expression(ast.getRight(node));
+                instructions.add(Operation.store64);
+                break;
+            case NEGATE:
+                expression(ast.getLeft(node));
+                instructions.add(ast.getType(node) == IdentType.DOUBLE ? Operation.neg_f : Operation.neg_i);
+                break;
+            case BINARY:
+                expression(ast.getLeft(node));
+                expression(ast.getRight(node));
+                int operator = (int) ast.getValue(node);
+                Operation[] operations = ast.getType(ast.getLeft(node)) == IdentType.DOUBLE
+                        ? DOUBLE_OPERATION[operator] : INT_OPERATION[operator];
+                for (Operation operation: operations) {
+                    instructions.add(operation);
+                }
+                break;
+            case CONVERT:
+                expression(ast.getLeft(node));
+                instructions.add(ast.getType(node) == IdentType.DOUBLE ? Operation.itof : Operation.ftoi);
+                break;
+            case CALL:
+                if (ast.getType(node) != IdentType.VOID) {
+                    instructions.add(Operation.stackalloc, 1);  // 压返回值
+                }
+                for (int argument = ast.getLeft(node); argument >= 0; argument = ast.getNext(argument)) {
+                    expression(argument);
+                }
+                instructions.add(Operation.call, ast.getFunction(node).getStackOffset());
+                break;
+            case STANDARD_CALL:
+                if (ast.getLeft(node) >= 0) {
+                    expression(ast.getLeft(node));
+                }
+                instructions.add(STANDARD_FUNCTION[(int) ast.getValue(node)]);
+                break;
+            case EMPTY:
+                break;
+            default:
+                throw new IllegalArgumentException("Not an expression: " + ast.getKind(node));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package miniplc0java.ast;
+
+/**
+ * 语法树节点的种类，注释中是各字段的含义（left/right 是子节点，-1 表示没有）
+ */
+public enum NodeKind {
+    // 表达式，type 是表达式的类型
+
+    /** value：整数值（字符字面量是字符的编码） */
+    INT_LITERAL,
+    /** value：double 的二进制表示 */
+    DOUBLE_LITERAL,
+    /** value：字符串常量在全局符号表中的偏移 */
+    STRING_LITERAL,
+    /** ref：变量的 SymbolEntry，得到变量的地址 */
+    ADDRESS,
+    /** left：ADDRESS，读取变量的值 */
+    LOAD,
+    /** left：ADDRESS，right：值，type 为 VOID */
+    ASSIGN,
+    /** left：操作数 */
+    NEGATE,
+    /** value：运算符的 TokenType 序号，left/right：两个操作数；type 是结果类型，操作数类型是 left 的类型 */
+    BINARY,
+    /** left：操作数，type：转换后的类型 */
+    CONVERT,
+    /** ref：被调用函数的 FunctionEntry，left：第一个参数，参数之间用 next 相连 */
+    CALL,
+    /** value：标准库函数的标识符 ID，left：参数（没有参数时为 -1） */
+    STANDARD_CALL,
+    /** 不生成代码的操作数，只在之后一定会报错的表达式中出现（比如不在开头的赋值的左侧） */
+    EMPTY,
+
+    // 语句，语句之间用 next 相连
+
+    /** left：表达式，值被丢弃 */
+    EXPR_STMT,
+    /** left：第一条语句，right：最后一条语句（用于追加） */
+    BLOCK,
+    /** left：条件和分支交替相连（cond1、block1、cond2、block2……），数量为奇数时最后一个是 else 分支；right：最后一个子节点 */
+    IF,
+    /** left：条件，right：循环体 */
+    WHILE,
+    BREAK,
+    CONTINUE,
+    /** left：返回值（void 函数为 -1） */
+    RETURN
+}
@@ -1,41 +1,52 @@
 package miniplc0java.generator;
 
 import miniplc0java.error.GenerateError;
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
 import miniplc0java.tokenizer.IdentType;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Function {
-    String name;
-    String ret_slots;
-    String param_slots;
-    String loc_slots;
-    String body_count;
-    ArrayList<String> body_items = new ArrayList<>();
+    int name;
+    int ret_slots;
+    int param_slots;
+    int loc_slots;
+    InstructionBuffer body_items;
 
-    public Function(int name, IdentType ret_identType, int param_slots, int loc_slots, ArrayList<Instruction> instructions) throws GenerateError {
-        this.name = String.format("%08x", name);
+    public Function(int name, IdentType ret_identType, int param_slots, int loc_slots, InstructionBuffer instructions) {
+        this.name = name;
         if (ret_identType == IdentType.VOID) {
-            this.ret_slots = "00000000";
+            this.ret_slots = 0;
         } else {
-            this.ret_slots = "00000001";
-        }
-        this.param_slots = String.format("%08x", param_slots);
-        this.loc_slots = String.format("%08x", loc_slots);
-        this.body_count = String.format("%08x", instructions.size());
-        for (Instruction instruction: instructions) {
-            body_items.add(instruction.getGenerateInstruction());
+            this.ret_slots = 1;
         }
+        this.param_slots = param_slots;
+        this.loc_slots = loc_slots;
+        this.body_items = instructions;
     }
 
-    @Override
-    public String toString() {
-        StringBuilder stringBuilder = new StringBuilder();
-        for (String item: body_items) {
-            stringBuilder.append(item);
-        }
-//        System.out.println("re:" + ret_slots);
-        return name + ret_slots + param_slots + loc_slots + body_count + stringBuilder.toString();
+    public void write(O0Writer writer) throws GenerateError, IOException {
+        writer.writeU32(name);
+        writer.writeU32(ret_slots);
+        writer.writeU32(param_slots);
+        writer.writeU32(loc_slots);
+        writer.writeU32(body_items.size());
+        body_items.write(writer);
+    }
+
+    /**
+     * 编码到一个大小正好的缓冲区中，内容与 write 写出的相同
+     * 只读取自己的指令，不同函数可以在不同线程中同时编码
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(5 * 4 + body_items.getEncodedSize());
+        buffer.putInt(name);
+        buffer.putInt(ret_slots);
+        buffer.putInt(param_slots);
+        buffer.putInt(loc_slots);
+        buffer.putInt(body_items.size());
+        body_items.write(buffer);
+        return buffer.flip();
     }
 }
@@ -5,60 +5,130 @@ import miniplc0java.analyser.FunctionEntry;
 import miniplc0java.analyser.SymbolEntry;
 import miniplc0java.error.GenerateError;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * 把分析结果编码成 o0
+ * 文件头和全局变量表编码成一段，每个函数各编码成一段，函数之间互不依赖，可以并行编码；
+ * 最后按函数编号的顺序拼接，输出到文件时用一次聚集写（FileChannel.write(ByteBuffer[])）写出
+ */
 public class Generator {
-    private HashMap<String, SymbolEntry> symbolTable;
-    private ArrayList<Map.Entry<String, SymbolEntry>> symbolList;
-    private HashMap<String, FunctionEntry> functionSymbolTable;
-    private ArrayList<Map.Entry<String, FunctionEntry>> functionList;
-    String magic = "72303b3e";
-    String version = "00000001";
-    String globals_count;
+    private ArrayList<SymbolEntry> symbolList;
+    private ArrayList<FunctionEntry> functionList;
+    static final int MAGIC = 0x72303b3e;
+    static final int VERSION = 0x00000001;
+    // 每个任务至少编码的函数个数，函数太少时不值得再拆分
+    private static final int FUNCTIONS_PER_TASK = 4;
     ArrayList<Global> globals = new ArrayList<>();
-    String functions_count;
     ArrayList<Function> functions = new ArrayList<>();
+    // 编码结果：第 0 段是文件头、全局变量表和函数个数，之后按编号每个函数一段
+    ByteBuffer[] sections;
 
     public Generator(AnalyseResult analyseResult) {
-        this.symbolTable = analyseResult.getSymbolTable();
-        this.functionSymbolTable = analyseResult.getFunctionSymbolTable();
-        symbolList = new ArrayList<>(symbolTable.entrySet());
-        symbolList.sort(Comparator.comparingInt(o -> o.getValue().getStackOffset()));
-        functionList = new ArrayList<>(functionSymbolTable.entrySet());
-        functionList.sort(Comparator.comparingInt(o -> o.getValue().getStackOffset()));
+        symbolList = analyseResult.getSymbolList();
+        functionList = analyseResult.getFunctionList();
     }
 
     public void generate() throws GenerateError {
-        globals_count = String.format("%08x", symbolTable.size());
-        for (Map.Entry<String, SymbolEntry> entry: symbolList) {
-            SymbolEntry symbolEntry = entry.getValue();
+        generate(1);
+    }
+
+    /**
+     * @param parallelism 并行编码函数的线程数，为 1 时在当前线程依次编码
+     */
+    public void generate(int parallelism) throws GenerateError {
+        for (SymbolEntry symbolEntry: symbolList) {
             globals.add(new Global(symbolEntry.isConstant(), symbolEntry.getIdentType(), symbolEntry.getStringContent()));
         }
-        functions_count = String.format("%08x", functionSymbolTable.size());
-//        System.out.println(String.format("%08x", symbolTable.size()));
-        for (Map.Entry<String, FunctionEntry> entry: functionList) {
-            FunctionEntry functionEntry = entry.getValue();
-//            System.out.println(entry.getKey());
-//            System.out.println(entry.getValue().getSizeOfListOfSymbolTable());
-//            System.out.println(entry.getValue().getFunction_param_list().size());
+        for (FunctionEntry functionEntry: functionList) {
             functions.add(new Function(functionEntry.getFunctionNameOffset(), functionEntry.getReturnValueType(), functionEntry.getFunction_param_list().size(), functionEntry.getSizeOfListOfSymbolTable(), functionEntry.getInstructions()));
         }
+        sections = new ByteBuffer[functions.size() + 1];
+        sections[0] = encodeHeader();
+        if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new EncodeTask(0, functions.size()));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < functions.size(); i++) {
+                sections[i + 1] = functions.get(i).encode();
+            }
+        }
+    }
+
+    private ByteBuffer encodeHeader() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        O0Writer writer = new O0Writer(bytes);
+        try {
+            writer.writeU32(MAGIC);
+            writer.writeU32(VERSION);
+            writer.writeU32(globals.size());
+            for (Global global: globals) {
+                global.write(writer);
+            }
+            writer.writeU32(functions.size());
+            writer.flush();
+        } catch (IOException e) {
+            // 写入内存，不会发生
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
     }
 
-    @Override
-    public String toString() {
-        StringBuilder globalsBuilder = new StringBuilder();
-        for (Global global: globals) {
-            globalsBuilder.append(global);
+    /**
+     * 编码 [from, to) 范围内的函数，范围较大时一分为二并行执行
+     */
+    private class EncodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        EncodeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
         }
-        StringBuilder functionsBuilder = new StringBuilder();
-        for (Function function: functions) {
-            functionsBuilder.append(function);
+
+        @Override
+        protected void compute() {
+            if (to - from <= FUNCTIONS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    sections[i + 1] = functions.get(i).encode();
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new EncodeTask(from, mid), new EncodeTask(mid, to));
+        }
+    }
+
+    public void write(O0Writer writer) throws GenerateError, IOException {
+        for (ByteBuffer section: sections) {
+            writer.writeBytes(section.array());
+        }
+        writer.flush();
+    }
+
+    /**
+     * 把全部编码结果聚集写入 channel
+     */
+    public void write(FileChannel channel) throws IOException {
+        int offset = 0;
+        while (offset < sections.length) {
+            channel.write(sections, offset, sections.length - offset);
+            // 一次调用可能只写出一部分，跳过已经写完的段
+            while (offset < sections.length && !sections[offset].hasRemaining()) {
+                offset++;
+            }
         }
-//        System.out.println(symbolList);
-        return magic + version + globals_count + globalsBuilder.toString() + functions_count + functionsBuilder.toString();
     }
 }
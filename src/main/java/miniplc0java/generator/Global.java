@@ -2,42 +2,30 @@ package miniplc0java.generator;
 
 import miniplc0java.tokenizer.IdentType;
 
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public class Global {
-    String isConst;
+    boolean isConst;
     IdentType identType;
-    String valueCount;
-    String content;
-    int stringLength;
+    byte[] content;
 
     public Global(boolean isConst, IdentType identType, String content) {
-        if (isConst) {
-            this.isConst = "01";
-        } else {
-            this.isConst = "00";
-        }
+        this.isConst = isConst;
         this.identType = identType;
-        this.content = content;
         if (identType == IdentType.STRING_LITERAL) {
-            this.stringLength = content.length();
-            this.valueCount = String.format("%08x", stringLength);
-        } else {
-            this.valueCount = "00000008";
-            this.stringLength = 8;
+            this.content = content.getBytes(StandardCharsets.UTF_8);
         }
     }
 
-    @Override
-    public String toString() {
+    public void write(O0Writer writer) throws IOException {
+        writer.writeU8(isConst ? 1 : 0);
         if (identType == IdentType.STRING_LITERAL) {
-            StringBuilder stringBuilder = new StringBuilder();
-            for (int i = 0; i < content.length(); i++) {
-                stringBuilder.append(String.format("%02x", (int) content.charAt(i)));
-            }
-            return isConst + valueCount + stringBuilder.toString();
+            writer.writeU32(content.length);
+            writer.writeBytes(content);
         } else {
-            return isConst + valueCount + "00".repeat(Math.max(0, stringLength));
+            writer.writeU32(8);
+            writer.writeZeros(8);
         }
     }
 }
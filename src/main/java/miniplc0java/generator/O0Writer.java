@@ -0,0 +1,94 @@
+package miniplc0java.generator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * o0 二进制输出，所有多字节操作数均按大端序写入
+ * hex 模式下输出十六进制文本，仅用于调试
+ */
+public class O0Writer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final boolean hex;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private byte[] hexBuffer;
+
+    public O0Writer(OutputStream out, boolean hex) {
+        this.out = out;
+        this.hex = hex;
+        if (hex) {
+            this.hexBuffer = new byte[BUFFER_SIZE * 2];
+        }
+    }
+
+    public O0Writer(OutputStream out) {
+        this(out, false);
+    }
+
+    public void writeU8(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeU32(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeU64(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    public void writeZeros(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            writeU8(0);
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void ensure(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        byte[] array = buffer.array();
+        int length = buffer.position();
+        if (hex) {
+            for (int i = 0; i < length; i++) {
+                hexBuffer[i * 2] = HEX_DIGITS[(array[i] >> 4) & 0xf];
+                hexBuffer[i * 2 + 1] = HEX_DIGITS[array[i] & 0xf];
+            }
+            out.write(hexBuffer, 0, length * 2);
+        } else {
+            out.write(array, 0, length);
+        }
+        buffer.clear();
+    }
+}
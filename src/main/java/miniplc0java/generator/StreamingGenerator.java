@@ -0,0 +1,83 @@
+package miniplc0java.generator;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.analyser.FunctionListener;
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.error.GenerateError;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * 边分析边输出 o0
+ * 每个函数分析完就编码写入一个临时文件，它的指令随即被释放，内存中同时只有一个函数的指令；
+ * 全局变量表在 o0 中位于函数之前，但要到分析结束才完整，
+ * 所以最后再写出文件头、全局变量表和 _start，然后把临时文件中的函数体整体拷贝到输出文件末尾
+ * 用完（包括分析出错时）要调用 close() 关闭并删除临时文件
+ */
+public class StreamingGenerator implements FunctionListener, Closeable {
+    private final FileChannel output;
+    private final FileChannel bodies;
+    private final O0Writer bodyWriter;
+    // _start 编号为 0 但最后才分析完，要放在其它函数前面
+    private Function start;
+    private int functionCount = 0;
+
+    public StreamingGenerator(FileChannel output) throws IOException {
+        this.output = output;
+        Path path = Files.createTempFile("miniplc0", ".o0");
+        this.bodies = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.bodyWriter = new O0Writer(Channels.newOutputStream(bodies));
+    }
+
+    /**
+     * 函数按编号顺序分析完成（_start 除外），所以直接追加到临时文件即可
+     */
+    @Override
+    public void functionAnalysed(FunctionEntry functionEntry) throws GenerateError, IOException {
+        Function function = new Function(functionEntry.getFunctionNameOffset(), functionEntry.getReturnValueType(), functionEntry.getFunction_param_list().size(), functionEntry.getSizeOfListOfSymbolTable(), functionEntry.getInstructions());
+        if (functionEntry.getStackOffset() == 0) {
+            start = function;
+        } else {
+            function.write(bodyWriter);
+        }
+        functionCount++;
+    }
+
+    /**
+     * 分析结束后调用，写出完整的 o0 文件
+     *
+     * @param symbolList 全局符号，按栈偏移排序
+     */
+    public void finish(ArrayList<SymbolEntry> symbolList) throws GenerateError, IOException {
+        bodyWriter.flush();
+        O0Writer writer = new O0Writer(Channels.newOutputStream(output));
+        writer.writeU32(Generator.MAGIC);
+        writer.writeU32(Generator.VERSION);
+        writer.writeU32(symbolList.size());
+        for (SymbolEntry symbolEntry: symbolList) {
+            new Global(symbolEntry.isConstant(), symbolEntry.getIdentType(), symbolEntry.getStringContent()).write(writer);
+        }
+        writer.writeU32(functionCount);
+        start.write(writer);
+        writer.flush();
+        long size = bodies.size();
+        for (long position = 0; position < size; ) {
+            position += bodies.transferTo(position, size - position, output);
+        }
+    }
+
+    /**
+     * 关闭并删除临时文件，可以重复调用
+     */
+    @Override
+    public void close() throws IOException {
+        bodies.close();
+    }
+}
@@ -0,0 +1,234 @@
+package miniplc0java.instruction;
+
+import miniplc0java.error.GenerateError;
+import miniplc0java.generator.O0Writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 一个函数的指令序列，按列紧凑存储
+ * 每条指令占一个字节的操作码和一个 long 的操作数（约 9 字节）：
+ * 操作码字节的低 6 位是 Operation 的序号，高 2 位记录操作数的类型，
+ * u32 操作数和整数的 push 直接存数值，浮点数的 push 存 double 的二进制表示；
+ * 压入字符串字面量的 push 存全局变量编号，并标记出来，删除全局变量时据此重新编号
+ * 指令用下标引用，跳转指令可以先加入、之后再按下标回填偏移
+ */
+public class InstructionBuffer {
+    private static final Operation[] OPERATIONS = Operation.values();
+    // 按 Operation 序号存放的操作码和操作数字节数，编码时不用再走 switch
+    private static final byte[] OPCODES = new byte[OPERATIONS.length];
+    private static final byte[] OPERAND_SIZES = new byte[OPERATIONS.length];
+    private static final int KIND_SHIFT = 6;
+    private static final int OPERATION_MASK = (1 << KIND_SHIFT) - 1;
+    // 操作数类型
+    private static final int KIND_INT = 0;
+    private static final int KIND_DOUBLE = 1;
+    private static final int KIND_GLOBAL = 2;
+
+    static {
+        for (Operation operation: OPERATIONS) {
+            try {
+                OPCODES[operation.ordinal()] = (byte) operation.getOpcode();
+            } catch (GenerateError e) {
+                throw new IllegalStateException(e);
+            }
+            OPERAND_SIZES[operation.ordinal()] = (byte) operation.getOperandSize();
+        }
+    }
+
+    private byte[] operations;
+    private long[] operands;
+    private int size = 0;
+
+    public InstructionBuffer() {
+        this(16);
+    }
+
+    public InstructionBuffer(int capacity) {
+        this.operations = new byte[capacity];
+        this.operands = new long[capacity];
+    }
+
+    /**
+     * 加入一条没有操作数（或操作数之后再回填）的指令
+     *
+     * @return 这条指令的下标
+     */
+    public int add(Operation operation) {
+        return append(operation, KIND_INT, 0);
+    }
+
+    public int add(Operation operation, int value) {
+        return append(operation, KIND_INT, value);
+    }
+
+    public int add(Operation operation, long value) {
+        return append(operation, KIND_INT, value);
+    }
+
+    public int add(Operation operation, double value) {
+        return append(operation, KIND_DOUBLE, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * 加入一条压入字符串字面量的 push，操作数是它的全局变量编号
+     */
+    public int addGlobalIndex(int global) {
+        return append(Operation.push, KIND_GLOBAL, global);
+    }
+
+    private int append(Operation operation, int kind, long operand) {
+        if (size == operations.length) {
+            int capacity = Math.max(size * 2, 16);
+            operations = Arrays.copyOf(operations, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+        }
+        operations[size] = (byte) (operation.ordinal() | (kind << KIND_SHIFT));
+        operands[size] = operand;
+        return size++;
+    }
+
+    /**
+     * 把 source 中 [from, to) 范围内的指令原样（包括操作数的类型）追加到末尾
+     */
+    public void addRange(InstructionBuffer source, int from, int to) {
+        int count = to - from;
+        if (size + count > operations.length) {
+            int capacity = Math.max(Math.max(size * 2, 16), size + count);
+            operations = Arrays.copyOf(operations, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+        }
+        System.arraycopy(source.operations, from, operations, size, count);
+        System.arraycopy(source.operands, from, operands, size, count);
+        size += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Operation getOperation(int index) {
+        return OPERATIONS[operations[index] & OPERATION_MASK];
+    }
+
+    public int getIntValue(int index) {
+        return (int) operands[index];
+    }
+
+    public long getLongValue(int index) {
+        return operands[index];
+    }
+
+    public double getDoubleValue(int index) {
+        return Double.longBitsToDouble(operands[index]);
+    }
+
+    public boolean isDouble(int index) {
+        return (operations[index] >>> KIND_SHIFT & 3) == KIND_DOUBLE;
+    }
+
+    /**
+     * 是否是 addGlobalIndex 加入的 push
+     */
+    public boolean isGlobalIndex(int index) {
+        return (operations[index] >>> KIND_SHIFT & 3) == KIND_GLOBAL;
+    }
+
+    /**
+     * 修改 addGlobalIndex 加入的 push 的全局变量编号
+     */
+    public void setGlobalIndex(int index, int global) {
+        operands[index] = global;
+    }
+
+    /**
+     * 回填下标为 index 的指令的 u32 操作数
+     */
+    public void setValue(int index, int value) {
+        operands[index] = value;
+        operations[index] = (byte) (operations[index] & OPERATION_MASK);
+    }
+
+    public void setOperation(int index, Operation operation) {
+        operations[index] = (byte) (operation.ordinal() | (operations[index] & ~OPERATION_MASK));
+    }
+
+    /**
+     * 按 o0 格式写出全部指令：1 字节操作码，随后是大端序的操作数
+     */
+    public void write(O0Writer writer) throws GenerateError, IOException {
+        for (int i = 0; i < size; i++) {
+            int operation = operations[i] & OPERATION_MASK;
+            writer.writeU8(OPCODES[operation]);
+            switch (OPERAND_SIZES[operation]) {
+                case 0:
+                    break;
+                case 4:
+                    writer.writeU32((int) operands[i]);
+                    break;
+                default:
+                    writer.writeU64(operands[i]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 与 write(O0Writer) 相同，写入 buffer（必须是大端序且剩余空间至少为 getEncodedSize()）
+     */
+    public void write(ByteBuffer buffer) {
+        for (int i = 0; i < size; i++) {
+            int operation = operations[i] & OPERATION_MASK;
+            buffer.put(OPCODES[operation]);
+            switch (OPERAND_SIZES[operation]) {
+                case 0:
+                    break;
+                case 4:
+                    buffer.putInt((int) operands[i]);
+                    break;
+                default:
+                    buffer.putLong(operands[i]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 编码后的字节数
+     */
+    public int getEncodedSize() {
+        int encodedSize = size;
+        for (int i = 0; i < size; i++) {
+            encodedSize += OPERAND_SIZES[operations[i] & OPERATION_MASK];
+        }
+        return encodedSize;
+    }
+
+    public String toString(int index) {
+        Operation operation = getOperation(index);
+        if (operation.getOperandSize() == 0) {
+            return operation.toString();
+        }
+        if (isDouble(index)) {
+            return operation + " " + getDoubleValue(index);
+        }
+        return operation + " " + operands[index];
+    }
+
+    /**
+     * 格式为 [push 1, store64, ...]
+     */
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                stringBuilder.append(", ");
+            }
+            stringBuilder.append(toString(i));
+        }
+        return stringBuilder.append(']').toString();
+    }
+}
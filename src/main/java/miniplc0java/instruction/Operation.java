@@ -16,90 +16,111 @@ public enum Operation {
     stackalloc, ret,
     scan_i, scan_c, scan_f, print_i, print_c, print_f, print_s, println;
 
-    public String getGenerateInstruction() throws GenerateError {
+    public int getOpcode() throws GenerateError {
         switch (this) {
             case nop:
-                return "00";
+                return 0x00;
             case push:
-                return "01";
+                return 0x01;
             case pop:
-                return "02";
+                return 0x02;
             case loca:
-                return "0a";
+                return 0x0a;
             case arga:
-                return "0b";
+                return 0x0b;
             case globa:
-                return "0c";
+                return 0x0c;
             case load64:
-                return "13";
+                return 0x13;
             case store64:
-                return "17";
+                return 0x17;
             case stackalloc:
-                return "1a";
+                return 0x1a;
             case call:
-                return "48";
+                return 0x48;
             case add_i:
-                return "20";
+                return 0x20;
             case add_f:
-                return "24";
+                return 0x24;
             case sub_i:
-                return "21";
+                return 0x21;
             case sub_f:
-                return "25";
+                return 0x25;
             case mul_i:
-                return "22";
+                return 0x22;
             case mul_f:
-                return "26";
+                return 0x26;
             case div_i:
-                return "23";
+                return 0x23;
             case div_f:
-                return "27";
+                return 0x27;
             case div_u:
-                return "28";
+                return 0x28;
             case cmp_i:
-                return "30";
+                return 0x30;
             case cmp_u:
-                return "31";
+                return 0x31;
             case cmp_f:
-                return "32";
+                return 0x32;
             case neg_i:
-                return "34";
+                return 0x34;
             case neg_f:
-                return "35";
+                return 0x35;
             case set_lt:
-                return "39";
+                return 0x39;
             case set_gt:
-                return "3a";
+                return 0x3a;
             case br:
-                return "41";
+                return 0x41;
             case br_false:
-                return "42";
+                return 0x42;
             case br_true:
-                return "43";
+                return 0x43;
             case itof:
-                return "36";
+                return 0x36;
             case ftoi:
-                return "37";
+                return 0x37;
             case ret:
-                return "49";
+                return 0x49;
             case scan_i:
-                return "50";
+                return 0x50;
             case scan_c:
-                return "51";
+                return 0x51;
             case scan_f:
-                return "52";
+                return 0x52;
             case print_i:
-                return "54";
+                return 0x54;
             case print_c:
-                return "55";
+                return 0x55;
             case print_f:
-                return "56";
+                return 0x56;
             case print_s:
-                return "57";
+                return 0x57;
             case println:
-                return "58";
+                return 0x58;
             default:
                 throw new GenerateError(ErrorCode.InstructionNotFound, new Pos(0, 0));
         }
     }
+
+    /**
+     * 操作数的字节数：push 为 8，带 u32 操作数的指令为 4，其余为 0
+     */
+    public int getOperandSize() {
+        switch (this) {
+            case push:
+                return 8;
+            case loca:
+            case arga:
+            case globa:
+            case stackalloc:
+            case call:
+            case br:
+            case br_false:
+            case br_true:
+                return 4;
+            default:
+                return 0;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package miniplc0java.ir;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基本块：一段只从开头进入、只在末尾离开的指令
+ * 末尾的跳转（br/br_true/br_false/ret）不放在 instructions 中，而是记录为 terminator 和后继块，
+ * 这样移动、删除块时不需要修改相对偏移，输出时再由 ControlFlowGraph 重新计算
+ */
+public class BasicBlock {
+    final ControlFlowGraph graph;
+    // 在 graph.getBlocks() 中的下标
+    int index;
+    private InstructionBuffer instructions;
+    // br/br_true/br_false/ret，null 表示顺序执行到 next
+    private Operation terminator;
+    // 跳转的目标，只有 br/br_true/br_false 有
+    private BasicBlock target;
+    // 不跳转时执行的下一个块，null 表示执行到函数末尾（或以 br/ret 结束）
+    private BasicBlock next;
+    private final ArrayList<BasicBlock> predecessors = new ArrayList<>(2);
+    // 转换成 SSA 后块的内容
+    SsaBlock ssa;
+
+    BasicBlock(ControlFlowGraph graph, int index, InstructionBuffer instructions) {
+        this.graph = graph;
+        this.index = index;
+        this.instructions = instructions;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * 块中除末尾跳转以外的指令，修改之后要调用 graph.invalidateInstructions()
+     */
+    public InstructionBuffer getInstructions() {
+        return instructions;
+    }
+
+    void setInstructions(InstructionBuffer instructions) {
+        this.instructions = instructions;
+    }
+
+    public Operation getTerminator() {
+        return terminator;
+    }
+
+    public BasicBlock getTarget() {
+        return target;
+    }
+
+    public BasicBlock getNext() {
+        return next;
+    }
+
+    public List<BasicBlock> getPredecessors() {
+        return predecessors;
+    }
+
+    public boolean isConditional() {
+        return terminator == Operation.br_true || terminator == Operation.br_false;
+    }
+
+    /**
+     * 后继的个数：条件跳转为 2，br 为 1，ret 为 0，顺序执行时 next 为 null 则为 0
+     */
+    public int getSuccessorCount() {
+        if (terminator == null) {
+            return next == null ? 0 : 1;
+        }
+        switch (terminator) {
+            case br:
+                return 1;
+            case ret:
+                return 0;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * 第 i 个后继，有跳转目标时第 0 个是目标
+     */
+    public BasicBlock getSuccessor(int i) {
+        if (terminator == null) {
+            return next;
+        }
+        return i == 0 ? target : next;
+    }
+
+    /**
+     * 设置末尾的跳转，同时维护后继的前驱列表，并使图上缓存的分析结果失效
+     *
+     * @param terminator br/br_true/br_false/ret，null 表示顺序执行
+     * @param target     跳转目标，br/br_true/br_false 之外为 null
+     * @param next       不跳转时的下一个块，br/ret 时为 null
+     */
+    public void setTerminator(Operation terminator, BasicBlock target, BasicBlock next) {
+        link(terminator, target, next);
+        graph.invalidateEdges();
+    }
+
+    void link(Operation terminator, BasicBlock target, BasicBlock next) {
+        for (int i = 0; i < getSuccessorCount(); i++) {
+            getSuccessor(i).predecessors.remove(this);
+        }
+        this.terminator = terminator;
+        this.target = target;
+        this.next = next;
+        for (int i = 0; i < getSuccessorCount(); i++) {
+            getSuccessor(i).predecessors.add(this);
+        }
+    }
+
+    /**
+     * 把空块 block 插入到第 i 个后继的边上，block 顺序执行到原来的后继，
+     * 并在后继的前驱列表中占据这条边原来的位置，φ 的参数顺序不变
+     */
+    void insertOnEdge(int i, BasicBlock block) {
+        BasicBlock successor = getSuccessor(i);
+        if (terminator == null || i != 0) {
+            next = block;
+        } else {
+            target = block;
+        }
+        successor.predecessors.set(successor.predecessors.indexOf(this), block);
+        block.predecessors.add(this);
+        block.next = successor;
+    }
+
+    @Override
+    public String toString() {
+        return "B" + index;
+    }
+}
@@ -0,0 +1,145 @@
+package miniplc0java.ir;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 调用图：按函数编号记录每个函数中 call 指令调用的函数
+ * 函数编号即 FunctionEntry.getStackOffset()，也就是 call 的操作数
+ */
+public class CallGraph {
+    // callees[f]：函数 f 调用的函数（去重），没有函数体的编号为空
+    private final BitSet[] callees;
+
+    private CallGraph(int count) {
+        callees = new BitSet[count];
+        for (int i = 0; i < count; i++) {
+            callees[i] = new BitSet();
+        }
+    }
+
+    public static CallGraph build(List<FunctionEntry> functions) {
+        int count = 0;
+        for (FunctionEntry function: functions) {
+            count = Math.max(count, function.getStackOffset() + 1);
+        }
+        CallGraph graph = new CallGraph(count);
+        for (FunctionEntry function: functions) {
+            InstructionBuffer instructions = function.getInstructions();
+            BitSet callees = graph.callees[function.getStackOffset()];
+            for (int i = 0; i < instructions.size(); i++) {
+                if (instructions.getOperation(i) == Operation.call) {
+                    callees.set(instructions.getIntValue(i));
+                }
+            }
+        }
+        return graph;
+    }
+
+    public int getFunctionCount() {
+        return callees.length;
+    }
+
+    public BitSet getCallees(int function) {
+        return callees[function];
+    }
+
+    /**
+     * 强连通分量（Tarjan 算法，用显式的栈避免调用链很长时栈溢出）
+     * 分量按被调用者在前的顺序编号：f 调用 g 且不在同一个分量时，g 的分量编号小于 f 的
+     *
+     * @return 按函数编号存放的分量编号
+     */
+    public int[] getComponents() {
+        int count = callees.length;
+        int[] components = new int[count];
+        int[] indices = new int[count];
+        int[] lowLinks = new int[count];
+        boolean[] onStack = new boolean[count];
+        Arrays.fill(indices, -1);
+        int[] stack = new int[count];
+        int stackSize = 0;
+        // 深度优先遍历的路径：函数和下一个要看的被调用者
+        int[] path = new int[count];
+        int[] cursors = new int[count];
+        int index = 0;
+        int componentCount = 0;
+        for (int root = 0; root < count; root++) {
+            if (indices[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            path[0] = root;
+            cursors[0] = 0;
+            indices[root] = lowLinks[root] = index++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            while (depth >= 0) {
+                int function = path[depth];
+                int callee = callees[function].nextSetBit(cursors[depth]);
+                if (callee >= count) {
+                    // 编号越界的 call（没有这个函数），不是调用图中的边
+                    callee = -1;
+                }
+                if (callee >= 0) {
+                    cursors[depth] = callee + 1;
+                    if (indices[callee] < 0) {
+                        depth++;
+                        path[depth] = callee;
+                        cursors[depth] = 0;
+                        indices[callee] = lowLinks[callee] = index++;
+                        stack[stackSize++] = callee;
+                        onStack[callee] = true;
+                    } else if (onStack[callee]) {
+                        lowLinks[function] = Math.min(lowLinks[function], indices[callee]);
+                    }
+                    continue;
+                }
+                if (lowLinks[function] == indices[function]) {
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        components[member] = componentCount;
+                    } while (member != function);
+                    componentCount++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    lowLinks[path[depth]] = Math.min(lowLinks[path[depth]], lowLinks[function]);
+                }
+            }
+        }
+        return components;
+    }
+
+    /**
+     * 从 roots 出发沿调用关系能到达的函数（包括 roots 本身）
+     */
+    public BitSet getReachable(int... roots) {
+        BitSet reachable = new BitSet(callees.length);
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        for (int root: roots) {
+            if (root >= 0 && root < callees.length && !reachable.get(root)) {
+                reachable.set(root);
+                worklist.add(root);
+            }
+        }
+        while (!worklist.isEmpty()) {
+            BitSet next = callees[worklist.poll()];
+            for (int callee = next.nextSetBit(0); callee >= 0; callee = next.nextSetBit(callee + 1)) {
+                if (callee < callees.length && !reachable.get(callee)) {
+                    reachable.set(callee);
+                    worklist.add(callee);
+                }
+            }
+        }
+        return reachable;
+    }
+}
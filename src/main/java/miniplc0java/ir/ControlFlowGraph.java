@@ -0,0 +1,438 @@
+package miniplc0java.ir;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个函数的控制流图
+ * 由函数的指令序列构造，跳转的相对偏移换成指向基本块的引用；toInstructions() 按块的顺序重新输出并计算偏移，
+ * 没有修改过的图输出的指令与输入完全相同
+ * 支配树、循环、活跃变量等分析结果在第一次使用时计算并缓存，图被修改后由修改者调用 invalidate 系列方法丢弃
+ * 构造、输出和各项分析都是迭代实现，对指令条数（近似）线性，不会因为函数很长而栈溢出
+ */
+public class ControlFlowGraph {
+    private final ArrayList<BasicBlock> blocks = new ArrayList<>();
+    // 参数区的大小（包括返回值的格子）和其中返回值的格子数（0 或 1），以及局部变量的格子数
+    private final int argSlots;
+    private final int returnSlots;
+    private int locSlots;
+
+    // 缓存的分析结果，null 表示还没有计算或已经失效
+    private BasicBlock[] reversePostOrder;
+    private DominatorTree dominatorTree;
+    private LoopNest loopNest;
+    private Liveness liveness;
+
+    private ControlFlowGraph(int argSlots, int returnSlots, int locSlots) {
+        this.argSlots = argSlots;
+        this.returnSlots = returnSlots;
+        this.locSlots = locSlots;
+    }
+
+    public static ControlFlowGraph build(FunctionEntry function) {
+        int returnSlots = function.getReturnValueType() == IdentType.VOID ? 0 : 1;
+        return build(function.getInstructions(), function.getFunction_param_list().size() + returnSlots, returnSlots,
+                function.getSizeOfListOfSymbolTable());
+    }
+
+    /**
+     * 把指令序列切分成基本块
+     * 块从跳转目标和跳转（包括 ret）之后的指令开始；跳到指令序列末尾的跳转指向末尾的一个空块
+     *
+     * @param argSlots    参数区的格子数（arga 的范围，包括返回值）
+     * @param returnSlots 返回值的格子数，有返回值时 arga 0 是返回值
+     * @param locSlots    局部变量的格子数（loca 的范围）
+     */
+    public static ControlFlowGraph build(InstructionBuffer instructions, int argSlots, int returnSlots, int locSlots) {
+        ControlFlowGraph graph = new ControlFlowGraph(argSlots, returnSlots, locSlots);
+        int size = instructions.size();
+        // leaders[i]：第 i 条指令是否开始一个新块，leaders[size] 表示有跳转到末尾，需要末尾的空块
+        boolean[] leaders = new boolean[size + 1];
+        leaders[0] = true;
+        for (int i = 0; i < size; i++) {
+            Operation operation = instructions.getOperation(i);
+            if (isJump(operation)) {
+                leaders[jumpTarget(instructions, i)] = true;
+            }
+            if ((isJump(operation) || operation == Operation.ret) && i + 1 < size) {
+                leaders[i + 1] = true;
+            }
+        }
+        // blockOf[i]：从第 i 条指令开始的块；ends[b]：第 b 个块结束的位置（不包括）
+        BasicBlock[] blockOf = new BasicBlock[size + 1];
+        int[] ends = new int[size + 1];
+        for (int start = 0; start < size; ) {
+            int end = start + 1;
+            while (end < size && !leaders[end]) {
+                end++;
+            }
+            Operation last = instructions.getOperation(end - 1);
+            boolean terminated = isJump(last) || last == Operation.ret;
+            InstructionBuffer body = new InstructionBuffer(end - start);
+            body.addRange(instructions, start, terminated ? end - 1 : end);
+            ends[graph.blocks.size()] = end;
+            blockOf[start] = new BasicBlock(graph, graph.blocks.size(), body);
+            graph.blocks.add(blockOf[start]);
+            start = end;
+        }
+        if (size == 0 || leaders[size]) {
+            ends[graph.blocks.size()] = size;
+            blockOf[size] = new BasicBlock(graph, graph.blocks.size(), new InstructionBuffer(0));
+            graph.blocks.add(blockOf[size]);
+        }
+        // 连接各块
+        for (int b = 0; b < graph.blocks.size(); b++) {
+            BasicBlock block = graph.blocks.get(b);
+            BasicBlock following = b + 1 < graph.blocks.size() ? graph.blocks.get(b + 1) : null;
+            Operation last = ends[b] > 0 ? instructions.getOperation(ends[b] - 1) : null;
+            if (block.getInstructions().size() == 0 && blockOf[size] == block) {
+                // 末尾的空块
+                block.link(null, null, null);
+            } else if (last == Operation.ret) {
+                block.link(Operation.ret, null, null);
+            } else if (isJump(last)) {
+                BasicBlock target = blockOf[jumpTarget(instructions, ends[b] - 1)];
+                block.link(last, target, last == Operation.br ? null : following);
+            } else {
+                block.link(null, null, following);
+            }
+        }
+        return graph;
+    }
+
+    private static boolean isJump(Operation operation) {
+        return operation == Operation.br || operation == Operation.br_true || operation == Operation.br_false;
+    }
+
+    /**
+     * 跳转的目标是下一条指令的下标加上偏移
+     */
+    private static int jumpTarget(InstructionBuffer instructions, int index) {
+        int target = index + 1 + instructions.getIntValue(index);
+        if (target < 0 || target > instructions.size()) {
+            throw new IllegalArgumentException("Jump out of function at " + index + ": " + instructions.toString(index));
+        }
+        return target;
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return blocks;
+    }
+
+    public BasicBlock getEntry() {
+        return blocks.get(0);
+    }
+
+    public int getArgSlots() {
+        return argSlots;
+    }
+
+    public int getReturnSlots() {
+        return returnSlots;
+    }
+
+    public int getLocSlots() {
+        return locSlots;
+    }
+
+    public void setLocSlots(int locSlots) {
+        this.locSlots = locSlots;
+        invalidateInstructions();
+    }
+
+    /**
+     * 在 index 处插入一个空块（顺序执行到 null），之后的块下标加一
+     */
+    public BasicBlock insertBlock(int index) {
+        BasicBlock block = new BasicBlock(this, index, new InstructionBuffer());
+        blocks.add(index, block);
+        renumber(index);
+        invalidateEdges();
+        return block;
+    }
+
+    /**
+     * 删除没有前驱的块（入口块除外），它的后继不再以它为前驱
+     */
+    public void removeBlock(BasicBlock block) {
+        if (block == getEntry() || !block.getPredecessors().isEmpty()) {
+            throw new IllegalArgumentException("Block " + block + " is still reachable");
+        }
+        block.link(null, null, null);
+        blocks.remove(block.index);
+        renumber(block.index);
+        invalidateEdges();
+    }
+
+    /**
+     * 删除从入口不可达的块
+     *
+     * @return 删除的块数
+     */
+    public int removeUnreachableBlocks() {
+        BasicBlock[] order = getReversePostOrder();
+        if (order.length == blocks.size()) {
+            return 0;
+        }
+        boolean[] reachable = new boolean[blocks.size()];
+        for (BasicBlock block: order) {
+            reachable[block.index] = true;
+        }
+        ArrayList<BasicBlock> remaining = new ArrayList<>(order.length);
+        for (BasicBlock block: blocks) {
+            if (reachable[block.index]) {
+                remaining.add(block);
+            } else {
+                block.link(null, null, null);
+            }
+        }
+        int removed = blocks.size() - remaining.size();
+        blocks.clear();
+        blocks.addAll(remaining);
+        renumber(0);
+        invalidateEdges();
+        return removed;
+    }
+
+    /**
+     * 在 block 到它第 i 个后继的边上插入一个空块并返回
+     * 顺序执行的边插入的块紧跟在 block 之后，跳转的边插入的块放在最后（输出时末尾多一条 br）
+     * 新块在后继的前驱列表中占据原来 block 的位置
+     */
+    public BasicBlock splitEdge(BasicBlock block, int i) {
+        boolean fallThrough = block.getTerminator() == null || i != 0;
+        int index = fallThrough ? block.index + 1 : blocks.size();
+        BasicBlock split = new BasicBlock(this, index, new InstructionBuffer(0));
+        blocks.add(index, split);
+        renumber(index);
+        block.insertOnEdge(i, split);
+        invalidateEdges();
+        return split;
+    }
+
+    /**
+     * 入口块有前驱（函数开头就是循环）时，在前面插入一个空的入口块，保证入口块没有前驱
+     */
+    public void ensureEntryWithoutPredecessors() {
+        BasicBlock entry = getEntry();
+        if (entry.getPredecessors().isEmpty()) {
+            return;
+        }
+        insertBlock(0).setTerminator(null, null, entry);
+    }
+
+    /**
+     * 删除没有指令、只是顺序执行或 br 到另一个块的块，跳到它的边直接改到最终的目标
+     * 被删除的块不影响输出的偏移计算，布局不再相邻的地方由 toInstructions 补 br
+     */
+    public void removeEmptyBlocks() {
+        int count = blocks.size();
+        // forward[b]：跳到块 b 时最终到达的块
+        BasicBlock[] forward = new BasicBlock[count];
+        for (BasicBlock block: blocks) {
+            BasicBlock target = block;
+            // 沿空块走，最多走 count 步，避免空的死循环
+            for (int steps = 0; steps < count && isEmptyJump(target); steps++) {
+                target = target.getSuccessor(0);
+            }
+            forward[block.index] = isEmptyJump(target) ? block : target;
+        }
+        // 入口块为空时，只有紧跟着的块是它的最终目标才能删除
+        BasicBlock entry = getEntry();
+        if (isEmptyJump(entry) && (count < 2 || forward[0] != blocks.get(1))) {
+            forward[0] = entry;
+        }
+        boolean changed = false;
+        for (BasicBlock block: blocks) {
+            Operation terminator = block.getTerminator();
+            BasicBlock target = block.getTarget() == null ? null : forward[block.getTarget().index];
+            BasicBlock next = block.getNext() == null ? null : forward[block.getNext().index];
+            if (target != block.getTarget() || next != block.getNext()) {
+                block.link(terminator, target, next);
+                changed = true;
+            }
+        }
+        if (forward[0] != entry) {
+            // 入口块没有前驱，断开它之后它就不可达了，紧跟着的块成为入口
+            blocks.remove(0);
+            entry.link(null, null, null);
+            renumber(0);
+            changed = true;
+        }
+        if (changed) {
+            invalidateEdges();
+            removeUnreachableBlocks();
+        }
+    }
+
+    private static boolean isEmptyJump(BasicBlock block) {
+        return block.getInstructions().size() == 0
+                && (block.getTerminator() == Operation.br || block.getTerminator() == null && block.getNext() != null)
+                && block.getSuccessor(0) != block;
+    }
+
+    private void renumber(int from) {
+        for (int i = from; i < blocks.size(); i++) {
+            blocks.get(i).index = i;
+        }
+    }
+
+    /**
+     * 按块在 getBlocks() 中的顺序输出指令
+     * 条件跳转不成立时的后继或顺序执行的后继如果不是紧跟着的块，就在块末尾补一条 br
+     */
+    public InstructionBuffer toInstructions() {
+        int count = blocks.size();
+        // 每个块在输出中的起始下标
+        int[] starts = new int[count + 1];
+        for (int b = 0; b < count; b++) {
+            BasicBlock block = blocks.get(b);
+            int length = block.getInstructions().size();
+            if (block.getTerminator() != null) {
+                length++;
+            }
+            if (needsJumpToNext(block)) {
+                length++;
+            }
+            starts[b + 1] = starts[b] + length;
+        }
+        InstructionBuffer instructions = new InstructionBuffer(starts[count]);
+        for (int b = 0; b < count; b++) {
+            BasicBlock block = blocks.get(b);
+            instructions.addRange(block.getInstructions(), 0, block.getInstructions().size());
+            Operation terminator = block.getTerminator();
+            if (terminator == Operation.ret) {
+                instructions.add(Operation.ret);
+            } else if (terminator != null) {
+                int index = instructions.size();
+                instructions.add(terminator, starts[block.getTarget().index] - index - 1);
+            }
+            if (needsJumpToNext(block)) {
+                int index = instructions.size();
+                int next = block.getNext() == null ? starts[count] : starts[block.getNext().index];
+                instructions.add(Operation.br, next - index - 1);
+            }
+        }
+        return instructions;
+    }
+
+    /**
+     * 顺序执行的后继不紧跟在后面时需要一条 br；执行到函数末尾的块不在最后时 br 到末尾
+     */
+    private boolean needsJumpToNext(BasicBlock block) {
+        BasicBlock next = block.getNext();
+        if (next == null) {
+            return block.getTerminator() == null && block.index != blocks.size() - 1;
+        }
+        return next.index != block.index + 1;
+    }
+
+    /**
+     * 从入口可达的块的逆后序，不可达的块不在其中
+     */
+    public BasicBlock[] getReversePostOrder() {
+        if (reversePostOrder == null) {
+            reversePostOrder = computeReversePostOrder();
+        }
+        return reversePostOrder;
+    }
+
+    private BasicBlock[] computeReversePostOrder() {
+        int count = blocks.size();
+        boolean[] visited = new boolean[count];
+        // 显式的深度优先栈：块和下一个要访问的后继序号
+        BasicBlock[] stack = new BasicBlock[count];
+        int[] successorIndex = new int[count];
+        BasicBlock[] postOrder = new BasicBlock[count];
+        int postSize = 0;
+        int top = 0;
+        stack[top++] = getEntry();
+        visited[0] = true;
+        while (top > 0) {
+            BasicBlock block = stack[top - 1];
+            int i = successorIndex[top - 1];
+            if (i < block.getSuccessorCount()) {
+                successorIndex[top - 1] = i + 1;
+                BasicBlock successor = block.getSuccessor(i);
+                if (!visited[successor.index]) {
+                    visited[successor.index] = true;
+                    successorIndex[top] = 0;
+                    stack[top++] = successor;
+                }
+            } else {
+                postOrder[postSize++] = block;
+                top--;
+            }
+        }
+        BasicBlock[] order = new BasicBlock[postSize];
+        for (int i = 0; i < postSize; i++) {
+            order[i] = postOrder[postSize - 1 - i];
+        }
+        return order;
+    }
+
+    public DominatorTree getDominatorTree() {
+        if (dominatorTree == null) {
+            dominatorTree = new DominatorTree(this);
+        }
+        return dominatorTree;
+    }
+
+    public LoopNest getLoopNest() {
+        if (loopNest == null) {
+            loopNest = new LoopNest(this);
+        }
+        return loopNest;
+    }
+
+    public Liveness getLiveness() {
+        if (liveness == null) {
+            liveness = new Liveness(this);
+        }
+        return liveness;
+    }
+
+    /**
+     * 块中的指令被修改（块之间的连接不变）后调用，丢弃依赖指令的分析结果
+     */
+    public void invalidateInstructions() {
+        liveness = null;
+    }
+
+    /**
+     * 块或块之间的连接被修改后调用，丢弃所有分析结果
+     */
+    public void invalidateEdges() {
+        reversePostOrder = null;
+        dominatorTree = null;
+        loopNest = null;
+        liveness = null;
+    }
+
+    /**
+     * 每个块一行，格式为 B0: [push 1, ...] br_false -> B2, B1
+     */
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (BasicBlock block: blocks) {
+            stringBuilder.append(block).append(": ").append(block.getInstructions());
+            if (block.getTerminator() != null) {
+                stringBuilder.append(' ').append(block.getTerminator());
+            }
+            if (block.getTarget() != null) {
+                stringBuilder.append(" -> ").append(block.getTarget());
+            }
+            if (block.getNext() != null) {
+                stringBuilder.append(block.getTarget() != null ? ", " : " -> ").append(block.getNext());
+            }
+            stringBuilder.append('\n');
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,162 @@
+package miniplc0java.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 支配树
+ * 用 Cooper、Harvey、Kennedy 的迭代算法按逆后序求直接支配者。C0 只有 if/while，控制流图总是可归约的，
+ * 迭代的轮数不超过循环嵌套深度加常数，整体接近线性
+ * 求出树之后按先序/后序编号，dominates 是 O(1) 的
+ */
+public class DominatorTree {
+    private final ControlFlowGraph graph;
+    // 按块下标存放，不可达的块为 null（入口的直接支配者也是 null）
+    private final BasicBlock[] immediateDominators;
+    private final ArrayList<ArrayList<BasicBlock>> children;
+    // 支配树上的先序和后序编号，不可达的块为 -1
+    private final int[] preorder;
+    private final int[] postorder;
+
+    DominatorTree(ControlFlowGraph graph) {
+        this.graph = graph;
+        int count = graph.getBlocks().size();
+        BasicBlock[] order = graph.getReversePostOrder();
+        // rpoNumber[b]：块在逆后序中的位置，不可达为 -1
+        int[] rpoNumber = new int[count];
+        Arrays.fill(rpoNumber, -1);
+        for (int i = 0; i < order.length; i++) {
+            rpoNumber[order[i].index] = i;
+        }
+        // idom 用逆后序的位置表示，-1 表示还没有算出
+        int[] idom = new int[order.length];
+        Arrays.fill(idom, -1);
+        idom[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < order.length; i++) {
+                int newIdom = -1;
+                for (BasicBlock predecessor: order[i].getPredecessors()) {
+                    int p = rpoNumber[predecessor.index];
+                    if (p < 0 || idom[p] < 0) {
+                        continue;
+                    }
+                    newIdom = newIdom < 0 ? p : intersect(idom, p, newIdom);
+                }
+                if (idom[i] != newIdom) {
+                    idom[i] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        immediateDominators = new BasicBlock[count];
+        children = new ArrayList<>(count);
+        for (int b = 0; b < count; b++) {
+            children.add(null);
+        }
+        for (int i = 1; i < order.length; i++) {
+            BasicBlock parent = order[idom[i]];
+            immediateDominators[order[i].index] = parent;
+            if (children.get(parent.index) == null) {
+                children.set(parent.index, new ArrayList<>(2));
+            }
+            children.get(parent.index).add(order[i]);
+        }
+
+        preorder = new int[count];
+        postorder = new int[count];
+        Arrays.fill(preorder, -1);
+        Arrays.fill(postorder, -1);
+        number(graph.getEntry());
+    }
+
+    /**
+     * 两个结点在树上向上走到公共祖先，位置越靠后的越深
+     */
+    private static int intersect(int[] idom, int a, int b) {
+        while (a != b) {
+            while (a > b) {
+                a = idom[a];
+            }
+            while (b > a) {
+                b = idom[b];
+            }
+        }
+        return a;
+    }
+
+    /**
+     * 迭代地深度优先遍历支配树，给每个结点编先序和后序号
+     */
+    private void number(BasicBlock root) {
+        int count = graph.getBlocks().size();
+        BasicBlock[] stack = new BasicBlock[count];
+        int[] childIndex = new int[count];
+        int top = 0;
+        int pre = 0;
+        int post = 0;
+        stack[top++] = root;
+        preorder[root.index] = pre++;
+        while (top > 0) {
+            BasicBlock block = stack[top - 1];
+            List<BasicBlock> blockChildren = getChildren(block);
+            int i = childIndex[top - 1];
+            if (i < blockChildren.size()) {
+                childIndex[top - 1] = i + 1;
+                BasicBlock child = blockChildren.get(i);
+                preorder[child.index] = pre++;
+                childIndex[top] = 0;
+                stack[top++] = child;
+            } else {
+                postorder[block.index] = post++;
+                top--;
+            }
+        }
+    }
+
+    /**
+     * 直接支配者，入口和不可达的块返回 null
+     */
+    public BasicBlock getImmediateDominator(BasicBlock block) {
+        return immediateDominators[block.index];
+    }
+
+    /**
+     * 在支配树上的子结点
+     */
+    public List<BasicBlock> getChildren(BasicBlock block) {
+        ArrayList<BasicBlock> blockChildren = children.get(block.index);
+        return blockChildren == null ? Collections.emptyList() : blockChildren;
+    }
+
+    public boolean isReachable(BasicBlock block) {
+        return preorder[block.index] >= 0;
+    }
+
+    /**
+     * a 是否支配 b（每个可达的块都支配自己），有一个不可达时为 false
+     */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        if (!isReachable(a) || !isReachable(b)) {
+            return false;
+        }
+        return preorder[a.index] <= preorder[b.index] && postorder[b.index] <= postorder[a.index];
+    }
+
+    /**
+     * 支配树的先序（父结点在子结点之前），只包括可达的块
+     */
+    public BasicBlock[] getPreorder() {
+        BasicBlock[] order = new BasicBlock[graph.getReversePostOrder().length];
+        for (BasicBlock block: graph.getBlocks()) {
+            if (isReachable(block)) {
+                order[preorder[block.index]] = block;
+            }
+        }
+        return order;
+    }
+}
@@ -0,0 +1,183 @@
+package miniplc0java.ir;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 参数和局部变量的活跃分析
+ * 变量按 arga 的格子、再按 loca 的格子编号（见 getVariable），全局变量不参与
+ * Analyser 生成的访问都是 loca n; load64（读）和 loca n; <表达式>; store64（写）两种形式，
+ * 每个块用一个地址栈把 store64 和它的地址配对；遇到无法识别的地址用法时保守地认为所有变量都被读取
+ * 返回时返回值的格子是活跃的
+ * 局部变量各占一个格子，变量个数随函数长度增长，所以不用按块迭代整个集合的数据流方程，
+ * 而是从每个变量的每处读取沿前驱向上标记，直到遇到写它的块；总时间与所有变量活跃范围的大小之和成正比
+ */
+public class Liveness {
+    private final int argSlots;
+    private final int variableCount;
+    // 按块下标存放
+    private final BitSet[] uses;
+    private final BitSet[] defs;
+    private final BitSet[] liveIns;
+    private final BitSet[] liveOuts;
+
+    Liveness(ControlFlowGraph graph) {
+        this.argSlots = graph.getArgSlots();
+        this.variableCount = argSlots + graph.getLocSlots();
+        int count = graph.getBlocks().size();
+        uses = new BitSet[count];
+        defs = new BitSet[count];
+        liveIns = new BitSet[count];
+        liveOuts = new BitSet[count];
+        // 待向上传播的（块, 变量）：变量在块开头活跃
+        int[] blockStack = new int[16];
+        int[] variableStack = new int[16];
+        int top = 0;
+        for (BasicBlock block: graph.getBlocks()) {
+            int b = block.index;
+            uses[b] = new BitSet();
+            defs[b] = new BitSet();
+            scan(block.getInstructions(), uses[b], defs[b]);
+            liveIns[b] = (BitSet) uses[b].clone();
+            liveOuts[b] = new BitSet();
+            // 返回或执行到函数末尾时返回值是活跃的
+            if (block.getSuccessorCount() == 0 && graph.getReturnSlots() > 0) {
+                liveOuts[b].set(0);
+                if (!defs[b].get(0)) {
+                    liveIns[b].set(0);
+                }
+            }
+            for (int v = liveIns[b].nextSetBit(0); v >= 0; v = liveIns[b].nextSetBit(v + 1)) {
+                if (top == blockStack.length) {
+                    blockStack = Arrays.copyOf(blockStack, top * 2);
+                    variableStack = Arrays.copyOf(variableStack, top * 2);
+                }
+                blockStack[top] = b;
+                variableStack[top++] = v;
+            }
+        }
+        while (top > 0) {
+            int v = variableStack[--top];
+            BasicBlock block = graph.getBlocks().get(blockStack[top]);
+            for (BasicBlock predecessor: block.getPredecessors()) {
+                int p = predecessor.index;
+                if (liveOuts[p].get(v)) {
+                    continue;
+                }
+                liveOuts[p].set(v);
+                if (defs[p].get(v) || liveIns[p].get(v)) {
+                    continue;
+                }
+                liveIns[p].set(v);
+                if (top == blockStack.length) {
+                    blockStack = Arrays.copyOf(blockStack, top * 2);
+                    variableStack = Arrays.copyOf(variableStack, top * 2);
+                }
+                blockStack[top] = p;
+                variableStack[top++] = v;
+            }
+        }
+    }
+
+    /**
+     * 从前往后扫描一个块，求出在块内先读后写（use）和被写（def）的变量
+     */
+    private void scan(InstructionBuffer instructions, BitSet use, BitSet def) {
+        int size = instructions.size();
+        // 还没有被 store64 使用的地址对应的变量，-1 表示全局变量
+        int[] addresses = new int[8];
+        int top = 0;
+        for (int i = 0; i < size; i++) {
+            Operation operation = instructions.getOperation(i);
+            switch (operation) {
+                case loca:
+                case arga:
+                case globa:
+                    int variable = operation == Operation.globa ? -1 : getVariable(operation, instructions.getIntValue(i));
+                    if (i + 1 < size && instructions.getOperation(i + 1) == Operation.load64) {
+                        if (variable >= 0 && !def.get(variable)) {
+                            use.set(variable);
+                        }
+                        i++;
+                    } else {
+                        if (top == addresses.length) {
+                            addresses = Arrays.copyOf(addresses, top * 2);
+                        }
+                        addresses[top++] = variable;
+                    }
+                    break;
+                case store64:
+                    if (top == 0) {
+                        readAll(use, def);
+                        break;
+                    }
+                    variable = addresses[--top];
+                    if (variable >= 0) {
+                        def.set(variable);
+                    }
+                    break;
+                case load64:
+                    // 读取的不是紧挨着的地址
+                    readAll(use, def);
+                    break;
+                default:
+                    break;
+            }
+        }
+        // 地址留到了块外
+        for (int i = 0; i < top; i++) {
+            if (addresses[i] >= 0 && !def.get(addresses[i])) {
+                use.set(addresses[i]);
+            }
+        }
+    }
+
+    private void readAll(BitSet use, BitSet def) {
+        BitSet all = new BitSet(variableCount);
+        all.set(0, variableCount);
+        all.andNot(def);
+        use.or(all);
+    }
+
+    /**
+     * 变量的编号：arga n 为 n，loca n 为参数区大小加 n
+     */
+    public int getVariable(Operation operation, int slot) {
+        return operation == Operation.arga ? slot : argSlots + slot;
+    }
+
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * 在块开头活跃的变量，不要修改
+     */
+    public BitSet getLiveIn(BasicBlock block) {
+        return liveIns[block.index];
+    }
+
+    /**
+     * 在块末尾活跃的变量，不要修改
+     */
+    public BitSet getLiveOut(BasicBlock block) {
+        return liveOuts[block.index];
+    }
+
+    /**
+     * 块内在被写之前读取的变量
+     */
+    public BitSet getUse(BasicBlock block) {
+        return uses[block.index];
+    }
+
+    /**
+     * 块内被写的变量
+     */
+    public BitSet getDef(BasicBlock block) {
+        return defs[block.index];
+    }
+}
@@ -0,0 +1,201 @@
+package miniplc0java.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 自然循环及其嵌套关系
+ * 头结点支配回边的起点。按逆后序从后往前处理头结点（内层循环先处理），从回边起点沿前驱向上找循环体，
+ * 已经属于内层循环的块用并查集直接跳到内层循环的头结点，所以每个块只被找到一次，整体接近线性
+ * 不可归约的环（C0 不会生成）不当作循环
+ */
+public class LoopNest {
+    /**
+     * 一个循环，blocks 只包括不属于任何内层循环的块（包括头结点）
+     */
+    public static class Loop {
+        private final BasicBlock header;
+        private Loop parent;
+        private int depth;
+        private final ArrayList<Loop> children = new ArrayList<>();
+        private final ArrayList<BasicBlock> blocks = new ArrayList<>();
+        private final ArrayList<BasicBlock> latches = new ArrayList<>(1);
+
+        Loop(BasicBlock header) {
+            this.header = header;
+        }
+
+        public BasicBlock getHeader() {
+            return header;
+        }
+
+        /**
+         * 外层循环，最外层为 null
+         */
+        public Loop getParent() {
+            return parent;
+        }
+
+        /**
+         * 嵌套深度，最外层的循环为 1
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public List<Loop> getChildren() {
+            return children;
+        }
+
+        /**
+         * 回边的起点
+         */
+        public List<BasicBlock> getLatches() {
+            return latches;
+        }
+
+        /**
+         * 循环中所有的块，包括内层循环的块，头结点在最前面
+         */
+        public List<BasicBlock> getBlocks() {
+            ArrayList<BasicBlock> all = new ArrayList<>();
+            ArrayList<Loop> stack = new ArrayList<>();
+            stack.add(this);
+            while (!stack.isEmpty()) {
+                Loop loop = stack.remove(stack.size() - 1);
+                all.addAll(loop.blocks);
+                stack.addAll(loop.children);
+            }
+            return all;
+        }
+
+        @Override
+        public String toString() {
+            return "Loop(" + header + ")";
+        }
+    }
+
+    // 按块下标存放包含它的最内层循环，不在循环中为 null
+    private final Loop[] loopOf;
+    // 内层循环在前
+    private final ArrayList<Loop> loops = new ArrayList<>();
+
+    LoopNest(ControlFlowGraph graph) {
+        DominatorTree dominatorTree = graph.getDominatorTree();
+        int count = graph.getBlocks().size();
+        loopOf = new Loop[count];
+        // 并查集：块被并入某个循环后指向该循环的头结点
+        int[] representative = new int[count];
+        for (int b = 0; b < count; b++) {
+            representative[b] = b;
+        }
+        BasicBlock[] order = graph.getReversePostOrder();
+        int[] stack = new int[count];
+        for (int i = order.length - 1; i >= 0; i--) {
+            BasicBlock header = order[i];
+            int top = 0;
+            Loop loop = null;
+            for (BasicBlock predecessor: header.getPredecessors()) {
+                if (!dominatorTree.dominates(header, predecessor)) {
+                    continue;
+                }
+                if (loop == null) {
+                    loop = new Loop(header);
+                }
+                loop.latches.add(predecessor);
+                if (predecessor != header) {
+                    stack = push(stack, top++, predecessor.index);
+                }
+            }
+            if (loop == null) {
+                continue;
+            }
+            loops.add(loop);
+            loopOf[header.index] = loop;
+            loop.blocks.add(header);
+            while (top > 0) {
+                int b = find(representative, stack[--top]);
+                if (b == header.index) {
+                    continue;
+                }
+                representative[b] = header.index;
+                BasicBlock block = graph.getBlocks().get(b);
+                Loop inner = loopOf[b];
+                if (inner != null && inner.header == block) {
+                    inner.parent = loop;
+                    loop.children.add(inner);
+                } else {
+                    loopOf[b] = loop;
+                    loop.blocks.add(block);
+                }
+                for (BasicBlock predecessor: block.getPredecessors()) {
+                    if (dominatorTree.isReachable(predecessor)) {
+                        stack = push(stack, top++, predecessor.index);
+                    }
+                }
+            }
+        }
+        // 外层循环在后，倒着算深度
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Loop loop = loops.get(i);
+            loop.depth = loop.parent == null ? 1 : loop.parent.depth + 1;
+        }
+    }
+
+    private static int[] push(int[] stack, int top, int value) {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(top * 2, 16));
+        }
+        stack[top] = value;
+        return stack;
+    }
+
+    private static int find(int[] representative, int b) {
+        int root = b;
+        while (representative[root] != root) {
+            root = representative[root];
+        }
+        while (representative[b] != root) {
+            int next = representative[b];
+            representative[b] = root;
+            b = next;
+        }
+        return root;
+    }
+
+    /**
+     * 所有循环，内层循环在外层循环之前
+     */
+    public List<Loop> getLoops() {
+        return Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * 包含 block 的最内层循环，不在循环中返回 null
+     */
+    public Loop getLoopOf(BasicBlock block) {
+        return loopOf[block.index];
+    }
+
+    /**
+     * block 所在循环的嵌套深度，不在循环中为 0
+     */
+    public int getDepth(BasicBlock block) {
+        Loop loop = loopOf[block.index];
+        return loop == null ? 0 : loop.depth;
+    }
+
+    /**
+     * loop 是否包含 block（包括在内层循环中）
+     */
+    public boolean contains(Loop loop, BasicBlock block) {
+        for (Loop inner = loopOf[block.index]; inner != null && inner.depth >= loop.depth; inner = inner.parent) {
+            if (inner == loop) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package miniplc0java.ir;
+
+import java.util.ArrayList;
+
+/**
+ * SSA 形式中一个基本块的内容，块之间的连接仍然由对应的 BasicBlock 记录
+ */
+public class SsaBlock {
+    final BasicBlock block;
+    // φ 的参数与 block.getPredecessors() 的顺序一致
+    final ArrayList<SsaInstruction> phis = new ArrayList<>();
+    // 按执行顺序排列；常量不属于任何块，不在其中（输出时在使用处 push）
+    final ArrayList<SsaInstruction> instructions = new ArrayList<>();
+    // br_true/br_false 的条件
+    SsaInstruction condition;
+    // ret 时返回值格子中的值，函数没有返回值时为 null
+    SsaInstruction returnValue;
+
+    SsaBlock(BasicBlock block) {
+        this.block = block;
+    }
+
+    public BasicBlock getBlock() {
+        return block;
+    }
+
+    public ArrayList<SsaInstruction> getPhis() {
+        return phis;
+    }
+
+    public ArrayList<SsaInstruction> getInstructions() {
+        return instructions;
+    }
+
+    public SsaInstruction getCondition() {
+        condition = SsaInstruction.resolve(condition);
+        return condition;
+    }
+
+    public void setCondition(SsaInstruction condition) {
+        this.condition = condition;
+    }
+
+    public SsaInstruction getReturnValue() {
+        returnValue = SsaInstruction.resolve(returnValue);
+        return returnValue;
+    }
+
+    /**
+     * 删除已经用 replaceWith 换成其它值的 φ 和指令
+     *
+     * @return 是否删除了
+     */
+    public boolean removeReplaced() {
+        boolean removed = phis.removeIf(SsaBlock::detachReplaced);
+        return instructions.removeIf(SsaBlock::detachReplaced) || removed;
+    }
+
+    private static boolean detachReplaced(SsaInstruction instruction) {
+        if (instruction.replacement == null) {
+            return false;
+        }
+        instruction.block = null;
+        return true;
+    }
+
+    /**
+     * 把指令加到块的末尾
+     */
+    public void add(SsaInstruction instruction) {
+        instruction.block = this;
+        instructions.add(instruction);
+    }
+
+    /**
+     * 把指令插入到 index 处
+     */
+    public void add(int index, SsaInstruction instruction) {
+        instruction.block = this;
+        instructions.add(index, instruction);
+    }
+}
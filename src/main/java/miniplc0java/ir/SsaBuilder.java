@@ -0,0 +1,573 @@
+package miniplc0java.ir;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 把控制流图上的栈式指令转换成 SSA 形式
+ * 1. 每个块模拟一遍操作数栈，把指令变成值之间的引用：变量的读写只记录块内的最后一次定义，
+ *    块内第一次读取变量时先放一个 VARIABLE 占位
+ * 2. 每个变量从有占位的块沿前驱向上求出它在哪些块开头活跃，只在这些块中的迭代支配边界上放 φ（剪枝的 SSA）
+ * 3. 沿支配树深度优先遍历，用到达每个块的定义替换占位，并填写后继块中 φ 的参数
+ * 4. 删除所有参数相同的 φ
+ * 栈的用法无法识别（地址参与运算、弹出空栈等）时放弃转换
+ */
+public class SsaBuilder {
+    // 按函数编号存放的参数个数（不含返回值）和返回值的格子数，编号越界或没有的函数为 -1
+    private final int[] paramCounts;
+    private final int[] returnSlots;
+
+    // 模拟的操作数栈中元素的种类
+    private static final int VALUE = 0;
+    private static final int VARIABLE_ADDRESS = 1;
+    private static final int GLOBAL_ADDRESS = 2;
+    private static final int RESERVED = 3;
+
+    public SsaBuilder(List<FunctionEntry> functions) {
+        int count = 0;
+        for (FunctionEntry function: functions) {
+            count = Math.max(count, function.getStackOffset() + 1);
+        }
+        paramCounts = new int[count];
+        returnSlots = new int[count];
+        Arrays.fill(paramCounts, -1);
+        for (FunctionEntry function: functions) {
+            paramCounts[function.getStackOffset()] = function.getFunction_param_list().size();
+            returnSlots[function.getStackOffset()] = function.getReturnValueType() == IdentType.VOID ? 0 : 1;
+        }
+    }
+
+    /**
+     * 转换一个函数
+     * 转换前会删除不可达的块、保证入口块没有前驱并拆分关键边，即使返回 null，图也可能已经被这样修改过（与原来等价）
+     *
+     * @return 转换后的函数，无法转换时为 null
+     */
+    public SsaFunction build(ControlFlowGraph graph) {
+        graph.removeUnreachableBlocks();
+        graph.ensureEntryWithoutPredecessors();
+        splitCriticalEdges(graph);
+        SsaFunction function = new SsaFunction(graph);
+        List<BasicBlock> blocks = graph.getBlocks();
+        BlockState[] states = new BlockState[blocks.size()];
+        SsaInstruction[] current = new SsaInstruction[graph.getArgSlots() + graph.getLocSlots()];
+        BitSet defined = new BitSet();
+        for (BasicBlock block: blocks) {
+            states[block.index] = new BlockState();
+            if (!lift(graph, block, states[block.index], current, defined)) {
+                return null;
+            }
+        }
+        placePhis(graph, states);
+        rename(function, states, current);
+        removeTrivialPhis(graph);
+        return function;
+    }
+
+    /**
+     * 有多个后继的块到有多个前驱的块的边上插入空块，之后 φ 的复制总能放在只有一个后继的前驱末尾
+     */
+    private static void splitCriticalEdges(ControlFlowGraph graph) {
+        for (BasicBlock block: new ArrayList<>(graph.getBlocks())) {
+            if (block.getSuccessorCount() < 2) {
+                continue;
+            }
+            for (int i = 0; i < 2; i++) {
+                if (block.getSuccessor(i).getPredecessors().size() > 1) {
+                    graph.splitEdge(block, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个块中变量的读写：块内第一次读取时的占位，和块内写过的变量在块末尾的值
+     */
+    private static class BlockState {
+        final ArrayList<SsaInstruction> placeholders = new ArrayList<>();
+        final ArrayList<Integer> definedVariables = new ArrayList<>();
+        final ArrayList<SsaInstruction> definitions = new ArrayList<>();
+        final ArrayList<SsaInstruction> phis = new ArrayList<>();
+    }
+
+    /**
+     * 模拟一个块的操作数栈，生成 SSA 指令
+     * current 按变量存放块内的最新定义，defined 记录块内写过的变量，开始和结束时都是空的
+     *
+     * @return 栈的用法能否识别
+     */
+    private boolean lift(ControlFlowGraph graph, BasicBlock block, BlockState state, SsaInstruction[] current, BitSet defined) {
+        InstructionBuffer instructions = block.getInstructions();
+        SsaBlock ssaBlock = block.ssa;
+        int argSlots = graph.getArgSlots();
+        int variableCount = current.length;
+        int[] kinds = new int[16];
+        int[] operands = new int[16];
+        SsaInstruction[] values = new SsaInstruction[16];
+        int top = 0;
+        // 块内写过的变量，结束时清空 current
+        ArrayList<Integer> written = new ArrayList<>();
+        boolean ok = true;
+        for (int i = 0; ok && i < instructions.size(); i++) {
+            Operation operation = instructions.getOperation(i);
+            if (top + 1 >= kinds.length) {
+                kinds = Arrays.copyOf(kinds, top * 2);
+                operands = Arrays.copyOf(operands, top * 2);
+                values = Arrays.copyOf(values, top * 2);
+            }
+            switch (operation) {
+                case nop:
+                    break;
+                case push:
+                    kinds[top] = VALUE;
+                    values[top++] = instructions.isGlobalIndex(i) ? SsaInstruction.globalIndex(instructions.getIntValue(i))
+                            : SsaInstruction.constant(instructions.getLongValue(i), instructions.isDouble(i));
+                    break;
+                case pop:
+                    ok = top > 0;
+                    top--;
+                    break;
+                case loca:
+                case arga:
+                    int slot = instructions.getIntValue(i);
+                    int variable = operation == Operation.arga ? slot : argSlots + slot;
+                    ok = slot >= 0 && (operation == Operation.arga ? slot < argSlots : variable < variableCount);
+                    kinds[top] = VARIABLE_ADDRESS;
+                    operands[top++] = variable;
+                    break;
+                case globa:
+                    kinds[top] = GLOBAL_ADDRESS;
+                    operands[top++] = instructions.getIntValue(i);
+                    break;
+                case stackalloc:
+                    int count = instructions.getIntValue(i);
+                    ok = count == 1;
+                    kinds[top] = RESERVED;
+                    values[top++] = null;
+                    break;
+                case load64:
+                    if (top == 0 || kinds[top - 1] == VALUE || kinds[top - 1] == RESERVED) {
+                        ok = false;
+                    } else if (kinds[top - 1] == VARIABLE_ADDRESS) {
+                        kinds[top - 1] = VALUE;
+                        values[top - 1] = read(state, current, operands[top - 1]);
+                    } else {
+                        SsaInstruction load = new SsaInstruction(SsaKind.LOAD_GLOBAL, null, operands[top - 1], null, true);
+                        ssaBlock.add(load);
+                        kinds[top - 1] = VALUE;
+                        values[top - 1] = load;
+                    }
+                    break;
+                case store64:
+                    if (top < 2 || kinds[top - 1] != VALUE || kinds[top - 2] == VALUE || kinds[top - 2] == RESERVED) {
+                        ok = false;
+                        break;
+                    }
+                    SsaInstruction value = values[--top];
+                    top--;
+                    if (kinds[top] == VARIABLE_ADDRESS) {
+                        variable = operands[top];
+                        if (value.variable < 0 && value.kind != SsaKind.CONST && value.kind != SsaKind.VARIABLE) {
+                            value.variable = variable;
+                        }
+                        if (!defined.get(variable)) {
+                            defined.set(variable);
+                            written.add(variable);
+                        }
+                        current[variable] = value;
+                    } else {
+                        SsaInstruction store = new SsaInstruction(SsaKind.STORE_GLOBAL, null, operands[top],
+                                new SsaInstruction[]{value}, false);
+                        ssaBlock.add(store);
+                    }
+                    break;
+                case call:
+                    int function = instructions.getIntValue(i);
+                    if (function < 0 || function >= paramCounts.length || paramCounts[function] < 0) {
+                        ok = false;
+                        break;
+                    }
+                    int paramCount = paramCounts[function];
+                    boolean hasResult = returnSlots[function] > 0;
+                    int base = top - paramCount - (hasResult ? 1 : 0);
+                    if (base < 0 || hasResult && kinds[base] != RESERVED || !allValues(kinds, top - paramCount, top)) {
+                        ok = false;
+                        break;
+                    }
+                    SsaInstruction callInstruction = new SsaInstruction(SsaKind.CALL, null, function,
+                            Arrays.copyOfRange(values, top - paramCount, top), hasResult);
+                    ssaBlock.add(callInstruction);
+                    top = base;
+                    if (hasResult) {
+                        kinds[top] = VALUE;
+                        values[top++] = callInstruction;
+                    }
+                    break;
+                case scan_i:
+                case scan_c:
+                case scan_f:
+                case println:
+                case print_i:
+                case print_c:
+                case print_f:
+                case print_s:
+                    int argumentCount = operation == Operation.scan_i || operation == Operation.scan_c
+                            || operation == Operation.scan_f || operation == Operation.println ? 0 : 1;
+                    boolean produces = argumentCount == 0 && operation != Operation.println;
+                    if (!allValues(kinds, top - argumentCount, top)) {
+                        ok = false;
+                        break;
+                    }
+                    SsaInstruction standard = new SsaInstruction(SsaKind.STANDARD, operation, 0,
+                            Arrays.copyOfRange(values, top - argumentCount, top), produces);
+                    ssaBlock.add(standard);
+                    top -= argumentCount;
+                    if (produces) {
+                        kinds[top] = VALUE;
+                        values[top++] = standard;
+                    }
+                    break;
+                default:
+                    argumentCount = getArgumentCount(operation);
+                    if (argumentCount < 0 || !allValues(kinds, top - argumentCount, top)) {
+                        ok = false;
+                        break;
+                    }
+                    SsaInstruction result = SsaInstruction.operation(operation, Arrays.copyOfRange(values, top - argumentCount, top));
+                    ssaBlock.add(result);
+                    top -= argumentCount;
+                    kinds[top] = VALUE;
+                    values[top++] = result;
+                    break;
+            }
+        }
+        if (ok) {
+            if (block.isConditional()) {
+                ok = top > 0 && kinds[top - 1] == VALUE;
+                if (ok) {
+                    ssaBlock.setCondition(values[top - 1]);
+                }
+            } else if (block.getSuccessorCount() == 0 && graph.getReturnSlots() > 0) {
+                // ret 或执行到函数末尾时读取返回值的格子
+                ssaBlock.returnValue = read(state, current, 0);
+            }
+        }
+        for (int variable: written) {
+            state.definedVariables.add(variable);
+            state.definitions.add(current[variable]);
+        }
+        for (SsaInstruction placeholder: state.placeholders) {
+            current[(int) placeholder.operand] = null;
+        }
+        for (int variable: written) {
+            current[variable] = null;
+        }
+        defined.clear();
+        return ok;
+    }
+
+    /**
+     * 在每个变量活跃的迭代支配边界上放 φ
+     */
+    private static void placePhis(ControlFlowGraph graph, BlockState[] states) {
+        List<BasicBlock> blocks = graph.getBlocks();
+        int count = blocks.size();
+        int variableCount = graph.getArgSlots() + graph.getLocSlots();
+        DominatorTree tree = graph.getDominatorTree();
+        // 支配边界：从有多个前驱的块的每个前驱沿支配树向上，直到这个块的直接支配者
+        ArrayList<ArrayList<BasicBlock>> frontiers = new ArrayList<>(count);
+        for (int b = 0; b < count; b++) {
+            frontiers.add(new ArrayList<>(0));
+        }
+        for (BasicBlock block: blocks) {
+            if (block.getPredecessors().size() < 2) {
+                continue;
+            }
+            BasicBlock dominator = tree.getImmediateDominator(block);
+            for (BasicBlock runner: block.getPredecessors()) {
+                while (runner != dominator) {
+                    ArrayList<BasicBlock> frontier = frontiers.get(runner.index);
+                    if (!frontier.isEmpty() && frontier.get(frontier.size() - 1) == block) {
+                        break;
+                    }
+                    frontier.add(block);
+                    runner = tree.getImmediateDominator(runner);
+                }
+            }
+        }
+        int[][] readBlocks = new int[variableCount][];
+        int[][] definingBlocks = new int[variableCount][];
+        groupByVariable(states, readBlocks, false);
+        groupByVariable(states, definingBlocks, true);
+        // 按变量编号加一做标记，处理下一个变量时不用清空
+        int[] live = new int[count];
+        int[] defining = new int[count];
+        int[] placed = new int[count];
+        int[] stack = new int[count];
+        for (int v = 0; v < variableCount; v++) {
+            if (readBlocks[v] == null || definingBlocks[v] == null) {
+                // 没有块开头读取它，或者只有初始值，都不需要 φ
+                continue;
+            }
+            int stamp = v + 1;
+            for (int b: definingBlocks[v]) {
+                defining[b] = stamp;
+            }
+            // 变量在哪些块开头活跃
+            int top = 0;
+            for (int b: readBlocks[v]) {
+                live[b] = stamp;
+                stack[top++] = b;
+            }
+            while (top > 0) {
+                for (BasicBlock predecessor: blocks.get(stack[--top]).getPredecessors()) {
+                    int p = predecessor.index;
+                    if (live[p] != stamp && defining[p] != stamp) {
+                        live[p] = stamp;
+                        stack[top++] = p;
+                    }
+                }
+            }
+            // 迭代支配边界，放了 φ 的块也算作定义继续传播
+            for (int b: definingBlocks[v]) {
+                stack[top++] = b;
+            }
+            while (top > 0) {
+                for (BasicBlock block: frontiers.get(stack[--top])) {
+                    int b = block.index;
+                    if (placed[b] == stamp) {
+                        continue;
+                    }
+                    placed[b] = stamp;
+                    if (live[b] == stamp) {
+                        SsaInstruction phi = new SsaInstruction(SsaKind.PHI, null, v,
+                                new SsaInstruction[block.getPredecessors().size()], true);
+                        phi.variable = v;
+                        phi.block = block.ssa;
+                        block.ssa.phis.add(phi);
+                        states[b].phis.add(phi);
+                    }
+                    if (defining[b] != stamp) {
+                        defining[b] = stamp;
+                        stack[top++] = b;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 按变量列出有占位（或有定义）的块的下标
+     */
+    private static void groupByVariable(BlockState[] states, int[][] byVariable, boolean definitions) {
+        int[] counts = new int[byVariable.length];
+        for (BlockState state: states) {
+            if (definitions) {
+                for (int variable: state.definedVariables) {
+                    counts[variable]++;
+                }
+            } else {
+                for (SsaInstruction placeholder: state.placeholders) {
+                    counts[(int) placeholder.operand]++;
+                }
+            }
+        }
+        for (int v = 0; v < byVariable.length; v++) {
+            if (counts[v] > 0) {
+                byVariable[v] = new int[counts[v]];
+                counts[v] = 0;
+            }
+        }
+        for (int b = 0; b < states.length; b++) {
+            if (definitions) {
+                for (int variable: states[b].definedVariables) {
+                    byVariable[variable][counts[variable]++] = b;
+                }
+            } else {
+                for (SsaInstruction placeholder: states[b].placeholders) {
+                    int variable = (int) placeholder.operand;
+                    byVariable[variable][counts[variable]++] = b;
+                }
+            }
+        }
+    }
+
+    /**
+     * 沿支配树深度优先遍历，current 按变量存放到达当前块的定义，离开一个块时按记录恢复
+     */
+    private static void rename(SsaFunction function, BlockState[] states, SsaInstruction[] current) {
+        ControlFlowGraph graph = function.graph;
+        DominatorTree tree = graph.getDominatorTree();
+        int count = graph.getBlocks().size();
+        // 恢复记录：被覆盖的变量和原来的值
+        int[] undoVariables = new int[16];
+        SsaInstruction[] undoValues = new SsaInstruction[16];
+        int undoSize = 0;
+        BasicBlock[] stack = new BasicBlock[count];
+        int[] childIndex = new int[count];
+        int[] undoMarks = new int[count];
+        int top = 0;
+        stack[top++] = graph.getEntry();
+        boolean entering = true;
+        while (top > 0) {
+            BasicBlock block = stack[top - 1];
+            if (entering) {
+                childIndex[top - 1] = 0;
+                undoMarks[top - 1] = undoSize;
+                BlockState state = states[block.index];
+                int needed = undoSize + state.phis.size() + state.definitions.size();
+                if (needed > undoVariables.length) {
+                    undoVariables = Arrays.copyOf(undoVariables, Math.max(needed, undoSize * 2));
+                    undoValues = Arrays.copyOf(undoValues, undoVariables.length);
+                }
+                for (SsaInstruction phi: state.phis) {
+                    int v = (int) phi.operand;
+                    undoVariables[undoSize] = v;
+                    undoValues[undoSize++] = current[v];
+                    current[v] = phi;
+                }
+                for (SsaInstruction placeholder: state.placeholders) {
+                    placeholder.replaceWith(reaching(function, current, (int) placeholder.operand));
+                }
+                for (int i = 0; i < state.definitions.size(); i++) {
+                    int v = state.definedVariables.get(i);
+                    undoVariables[undoSize] = v;
+                    undoValues[undoSize++] = current[v];
+                    current[v] = state.definitions.get(i);
+                }
+                for (int i = 0; i < block.getSuccessorCount(); i++) {
+                    BasicBlock successor = block.getSuccessor(i);
+                    List<BasicBlock> predecessors = successor.getPredecessors();
+                    for (int j = 0; j < predecessors.size(); j++) {
+                        if (predecessors.get(j) != block) {
+                            continue;
+                        }
+                        for (SsaInstruction phi: states[successor.index].phis) {
+                            phi.arguments[j] = reaching(function, current, (int) phi.operand);
+                        }
+                    }
+                }
+            }
+            List<BasicBlock> children = tree.getChildren(block);
+            int i = childIndex[top - 1];
+            if (i < children.size()) {
+                childIndex[top - 1] = i + 1;
+                stack[top++] = children.get(i);
+                entering = true;
+            } else {
+                while (undoSize > undoMarks[top - 1]) {
+                    undoSize--;
+                    current[undoVariables[undoSize]] = undoValues[undoSize];
+                }
+                top--;
+                entering = false;
+            }
+        }
+    }
+
+    private static SsaInstruction reaching(SsaFunction function, SsaInstruction[] current, int variable) {
+        return current[variable] != null ? current[variable] : function.getEntryValue(variable);
+    }
+
+    /**
+     * 反复删除除自身以外只有一个不同参数的 φ，用这个参数代替它
+     */
+    private static void removeTrivialPhis(ControlFlowGraph graph) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block: graph.getBlocks()) {
+                changed |= block.ssa.phis.removeIf(SsaBuilder::removeIfTrivial);
+            }
+        }
+    }
+
+    private static boolean removeIfTrivial(SsaInstruction phi) {
+        SsaInstruction same = null;
+        for (int i = 0; i < phi.getArgumentCount(); i++) {
+            SsaInstruction argument = phi.getArgument(i);
+            if (argument == phi || same != null && isSameValue(argument, same)) {
+                continue;
+            }
+            if (same != null) {
+                return false;
+            }
+            same = argument;
+        }
+        if (same == null) {
+            return false;
+        }
+        phi.replaceWith(same);
+        phi.block = null;
+        return true;
+    }
+
+    /**
+     * 同一个值，或者相同的常量
+     */
+    static boolean isSameValue(SsaInstruction a, SsaInstruction b) {
+        return a == b || a.kind == SsaKind.CONST && b.kind == SsaKind.CONST
+                && a.operand == b.operand && a.isDouble == b.isDouble && a.isGlobalIndex == b.isGlobalIndex;
+    }
+
+    private static boolean allValues(int[] kinds, int from, int to) {
+        if (from < 0) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (kinds[i] != VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 没有副作用的运算的参数个数，不是这样的运算时返回 -1
+     */
+    private static int getArgumentCount(Operation operation) {
+        switch (operation) {
+            case add_i:
+            case add_f:
+            case sub_i:
+            case sub_f:
+            case mul_i:
+            case mul_f:
+            case div_i:
+            case div_f:
+            case div_u:
+            case cmp_i:
+            case cmp_u:
+            case cmp_f:
+                return 2;
+            case neg_i:
+            case neg_f:
+            case set_lt:
+            case set_gt:
+            case itof:
+            case ftoi:
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 读取变量在块内当前的值，块内还没有定义时放一个占位
+     */
+    private static SsaInstruction read(BlockState state, SsaInstruction[] current, int variable) {
+        if (current[variable] == null) {
+            SsaInstruction placeholder = new SsaInstruction(SsaKind.VARIABLE, null, variable, null, true);
+            state.placeholders.add(placeholder);
+            current[variable] = placeholder;
+        }
+        return current[variable];
+    }
+}
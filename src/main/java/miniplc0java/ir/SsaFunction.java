@@ -0,0 +1,172 @@
+package miniplc0java.ir;
+
+import miniplc0java.instruction.InstructionBuffer;
+
+import java.util.ArrayList;
+
+/**
+ * SSA 形式的函数：在控制流图的每个块上附加 SsaBlock
+ * 参数和局部变量的读写都变成了值之间的引用，块的汇合处用 φ 合并；全局变量对被调用的函数可见，
+ * 仍然是按顺序执行的 LOAD_GLOBAL/STORE_GLOBAL
+ * 由 SsaBuilder 构造，优化之后用 lower() 转换回栈式指令
+ */
+public class SsaFunction {
+    final ControlFlowGraph graph;
+    // 按变量编号存放的 ENTRY，用到时才创建
+    final SsaInstruction[] entryValues;
+
+    SsaFunction(ControlFlowGraph graph) {
+        this.graph = graph;
+        this.entryValues = new SsaInstruction[graph.getArgSlots() + graph.getLocSlots()];
+        for (BasicBlock block: graph.getBlocks()) {
+            block.ssa = new SsaBlock(block);
+        }
+    }
+
+    public ControlFlowGraph getGraph() {
+        return graph;
+    }
+
+    public SsaBlock getBlock(BasicBlock block) {
+        return block.ssa;
+    }
+
+    /**
+     * 变量在函数开始时的值，放在入口块的开头
+     */
+    public SsaInstruction getEntryValue(int variable) {
+        if (entryValues[variable] == null) {
+            SsaInstruction entry = new SsaInstruction(SsaKind.ENTRY, null, variable, null, true);
+            entry.variable = variable;
+            graph.getEntry().ssa.add(0, entry);
+            entryValues[variable] = entry;
+        }
+        return entryValues[variable];
+    }
+
+    /**
+     * 删除结果没有被使用、删除后不影响行为的指令和 φ，直到没有可以删除的为止
+     *
+     * @return 删除的条数
+     */
+    public int removeDeadInstructions() {
+        int removed = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] useCounts = countUses();
+            for (BasicBlock block: graph.getBlocks()) {
+                SsaBlock ssaBlock = block.ssa;
+                int before = ssaBlock.phis.size() + ssaBlock.instructions.size();
+                ssaBlock.phis.removeIf(phi -> isDead(phi, useCounts));
+                ssaBlock.instructions.removeIf(instruction -> isDead(instruction, useCounts));
+                int after = ssaBlock.phis.size() + ssaBlock.instructions.size();
+                if (after != before) {
+                    removed += before - after;
+                    changed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private boolean isDead(SsaInstruction instruction, int[] useCounts) {
+        if (instruction.kind == SsaKind.ENTRY || !instruction.isRemovable() || useCounts[instruction.id] > 0) {
+            return false;
+        }
+        instruction.block = null;
+        return true;
+    }
+
+    /**
+     * 给所有块中的指令（包括 φ 和 ENTRY）编号，返回个数；常量不编号
+     */
+    int number() {
+        int count = 0;
+        for (BasicBlock block: graph.getBlocks()) {
+            for (SsaInstruction phi: block.ssa.phis) {
+                phi.id = count++;
+            }
+            for (SsaInstruction instruction: block.ssa.instructions) {
+                instruction.id = count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 按编号统计每个值被使用的次数（参数、φ 的参数、条件和返回值），同时解析所有替换
+     */
+    int[] countUses() {
+        int count = number();
+        int[] useCounts = new int[count];
+        for (BasicBlock block: graph.getBlocks()) {
+            SsaBlock ssaBlock = block.ssa;
+            for (SsaInstruction phi: ssaBlock.phis) {
+                countArguments(phi, useCounts);
+            }
+            for (SsaInstruction instruction: ssaBlock.instructions) {
+                countArguments(instruction, useCounts);
+            }
+            countUse(ssaBlock.getCondition(), useCounts);
+            countUse(ssaBlock.getReturnValue(), useCounts);
+        }
+        return useCounts;
+    }
+
+    private static void countArguments(SsaInstruction instruction, int[] useCounts) {
+        for (int i = 0; i < instruction.getArgumentCount(); i++) {
+            countUse(instruction.getArgument(i), useCounts);
+        }
+    }
+
+    private static void countUse(SsaInstruction value, int[] useCounts) {
+        if (value != null && value.block != null) {
+            useCounts[value.id]++;
+        }
+    }
+
+    /**
+     * 转换回栈式指令，写回控制流图的各个块（可能增加局部变量的格子），返回整个函数的指令
+     */
+    public InstructionBuffer lower() {
+        new SsaLowering(this).lower();
+        return graph.toInstructions();
+    }
+
+    /**
+     * 每个块先是块名和前驱，然后每行一条指令，最后是跳转
+     */
+    @Override
+    public String toString() {
+        number();
+        StringBuilder stringBuilder = new StringBuilder();
+        for (BasicBlock block: graph.getBlocks()) {
+            SsaBlock ssaBlock = block.ssa;
+            stringBuilder.append(block).append(": ").append(block.getPredecessors()).append('\n');
+            ArrayList<SsaInstruction> all = new ArrayList<>(ssaBlock.phis);
+            all.addAll(ssaBlock.instructions);
+            for (SsaInstruction instruction: all) {
+                stringBuilder.append("    ").append(instruction).append('\n');
+            }
+            stringBuilder.append("    ");
+            if (block.getTerminator() != null) {
+                stringBuilder.append(block.getTerminator());
+            }
+            if (ssaBlock.getCondition() != null) {
+                stringBuilder.append(' ').append(SsaInstruction.describe(ssaBlock.getCondition()));
+            }
+            if (ssaBlock.getReturnValue() != null) {
+                stringBuilder.append(' ').append(SsaInstruction.describe(ssaBlock.getReturnValue()));
+            }
+            if (block.getTarget() != null) {
+                stringBuilder.append(" -> ").append(block.getTarget());
+            }
+            if (block.getNext() != null) {
+                stringBuilder.append(block.getTarget() != null ? ", " : " -> ").append(block.getNext());
+            }
+            stringBuilder.append('\n');
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package miniplc0java.ir;
+
+import miniplc0java.instruction.Operation;
+
+/**
+ * SSA 形式的一条指令，有结果时它本身就代表结果的值
+ * 参数直接引用产生它的指令。优化时用 replaceWith 把一个值整体换成另一个值，
+ * 之后通过 getArgument 读到的都是替换后的值，不需要维护使用者列表
+ */
+public class SsaInstruction {
+    SsaKind kind;
+    // OPERATION 和 STANDARD 的指令
+    Operation operation;
+    // 含义见 SsaKind
+    long operand;
+    // CONST 是否是 double（只影响输出成文本时的格式）
+    boolean isDouble;
+    // CONST 是否是字符串字面量的全局变量编号，见 InstructionBuffer.addGlobalIndex
+    boolean isGlobalIndex;
+    SsaInstruction[] arguments;
+    boolean hasResult;
+    // 源程序中把这个值存入的变量（编号同 Liveness.getVariable），输出时优先放回这个格子，-1 表示没有
+    int variable = -1;
+    // 所在的块，被删除后为 null
+    SsaBlock block;
+    // 被 replaceWith 替换成的值
+    SsaInstruction replacement;
+    // 输出指令时使用的编号
+    int id;
+
+    private static final SsaInstruction[] NO_ARGUMENTS = new SsaInstruction[0];
+
+    SsaInstruction(SsaKind kind, Operation operation, long operand, SsaInstruction[] arguments, boolean hasResult) {
+        this.kind = kind;
+        this.operation = operation;
+        this.operand = operand;
+        this.arguments = arguments == null ? NO_ARGUMENTS : arguments;
+        this.hasResult = hasResult;
+    }
+
+    public static SsaInstruction constant(long value, boolean isDouble) {
+        SsaInstruction instruction = new SsaInstruction(SsaKind.CONST, Operation.push, value, null, true);
+        instruction.isDouble = isDouble;
+        return instruction;
+    }
+
+    public static SsaInstruction globalIndex(int global) {
+        SsaInstruction instruction = new SsaInstruction(SsaKind.CONST, Operation.push, global, null, true);
+        instruction.isGlobalIndex = true;
+        return instruction;
+    }
+
+    public static SsaInstruction operation(Operation operation, SsaInstruction... arguments) {
+        return new SsaInstruction(SsaKind.OPERATION, operation, 0, arguments, true);
+    }
+
+    public SsaKind getKind() {
+        return kind;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public long getOperand() {
+        return operand;
+    }
+
+    public boolean isDouble() {
+        return isDouble;
+    }
+
+    public boolean isGlobalIndex() {
+        return isGlobalIndex;
+    }
+
+    public boolean hasResult() {
+        return hasResult;
+    }
+
+    public int getVariable() {
+        return variable;
+    }
+
+    public SsaBlock getBlock() {
+        return block;
+    }
+
+    public int getArgumentCount() {
+        return arguments.length;
+    }
+
+    /**
+     * 第 i 个参数（已经替换过的值）
+     */
+    public SsaInstruction getArgument(int i) {
+        SsaInstruction argument = resolve(arguments[i]);
+        arguments[i] = argument;
+        return argument;
+    }
+
+    public void setArgument(int i, SsaInstruction argument) {
+        arguments[i] = argument;
+    }
+
+    /**
+     * 把这个值的所有使用换成 value，调用者负责把这条指令从块中删除
+     */
+    public void replaceWith(SsaInstruction value) {
+        replacement = value;
+    }
+
+    /**
+     * 沿着替换链找到最终的值，顺便压缩路径
+     */
+    static SsaInstruction resolve(SsaInstruction value) {
+        if (value == null || value.replacement == null) {
+            return value;
+        }
+        SsaInstruction root = value.replacement;
+        while (root.replacement != null) {
+            root = root.replacement;
+        }
+        while (value.replacement != null && value.replacement != root) {
+            SsaInstruction next = value.replacement;
+            value.replacement = root;
+            value = next;
+        }
+        return root;
+    }
+
+    /**
+     * 删除这条指令是否不会改变程序的行为（在结果没有被使用时）
+     * 整数除法可能除以 0，不能删除；读全局变量没有副作用，可以删除
+     */
+    public boolean isRemovable() {
+        switch (kind) {
+            case CONST:
+            case COPY:
+            case LOAD_GLOBAL:
+            case PHI:
+                return true;
+            case OPERATION:
+                return operation != Operation.div_i && operation != Operation.div_u;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 常量写成它的值，其他写成 v 加编号
+     */
+    static String describe(SsaInstruction value) {
+        if (value.kind == SsaKind.CONST) {
+            return value.isDouble ? Double.toString(Double.longBitsToDouble(value.operand)) : Long.toString(value.operand);
+        }
+        return "v" + value.id;
+    }
+
+    /**
+     * 格式为 v3 = add_i v1, v2
+     */
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        if (hasResult) {
+            stringBuilder.append('v').append(id).append(" = ");
+        }
+        switch (kind) {
+            case OPERATION:
+            case STANDARD:
+                stringBuilder.append(operation);
+                break;
+            case CONST:
+                stringBuilder.append(describe(this));
+                break;
+            default:
+                stringBuilder.append(kind.toString().toLowerCase());
+                if (kind != SsaKind.COPY) {
+                    stringBuilder.append(' ').append(operand);
+                }
+                break;
+        }
+        for (int i = 0; i < arguments.length; i++) {
+            SsaInstruction argument = getArgument(i);
+            stringBuilder.append(i == 0 ? " " : ", ").append(argument == null ? "?" : describe(argument));
+        }
+        return stringBuilder.toString();
+    }
+}
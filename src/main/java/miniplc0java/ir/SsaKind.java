@@ -0,0 +1,27 @@
+package miniplc0java.ir;
+
+/**
+ * SSA 指令的种类，注释中是 operand 和 arguments 的含义
+ */
+public enum SsaKind {
+    /** 函数开始时变量格子中的值（参数，或没有初始化的局部变量），operand：变量编号 */
+    ENTRY,
+    /** 块开头的 φ，operand：变量编号，arguments 与块的前驱一一对应 */
+    PHI,
+    /** push 的常量，operand：整数值或 double 的二进制表示 */
+    CONST,
+    /** 把一个值赋给另一个变量，arguments：被复制的值 */
+    COPY,
+    /** 没有副作用的运算（add_i、cmp_f、set_lt、itof 等），operation：对应的指令 */
+    OPERATION,
+    /** 读全局变量，operand：全局变量编号 */
+    LOAD_GLOBAL,
+    /** 写全局变量，operand：全局变量编号，arguments：写入的值 */
+    STORE_GLOBAL,
+    /** 调用函数，operand：函数编号，arguments：参数 */
+    CALL,
+    /** 标准库的输入输出（scan_i、print_s 等），operation：对应的指令 */
+    STANDARD,
+    /** 构造 SSA 时块内对变量的第一次读取，之后换成到达该处的定义，operand：变量编号 */
+    VARIABLE
+}
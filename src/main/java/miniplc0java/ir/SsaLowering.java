@@ -0,0 +1,577 @@
+package miniplc0java.ir;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 把 SSA 形式转换回栈式指令
+ * 1. 只在同一块中被使用一次的值，如果计算出来时正好可以留在栈上等待使用者，就不存入格子（栈上的值），
+ *    按块模拟一遍操作数栈检查这一点，不满足时把挡住的值改为存入格子再重新检查；
+ *    使用者排在栈上参数之前的其他参数提前读取，压在栈上参数的下面
+ * 2. 其余被使用的值各有一个格子：优先用源程序中存入的变量，没有时新开一个局部变量
+ * 3. 同一格子中的两个值有一个在另一个定义处活跃时，把后定义的值移到新的格子
+ * 4. 逐块输出：存入格子的值和写全局变量、带返回值的调用需要先压地址或预留返回值，
+ *    这些指令和提前读取的参数放在对应的栈上值的树开始的地方；φ 在前驱末尾用并行复制赋值
+ */
+class SsaLowering {
+    private final SsaFunction function;
+    private final ControlFlowGraph graph;
+    private final int argSlots;
+    // 已经使用的变量个数（参数区加局部变量），新开的格子从这里分配
+    private int variableCount;
+    // 以下按值的编号存放
+    private SsaInstruction[] values;
+    private int[] useCounts;
+    private boolean[] onStack;
+    // 值在所在块的指令中的下标，和它所在的栈上值的树中最先执行的指令
+    private int[] positions;
+    private SsaInstruction[] treeStarts;
+    // 值所在的格子（变量编号），-1 表示不存入格子
+    private int[] homes;
+    // 打破 φ 复制中的环时使用的格子
+    private int temporary = -1;
+
+    SsaLowering(SsaFunction function) {
+        this.function = function;
+        this.graph = function.graph;
+        this.argSlots = graph.getArgSlots();
+    }
+
+    void lower() {
+        function.removeDeadInstructions();
+        useCounts = function.countUses();
+        values = new SsaInstruction[useCounts.length];
+        positions = new int[values.length];
+        treeStarts = new SsaInstruction[values.length];
+        for (BasicBlock block: graph.getBlocks()) {
+            for (SsaInstruction phi: block.ssa.phis) {
+                values[phi.id] = phi;
+            }
+            ArrayList<SsaInstruction> instructions = block.ssa.instructions;
+            for (int i = 0; i < instructions.size(); i++) {
+                values[instructions.get(i).id] = instructions.get(i);
+                positions[instructions.get(i).id] = i;
+            }
+        }
+        chooseStackValues();
+        variableCount = argSlots + graph.getLocSlots();
+        homes = new int[values.length];
+        for (SsaInstruction value: values) {
+            boolean materialized = value.kind == SsaKind.ENTRY || value.kind == SsaKind.PHI
+                    || value.hasResult && !onStack[value.id] && useCounts[value.id] > 0;
+            homes[value.id] = !materialized ? -1 : value.variable >= 0 ? value.variable : variableCount++;
+        }
+        resolveInterference();
+        LoopNest loopNest = graph.getLoopNest();
+        InstructionBuffer[] prefixes = new InstructionBuffer[values.length];
+        ArrayList<InstructionBuffer> outputs = new ArrayList<>(graph.getBlocks().size());
+        for (BasicBlock block: graph.getBlocks()) {
+            outputs.add(emit(block, loopNest.getLoopOf(block) != null, prefixes));
+        }
+        for (BasicBlock block: graph.getBlocks()) {
+            block.setInstructions(outputs.get(block.index));
+        }
+        graph.setLocSlots(variableCount - argSlots);
+        graph.removeEmptyBlocks();
+    }
+
+    private boolean isStackValue(SsaInstruction value) {
+        return value.kind != SsaKind.CONST && onStack[value.id];
+    }
+
+    /**
+     * 选出栈上的值：有结果、只在所在的块中被一条指令或跳转使用一次（不是 φ 的参数）
+     */
+    private void chooseStackValues() {
+        int count = values.length;
+        onStack = new boolean[count];
+        boolean[] usedByPhi = new boolean[count];
+        SsaBlock[] useBlocks = new SsaBlock[count];
+        for (BasicBlock block: graph.getBlocks()) {
+            SsaBlock ssaBlock = block.ssa;
+            for (SsaInstruction phi: ssaBlock.phis) {
+                for (int i = 0; i < phi.getArgumentCount(); i++) {
+                    SsaInstruction argument = phi.getArgument(i);
+                    if (argument.block != null) {
+                        usedByPhi[argument.id] = true;
+                    }
+                }
+            }
+            for (SsaInstruction instruction: ssaBlock.instructions) {
+                for (int i = 0; i < instruction.getArgumentCount(); i++) {
+                    SsaInstruction argument = instruction.getArgument(i);
+                    if (argument.block != null) {
+                        useBlocks[argument.id] = ssaBlock;
+                    }
+                }
+            }
+            for (SsaInstruction value: new SsaInstruction[]{ssaBlock.getCondition(), ssaBlock.getReturnValue()}) {
+                if (value != null && value.block != null) {
+                    useBlocks[value.id] = ssaBlock;
+                }
+            }
+        }
+        for (SsaInstruction value: values) {
+            int id = value.id;
+            onStack[id] = value.hasResult && value.kind != SsaKind.PHI && value.kind != SsaKind.ENTRY
+                    && useCounts[id] == 1 && !usedByPhi[id] && useBlocks[id] == value.block;
+        }
+        for (BasicBlock block: graph.getBlocks()) {
+            while (!simulate(block.ssa)) {
+                // simulate 每次至少把一个值改为存入格子，有限次后一定成功
+            }
+        }
+    }
+
+    /**
+     * 模拟一个块中栈上的值：每条指令的栈上参数必须按顺序正好在栈顶，
+     * 排在一个栈上参数之前的其他参数要提前到这个栈上参数的树开始处读取，那时它必须已经算出
+     *
+     * @return 是否满足，不满足时已经把一些值改为存入格子
+     */
+    private boolean simulate(SsaBlock ssaBlock) {
+        ArrayList<SsaInstruction> stack = new ArrayList<>();
+        for (SsaInstruction instruction: ssaBlock.instructions) {
+            if (!popArguments(instruction.arguments, stack)) {
+                return false;
+            }
+            SsaInstruction start = instruction;
+            for (SsaInstruction argument: instruction.arguments) {
+                if (isStackValue(argument)) {
+                    start = treeStarts[argument.id];
+                    break;
+                }
+            }
+            treeStarts[instruction.id] = start;
+            if (instruction.hasResult && onStack[instruction.id]) {
+                stack.add(instruction);
+            }
+        }
+        SsaInstruction used = ssaBlock.getCondition() != null ? ssaBlock.getCondition() : ssaBlock.getReturnValue();
+        return used == null || popArguments(new SsaInstruction[]{used}, stack);
+    }
+
+    private boolean popArguments(SsaInstruction[] arguments, ArrayList<SsaInstruction> stack) {
+        ArrayList<SsaInstruction> stackArguments = new ArrayList<>(arguments.length);
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = SsaInstruction.resolve(arguments[i]);
+            if (isStackValue(arguments[i])) {
+                stackArguments.add(arguments[i]);
+            }
+        }
+        int count = stackArguments.size();
+        int base = stack.size() - count;
+        boolean matched = base >= 0;
+        for (int i = 0; matched && i < count; i++) {
+            matched = stack.get(base + i) == stackArguments.get(i);
+        }
+        if (!matched) {
+            // 把压在这些参数之上或夹在它们之间的值改为存入格子；只是顺序不对时把这些参数改为存入格子
+            int low = stack.size();
+            for (SsaInstruction argument: stackArguments) {
+                int position = stack.lastIndexOf(argument);
+                if (position >= 0) {
+                    low = Math.min(low, position);
+                }
+            }
+            boolean demoted = false;
+            for (int position = low; position < stack.size(); position++) {
+                if (!stackArguments.contains(stack.get(position))) {
+                    onStack[stack.get(position).id] = false;
+                    demoted = true;
+                }
+            }
+            if (!demoted) {
+                for (SsaInstruction argument: stackArguments) {
+                    onStack[argument.id] = false;
+                }
+            }
+            return false;
+        }
+        for (int i = 0, previous = -1; i < arguments.length; i++) {
+            if (!isStackValue(arguments[i])) {
+                continue;
+            }
+            SsaInstruction start = treeStarts[arguments[i].id];
+            for (int j = previous + 1; j < i; j++) {
+                if (!isAvailable(arguments[j], start)) {
+                    onStack[arguments[i].id] = false;
+                    return false;
+                }
+            }
+            previous = i;
+        }
+        stack.subList(base, stack.size()).clear();
+        return true;
+    }
+
+    /**
+     * 在块中 start 开始执行时，value 是否已经可以读取
+     */
+    private boolean isAvailable(SsaInstruction value, SsaInstruction start) {
+        return value.kind == SsaKind.CONST || value.kind == SsaKind.PHI || value.block != start.block
+                || positions[value.id] < positions[start.id];
+    }
+
+    /**
+     * 最后一个栈上参数的下标，没有时为 -1
+     */
+    private int getLastStackArgument(SsaInstruction instruction) {
+        int last = instruction.getArgumentCount() - 1;
+        while (last >= 0 && !isStackValue(instruction.getArgument(last))) {
+            last--;
+        }
+        return last;
+    }
+
+    /**
+     * 求出存入格子的值在每个块末尾是否活跃，再逐块从后往前检查同一格子中的值是否冲突
+     */
+    private void resolveInterference() {
+        List<BasicBlock> blocks = graph.getBlocks();
+        int count = blocks.size();
+        BitSet[] liveIns = new BitSet[count];
+        BitSet[] liveOuts = new BitSet[count];
+        for (int b = 0; b < count; b++) {
+            liveIns[b] = new BitSet();
+            liveOuts[b] = new BitSet();
+        }
+        ArrayList<BasicBlock> stack = new ArrayList<>();
+        for (BasicBlock block: blocks) {
+            SsaBlock ssaBlock = block.ssa;
+            for (SsaInstruction phi: ssaBlock.phis) {
+                // φ 的参数在对应前驱的末尾被使用
+                for (int j = 0; j < phi.getArgumentCount(); j++) {
+                    SsaInstruction argument = phi.getArgument(j);
+                    BasicBlock predecessor = block.getPredecessors().get(j);
+                    if (argument.kind != SsaKind.CONST) {
+                        liveOuts[predecessor.index].set(argument.id);
+                        markLiveIn(argument, predecessor, liveIns, liveOuts, stack);
+                    }
+                }
+            }
+            for (SsaInstruction instruction: ssaBlock.instructions) {
+                for (int i = 0; i < instruction.getArgumentCount(); i++) {
+                    markLiveIn(instruction.getArgument(i), block, liveIns, liveOuts, stack);
+                }
+            }
+            for (SsaInstruction value: new SsaInstruction[]{ssaBlock.getCondition(), ssaBlock.getReturnValue()}) {
+                if (value != null) {
+                    markLiveIn(value, block, liveIns, liveOuts, stack);
+                }
+            }
+        }
+        // 按格子统计当前活跃的值的个数，新开的格子各只有一个值，最多再有 values.length 个
+        int[] homeCounts = new int[variableCount + values.length + 1];
+        for (BasicBlock block: blocks) {
+            SsaBlock ssaBlock = block.ssa;
+            BitSet live = liveOuts[block.index];
+            for (SsaInstruction value: new SsaInstruction[]{ssaBlock.getCondition(), ssaBlock.getReturnValue()}) {
+                if (value != null && value.kind != SsaKind.CONST && homes[value.id] >= 0) {
+                    live.set(value.id);
+                }
+            }
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                homeCounts[homes[id]]++;
+            }
+            for (int i = ssaBlock.instructions.size() - 1; i >= 0; i--) {
+                SsaInstruction instruction = ssaBlock.instructions.get(i);
+                int id = instruction.id;
+                if (homes[id] >= 0) {
+                    if (live.get(id)) {
+                        live.clear(id);
+                        homeCounts[homes[id]]--;
+                    }
+                    if (instruction.kind != SsaKind.ENTRY && homeCounts[homes[id]] > 0) {
+                        homes[id] = variableCount++;
+                    }
+                }
+                for (int j = 0; j < instruction.getArgumentCount(); j++) {
+                    SsaInstruction argument = instruction.getArgument(j);
+                    if (argument.kind != SsaKind.CONST && homes[argument.id] >= 0 && !live.get(argument.id)) {
+                        live.set(argument.id);
+                        homeCounts[homes[argument.id]]++;
+                    }
+                }
+            }
+            // 块开头的 φ 同时定义，互相之间以及与块开头活跃的值都不能共用格子
+            for (SsaInstruction phi: ssaBlock.phis) {
+                if (live.get(phi.id)) {
+                    live.clear(phi.id);
+                    homeCounts[homes[phi.id]]--;
+                }
+            }
+            for (SsaInstruction phi: ssaBlock.phis) {
+                if (homeCounts[homes[phi.id]] > 0) {
+                    homes[phi.id] = variableCount++;
+                }
+                homeCounts[homes[phi.id]]++;
+            }
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                homeCounts[homes[id]]--;
+            }
+            for (SsaInstruction phi: ssaBlock.phis) {
+                homeCounts[homes[phi.id]]--;
+            }
+        }
+    }
+
+    /**
+     * value 在 block 中被使用：不是在 block 中定义的话，它在 block 开头活跃，沿前驱向上标记直到定义它的块
+     */
+    private void markLiveIn(SsaInstruction value, BasicBlock block, BitSet[] liveIns, BitSet[] liveOuts,
+                            ArrayList<BasicBlock> stack) {
+        int id = value.id;
+        if (value.kind == SsaKind.CONST || homes[id] < 0 || value.block == block.ssa || liveIns[block.index].get(id)) {
+            return;
+        }
+        liveIns[block.index].set(id);
+        stack.add(block);
+        while (!stack.isEmpty()) {
+            BasicBlock current = stack.remove(stack.size() - 1);
+            for (BasicBlock predecessor: current.getPredecessors()) {
+                int p = predecessor.index;
+                liveOuts[p].set(id);
+                if (predecessor.ssa != value.block && !liveIns[p].get(id)) {
+                    liveIns[p].set(id);
+                    stack.add(predecessor);
+                }
+            }
+        }
+    }
+
+    /**
+     * 输出一个块的指令（不包括末尾的跳转指令）
+     *
+     * @param inLoop 块是否在循环中，在循环中时没有使用的结果总是弹出，避免栈随循环增长
+     */
+    private InstructionBuffer emit(BasicBlock block, boolean inLoop, InstructionBuffer[] prefixes) {
+        SsaBlock ssaBlock = block.ssa;
+        InstructionBuffer instructions = new InstructionBuffer();
+        // 每棵树开始处要先执行的指令，外层的在前：压地址、预留返回值，以及排在栈上参数之前的其他参数
+        for (SsaInstruction instruction: ssaBlock.instructions) {
+            if (instruction.kind == SsaKind.ENTRY) {
+                continue;
+            }
+            InstructionBuffer own = new InstructionBuffer(2);
+            if (instruction.hasResult && homes[instruction.id] >= 0) {
+                addAddress(own, homes[instruction.id]);
+            }
+            if (instruction.kind == SsaKind.STORE_GLOBAL) {
+                own.add(Operation.globa, (int) instruction.operand);
+            }
+            if (instruction.kind == SsaKind.CALL && instruction.hasResult) {
+                own.add(Operation.stackalloc, 1);
+            }
+            // 第一个栈上参数之前的参数和 own 一起放到整棵树的开始处，之后的放到下一个栈上参数的树开始处
+            int last = getLastStackArgument(instruction);
+            InstructionBuffer pending = own;
+            for (int i = 0; i <= last; i++) {
+                SsaInstruction argument = instruction.getArgument(i);
+                if (isStackValue(argument)) {
+                    prepend(prefixes, treeStarts[argument.id], pending);
+                    pending = new InstructionBuffer(2);
+                } else {
+                    load(pending, argument);
+                }
+            }
+            if (last < 0) {
+                prepend(prefixes, instruction, own);
+            }
+        }
+        SsaInstruction returnValue = ssaBlock.getReturnValue();
+        if (returnValue != null && isStackValue(returnValue)) {
+            InstructionBuffer own = new InstructionBuffer(1);
+            own.add(Operation.arga, 0);
+            prepend(prefixes, treeStarts[returnValue.id], own);
+        }
+        // 栈上的值的个数
+        int depth = 0;
+        for (SsaInstruction instruction: ssaBlock.instructions) {
+            if (instruction.kind == SsaKind.ENTRY) {
+                continue;
+            }
+            int id = instruction.id;
+            if (prefixes[id] != null) {
+                instructions.addRange(prefixes[id], 0, prefixes[id].size());
+                prefixes[id] = null;
+            }
+            // 最后一个栈上参数之后的参数在这里读取
+            int last = getLastStackArgument(instruction);
+            for (int i = last + 1; i < instruction.getArgumentCount(); i++) {
+                load(instructions, instruction.getArgument(i));
+            }
+            for (int i = 0; i <= last; i++) {
+                if (isStackValue(instruction.getArgument(i))) {
+                    depth--;
+                }
+            }
+            switch (instruction.kind) {
+                case OPERATION:
+                case STANDARD:
+                    instructions.add(instruction.operation);
+                    break;
+                case LOAD_GLOBAL:
+                    instructions.add(Operation.globa, (int) instruction.operand);
+                    instructions.add(Operation.load64);
+                    break;
+                case STORE_GLOBAL:
+                    instructions.add(Operation.store64);
+                    break;
+                case CALL:
+                    instructions.add(Operation.call, (int) instruction.operand);
+                    break;
+                default:
+                    // COPY 只是把参数放到栈上
+                    break;
+            }
+            if (!instruction.hasResult) {
+                continue;
+            }
+            if (homes[id] >= 0) {
+                instructions.add(Operation.store64);
+            } else if (onStack[id]) {
+                depth++;
+            } else if (depth > 0 || inLoop) {
+                instructions.add(Operation.pop);
+            }
+        }
+        if (block.getSuccessorCount() == 1 && !block.getSuccessor(0).ssa.phis.isEmpty()) {
+            copyPhis(instructions, block);
+        }
+        SsaInstruction condition = ssaBlock.getCondition();
+        if (condition != null && !isStackValue(condition)) {
+            load(instructions, condition);
+        }
+        if (returnValue != null) {
+            if (isStackValue(returnValue)) {
+                instructions.add(Operation.store64);
+            } else if (returnValue.kind == SsaKind.CONST || homes[returnValue.id] != 0) {
+                instructions.add(Operation.arga, 0);
+                load(instructions, returnValue);
+                instructions.add(Operation.store64);
+            }
+        }
+        return instructions;
+    }
+
+    private static void prepend(InstructionBuffer[] prefixes, SsaInstruction start, InstructionBuffer own) {
+        if (own.size() == 0) {
+            return;
+        }
+        InstructionBuffer old = prefixes[start.id];
+        if (old != null) {
+            own.addRange(old, 0, old.size());
+        }
+        prefixes[start.id] = own;
+    }
+
+    /**
+     * 在 block 末尾给唯一后继的 φ 赋值
+     * 所有复制同时进行：先输出目标不再被读取的复制，剩下的都成环时把一个源存到临时格子
+     */
+    private void copyPhis(InstructionBuffer instructions, BasicBlock block) {
+        BasicBlock successor = block.getSuccessor(0);
+        int j = successor.getPredecessors().indexOf(block);
+        ArrayList<SsaInstruction> phis = successor.ssa.phis;
+        int count = phis.size();
+        int[] targets = new int[count];
+        // 源的格子，-1 表示源是常量
+        int[] sources = new int[count];
+        SsaInstruction[] constants = new SsaInstruction[count];
+        int remaining = 0;
+        for (SsaInstruction phi: phis) {
+            SsaInstruction source = phi.getArgument(j);
+            int target = homes[phi.id];
+            if (source.kind == SsaKind.CONST) {
+                targets[remaining] = target;
+                sources[remaining] = -1;
+                constants[remaining++] = source;
+            } else if (homes[source.id] != target) {
+                targets[remaining] = target;
+                sources[remaining++] = homes[source.id];
+            }
+        }
+        boolean[] done = new boolean[remaining];
+        int left = remaining;
+        while (left > 0) {
+            boolean progress = false;
+            for (int i = 0; i < remaining; i++) {
+                if (done[i] || isRead(targets[i], sources, done, i)) {
+                    continue;
+                }
+                addAddress(instructions, targets[i]);
+                if (sources[i] < 0) {
+                    load(instructions, constants[i]);
+                } else {
+                    addAddress(instructions, sources[i]);
+                    instructions.add(Operation.load64);
+                }
+                instructions.add(Operation.store64);
+                done[i] = true;
+                left--;
+                progress = true;
+            }
+            if (progress) {
+                continue;
+            }
+            // 剩下的复制成环
+            if (temporary < 0) {
+                temporary = variableCount++;
+            }
+            int cycle = 0;
+            while (done[cycle] || sources[cycle] < 0) {
+                cycle++;
+            }
+            int source = sources[cycle];
+            addAddress(instructions, temporary);
+            addAddress(instructions, source);
+            instructions.add(Operation.load64);
+            instructions.add(Operation.store64);
+            for (int i = 0; i < remaining; i++) {
+                if (!done[i] && sources[i] == source) {
+                    sources[i] = temporary;
+                }
+            }
+        }
+    }
+
+    private static boolean isRead(int slot, int[] sources, boolean[] done, int except) {
+        for (int i = 0; i < done.length; i++) {
+            if (i != except && !done[i] && sources[i] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把不在栈上的值压栈：常量直接 push，其余从格子中读取
+     */
+    private void load(InstructionBuffer instructions, SsaInstruction value) {
+        if (value.kind == SsaKind.CONST) {
+            if (value.isDouble) {
+                instructions.add(Operation.push, Double.longBitsToDouble(value.operand));
+            } else if (value.isGlobalIndex) {
+                instructions.addGlobalIndex((int) value.operand);
+            } else {
+                instructions.add(Operation.push, value.operand);
+            }
+            return;
+        }
+        addAddress(instructions, homes[value.id]);
+        instructions.add(Operation.load64);
+    }
+
+    private void addAddress(InstructionBuffer instructions, int variable) {
+        if (variable < argSlots) {
+            instructions.add(Operation.arga, variable);
+        } else {
+            instructions.add(Operation.loca, variable - argSlots);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.BasicBlock;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.ir.SsaBlock;
+import miniplc0java.ir.SsaFunction;
+import miniplc0java.ir.SsaInstruction;
+import miniplc0java.ir.SsaKind;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 常量折叠：参数都是常量的运算在编译时求值，所有参数都是同一个常量的 φ 换成这个常量
+ * 求值的语义与虚拟机相同：整数运算按 64 位回绕，除以 0 和 MIN / -1 留到运行时，
+ * ftoi 与 Java 的 (long) 转换一样饱和取整、NaN 为 0
+ * 常量全局变量在 _start 中第一次调用函数之前就用常量初始化时，其它函数中对它的读取直接换成常量
+ * （第一次调用之后才初始化的，被调用的函数可能读到初始化之前的 0）
+ */
+public class ConstantFoldPass extends SsaPass {
+    // 可以换成常量的全局变量：全局变量编号 -> 初始化的常量
+    private HashMap<Long, SsaInstruction> globalValues;
+
+    @Override
+    public String getName() {
+        return "const-fold";
+    }
+
+    /**
+     * 先折叠 _start，顺序执行它的入口块，得到用常量初始化的常量全局变量
+     */
+    @Override
+    protected void prepare(AnalyseResult program) {
+        super.prepare(program);
+        HashSet<Long> constants = new HashSet<>();
+        for (SymbolEntry symbol: program.getSymbolList()) {
+            if (symbol.isConstant()) {
+                constants.add((long) symbol.getStackOffset());
+            }
+        }
+        globalValues = new HashMap<>();
+        for (FunctionEntry function: program.getFunctionList()) {
+            if (function.getStackOffset() != 0) {
+                continue;
+            }
+            ControlFlowGraph graph = ControlFlowGraph.build(function);
+            SsaFunction ssa = build(graph);
+            if (ssa == null) {
+                return;
+            }
+            boolean changed = fold(ssa);
+            SsaBlock entry = ssa.getBlock(graph.getEntry());
+            HashMap<Long, SsaInstruction> initialised = new HashMap<>();
+            // 换成常量的读取折叠之后，后面的常量全局变量的初始值可能也成为常量，所以要重复
+            boolean replaced = true;
+            while (replaced) {
+                initialised.clear();
+                for (SsaInstruction instruction: entry.getInstructions()) {
+                    if (instruction.getKind() == SsaKind.CALL) {
+                        break;
+                    }
+                    if (instruction.getKind() == SsaKind.LOAD_GLOBAL && initialised.containsKey(instruction.getOperand())) {
+                        instruction.replaceWith(initialised.get(instruction.getOperand()));
+                    } else if (instruction.getKind() == SsaKind.STORE_GLOBAL && constants.contains(instruction.getOperand())
+                            && instruction.getArgument(0).getKind() == SsaKind.CONST) {
+                        initialised.put(instruction.getOperand(), instruction.getArgument(0));
+                    }
+                }
+                replaced = entry.removeReplaced();
+                if (replaced) {
+                    fold(ssa);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                function.setInstructions(ssa.lower(), graph.getLocSlots());
+            }
+            globalValues = initialised;
+        }
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        // _start 已经在 prepare 中处理过
+        if (function.getStackOffset() != 0) {
+            super.runOnFunction(function);
+        }
+    }
+
+    @Override
+    protected boolean transform(FunctionEntry function, SsaFunction ssa) {
+        boolean changed = false;
+        for (BasicBlock block: ssa.getGraph().getBlocks()) {
+            for (SsaInstruction instruction: ssa.getBlock(block).getInstructions()) {
+                if (instruction.getKind() == SsaKind.LOAD_GLOBAL && globalValues.containsKey(instruction.getOperand())) {
+                    instruction.replaceWith(globalValues.get(instruction.getOperand()));
+                }
+            }
+            changed |= ssa.getBlock(block).removeReplaced();
+        }
+        return fold(ssa) || changed;
+    }
+
+    /**
+     * 按逆后序（定义在使用之前）折叠，直到没有可以折叠的指令
+     * 循环中的 φ 可能要等回边上的值折叠之后才能折叠，所以要重复
+     *
+     * @return 是否折叠了指令
+     */
+    private static boolean fold(SsaFunction ssa) {
+        boolean changed = false;
+        boolean changedInRound = true;
+        while (changedInRound) {
+            changedInRound = false;
+            for (BasicBlock block: ssa.getGraph().getReversePostOrder()) {
+                SsaBlock ssaBlock = ssa.getBlock(block);
+                for (SsaInstruction phi: ssaBlock.getPhis()) {
+                    SsaInstruction value = foldPhi(phi);
+                    if (value != null) {
+                        phi.replaceWith(value);
+                        changedInRound = true;
+                    }
+                }
+                for (SsaInstruction instruction: ssaBlock.getInstructions()) {
+                    if (instruction.getKind() != SsaKind.OPERATION) {
+                        continue;
+                    }
+                    SsaInstruction value = foldOperation(instruction);
+                    if (value != null) {
+                        instruction.replaceWith(value);
+                        changedInRound = true;
+                    }
+                }
+                ssaBlock.removeReplaced();
+            }
+            changed |= changedInRound;
+        }
+        return changed;
+    }
+
+    /**
+     * 除了自身以外的参数都是同一个常量时返回这个常量
+     */
+    private static SsaInstruction foldPhi(SsaInstruction phi) {
+        SsaInstruction value = null;
+        for (int i = 0; i < phi.getArgumentCount(); i++) {
+            SsaInstruction argument = phi.getArgument(i);
+            if (argument == phi) {
+                continue;
+            }
+            if (argument == null || argument.getKind() != SsaKind.CONST) {
+                return null;
+            }
+            if (value == null) {
+                value = argument;
+            } else if (argument.getOperand() != value.getOperand() || argument.isDouble() != value.isDouble()
+                    || argument.isGlobalIndex() != value.isGlobalIndex()) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 参数都是常量时计算结果，不能在编译时计算时返回 null
+     */
+    private static SsaInstruction foldOperation(SsaInstruction instruction) {
+        for (int i = 0; i < instruction.getArgumentCount(); i++) {
+            if (instruction.getArgument(i).getKind() != SsaKind.CONST) {
+                return null;
+            }
+        }
+        Operation operation = instruction.getOperation();
+        if (instruction.getArgumentCount() == 1) {
+            long x = instruction.getArgument(0).getOperand();
+            switch (operation) {
+                case neg_i:
+                    return integer(-x);
+                case neg_f:
+                    return real(-Double.longBitsToDouble(x));
+                case itof:
+                    return real((double) x);
+                case ftoi:
+                    return integer((long) Double.longBitsToDouble(x));
+                case set_lt:
+                    return integer(x < 0 ? 1 : 0);
+                case set_gt:
+                    return integer(x > 0 ? 1 : 0);
+                default:
+                    return null;
+            }
+        }
+        long a = instruction.getArgument(0).getOperand();
+        long b = instruction.getArgument(1).getOperand();
+        double x = Double.longBitsToDouble(a);
+        double y = Double.longBitsToDouble(b);
+        switch (operation) {
+            case add_i:
+                return integer(a + b);
+            case sub_i:
+                return integer(a - b);
+            case mul_i:
+                return integer(a * b);
+            case div_i:
+                return b == 0 || a == Long.MIN_VALUE && b == -1 ? null : integer(a / b);
+            case div_u:
+                return b == 0 ? null : integer(Long.divideUnsigned(a, b));
+            case cmp_i:
+                return integer(Long.compare(a, b));
+            case cmp_u:
+                return integer(Long.compareUnsigned(a, b));
+            case add_f:
+                return real(x + y);
+            case sub_f:
+                return real(x - y);
+            case mul_f:
+                return real(x * y);
+            case div_f:
+                return real(x / y);
+            case cmp_f:
+                return integer(x < y ? -1 : x > y ? 1 : 0);
+            default:
+                return null;
+        }
+    }
+
+    private static SsaInstruction integer(long value) {
+        return SsaInstruction.constant(value, false);
+    }
+
+    private static SsaInstruction real(double value) {
+        return SsaInstruction.constant(Double.doubleToRawLongBits(value), true);
+    }
+}
@@ -0,0 +1,100 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.analyser.SymbolEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.CallGraph;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 删除从 _start 和 main 出发沿调用关系到达不了的函数，剩下的函数按原来的顺序重新编号，call 随之修改
+ * 被删除的函数的名字（全局变量）也一起删除，剩下的全局变量按原来的顺序重新编号，
+ * globa、函数名的编号和压入字符串字面量的 push（见 InstructionBuffer.addGlobalIndex）随之修改
+ * 字符串字面量的类型是 int，只有直接压入的编号才会修改，对编号做运算得到的值仍是原来的编号
+ */
+public class DeadFunctionPass implements Pass {
+    @Override
+    public String getName() {
+        return "dead-functions";
+    }
+
+    @Override
+    public void run(AnalyseResult program, ForkJoinPool pool) {
+        ArrayList<FunctionEntry> functions = program.getFunctionList();
+        ArrayList<SymbolEntry> symbols = program.getSymbolList();
+        int main = -1;
+        for (FunctionEntry function: functions) {
+            if (function.getName().equals("main")) {
+                main = function.getStackOffset();
+            }
+        }
+        CallGraph callGraph = CallGraph.build(functions);
+        BitSet reachable = callGraph.getReachable(0, main);
+        if (reachable.cardinality() == functions.size()) {
+            return;
+        }
+        // 被删除的函数的名字，仍然被剩下的代码引用时保留
+        BitSet removedGlobals = new BitSet();
+        for (FunctionEntry function: functions) {
+            if (!reachable.get(function.getStackOffset())) {
+                removedGlobals.set(function.getFunctionNameOffset());
+            }
+        }
+        for (FunctionEntry function: functions) {
+            if (reachable.get(function.getStackOffset())) {
+                InstructionBuffer instructions = function.getInstructions();
+                for (int i = 0; i < instructions.size(); i++) {
+                    if (instructions.getOperation(i) == Operation.globa || instructions.isGlobalIndex(i)) {
+                        removedGlobals.clear(instructions.getIntValue(i));
+                    }
+                }
+            }
+        }
+
+        // 新的编号，被删除的为 -1；全局变量在列表中的顺序就是编号
+        int[] functionNumbers = new int[callGraph.getFunctionCount()];
+        ArrayList<FunctionEntry> remainingFunctions = new ArrayList<>(reachable.cardinality());
+        for (FunctionEntry function: functions) {
+            int number = function.getStackOffset();
+            functionNumbers[number] = reachable.get(number) ? remainingFunctions.size() : -1;
+            if (reachable.get(number)) {
+                remainingFunctions.add(function);
+            }
+        }
+        int[] globalNumbers = new int[symbols.size()];
+        ArrayList<SymbolEntry> remainingSymbols = new ArrayList<>(symbols.size());
+        for (SymbolEntry symbol: symbols) {
+            int number = symbol.getStackOffset();
+            globalNumbers[number] = removedGlobals.get(number) ? -1 : remainingSymbols.size();
+            if (!removedGlobals.get(number)) {
+                symbol.setStackOffset(remainingSymbols.size());
+                remainingSymbols.add(symbol);
+            }
+        }
+
+        for (FunctionEntry function: remainingFunctions) {
+            InstructionBuffer instructions = function.getInstructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                Operation operation = instructions.getOperation(i);
+                if (operation == Operation.call) {
+                    instructions.setValue(i, functionNumbers[instructions.getIntValue(i)]);
+                } else if (operation == Operation.globa) {
+                    instructions.setValue(i, globalNumbers[instructions.getIntValue(i)]);
+                } else if (instructions.isGlobalIndex(i)) {
+                    instructions.setGlobalIndex(i, globalNumbers[instructions.getIntValue(i)]);
+                }
+            }
+            function.setStackOffset(functionNumbers[function.getStackOffset()]);
+            function.setFunctionNameOffset(globalNumbers[function.getFunctionNameOffset()]);
+        }
+        functions.clear();
+        functions.addAll(remainingFunctions);
+        symbols.clear();
+        symbols.addAll(remainingSymbols);
+    }
+}
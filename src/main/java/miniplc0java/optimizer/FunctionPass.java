@@ -0,0 +1,70 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 逐个函数进行的优化遍
+ * 处理一个函数时只读写这个函数的指令，函数之间互不依赖，可以并行处理
+ */
+public abstract class FunctionPass implements Pass {
+    // 每个任务至少处理的函数个数，函数太少时不值得再拆分
+    private static final int FUNCTIONS_PER_TASK = 4;
+
+    @Override
+    public void run(AnalyseResult program, ForkJoinPool pool) {
+        ArrayList<FunctionEntry> functions = program.getFunctionList();
+        prepare(program);
+        if (pool != null) {
+            pool.invoke(new FunctionTask(functions, 0, functions.size()));
+        } else {
+            for (FunctionEntry function: functions) {
+                runOnFunction(function);
+            }
+        }
+    }
+
+    /**
+     * 处理函数之前调用一次，用来收集整个程序的信息（例如所有函数的参数个数）
+     */
+    protected void prepare(AnalyseResult program) {
+    }
+
+    /**
+     * 改写一个函数，用 FunctionEntry.setInstructions 写回；可能在多个线程中同时调用
+     */
+    protected abstract void runOnFunction(FunctionEntry function);
+
+    /**
+     * 处理 [from, to) 范围内的函数，范围较大时一分为二并行执行
+     */
+    private class FunctionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<FunctionEntry> functions;
+        private final int from;
+        private final int to;
+
+        FunctionTask(ArrayList<FunctionEntry> functions, int from, int to) {
+            this.functions = functions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FUNCTIONS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    runOnFunction(functions.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FunctionTask(functions, from, mid), new FunctionTask(functions, mid, to));
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.CallGraph;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 函数内联：把被调用者的指令直接放到调用处
+ * 调用处 stackalloc 1; <参数 1>; ...; <参数 n>; call f 改写成
+ * loca a1; <参数 1>; store64; ...; loca an; <参数 n>; store64; <f 的指令>; loca r; load64，
+ * 其中 f 的 arga 换成调用者新增的局部变量（返回值 r 和参数 a1..an），loca 平移到参数之后，
+ * ret 换成弹出 f 留在栈上的值再跳到末尾
+ * 按调用图的强连通分量自底向上处理，被调用者总是已经内联过它自己的调用，所以整个程序扫描一遍即可；
+ * 同一个分量中的函数（递归）也只内联当时的函数体一次，不会无限展开
+ * 是否内联由代价模型决定：被调用者的指令条数减去省下的调用开销乘以调用处估计的执行次数，不超过阈值时内联；
+ * 递归的调用内联后每一层仍然要调用，只有展开本身的开销（存参数、读返回值、ret 换成的 br）小于调用的开销时才内联
+ * 有跳转的函数体只在调用处栈上没有别的值时内联：SSA 不能表示跨越基本块留在栈上的值，
+ * 否则整个调用者都无法再做 SSA 上的优化
+ */
+public class InlinePass implements Pass {
+    // 一次调用本身的开销（stackalloc、call、ret 和建立栈帧），按指令条数计
+    private static final int CALL_COST = 5;
+    // 被调用者的指令条数减去省下的开销不超过它时内联
+    private static final int INLINE_THRESHOLD = 24;
+    // 每深一层循环，调用处的执行次数估计为外层的这么多倍，最多 MAX_FREQUENCY
+    private static final int LOOP_FREQUENCY = 8;
+    private static final int MAX_FREQUENCY = 64;
+    // 超过这个大小的被调用者不内联
+    private static final int MAX_CALLEE_SIZE = 200;
+    // 调用者内联后超过这个大小就不再内联
+    private static final int MAX_CALLER_SIZE = 8000;
+
+    // 按函数编号存放的参数个数和返回值格子数
+    private int[] paramCounts;
+    private int[] returnSlots;
+    private StackDepths stackDepths;
+    private FunctionEntry[] functions;
+    // 按函数编号存放的调用图强连通分量编号，相同的函数互相递归
+    private int[] components;
+    // 按函数编号缓存的分析结果，函数被改写后清除
+    private Callee[] callees;
+    private boolean[] analysed;
+
+    @Override
+    public String getName() {
+        return "inline";
+    }
+
+    @Override
+    public void run(AnalyseResult program, ForkJoinPool pool) {
+        CallGraph callGraph = CallGraph.build(program.getFunctionList());
+        int count = callGraph.getFunctionCount();
+        paramCounts = new int[count];
+        returnSlots = new int[count];
+        functions = new FunctionEntry[count];
+        callees = new Callee[count];
+        analysed = new boolean[count];
+        for (FunctionEntry function: program.getFunctionList()) {
+            int number = function.getStackOffset();
+            functions[number] = function;
+            paramCounts[number] = function.getFunction_param_list().size();
+            returnSlots[number] = function.getReturnValueType() == IdentType.VOID ? 0 : 1;
+        }
+        stackDepths = new StackDepths(program);
+        components = callGraph.getComponents();
+        ArrayList<FunctionEntry> order = new ArrayList<>(program.getFunctionList());
+        order.sort(Comparator.comparingInt(function -> components[function.getStackOffset()]));
+        for (FunctionEntry function: order) {
+            if (new CallerRewriter(function).rewrite()) {
+                int number = function.getStackOffset();
+                callees[number] = null;
+                analysed[number] = false;
+            }
+        }
+    }
+
+    private Callee getCallee(int number) {
+        if (number < 0 || number >= functions.length || functions[number] == null) {
+            return null;
+        }
+        if (!analysed[number]) {
+            callees[number] = analyse(functions[number]);
+            analysed[number] = true;
+        }
+        return callees[number];
+    }
+
+    /**
+     * 可以内联的函数：函数体和每条指令执行前操作数栈的深度
+     */
+    private static class Callee {
+        final InstructionBuffer body;
+        final int paramCount;
+        final int returnSlots;
+        final int locSlots;
+        final int[] depths;
+        // 函数体中有跳转或不在末尾的 ret，展开后会把调用者的基本块切开
+        final boolean branching;
+        // 展开本身增加的指令：每个参数的 loca 和 store64、返回值的 loca 和 load64、不在末尾的 ret 换成的 br
+        final int expansionCost;
+
+        Callee(InstructionBuffer body, int paramCount, int returnSlots, int locSlots, int[] depths) {
+            this.body = body;
+            this.paramCount = paramCount;
+            this.returnSlots = returnSlots;
+            this.locSlots = locSlots;
+            this.depths = depths;
+            int cost = 2 * paramCount + 2 * returnSlots;
+            boolean branching = false;
+            for (int i = 0; i < body.size(); i++) {
+                Operation operation = body.getOperation(i);
+                if (operation == Operation.ret && i + 1 < body.size()) {
+                    cost++;
+                    branching = true;
+                } else if (isJump(operation)) {
+                    branching = true;
+                }
+            }
+            this.branching = branching;
+            this.expansionCost = cost;
+        }
+    }
+
+    /**
+     * 检查函数能否内联，不能时返回 null
+     * 每条指令执行前的栈深度必须唯一确定（ret 时留在栈上的值才能弹出），
+     * 局部变量在函数开始时不能是活跃的（内联后格子中是上一次留下的值）
+     */
+    private Callee analyse(FunctionEntry function) {
+        InstructionBuffer body = function.getInstructions();
+        int size = body.size();
+        if (function.getStackOffset() == 0 || size == 0 || size > MAX_CALLEE_SIZE) {
+            return null;
+        }
+        int[] depths = stackDepths.compute(body);
+        if (depths == null) {
+            return null;
+        }
+        ControlFlowGraph graph = ControlFlowGraph.build(function);
+        BitSet liveIn = graph.getLiveness().getLiveIn(graph.getEntry());
+        int number = function.getStackOffset();
+        if (liveIn.nextSetBit(graph.getArgSlots()) >= 0 || returnSlots[number] > 0 && liveIn.get(0)) {
+            return null;
+        }
+        Callee callee = new Callee(body, paramCounts[number], returnSlots[number], function.getSizeOfListOfSymbolTable(), depths);
+        if (callee.branching) {
+            // ret 时弹出的值来自之前的基本块，同样不能表示
+            for (int i = 0; i < size; i++) {
+                if (body.getOperation(i) == Operation.ret && depths[i] > 0) {
+                    return null;
+                }
+            }
+        }
+        return callee;
+    }
+
+    private static boolean isJump(Operation operation) {
+        return operation == Operation.br || operation == Operation.br_true || operation == Operation.br_false;
+    }
+
+    /**
+     * 一处要内联的调用
+     */
+    private static class Site {
+        final int call;
+        final Callee callee;
+        // 第一条指令（有返回值时是 stackalloc）和每个参数的第一条指令
+        final int start;
+        final int[] argumentStarts;
+        // 从同一条指令开始的下一处调用（嵌套在这一处的第一个参数中）
+        Site next;
+        boolean done;
+
+        Site(int call, Callee callee, int start, int[] argumentStarts) {
+            this.call = call;
+            this.callee = callee;
+            this.start = start;
+            this.argumentStarts = argumentStarts;
+        }
+    }
+
+    /**
+     * 改写一个调用者：找出要内联的调用，再按顺序重新生成指令
+     */
+    private class CallerRewriter {
+        private final FunctionEntry function;
+        private final InstructionBuffer in;
+        private final int size;
+        private final boolean[] targets;
+        // sites[i]：从第 i 条指令开始的调用，按 call 的下标从大到小（外层在前）
+        private final Site[] sites;
+        // 原来第 i 条指令在新序列中的下标，和跳到第 i 条时在新序列中进入的下标（调用处从参数的 loca 进入）
+        private final int[] positions;
+        private final int[] entries;
+        private final InstructionBuffer out;
+        private int locSlots;
+
+        CallerRewriter(FunctionEntry function) {
+            this.function = function;
+            this.in = function.getInstructions();
+            this.size = in.size();
+            this.targets = new boolean[size + 1];
+            this.sites = new Site[size + 1];
+            this.positions = new int[size];
+            this.entries = new int[size + 1];
+            this.out = new InstructionBuffer(size);
+            this.locSlots = function.getSizeOfListOfSymbolTable();
+        }
+
+        /**
+         * @return 是否内联了调用
+         */
+        boolean rewrite() {
+            for (int i = 0; i < size; i++) {
+                if (isJump(in.getOperation(i))) {
+                    targets[i + 1 + in.getIntValue(i)] = true;
+                }
+            }
+            if (!findSites()) {
+                return false;
+            }
+            Arrays.fill(entries, -1);
+            emitRange(0, size);
+            entries[size] = out.size();
+            for (int i = 0; i < size; i++) {
+                if (isJump(in.getOperation(i))) {
+                    out.setValue(positions[i], entries[i + 1 + in.getIntValue(i)] - positions[i] - 1);
+                }
+            }
+            function.setInstructions(out, locSlots);
+            return true;
+        }
+
+        /**
+         * 按代价模型选出要内联的调用
+         */
+        private boolean findSites() {
+            int[] frequencies = estimateFrequencies();
+            // 调用者每条指令执行前的栈深度，不能确定时不内联有跳转的函数体
+            int[] depths = stackDepths.compute(in);
+            // 已选中的有跳转的调用处，外层调用的参数中包含它们时，展开外层会在栈上留下参数的地址
+            BitSet branchingCalls = new BitSet(size);
+            int estimatedSize = size;
+            boolean found = false;
+            for (int call = 0; call < size; call++) {
+                if (in.getOperation(call) != Operation.call) {
+                    continue;
+                }
+                int number = in.getIntValue(call);
+                Callee callee = getCallee(number);
+                if (callee == null || callee.body.size() - CALL_COST * frequencies[call] > INLINE_THRESHOLD
+                        || estimatedSize + callee.body.size() > MAX_CALLER_SIZE) {
+                    continue;
+                }
+                if (components[number] == components[function.getStackOffset()] && callee.expansionCost >= CALL_COST) {
+                    continue;
+                }
+                Site site = findArguments(call, callee);
+                if (site == null) {
+                    continue;
+                }
+                int firstBranching = branchingCalls.nextSetBit(site.start);
+                if (firstBranching >= 0 && firstBranching < call) {
+                    continue;
+                }
+                if (callee.branching) {
+                    if (depths == null || depths[site.start] != 0) {
+                        continue;
+                    }
+                    branchingCalls.set(call);
+                }
+                // 插入到从同一条指令开始的链中，保持 call 的下标从大到小
+                if (sites[site.start] == null || sites[site.start].call < call) {
+                    site.next = sites[site.start];
+                    sites[site.start] = site;
+                } else {
+                    Site previous = sites[site.start];
+                    while (previous.next != null && previous.next.call > call) {
+                        previous = previous.next;
+                    }
+                    site.next = previous.next;
+                    previous.next = site;
+                }
+                estimatedSize += callee.body.size() + callee.paramCount * 2;
+                found = true;
+            }
+            return found;
+        }
+
+        /**
+         * 估计每条指令的执行次数：被 k 层循环（向后的跳转和它的目标之间）包围时为 LOOP_FREQUENCY 的 k 次方
+         */
+        private int[] estimateFrequencies() {
+            int[] nesting = new int[size + 1];
+            for (int i = 0; i < size; i++) {
+                int offset = in.getIntValue(i);
+                if (isJump(in.getOperation(i)) && offset < 0) {
+                    nesting[i + 1 + offset]++;
+                    nesting[i + 1]--;
+                }
+            }
+            int[] frequencies = new int[size];
+            int depth = 0;
+            for (int i = 0; i < size; i++) {
+                depth += nesting[i];
+                int frequency = 1;
+                for (int k = 0; k < depth && frequency < MAX_FREQUENCY; k++) {
+                    frequency *= LOOP_FREQUENCY;
+                }
+                frequencies[i] = Math.min(frequency, MAX_FREQUENCY);
+            }
+            return frequencies;
+        }
+
+        /**
+         * 找出调用处每个参数的第一条指令，有返回值时前面还要有 stackalloc 1
+         */
+        private Site findArguments(int call, Callee callee) {
+            int[] argumentStarts = stackDepths.findArguments(in, call, targets);
+            if (argumentStarts == null) {
+                return null;
+            }
+            int i = (callee.paramCount > 0 ? argumentStarts[0] : call) - 1;
+            int start = i + 1;
+            if (callee.returnSlots > 0) {
+                if (i < 0 || targets[i + 1] || in.getOperation(i) != Operation.stackalloc || in.getIntValue(i) != 1) {
+                    return null;
+                }
+                start = i;
+            }
+            return new Site(call, callee, start, argumentStarts);
+        }
+
+        /**
+         * 按顺序输出 [from, to) 范围内的指令，遇到要内联的调用时展开
+         */
+        private void emitRange(int from, int to) {
+            int i = from;
+            while (i < to) {
+                if (entries[i] < 0) {
+                    entries[i] = out.size();
+                }
+                Site site = sites[i];
+                while (site != null && (site.done || site.call >= to)) {
+                    site = site.next;
+                }
+                if (site != null) {
+                    site.done = true;
+                    emitSite(site);
+                    i = site.call + 1;
+                    continue;
+                }
+                positions[i] = out.size();
+                out.addRange(in, i, i + 1);
+                i++;
+            }
+        }
+
+        private void emitSite(Site site) {
+            Callee callee = site.callee;
+            int returnSlot = locSlots;
+            int paramBase = returnSlot + callee.returnSlots;
+            int localBase = paramBase + callee.paramCount;
+            locSlots = localBase + callee.locSlots;
+            for (int k = 0; k < callee.paramCount; k++) {
+                out.add(Operation.loca, paramBase + k);
+                emitRange(site.argumentStarts[k], k + 1 < callee.paramCount ? site.argumentStarts[k + 1] : site.call);
+                out.add(Operation.store64);
+            }
+            InstructionBuffer body = callee.body;
+            int bodySize = body.size();
+            int[] bodyEntries = new int[bodySize + 1];
+            // 函数体中的跳转在新序列中的下标和原来的目标
+            int[] jumpPositions = new int[bodySize];
+            int[] jumpTargets = new int[bodySize];
+            int jumpCount = 0;
+            for (int j = 0; j < bodySize; j++) {
+                bodyEntries[j] = out.size();
+                Operation operation = body.getOperation(j);
+                switch (operation) {
+                    case arga:
+                        int slot = body.getIntValue(j);
+                        out.add(Operation.loca, slot < callee.returnSlots ? returnSlot : paramBase + slot - callee.returnSlots);
+                        break;
+                    case loca:
+                        out.add(Operation.loca, localBase + body.getIntValue(j));
+                        break;
+                    case ret:
+                        // 不可达的 ret 深度未知，当作 0
+                        for (int d = 0; d < callee.depths[j]; d++) {
+                            out.add(Operation.pop);
+                        }
+                        if (j + 1 < bodySize) {
+                            jumpPositions[jumpCount] = out.add(Operation.br);
+                            jumpTargets[jumpCount++] = bodySize;
+                        }
+                        break;
+                    case br:
+                    case br_true:
+                    case br_false:
+                        jumpPositions[jumpCount] = out.add(operation);
+                        jumpTargets[jumpCount++] = j + 1 + body.getIntValue(j);
+                        break;
+                    default:
+                        out.addRange(body, j, j + 1);
+                        break;
+                }
+            }
+            bodyEntries[bodySize] = out.size();
+            for (int k = 0; k < jumpCount; k++) {
+                out.setValue(jumpPositions[k], bodyEntries[jumpTargets[k]] - jumpPositions[k] - 1);
+            }
+            if (callee.returnSlots > 0) {
+                out.add(Operation.loca, returnSlot);
+                out.add(Operation.load64);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.BasicBlock;
+import miniplc0java.ir.CallGraph;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.ir.LoopNest;
+import miniplc0java.ir.SsaBlock;
+import miniplc0java.ir.SsaFunction;
+import miniplc0java.ir.SsaInstruction;
+import miniplc0java.ir.SsaKind;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 循环不变量外提：循环中参数都在循环外定义（或本身已外提）的无副作用运算，
+ * 和循环中没有被写过的全局变量的读取，移到循环的前置块末尾，每次循环只读取存放结果的格子
+ * 前置块是循环头唯一的循环外前驱；构造 SSA 时已经拆分了关键边，它只有循环头一个后继。
+ * 循环外前驱不唯一的循环不处理
+ * 整数除法可能除以 0，循环一次也不执行时外提会多出一个错误，所以不外提
+ * 循环中的调用可能写全局变量：按调用图的强连通分量自底向上，求出每个函数（包括它调用的函数）可能写的全局变量
+ * 内层循环先处理，外提到内层前置块的指令在处理外层循环时可以继续外提
+ */
+public class LoopInvariantCodeMotionPass extends SsaPass {
+    // 按函数编号存放的函数及其调用的函数可能写的全局变量，没有函数体的编号为 null
+    private BitSet[] globalWrites;
+
+    @Override
+    public String getName() {
+        return "licm";
+    }
+
+    @Override
+    protected void prepare(AnalyseResult program) {
+        super.prepare(program);
+        List<FunctionEntry> functions = program.getFunctionList();
+        CallGraph callGraph = CallGraph.build(functions);
+        int count = callGraph.getFunctionCount();
+        int[] components = callGraph.getComponents();
+        // 同一个分量中的函数互相调用，共用一个集合
+        BitSet[] componentWrites = new BitSet[count];
+        globalWrites = new BitSet[count];
+        ArrayList<FunctionEntry> order = new ArrayList<>(functions);
+        order.sort(Comparator.comparingInt(function -> components[function.getStackOffset()]));
+        for (FunctionEntry function: order) {
+            int number = function.getStackOffset();
+            int component = components[number];
+            if (componentWrites[component] == null) {
+                componentWrites[component] = new BitSet();
+            }
+            BitSet writes = componentWrites[component];
+            InstructionBuffer instructions = function.getInstructions();
+            for (int i = 0; i < instructions.size(); i++) {
+                // 不是紧接着 load64 的 globa 都当作写
+                if (instructions.getOperation(i) == Operation.globa
+                        && (i + 1 == instructions.size() || instructions.getOperation(i + 1) != Operation.load64)) {
+                    writes.set(instructions.getIntValue(i));
+                }
+            }
+            BitSet callees = callGraph.getCallees(number);
+            for (int callee = callees.nextSetBit(0); callee >= 0 && callee < count; callee = callees.nextSetBit(callee + 1)) {
+                // 被调用者的分量编号更小，已经处理过
+                if (components[callee] != component && componentWrites[components[callee]] != null) {
+                    writes.or(componentWrites[components[callee]]);
+                }
+            }
+            globalWrites[number] = writes;
+        }
+    }
+
+    @Override
+    protected boolean transform(FunctionEntry function, SsaFunction ssa) {
+        ControlFlowGraph graph = ssa.getGraph();
+        LoopNest loopNest = graph.getLoopNest();
+        BasicBlock[] order = graph.getReversePostOrder();
+        boolean changed = false;
+        for (LoopNest.Loop loop: loopNest.getLoops()) {
+            BasicBlock preheader = findPreheader(loop, loopNest);
+            if (preheader == null) {
+                continue;
+            }
+            boolean[] inLoop = new boolean[graph.getBlocks().size()];
+            for (BasicBlock block: loop.getBlocks()) {
+                inLoop[block.getIndex()] = true;
+            }
+            BitSet written = findWrittenGlobals(ssa, loop);
+            SsaBlock target = ssa.getBlock(preheader);
+            // 按逆后序处理，定义总在使用之前，一遍就能找到所有的不变量
+            for (BasicBlock block: order) {
+                if (!inLoop[block.getIndex()]) {
+                    continue;
+                }
+                SsaBlock ssaBlock = ssa.getBlock(block);
+                ArrayList<SsaInstruction> instructions = ssaBlock.getInstructions();
+                for (int i = 0; i < instructions.size(); ) {
+                    SsaInstruction instruction = instructions.get(i);
+                    if (!isInvariant(instruction, inLoop, written)) {
+                        i++;
+                        continue;
+                    }
+                    // 前置块中已经有相同的计算（例如循环中多处 n * 2）时直接使用它
+                    SsaInstruction same = findSame(target, instruction);
+                    if (same != null) {
+                        instruction.replaceWith(same);
+                        i++;
+                    } else {
+                        instructions.remove(i);
+                        target.add(instruction);
+                    }
+                    changed = true;
+                }
+                ssaBlock.removeReplaced();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 块中与 instruction 做相同计算、在块末尾仍然有效的指令，没有时返回 null
+     * 全局变量的读取之后又有写这个全局变量的指令或调用时不再有效
+     */
+    private static SsaInstruction findSame(SsaBlock block, SsaInstruction instruction) {
+        SsaInstruction found = null;
+        for (SsaInstruction candidate: block.getInstructions()) {
+            if (candidate.getKind() == SsaKind.CALL
+                    || candidate.getKind() == SsaKind.STORE_GLOBAL && candidate.getOperand() == instruction.getOperand()) {
+                if (instruction.getKind() == SsaKind.LOAD_GLOBAL) {
+                    found = null;
+                }
+                continue;
+            }
+            if (candidate.getKind() != instruction.getKind() || candidate.getOperation() != instruction.getOperation()
+                    || candidate.getOperand() != instruction.getOperand()
+                    || candidate.getArgumentCount() != instruction.getArgumentCount()) {
+                continue;
+            }
+            boolean same = true;
+            for (int i = 0; i < instruction.getArgumentCount() && same; i++) {
+                SsaInstruction a = candidate.getArgument(i);
+                SsaInstruction b = instruction.getArgument(i);
+                // 常量每次 push 都是新的对象，按值比较
+                same = a == b || a.getKind() == SsaKind.CONST && b.getKind() == SsaKind.CONST
+                        && a.getOperand() == b.getOperand() && a.isDouble() == b.isDouble()
+                        && a.isGlobalIndex() == b.isGlobalIndex();
+            }
+            if (same) {
+                found = candidate;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 循环头唯一的循环外前驱，且它只有循环头一个后继；没有时返回 null
+     */
+    private static BasicBlock findPreheader(LoopNest.Loop loop, LoopNest loopNest) {
+        BasicBlock preheader = null;
+        for (BasicBlock predecessor: loop.getHeader().getPredecessors()) {
+            if (loopNest.contains(loop, predecessor)) {
+                continue;
+            }
+            if (preheader != null) {
+                return null;
+            }
+            preheader = predecessor;
+        }
+        return preheader != null && preheader.getSuccessorCount() == 1 ? preheader : null;
+    }
+
+    /**
+     * 循环中直接写的和调用的函数可能写的全局变量；调用没有函数体的编号时为 null，表示可能写任何全局变量
+     */
+    private BitSet findWrittenGlobals(SsaFunction ssa, LoopNest.Loop loop) {
+        BitSet written = new BitSet();
+        for (BasicBlock block: loop.getBlocks()) {
+            for (SsaInstruction instruction: ssa.getBlock(block).getInstructions()) {
+                if (instruction.getKind() == SsaKind.STORE_GLOBAL) {
+                    written.set((int) instruction.getOperand());
+                } else if (instruction.getKind() == SsaKind.CALL) {
+                    long callee = instruction.getOperand();
+                    if (callee < 0 || callee >= globalWrites.length || globalWrites[(int) callee] == null) {
+                        return null;
+                    }
+                    written.or(globalWrites[(int) callee]);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 可以外提的指令：没有副作用、不会出错的运算，或循环中没有被写过的全局变量的读取，且参数都在循环外
+     */
+    private static boolean isInvariant(SsaInstruction instruction, boolean[] inLoop, BitSet written) {
+        switch (instruction.getKind()) {
+            case OPERATION:
+                if (!instruction.isRemovable()) {
+                    return false;
+                }
+                break;
+            case LOAD_GLOBAL:
+                if (written == null || written.get((int) instruction.getOperand())) {
+                    return false;
+                }
+                break;
+            default:
+                return false;
+        }
+        for (int i = 0; i < instruction.getArgumentCount(); i++) {
+            // 常量不属于任何块
+            SsaBlock block = instruction.getArgument(i).getBlock();
+            if (block != null && inLoop[block.getBlock().getIndex()]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 优化遍：在分析之后、生成 o0 之前改写整个程序
+ * 由 PassManager 按顺序执行，改写后的程序必须和原来等价
+ */
+public interface Pass {
+    /**
+     * 在 --passes 中使用的名字
+     */
+    String getName();
+
+    /**
+     * @param program 分析结果，函数体和全局变量表都可以修改
+     * @param pool    可以并行处理函数时使用的线程池，为 null 时在当前线程依次处理
+     */
+    void run(AnalyseResult program, ForkJoinPool pool);
+
+    /**
+     * 用 --stats 输出统计信息时，在这一遍的统计之后输出的详细报告，默认没有
+     */
+    default void printReport(PrintStream out) {
+    }
+}
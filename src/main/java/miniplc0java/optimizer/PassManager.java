@@ -0,0 +1,154 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * 按顺序执行一组优化遍，并记录每一遍的耗时和指令条数的变化
+ * 流水线由优化级别（-O）决定，或者由 --passes 给出的逗号分隔的名字列表决定
+ */
+public class PassManager {
+    // 按名字注册的优化遍，顺序即 --passes 帮助中列出的顺序
+    private static final LinkedHashMap<String, Supplier<Pass>> REGISTRY = new LinkedHashMap<>();
+    // 各优化级别的流水线，-O0 不做任何优化，输出与不经过 PassManager 时完全相同
+    private static final String[][] LEVELS = {
+            {},
+            {"dead-functions", "tail-calls", "simplify-cfg", "peephole", "slot-alloc"},
+            {"dead-functions", "tail-calls", "inline", "dead-functions", "simplify-cfg", "const-fold", "licm", "ssa-cleanup", "peephole", "slot-alloc"},
+    };
+    public static final int MAX_LEVEL = LEVELS.length - 1;
+
+    static {
+        register(DeadFunctionPass::new);
+        register(TailCallPass::new);
+        register(InlinePass::new);
+        register(SimplifyCfgPass::new);
+        register(SsaCleanupPass::new);
+        register(ConstantFoldPass::new);
+        register(LoopInvariantCodeMotionPass::new);
+        register(PeepholePass::new);
+        register(SlotAllocationPass::new);
+    }
+
+    private final ArrayList<Pass> passes = new ArrayList<>();
+    private final ArrayList<Statistic> statistics = new ArrayList<>();
+
+    private static void register(Supplier<Pass> supplier) {
+        REGISTRY.put(supplier.get().getName(), supplier);
+    }
+
+    public static Set<String> getPassNames() {
+        return REGISTRY.keySet();
+    }
+
+    public static PassManager forLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Unknown optimisation level: " + level);
+        }
+        return forNames(List.of(LEVELS[level]));
+    }
+
+    /**
+     * @param names 逗号分隔的优化遍名字，可以重复，空串表示不做优化
+     */
+    public static PassManager parse(String names) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String name: names.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                list.add(name);
+            }
+        }
+        return forNames(list);
+    }
+
+    private static PassManager forNames(List<String> names) {
+        PassManager passManager = new PassManager();
+        for (String name: names) {
+            Supplier<Pass> supplier = REGISTRY.get(name);
+            if (supplier == null) {
+                throw new IllegalArgumentException("Unknown pass: " + name + " (available: " + String.join(", ", REGISTRY.keySet()) + ")");
+            }
+            passManager.passes.add(supplier.get());
+        }
+        return passManager;
+    }
+
+    public boolean isEmpty() {
+        return passes.isEmpty();
+    }
+
+    /**
+     * @param parallelism 并行处理函数的线程数，为 1 时在当前线程依次处理
+     */
+    public void run(AnalyseResult program, int parallelism) {
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            for (Pass pass: passes) {
+                int before = countInstructions(program);
+                long startTime = System.nanoTime();
+                pass.run(program, pool);
+                long nanos = System.nanoTime() - startTime;
+                statistics.add(new Statistic(pass, nanos, before, countInstructions(program)));
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static int countInstructions(AnalyseResult program) {
+        int count = 0;
+        for (FunctionEntry function: program.getFunctionList()) {
+            count += function.getInstructions().size();
+        }
+        return count;
+    }
+
+    /**
+     * 每一遍一行：名字、耗时、执行前后的指令条数和变化，之后是这一遍的报告；最后一行是合计
+     */
+    public void printStatistics(PrintStream out) {
+        if (statistics.isEmpty()) {
+            return;
+        }
+        long totalNanos = 0;
+        for (Statistic statistic: statistics) {
+            printStatistic(out, statistic.pass.getName(), statistic.nanos, statistic.before, statistic.after);
+            statistic.pass.printReport(out);
+            totalNanos += statistic.nanos;
+        }
+        printStatistic(out, "total", totalNanos, statistics.get(0).before, statistics.get(statistics.size() - 1).after);
+    }
+
+    private static void printStatistic(PrintStream out, String name, long nanos, int before, int after) {
+        out.printf("%-16s %10.2f ms %10d -> %10d (%+d)%n", name, nanos / 1e6, before, after, after - before);
+    }
+
+    /**
+     * 一遍优化的执行结果
+     */
+    private static class Statistic {
+        final Pass pass;
+        final long nanos;
+        // 执行前后所有函数的指令条数
+        final int before;
+        final int after;
+
+        Statistic(Pass pass, long nanos, int before, int after) {
+            this.pass = pass;
+            this.nanos = nanos;
+            this.before = before;
+            this.after = after;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static miniplc0java.instruction.Operation.*;
+
+/**
+ * 窥孔优化：在指令序列上用一个小窗口匹配 RULES 中的模式，把匹配到的指令换成更短的等价序列
+ * 删除指令时先只做标记，跳转的目标记为绝对下标，一轮扫描结束后再压缩指令并重新计算相对偏移；
+ * 反复扫描直到没有规则可以应用
+ * 窗口中除第一条以外的指令都不能是跳转目标，这样从窗口中间进入的路径不会看到改写了一半的指令
+ */
+public class PeepholePass extends FunctionPass {
+    // 窗口最多的指令条数
+    private static final int WINDOW = 5;
+    // 跳转链最多追踪的步数，超过时认为是空的死循环，不再穿透
+    private static final int MAX_CHAIN = 64;
+
+    /**
+     * 一条规则：pattern 的每个位置是可以出现的几种操作（null 表示任意操作），
+     * 匹配到之后 guard 成立才执行 rewrite
+     */
+    private static class Rule {
+        final Operation[][] pattern;
+        final Predicate<Peephole> guard;
+        final Consumer<Peephole> rewrite;
+
+        Rule(Operation[][] pattern, Predicate<Peephole> guard, Consumer<Peephole> rewrite) {
+            this.pattern = pattern;
+            this.guard = guard;
+            this.rewrite = rewrite;
+        }
+    }
+
+    private static Operation[] of(Operation... operations) {
+        return operations;
+    }
+
+    private static Operation[][] pattern(Operation[]... operations) {
+        return operations;
+    }
+
+    private static final Operation[] ANY = null;
+
+    private static final Rule[] RULES = {
+            // x + 0、x - 0
+            new Rule(pattern(of(push), of(add_i, sub_i)), p -> p.isInt(0, 0), p -> p.delete(0, 2)),
+            // x * 1、x / 1
+            new Rule(pattern(of(push), of(mul_i, div_i)), p -> p.isInt(0, 1), p -> p.delete(0, 2)),
+            // -(-x)
+            new Rule(pattern(of(neg_i), of(neg_i)), p -> true, p -> p.delete(0, 2)),
+            new Rule(pattern(of(neg_f), of(neg_f)), p -> true, p -> p.delete(0, 2)),
+            // 条件 x == 0、x != 0：整数比较的结果非 0 当且仅当 x 非 0，直接用 x 判断
+            new Rule(pattern(of(push), of(cmp_i, cmp_u), of(br_true, br_false)), p -> p.isInt(0, 0), p -> p.delete(0, 2)),
+            // 条件 x < 0、x > 0（及 >=、<=）：有符号比较时 cmp_i 的结果与 x 同号，set_lt/set_gt 直接判断 x；
+            // 与任意值比较时 br 只能区分 0 和非 0，不能区分 cmp 的 -1 和 1，set_lt/set_gt 不能省略
+            new Rule(pattern(of(push), of(cmp_i), of(set_lt, set_gt)), p -> p.isInt(0, 0), p -> p.delete(0, 2)),
+            // 把常量存入变量后紧接着读出这个变量：直接再压一次常量
+            new Rule(pattern(of(loca, arga, globa), of(push), of(store64), of(loca, arga, globa), of(load64)),
+                    p -> p.operation(3) == p.operation(0) && p.value(3) == p.value(0),
+                    p -> {
+                        p.delete(3, 1);
+                        p.replaceWithPush(4, 1);
+                    }),
+            // br/ret 之后、下一个跳转目标之前的指令不可达
+            new Rule(pattern(of(br, ret), ANY), p -> true, p -> p.delete(1, 1)),
+            // 跳到下一条的跳转
+            new Rule(pattern(of(br)), p -> p.target(0) == p.following(0), p -> p.delete(0, 1)),
+            new Rule(pattern(of(br_true, br_false)), p -> p.target(0) == p.following(0), p -> p.replace(0, pop, 0, false)),
+            // 条件跳转越过一条 br：反转条件，直接跳到 br 的目标
+            new Rule(pattern(of(br_true, br_false), of(br)), p -> p.target(0) == p.following(1),
+                    p -> {
+                        p.setTarget(0, p.target(1));
+                        p.setOperation(0, p.operation(0) == br_true ? br_false : br_true);
+                        p.delete(1, 1);
+                    }),
+            // 跳到 br 的跳转直接跳到最终的目标
+            new Rule(pattern(of(br, br_true, br_false)), p -> p.finalTarget(0) != p.target(0),
+                    p -> p.setTarget(0, p.finalTarget(0))),
+            // 跳到 ret 的 br 直接 ret
+            new Rule(pattern(of(br)), p -> p.targetOperation(0) == ret, p -> p.replace(0, ret, 0, false)),
+    };
+
+    @Override
+    public String getName() {
+        return "peephole";
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        Peephole peephole = new Peephole(function.getInstructions());
+        if (peephole.run()) {
+            function.setInstructions(peephole.toInstructions(), function.getSizeOfListOfSymbolTable());
+        }
+    }
+
+    private static boolean isJump(Operation operation) {
+        return operation == br || operation == br_true || operation == br_false;
+    }
+
+    /**
+     * 一个函数的指令和当前匹配的窗口，规则通过窗口中的位置读写指令
+     */
+    private static class Peephole {
+        private final int size;
+        private final Operation[] operations;
+        private final long[] values;
+        private final boolean[] doubles;
+        // 压入字符串字面量的全局变量编号的 push
+        private final boolean[] globalIndices;
+        // 跳转指令的目标（绝对下标，size 表示函数末尾），可能指向已删除的指令，读取时用 live 解析
+        private final int[] targets;
+        private final boolean[] deleted;
+        // 已删除的指令之后的某条指令（路径压缩），未删除时为自身
+        private final int[] forward;
+        // 以每条指令为目标的跳转数；目标被删除时计数转移到之后第一条未删除的指令
+        private final int[] targetCounts;
+        // 当前窗口中每个位置的下标
+        private final int[] window = new int[WINDOW];
+
+        Peephole(InstructionBuffer instructions) {
+            size = instructions.size();
+            operations = new Operation[size];
+            values = new long[size];
+            doubles = new boolean[size];
+            globalIndices = new boolean[size];
+            targets = new int[size];
+            deleted = new boolean[size + 1];
+            forward = new int[size + 1];
+            targetCounts = new int[size + 1];
+            for (int i = 0; i < size; i++) {
+                operations[i] = instructions.getOperation(i);
+                values[i] = instructions.getLongValue(i);
+                doubles[i] = instructions.isDouble(i);
+                globalIndices[i] = instructions.isGlobalIndex(i);
+                forward[i] = i;
+                if (isJump(operations[i])) {
+                    targets[i] = i + 1 + instructions.getIntValue(i);
+                    targetCounts[targets[i]]++;
+                }
+            }
+            forward[size] = size;
+        }
+
+        /**
+         * @return 是否修改了指令
+         */
+        boolean run() {
+            boolean changed = false;
+            boolean changedInRound = true;
+            while (changedInRound) {
+                changedInRound = false;
+                for (int i = 0; i < size; i = live(i + 1)) {
+                    if (deleted[i]) {
+                        continue;
+                    }
+                    // 在同一个位置反复应用规则，直到没有规则匹配或这条指令被删除
+                    while (!deleted[i] && applyRule(i)) {
+                        changedInRound = true;
+                    }
+                }
+                changed |= changedInRound;
+            }
+            return changed;
+        }
+
+        private boolean applyRule(int start) {
+            for (Rule rule: RULES) {
+                if (match(rule.pattern, start) && rule.guard.test(this)) {
+                    rule.rewrite.accept(this);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean match(Operation[][] pattern, int start) {
+            int index = start;
+            for (int k = 0; k < pattern.length; k++) {
+                if (index >= size || k > 0 && targetCounts[index] > 0) {
+                    return false;
+                }
+                if (pattern[k] != ANY && !contains(pattern[k], operations[index])) {
+                    return false;
+                }
+                window[k] = index;
+                index = live(index + 1);
+            }
+            return true;
+        }
+
+        private static boolean contains(Operation[] operations, Operation operation) {
+            for (Operation candidate: operations) {
+                if (candidate == operation) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 从 index 开始第一条未删除的指令，没有时为 size
+         */
+        private int live(int index) {
+            int root = index;
+            while (deleted[root]) {
+                root = forward[root];
+            }
+            while (forward[index] != root && deleted[index]) {
+                int next = forward[index];
+                forward[index] = root;
+                index = next;
+            }
+            return root;
+        }
+
+        Operation operation(int k) {
+            return operations[window[k]];
+        }
+
+        long value(int k) {
+            return values[window[k]];
+        }
+
+        boolean isDouble(int k) {
+            return doubles[window[k]];
+        }
+
+        /**
+         * 第 k 条是否是整数常量 value
+         */
+        boolean isInt(int k, long value) {
+            return !doubles[window[k]] && values[window[k]] == value;
+        }
+
+        /**
+         * 第 k 条之后的第一条指令
+         */
+        int following(int k) {
+            return live(window[k] + 1);
+        }
+
+        int target(int k) {
+            return live(targets[window[k]]);
+        }
+
+        Operation targetOperation(int k) {
+            int target = target(k);
+            return target < size ? operations[target] : null;
+        }
+
+        /**
+         * 第 k 条跳转沿着 br 一直跳到的最终目标
+         */
+        int finalTarget(int k) {
+            int target = target(k);
+            for (int steps = 0; target < size && operations[target] == br; steps++) {
+                if (steps == MAX_CHAIN) {
+                    return target(k);
+                }
+                target = live(targets[target]);
+            }
+            return target;
+        }
+
+        void setTarget(int k, int target) {
+            int index = window[k];
+            targetCounts[live(targets[index])]--;
+            targets[index] = target;
+            targetCounts[target]++;
+        }
+
+        void setOperation(int k, Operation operation) {
+            operations[window[k]] = operation;
+        }
+
+        /**
+         * 把第 k 条换成不是跳转的指令
+         */
+        void replace(int k, Operation operation, long value, boolean isDouble) {
+            int index = window[k];
+            if (isJump(operations[index])) {
+                targetCounts[live(targets[index])]--;
+            }
+            operations[index] = operation;
+            values[index] = value;
+            doubles[index] = isDouble;
+            globalIndices[index] = false;
+        }
+
+        /**
+         * 把第 k 条换成和第 from 条一样的 push
+         */
+        void replaceWithPush(int k, int from) {
+            replace(k, push, value(from), isDouble(from));
+            globalIndices[window[k]] = globalIndices[window[from]];
+        }
+
+        /**
+         * 删除从第 k 条开始的 count 条
+         */
+        void delete(int k, int count) {
+            for (int j = k; j < k + count; j++) {
+                int index = window[j];
+                if (isJump(operations[index])) {
+                    targetCounts[live(targets[index])]--;
+                }
+                deleted[index] = true;
+                forward[index] = index + 1;
+                int next = live(index + 1);
+                targetCounts[next] += targetCounts[index];
+                targetCounts[index] = 0;
+            }
+        }
+
+        /**
+         * 压缩掉删除的指令，重新计算跳转的相对偏移
+         */
+        InstructionBuffer toInstructions() {
+            // newIndex[i]：第 i 条（已删除时为之后第一条未删除的）在新序列中的下标
+            int[] newIndex = new int[size + 1];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                newIndex[i] = count;
+                if (!deleted[i]) {
+                    count++;
+                }
+            }
+            newIndex[size] = count;
+            InstructionBuffer instructions = new InstructionBuffer(count);
+            for (int i = 0; i < size; i++) {
+                if (deleted[i]) {
+                    continue;
+                }
+                if (isJump(operations[i])) {
+                    instructions.add(operations[i], newIndex[live(targets[i])] - newIndex[i] - 1);
+                } else if (doubles[i]) {
+                    instructions.add(operations[i], Double.longBitsToDouble(values[i]));
+                } else if (globalIndices[i]) {
+                    instructions.addGlobalIndex((int) values[i]);
+                } else {
+                    instructions.add(operations[i], values[i]);
+                }
+            }
+            return instructions;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.ir.ControlFlowGraph;
+
+/**
+ * 删除不可达的块，以及只是跳到另一个块的空块（跳到它的跳转直接改到最终的目标）
+ */
+public class SimplifyCfgPass extends FunctionPass {
+    @Override
+    public String getName() {
+        return "simplify-cfg";
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        ControlFlowGraph graph = ControlFlowGraph.build(function);
+        int count = graph.getBlocks().size();
+        graph.removeUnreachableBlocks();
+        graph.removeEmptyBlocks();
+        if (graph.getBlocks().size() != count) {
+            function.setInstructions(graph.toInstructions(), graph.getLocSlots());
+        }
+    }
+}
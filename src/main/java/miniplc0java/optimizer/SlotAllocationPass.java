@@ -0,0 +1,186 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.BasicBlock;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.ir.Liveness;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 局部变量的格子分配：活跃范围不重叠的局部变量共用一个格子，减小 loc_slots
+ * 分析器给每个 let 一个新的格子，内联也会为每处调用新增格子，兄弟作用域中的变量却从不同时活跃
+ * 在每个块中从块末尾的活跃集合倒着扫描，写一个变量时它与此刻活跃的其它变量冲突；
+ * 再按变量编号贪心着色，每个变量取相邻的变量没有用过的最小格子
+ * 局部变量的访问必须都是 loca n; load64 和 loca n; <表达式>; store64 两种形式，否则不改写
+ */
+public class SlotAllocationPass extends FunctionPass {
+    // 按函数编号存放的改写前后的格子数，没有改写的函数为 0
+    private FunctionEntry[] functions;
+    private int[] slotsBefore;
+    private int[] slotsAfter;
+
+    @Override
+    public String getName() {
+        return "slot-alloc";
+    }
+
+    @Override
+    protected void prepare(AnalyseResult program) {
+        int count = 0;
+        for (FunctionEntry function: program.getFunctionList()) {
+            count = Math.max(count, function.getStackOffset() + 1);
+        }
+        functions = new FunctionEntry[count];
+        slotsBefore = new int[count];
+        slotsAfter = new int[count];
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        int locSlots = function.getSizeOfListOfSymbolTable();
+        if (locSlots < 2) {
+            return;
+        }
+        ControlFlowGraph graph = ControlFlowGraph.build(function);
+        Liveness liveness = graph.getLiveness();
+        int argSlots = graph.getArgSlots();
+        BitSet[] interference = new BitSet[locSlots];
+        for (int v = 0; v < locSlots; v++) {
+            interference[v] = new BitSet();
+        }
+        BitSet referenced = new BitSet(locSlots);
+        for (BasicBlock block: graph.getBlocks()) {
+            InstructionBuffer instructions = block.getInstructions();
+            int[] stores = matchStores(instructions, locSlots);
+            if (stores == null) {
+                return;
+            }
+            BitSet live = liveness.getLiveOut(block).get(argSlots, argSlots + locSlots);
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                Operation operation = instructions.getOperation(i);
+                if (operation == Operation.store64 && stores[i] >= 0) {
+                    int variable = stores[i];
+                    for (int u = live.nextSetBit(0); u >= 0; u = live.nextSetBit(u + 1)) {
+                        if (u != variable) {
+                            interference[variable].set(u);
+                            interference[u].set(variable);
+                        }
+                    }
+                    live.clear(variable);
+                } else if (operation == Operation.loca) {
+                    int variable = instructions.getIntValue(i);
+                    referenced.set(variable);
+                    if (i + 1 < instructions.size() && instructions.getOperation(i + 1) == Operation.load64) {
+                        live.set(variable);
+                    }
+                }
+            }
+        }
+        int[] colours = new int[locSlots];
+        int colourCount = 0;
+        BitSet used = new BitSet();
+        for (int v = referenced.nextSetBit(0); v >= 0; v = referenced.nextSetBit(v + 1)) {
+            used.clear();
+            BitSet neighbours = interference[v];
+            for (int u = neighbours.nextSetBit(0); u >= 0 && u < v; u = neighbours.nextSetBit(u + 1)) {
+                used.set(colours[u]);
+            }
+            colours[v] = used.nextClearBit(0);
+            colourCount = Math.max(colourCount, colours[v] + 1);
+        }
+        if (colourCount >= locSlots) {
+            return;
+        }
+        InstructionBuffer in = function.getInstructions();
+        InstructionBuffer out = new InstructionBuffer(in.size());
+        out.addRange(in, 0, in.size());
+        for (int i = 0; i < out.size(); i++) {
+            if (out.getOperation(i) == Operation.loca) {
+                out.setValue(i, colours[out.getIntValue(i)]);
+            }
+        }
+        function.setInstructions(out, colourCount);
+        int number = function.getStackOffset();
+        functions[number] = function;
+        slotsBefore[number] = locSlots;
+        slotsAfter[number] = colourCount;
+    }
+
+    /**
+     * 把块中的每条 store64 和它写的局部变量配对
+     *
+     * @return 第 i 条是 store64 时为它写的局部变量，写参数或全局变量时为 -1；
+     * 有无法识别的地址用法或超出 locSlots 的格子时返回 null
+     */
+    private static int[] matchStores(InstructionBuffer instructions, int locSlots) {
+        int size = instructions.size();
+        int[] stores = new int[size];
+        Arrays.fill(stores, -1);
+        // 还没有被 store64 使用的地址对应的局部变量，-1 表示参数或全局变量
+        int[] addresses = new int[8];
+        int top = 0;
+        for (int i = 0; i < size; i++) {
+            Operation operation = instructions.getOperation(i);
+            switch (operation) {
+                case loca:
+                case arga:
+                case globa:
+                    if (operation == Operation.loca && (instructions.getIntValue(i) < 0 || instructions.getIntValue(i) >= locSlots)) {
+                        return null;
+                    }
+                    if (i + 1 < size && instructions.getOperation(i + 1) == Operation.load64) {
+                        i++;
+                        break;
+                    }
+                    if (top == addresses.length) {
+                        addresses = Arrays.copyOf(addresses, top * 2);
+                    }
+                    addresses[top++] = operation == Operation.loca ? instructions.getIntValue(i) : -1;
+                    break;
+                case store64:
+                    if (top == 0) {
+                        return null;
+                    }
+                    stores[i] = addresses[--top];
+                    break;
+                case load64:
+                    return null;
+                default:
+                    break;
+            }
+        }
+        // 局部变量的地址留到了块外
+        for (int i = 0; i < top; i++) {
+            if (addresses[i] >= 0) {
+                return null;
+            }
+        }
+        return stores;
+    }
+
+    /**
+     * 每个减少了格子的函数一行，最后是合计
+     */
+    @Override
+    public void printReport(PrintStream out) {
+        int before = 0;
+        int after = 0;
+        for (FunctionEntry function: functions) {
+            if (function == null) {
+                continue;
+            }
+            int number = function.getStackOffset();
+            out.printf("  %-14s loc_slots %6d -> %6d (saved %d)%n", function.getName(), slotsBefore[number],
+                    slotsAfter[number], slotsBefore[number] - slotsAfter[number]);
+            before += slotsBefore[number];
+            after += slotsAfter[number];
+        }
+        out.printf("  %-14s loc_slots %6d -> %6d (saved %d)%n", "total", before, after, before - after);
+    }
+}
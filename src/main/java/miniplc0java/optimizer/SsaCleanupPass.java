@@ -0,0 +1,22 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.ir.SsaFunction;
+
+/**
+ * 经过 SSA 形式重新生成函数体：删除结果没有被使用的计算，
+ * 局部变量的读写变成值之间的引用，能留在操作数栈上的值不再存入变量再读出
+ */
+public class SsaCleanupPass extends SsaPass {
+    @Override
+    public String getName() {
+        return "ssa-cleanup";
+    }
+
+    @Override
+    protected boolean transform(FunctionEntry function, SsaFunction ssa) {
+        // 即使没有删除指令，重新生成本身也会去掉多余的 loca/load/store
+        ssa.removeDeadInstructions();
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.ir.SsaBuilder;
+import miniplc0java.ir.SsaFunction;
+
+/**
+ * 在 SSA 形式上进行的优化遍
+ * 每个函数先转换成 SSA，transform 修改过之后再转换回栈式指令；无法转换成 SSA 的函数保持不变
+ */
+public abstract class SsaPass extends FunctionPass {
+    private SsaBuilder builder;
+
+    @Override
+    protected void prepare(AnalyseResult program) {
+        builder = new SsaBuilder(program.getFunctionList());
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        ControlFlowGraph graph = ControlFlowGraph.build(function);
+        SsaFunction ssa = build(graph);
+        if (ssa == null || !transform(function, ssa)) {
+            return;
+        }
+        function.setInstructions(ssa.lower(), graph.getLocSlots());
+    }
+
+    /**
+     * 把函数的控制流图转换成 SSA，无法转换时为 null
+     */
+    protected SsaFunction build(ControlFlowGraph graph) {
+        return builder.build(graph);
+    }
+
+    /**
+     * @return 是否修改了函数，没有修改时不转换回栈式指令
+     */
+    protected abstract boolean transform(FunctionEntry function, SsaFunction ssa);
+}
@@ -0,0 +1,193 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+
+import java.util.Arrays;
+
+/**
+ * 栈式指令对操作数栈的影响：每条指令弹出和压入的值的个数，以及每条指令执行前栈的深度
+ * 调用弹出的参数个数取决于被调用的函数，所以要先收集整个程序的函数
+ */
+class StackDepths {
+    // 按函数编号存放的参数个数
+    private final int[] paramCounts;
+
+    StackDepths(AnalyseResult program) {
+        int count = 0;
+        for (FunctionEntry function: program.getFunctionList()) {
+            count = Math.max(count, function.getStackOffset() + 1);
+        }
+        paramCounts = new int[count];
+        for (FunctionEntry function: program.getFunctionList()) {
+            paramCounts[function.getStackOffset()] = function.getFunction_param_list().size();
+        }
+    }
+
+    /**
+     * 计算每条指令执行前操作数栈的深度，不可达的指令为 -1
+     * 某条指令的深度不唯一、栈下溢或执行到末尾时栈上有多余的值时返回 null
+     */
+    int[] compute(InstructionBuffer body) {
+        int size = body.size();
+        int[] depths = new int[size];
+        Arrays.fill(depths, -1);
+        if (size == 0) {
+            return depths;
+        }
+        depths[0] = 0;
+        int[] worklist = new int[size];
+        int worklistSize = 0;
+        worklist[worklistSize++] = 0;
+        while (worklistSize > 0) {
+            int i = worklist[--worklistSize];
+            Operation operation = body.getOperation(i);
+            if (operation == Operation.ret) {
+                continue;
+            }
+            int depth = depths[i] - pops(body, i);
+            if (depth < 0) {
+                return null;
+            }
+            depth += pushes(body, i);
+            int[] successors;
+            if (operation == Operation.br) {
+                successors = new int[]{i + 1 + body.getIntValue(i)};
+            } else if (operation == Operation.br_true || operation == Operation.br_false) {
+                successors = new int[]{i + 1 + body.getIntValue(i), i + 1};
+            } else {
+                successors = new int[]{i + 1};
+            }
+            for (int successor: successors) {
+                if (successor == size) {
+                    // 执行到末尾时直接进入调用处之后的指令，栈上不能有多余的值
+                    if (depth != 0) {
+                        return null;
+                    }
+                } else if (depths[successor] < 0) {
+                    depths[successor] = depth;
+                    worklist[worklistSize++] = successor;
+                } else if (depths[successor] != depth) {
+                    return null;
+                }
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * 从 call 向前找出每个参数的第一条指令：往回数时每条指令满足一部分还需要的值，又需要它弹出的值，
+     * 还需要的值减到 0 时就是一个参数的开始
+     * 参数之间不能有跳转和跳转目标（C0 的表达式中没有跳转），找不到时返回 null
+     *
+     * @param targets 每条指令是否是跳转目标
+     */
+    int[] findArguments(InstructionBuffer instructions, int call, boolean[] targets) {
+        int[] argumentStarts = new int[pops(instructions, call)];
+        int i = call - 1;
+        for (int k = argumentStarts.length - 1; k >= 0; k--) {
+            int needed = 1;
+            while (needed > 0) {
+                if (i < 0 || targets[i + 1]) {
+                    return null;
+                }
+                Operation operation = instructions.getOperation(i);
+                if (operation == Operation.br || operation == Operation.br_true || operation == Operation.br_false
+                        || operation == Operation.ret) {
+                    return null;
+                }
+                needed -= pushes(instructions, i);
+                if (needed < 0) {
+                    return null;
+                }
+                needed += pops(instructions, i);
+                i--;
+            }
+            argumentStarts[k] = i + 1;
+        }
+        return argumentStarts;
+    }
+
+    /**
+     * 第 i 条指令从栈上弹出的值的个数
+     */
+    int pops(InstructionBuffer instructions, int i) {
+        switch (instructions.getOperation(i)) {
+            case pop:
+            case load64:
+            case neg_i:
+            case neg_f:
+            case set_lt:
+            case set_gt:
+            case itof:
+            case ftoi:
+            case br_true:
+            case br_false:
+            case print_i:
+            case print_c:
+            case print_f:
+            case print_s:
+                return 1;
+            case store64:
+            case add_i:
+            case add_f:
+            case sub_i:
+            case sub_f:
+            case mul_i:
+            case mul_f:
+            case div_i:
+            case div_f:
+            case div_u:
+            case cmp_i:
+            case cmp_u:
+            case cmp_f:
+                return 2;
+            case call:
+                int callee = instructions.getIntValue(i);
+                return callee >= 0 && callee < paramCounts.length ? paramCounts[callee] : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 第 i 条指令压入栈的值的个数，调用的返回值由之前的 stackalloc 压入
+     */
+    static int pushes(InstructionBuffer instructions, int i) {
+        switch (instructions.getOperation(i)) {
+            case push:
+            case loca:
+            case arga:
+            case globa:
+            case load64:
+            case add_i:
+            case add_f:
+            case sub_i:
+            case sub_f:
+            case mul_i:
+            case mul_f:
+            case div_i:
+            case div_f:
+            case div_u:
+            case cmp_i:
+            case cmp_u:
+            case cmp_f:
+            case neg_i:
+            case neg_f:
+            case set_lt:
+            case set_gt:
+            case itof:
+            case ftoi:
+            case scan_i:
+            case scan_c:
+            case scan_f:
+                return 1;
+            case stackalloc:
+                return instructions.getIntValue(i);
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package miniplc0java.optimizer;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.ir.ControlFlowGraph;
+import miniplc0java.tokenizer.IdentType;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 尾递归改写成循环：函数在尾位置调用自身时，把参数直接写回自己的参数格子，再跳回函数开头，
+ * 递归的深度不再占用虚拟机的栈
+ * 尾位置的调用：有返回值时是 arga 0; stackalloc 1; <参数>; call f; store64 之后直接 ret，
+ * 没有返回值时是 <参数>; call f 之后直接 ret 或执行到函数末尾（都可以经过几条 br）
+ * 其它参数可能还要读取一个参数原来的值，这样的参数先存入新增的局部变量，算完所有参数后再写回；
+ * 原样传递的参数（arga k; load64 传给第 k 个参数）不用写
+ * 调用处栈上不能有别的值（否则每次循环都会多留下一些），
+ * 局部变量在函数开始时不能是活跃的（跳回开头时格子中是上一次循环留下的值，而不是新栈帧的 0）
+ */
+public class TailCallPass extends FunctionPass {
+    // 调用之后追踪 br 的最多步数，超过时认为是空的死循环
+    private static final int MAX_CHAIN = 64;
+
+    private StackDepths stackDepths;
+
+    @Override
+    public String getName() {
+        return "tail-calls";
+    }
+
+    @Override
+    protected void prepare(AnalyseResult program) {
+        stackDepths = new StackDepths(program);
+    }
+
+    @Override
+    protected void runOnFunction(FunctionEntry function) {
+        // _start 没有调用者，不会调用自己
+        if (function.getStackOffset() == 0 || function.getInstructions().size() == 0) {
+            return;
+        }
+        Rewriter rewriter = new Rewriter(function);
+        if (rewriter.findSites()) {
+            rewriter.rewrite();
+        }
+    }
+
+    private static boolean isJump(Operation operation) {
+        return operation == Operation.br || operation == Operation.br_true || operation == Operation.br_false;
+    }
+
+    /**
+     * 改写一个函数：找出尾位置的自身调用，再按顺序重新生成指令
+     */
+    private class Rewriter {
+        private final FunctionEntry function;
+        private final InstructionBuffer in;
+        private final int size;
+        private final int returnSlots;
+        private final boolean[] targets;
+        // argumentStarts[i]：从第 i 条指令开始的尾调用每个参数的第一条指令，calls[i] 是它的 call，ends[i] 是它之后的第一条
+        private final int[][] argumentStarts;
+        private final int[] calls;
+        private final int[] ends;
+        // 原来第 i 条指令在新序列中的下标，和跳到第 i 条时在新序列中进入的下标
+        private final int[] positions;
+        private final int[] entries;
+        private final InstructionBuffer out;
+        private int locSlots;
+
+        Rewriter(FunctionEntry function) {
+            this.function = function;
+            this.in = function.getInstructions();
+            this.size = in.size();
+            this.returnSlots = function.getReturnValueType() == IdentType.VOID ? 0 : 1;
+            this.targets = new boolean[size + 1];
+            this.argumentStarts = new int[size][];
+            this.calls = new int[size];
+            this.ends = new int[size];
+            this.positions = new int[size];
+            this.entries = new int[size + 1];
+            this.out = new InstructionBuffer(size);
+            this.locSlots = function.getSizeOfListOfSymbolTable();
+        }
+
+        /**
+         * @return 是否找到了可以改写的尾调用
+         */
+        boolean findSites() {
+            for (int i = 0; i < size; i++) {
+                if (isJump(in.getOperation(i))) {
+                    targets[i + 1 + in.getIntValue(i)] = true;
+                }
+            }
+            int[] depths = null;
+            boolean found = false;
+            for (int call = 0; call < size; call++) {
+                if (in.getOperation(call) != Operation.call || in.getIntValue(call) != function.getStackOffset()) {
+                    continue;
+                }
+                int end = call + 1;
+                if (returnSlots > 0) {
+                    if (end >= size || targets[end] || in.getOperation(end) != Operation.store64) {
+                        continue;
+                    }
+                    end++;
+                }
+                if (!returnsAt(end)) {
+                    continue;
+                }
+                int[] starts = stackDepths.findArguments(in, call, targets);
+                if (starts == null) {
+                    continue;
+                }
+                int start = starts.length > 0 ? starts[0] : call;
+                if (returnSlots > 0) {
+                    // 前面是 arga 0; stackalloc 1
+                    if (start < 2 || targets[start] || targets[start - 1]
+                            || in.getOperation(start - 1) != Operation.stackalloc || in.getIntValue(start - 1) != 1
+                            || in.getOperation(start - 2) != Operation.arga || in.getIntValue(start - 2) != 0) {
+                        continue;
+                    }
+                    start -= 2;
+                }
+                if (depths == null) {
+                    depths = stackDepths.compute(in);
+                    if (depths == null) {
+                        return false;
+                    }
+                }
+                if (depths[start] != 0) {
+                    continue;
+                }
+                argumentStarts[start] = starts;
+                calls[start] = call;
+                ends[start] = end;
+                found = true;
+            }
+            if (!found) {
+                return false;
+            }
+            ControlFlowGraph graph = ControlFlowGraph.build(function);
+            BitSet liveIn = graph.getLiveness().getLiveIn(graph.getEntry());
+            return liveIn.nextSetBit(graph.getArgSlots()) < 0;
+        }
+
+        /**
+         * 从第 i 条指令开始是否直接返回
+         */
+        private boolean returnsAt(int i) {
+            for (int steps = 0; steps < MAX_CHAIN; steps++) {
+                if (i == size || in.getOperation(i) == Operation.ret) {
+                    return true;
+                }
+                if (in.getOperation(i) != Operation.br) {
+                    return false;
+                }
+                i = i + 1 + in.getIntValue(i);
+            }
+            return false;
+        }
+
+        void rewrite() {
+            int i = 0;
+            while (i < size) {
+                entries[i] = out.size();
+                if (argumentStarts[i] != null) {
+                    emitSite(i);
+                    i = ends[i];
+                    continue;
+                }
+                positions[i] = out.size();
+                out.addRange(in, i, i + 1);
+                i++;
+            }
+            entries[size] = out.size();
+            // 尾调用中没有跳转，跳转都原样输出了
+            for (i = 0; i < size; i++) {
+                if (isJump(in.getOperation(i))) {
+                    out.setValue(positions[i], entries[i + 1 + in.getIntValue(i)] - positions[i] - 1);
+                }
+            }
+            function.setInstructions(out, locSlots);
+        }
+
+        /**
+         * 计算参数并写回参数格子，再跳回开头
+         * 参数都没有副作用时计算的顺序无关紧要，先写没有别的参数再读取的格子，只有互相读取（如交换）时才暂存；
+         * 否则按原来的顺序计算，后面的参数读取的格子暂存
+         */
+        private void emitSite(int start) {
+            int[] starts = argumentStarts[start];
+            int call = calls[start];
+            int paramCount = starts.length;
+            int[] froms = new int[paramCount];
+            int[] tos = new int[paramCount];
+            // 还没有计算的参数，原样传递的参数不用计算
+            boolean[] pending = new boolean[paramCount];
+            boolean pure = true;
+            for (int k = 0; k < paramCount; k++) {
+                froms[k] = starts[k];
+                tos[k] = k + 1 < paramCount ? starts[k + 1] : call;
+                int slot = returnSlots + k;
+                pending[k] = tos[k] - froms[k] != 2 || in.getOperation(froms[k]) != Operation.arga
+                        || in.getIntValue(froms[k]) != slot || in.getOperation(froms[k] + 1) != Operation.load64;
+                pure &= isPure(froms[k], tos[k]);
+            }
+            // 每个参数暂存的局部变量，直接写回参数格子时为 -1；同一个函数中的尾调用共用这些局部变量
+            int[] temporaries = new int[paramCount];
+            Arrays.fill(temporaries, -1);
+            int temporaryCount = 0;
+            for (int n = 0; n < paramCount; n++) {
+                int k = -1;
+                if (pure) {
+                    for (int j = 0; j < paramCount && k < 0; j++) {
+                        if (pending[j] && !readByPending(j, pending, froms, tos)) {
+                            k = j;
+                        }
+                    }
+                }
+                if (k < 0) {
+                    // 按原来的顺序取第一个还没有计算的参数
+                    for (int j = 0; j < paramCount && k < 0; j++) {
+                        if (pending[j]) {
+                            k = j;
+                        }
+                    }
+                    if (k < 0) {
+                        break;
+                    }
+                }
+                pending[k] = false;
+                if (readByPending(k, pending, froms, tos)) {
+                    temporaries[k] = function.getSizeOfListOfSymbolTable() + temporaryCount++;
+                    out.add(Operation.loca, temporaries[k]);
+                } else {
+                    out.add(Operation.arga, returnSlots + k);
+                }
+                out.addRange(in, froms[k], tos[k]);
+                out.add(Operation.store64);
+            }
+            locSlots = Math.max(locSlots, function.getSizeOfListOfSymbolTable() + temporaryCount);
+            for (int k = 0; k < paramCount; k++) {
+                if (temporaries[k] >= 0) {
+                    out.add(Operation.arga, returnSlots + k);
+                    out.add(Operation.loca, temporaries[k]);
+                    out.add(Operation.load64);
+                    out.add(Operation.store64);
+                }
+            }
+            int jump = out.add(Operation.br);
+            out.setValue(jump, -jump - 1);
+        }
+
+        /**
+         * 还没有计算的参数中，除了第 k 个自己以外是否有读取第 k 个参数格子的
+         */
+        private boolean readByPending(int k, boolean[] pending, int[] froms, int[] tos) {
+            int slot = returnSlots + k;
+            for (int j = 0; j < pending.length; j++) {
+                if (j == k || !pending[j]) {
+                    continue;
+                }
+                for (int i = froms[j]; i < tos[j]; i++) {
+                    if (in.getOperation(i) == Operation.arga && in.getIntValue(i) == slot) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * [from, to) 范围内是否只有读取变量和运算，没有调用、输入输出和写入
+         */
+        private boolean isPure(int from, int to) {
+            for (int i = from; i < to; i++) {
+                switch (in.getOperation(i)) {
+                    case call:
+                    case store64:
+                    case scan_i:
+                    case scan_c:
+                    case scan_f:
+                    case print_i:
+                    case print_c:
+                    case print_f:
+                    case print_s:
+                    case println:
+                        return false;
+                    default:
+                        break;
+                }
+            }
+            return true;
+        }
+    }
+}
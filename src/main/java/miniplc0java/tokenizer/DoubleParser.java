@@ -0,0 +1,133 @@
+package miniplc0java.tokenizer;
+
+import java.math.BigInteger;
+
+/**
+ * 把十进制的 w * 10^q 精确舍入成 double
+ * 1.w <= 2^53 且 |q| <= 22 时直接用一次浮点乘除（Clinger 快速路径）
+ * 2.否则用 Eisel-Lemire 算法：w 乘以 5^q 的 128 位近似值，取高位作为尾数
+ * 3.两者都无法确定结果时返回 NaN，由调用者回退到 Double.parseDouble
+ */
+final class DoubleParser {
+    private static final int MANTISSA_BITS = 52;
+    private static final int MIN_EXPONENT = -1023;
+    private static final int INFINITE_POWER = 0x7ff;
+    private static final int SMALLEST_POWER_OF_TEN = -342;
+    private static final int LARGEST_POWER_OF_TEN = 308;
+    // 在这个范围内乘积可能恰好落在两个 double 正中间，需要按偶数舍入
+    private static final int MIN_EXPONENT_ROUND_TO_EVEN = -4;
+    private static final int MAX_EXPONENT_ROUND_TO_EVEN = 23;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private DoubleParser() {
+    }
+
+    /**
+     * @param w 十进制有效数字，按无符号数解释
+     * @param q 十进制指数
+     * @return w * 10^q 最接近的 double，无法确定时返回 NaN
+     */
+    static double toDouble(long w, int q) {
+        if (w == 0) {
+            return 0.0;
+        }
+        if (w > 0 && w <= (1L << 53) && q >= -22 && q <= 22) {
+            return q < 0 ? w / POWERS_OF_TEN[-q] : w * POWERS_OF_TEN[q];
+        }
+        return eiselLemire(w, q);
+    }
+
+    private static double eiselLemire(long w, int q) {
+        if (q < SMALLEST_POWER_OF_TEN) {
+            return 0.0;
+        }
+        if (q > LARGEST_POWER_OF_TEN) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int leadingZeros = Long.numberOfLeadingZeros(w);
+        w <<= leadingZeros;
+
+        // w 与 5^q 的 128 位近似值相乘，只在高位可能不够精确时才乘低 64 位
+        int index = 2 * (q - SMALLEST_POWER_OF_TEN);
+        long high = unsignedMultiplyHigh(w, PowersOfFive.TABLE[index]);
+        long low = w * PowersOfFive.TABLE[index];
+        long precisionMask = -1L >>> (MANTISSA_BITS + 3);
+        if ((high & precisionMask) == precisionMask) {
+            long secondHigh = unsignedMultiplyHigh(w, PowersOfFive.TABLE[index + 1]);
+            low += secondHigh;
+            if (Long.compareUnsigned(secondHigh, low) > 0) {
+                high++;
+            }
+        }
+        if (low == -1L && (q < -27 || q > 55)) {
+            return Double.NaN;
+        }
+
+        int upperBit = (int) (high >>> 63);
+        int shift = upperBit + 64 - MANTISSA_BITS - 3;
+        long mantissa = high >>> shift;
+        int power2 = (((152170 + 65536) * q) >> 16) + 63 + upperBit - leadingZeros - MIN_EXPONENT;
+        if (power2 <= 0) {
+            // 非规格化数
+            if (-power2 + 1 >= 64) {
+                return 0.0;
+            }
+            mantissa >>>= -power2 + 1;
+            mantissa += mantissa & 1;
+            mantissa >>>= 1;
+            power2 = mantissa < (1L << MANTISSA_BITS) ? 0 : 1;
+            return Double.longBitsToDouble(mantissa | ((long) power2 << MANTISSA_BITS));
+        }
+        if (Long.compareUnsigned(low, 1) <= 0 && q >= MIN_EXPONENT_ROUND_TO_EVEN && q <= MAX_EXPONENT_ROUND_TO_EVEN
+                && (mantissa & 3) == 1 && (mantissa << shift) == high) {
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= (2L << MANTISSA_BITS)) {
+            mantissa = 1L << MANTISSA_BITS;
+            power2++;
+        }
+        mantissa &= ~(1L << MANTISSA_BITS);
+        if (power2 >= INFINITE_POWER) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Double.longBitsToDouble(mantissa | ((long) power2 << MANTISSA_BITS));
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    /**
+     * 5^q（q 从 -342 到 308）规格化后的 128 位截断值，每个占两个 long，高位在前
+     * 只有第一次用到 Eisel-Lemire 时才计算
+     */
+    private static final class PowersOfFive {
+        static final long[] TABLE = new long[2 * (LARGEST_POWER_OF_TEN - SMALLEST_POWER_OF_TEN + 1)];
+
+        static {
+            BigInteger five = BigInteger.valueOf(5);
+            for (int q = SMALLEST_POWER_OF_TEN; q <= LARGEST_POWER_OF_TEN; q++) {
+                BigInteger value;
+                if (q < 0) {
+                    BigInteger power = five.pow(-q);
+                    int z = power.subtract(BigInteger.ONE).bitLength();
+                    int b = q >= -27 ? z + 127 : 2 * z + 128;
+                    value = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+                } else {
+                    value = five.pow(q);
+                }
+                int bits = value.bitLength();
+                value = bits > 128 ? value.shiftRight(bits - 128) : value.shiftLeft(128 - bits);
+                int index = 2 * (q - SMALLEST_POWER_OF_TEN);
+                TABLE[index] = value.shiftRight(64).longValue();
+                TABLE[index + 1] = value.longValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package miniplc0java.tokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 标识符池，每个不同的标识符在词法分析时分配一个从 0 开始的连续 ID
+ * 之后的符号表、函数表都用 ID 查找，不再对字符串求哈希
+ * 类型名、标准库函数名以及 main、_start 预先登记，ID 是下面的常量
+ */
+public class IdentPool {
+    public static final int INT = 0;
+    public static final int DOUBLE = 1;
+    public static final int VOID = 2;
+    public static final int START = 3;
+    public static final int MAIN = 4;
+    public static final int GETINT = 5;
+    public static final int GETDOUBLE = 6;
+    public static final int GETCHAR = 7;
+    public static final int PUTINT = 8;
+    public static final int PUTDOUBLE = 9;
+    public static final int PUTCHAR = 10;
+    public static final int PUTSTR = 11;
+    public static final int PUTLN = 12;
+
+    private static final String[] RESERVED = {
+            "int", "double", "void", "_start", "main",
+            "getint", "getdouble", "getchar", "putint", "putdouble", "putchar", "putstr", "putln"
+    };
+
+    // 名字表可能被其它线程读取，扩容后整个替换
+    private volatile String[] names = new String[256];
+    private byte[][] bytes = new byte[256][];
+    private int[] hashes = new int[256];
+    private int size = 0;
+    // 开放定址的哈希表，存 ID + 1，0 表示空
+    private int[] slots = new int[1024];
+
+    public IdentPool() {
+        for (String name: RESERVED) {
+            intern(name);
+        }
+    }
+
+    public static boolean isStandardFunction(int id) {
+        return id >= GETINT && id <= PUTLN;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int intern(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        int hash = 0x811c9dc5;
+        for (byte b: utf8) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return add(slot, hash, utf8, name);
+            }
+            if (hashes[id] == hash && Arrays.equals(bytes[id], utf8)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 直接用源码中 [start, end) 的字节查找，只有第一次出现时才创建字符串
+     *
+     * @param name 标识符的值，为 null 时从源码中截取
+     */
+    int intern(StringIter source, int start, int end, String name) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ source.byteAt(i)) * 0x01000193;
+        }
+        int length = end - start;
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                byte[] utf8 = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    utf8[i] = (byte) source.byteAt(start + i);
+                }
+                return add(slot, hash, utf8, name != null ? name : source.substring(start, end));
+            }
+            if (hashes[id] == hash && matches(bytes[id], source, start, length)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean matches(byte[] utf8, StringIter source, int start, int length) {
+        if (utf8.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (utf8[i] != (byte) source.byteAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(int slot, int hash, byte[] utf8, String name) {
+        int id = size;
+        if (id == hashes.length) {
+            int capacity = id * 2;
+            bytes = Arrays.copyOf(bytes, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            String[] newNames = Arrays.copyOf(names, capacity);
+            newNames[id] = name;
+            names = newNames;
+        } else {
+            names[id] = name;
+        }
+        bytes[id] = utf8;
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        size++;
+        // 装载因子超过 1/2 时扩容
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+}
@@ -1,143 +1,390 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import miniplc0java.util.Pos;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
+ * 现在整个源文件以 UTF-8 字节的形式保存在一个 ByteBuffer 里，位置用字节偏移（int）表示
+ * 文件输入直接用 FileChannel.map 映射，不占用堆内存；标准输入则读进一个字节数组
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个源文件的缓冲区
+    ByteBuffer buffer;
+    // buffer 中有效字节的个数
+    int dataLength;
+    // 逻辑长度，最后一行不以 \n 结尾时比 dataLength 多 1，多出来的 \n 并不在 buffer 里
+    int length;
 
-    Scanner scanner;
     // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    int ptr = 0;
 
-    Pos ptr = new Pos(0, 0);
+    // 每一行开头的偏移（长度就是行数），只有在需要把偏移换算成行列号时才构建
+    volatile int[] lineStarts;
+    // 上一次换算的结果，同一行中向后的偏移从这里接着数列号
+    // 换算可能在多个线程中同时进行，结果整体替换，每个线程读到的总是某一次完整的结果
+    LastPos lastPos = new LastPos(-1, 0, 0);
 
-    boolean initialized = false;
+    private static final class LastPos {
+        final int line;
+        final int offset;
+        final int col;
 
-    Optional<Character> peeked = Optional.empty();
+        LastPos(int line, int offset, int col) {
+            this.line = line;
+            this.offset = offset;
+            this.col = col;
+        }
+    }
+
+    public StringIter(ByteBuffer buffer) {
+        this.buffer = buffer;
+        init(buffer.limit());
+    }
+
+    public StringIter(InputStream input) throws IOException {
+        this(ByteBuffer.wrap(input.readAllBytes()));
+    }
+
+    public StringIter(String source) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 以只读方式映射整个文件
+     */
+    public static StringIter map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 1) {
+                throw new IOException("Input file is too large: " + size + " bytes");
+            }
+            return new StringIter(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
 
-    public StringIter(Scanner scanner) {
-        this.scanner = scanner;
+    /**
+     * offset 处换行占的字节数，不是换行时为 0
+     * 和原来用 Scanner.nextLine() 按行读入一样，\n、\r\n、单独的 \r 以及 U+0085、U+2028、U+2029 都是换行，
+     * 读取时都当作一个 \n；缓冲区不做改动，映射的文件仍然不占用堆内存
+     */
+    private int lineBreakLength(int offset, int size) {
+        byte b = buffer.get(offset);
+        if (b == '\n') {
+            return 1;
+        } else if (b == '\r') {
+            return offset + 1 < size && buffer.get(offset + 1) == '\n' ? 2 : 1;
+        } else if (b == (byte) 0xc2) {
+            // U+0085
+            return offset + 1 < size && buffer.get(offset + 1) == (byte) 0x85 ? 2 : 0;
+        } else if (b == (byte) 0xe2) {
+            // U+2028、U+2029
+            return offset + 2 < size && buffer.get(offset + 1) == (byte) 0x80
+                    && (buffer.get(offset + 2) == (byte) 0xa8 || buffer.get(offset + 2) == (byte) 0xa9) ? 3 : 0;
+        }
+        return 0;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
-    // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
-    // 1.缓冲区包括 \n
-    // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    private int lineBreakLength(int offset) {
+        return lineBreakLength(offset, dataLength);
+    }
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
-    public void readAll() {
-        if (initialized) {
+    // 和原来按行读入的行为保持一致：
+    // 1.末尾只剩空白的行不读入
+    // 2.最后一行总是以 \n 结尾
+    private void init(int size) {
+        int last = size - 1;
+        while (last >= 0) {
+            if (isSpace(buffer.get(last))) {
+                last--;
+            } else if (last >= 1 && lineBreakLength(last - 1, size) == 2 && buffer.get(last) != '\n') {
+                // U+0085 换行
+                last -= 2;
+            } else if (last >= 2 && lineBreakLength(last - 2, size) == 3) {
+                // U+2028、U+2029 换行
+                last -= 3;
+            } else {
+                break;
+            }
+        }
+        if (last < 0) {
+            this.dataLength = 0;
+            this.length = 0;
             return;
         }
-        while (scanner.hasNext()) {
-            String line = scanner.nextLine();
-            linesBuffer.add(line + '\n');
-            System.out.println(line);
+        int end = last + 1;
+        while (end < size && lineBreakLength(end, size) == 0) {
+            end++;
+        }
+        if (end == size) {
+            this.dataLength = size;
+            this.length = size + 1;
+        } else {
+            this.dataLength = end + lineBreakLength(end, size);
+            this.length = this.dataLength;
         }
-        // todo:check read \n?
-        initialized = true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0b || b == '\f'
+                || (b >= 0x1c && b <= 0x1f);
     }
 
     // 一个简单的总结
-    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
-    // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
-    // 这里假设指针指向第一行的 \n，那么有
-    // nextPos() = (1, 0)
-    // currentPos() = (0, 9)
-    // previousPos() = (0, 8)
-    // nextChar() = '\n' 并且指针移动到 (1, 0)
+    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 10 | 11 | 12 | 13 | 14 | 15 | 16 | 17 | 偏移
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n | 7  | 1  | 1  | 4  | 5  | 1  | 4  | \n |
+    // 这里假设指针指向第一行的 \n（偏移 9），那么有
+    // getOffset() = 9，对应位置 (0, 9)
+    // nextChar() = '\n' 并且指针移动到 10，对应位置 (1, 0)
     // peekChar() = '\n' 并且指针不移动
+    // 非 ASCII 字符占多个字节，nextChar() 会一次跳过整个 UTF-8 序列
+    // \r\n 等换行占多个字节时同样一次跳过，返回一个 \n
     /**
-     * 获取下一个字符的位置
+     * 获取下一个要读取的字符的偏移
      */
-    public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
-            throw new Error("advance after EOF");
-        }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+    public int getOffset() {
+        return ptr;
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posOf(ptr);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
+        int offset = ptr - 1;
+        while (offset > 0 && offset < dataLength && (buffer.get(offset) & 0xc0) == 0x80) {
+            offset--;
+        }
+        if (offset > 0 && offset < dataLength && buffer.get(offset) == '\n' && buffer.get(offset - 1) == '\r') {
+            offset--;
         }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posOf(offset);
     }
 
     /**
-     * 将指针指向下一个字符，并返回当前字符
+     * 将指针指向下一个字符，并返回当前字符，到达文件尾时返回 0
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+        if (ptr >= dataLength) {
+            return advancePastData();
+        }
+        byte b = buffer.get(ptr);
+        if (b >= 0 && b != '\r') {
+            ptr++;
+            return (char) b;
+        }
+        int lineBreak = lineBreakLength(ptr);
+        if (lineBreak > 0) {
+            ptr += lineBreak;
+            return '\n';
         }
+        int codePoint = decode(ptr);
+        ptr += sequenceLength(b);
+        return toChar(codePoint);
     }
 
-    private char getNextChar() {
-        if (isEOF()) {
-            return 0;
+    /**
+     * 查看下一个字符，但不移动指针，到达文件尾时返回 0
+     */
+    public char peekChar() {
+        if (ptr >= dataLength) {
+            return ptr < length ? '\n' : 0;
+        }
+        byte b = buffer.get(ptr);
+        if (b >= 0 && b != '\r') {
+            return (char) b;
+        }
+        if (lineBreakLength(ptr) > 0) {
+            return '\n';
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return toChar(decode(ptr));
     }
 
     /**
-     * 查看下一个字符，但不移动指针
+     * 读取下一个完整的 Unicode 码点，用于字符串和字符字面量
      */
-    public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+    public int nextCodePoint() {
+        if (ptr >= dataLength) {
+            return advancePastData();
+        }
+        byte b = buffer.get(ptr);
+        if (b >= 0 && b != '\r') {
+            ptr++;
+            return b;
+        }
+        int lineBreak = lineBreakLength(ptr);
+        if (lineBreak > 0) {
+            ptr += lineBreak;
+            return '\n';
         }
+        int codePoint = decode(ptr);
+        ptr += sequenceLength(b);
+        return codePoint;
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    private char advancePastData() {
+        if (ptr < length) {
+            ptr++;
+            return '\n';
+        }
+        return 0;
+    }
+
+    public boolean isEOF() {
+        return ptr >= length;
+    }
+
+    /**
+     * 直接读取 offset 处的字节（0~255），\r 当作 \n，文件尾返回 -1，不移动指针
+     * 多字节的换行仍按原来的字节返回，由调用者按非 ASCII 字符处理
+     */
+    int byteAt(int offset) {
+        if (offset < dataLength) {
+            int b = buffer.get(offset) & 0xff;
+            return b == '\r' ? '\n' : b;
+        }
+        return offset < length ? '\n' : -1;
+    }
+
+    void setOffset(int offset) {
+        this.ptr = offset;
+    }
+
+    /**
+     * 取出 [start, end) 之间的源码文本，其中的换行都换成 \n
+     */
+    String substring(int start, int end) {
+        int dataEnd = Math.min(end, dataLength);
+        byte[] bytes = new byte[dataEnd - start];
+        buffer.get(start, bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        if (text.indexOf('\r') >= 0 || text.indexOf('\u0085') >= 0
+                || text.indexOf('\u2028') >= 0 || text.indexOf('\u2029') >= 0) {
+            text = text.replace("\r\n", "\n").replace('\r', '\n').replace('\u0085', '\n')
+                    .replace('\u2028', '\n').replace('\u2029', '\n');
+        }
+        return dataEnd < end ? text + '\n' : text;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        ptr--;
+        while (ptr > 0 && ptr < dataLength && (buffer.get(ptr) & 0xc0) == 0x80) {
+            ptr--;
+        }
+        if (ptr > 0 && ptr < dataLength && buffer.get(ptr) == '\n' && buffer.get(ptr - 1) == '\r') {
+            ptr--;
+        }
+    }
+
+    private static int sequenceLength(byte lead) {
+        if ((lead & 0xe0) == 0xc0) {
+            return 2;
+        } else if ((lead & 0xf0) == 0xe0) {
+            return 3;
+        } else if ((lead & 0xf8) == 0xf0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    // 解码 offset 处的 UTF-8 序列，非法序列得到 U+FFFD
+    private int decode(int offset) {
+        byte lead = buffer.get(offset);
+        int count = sequenceLength(lead);
+        if (count == 1 || offset + count > dataLength) {
+            return 0xfffd;
+        }
+        int codePoint = lead & (0xff >> (count + 1));
+        for (int i = 1; i < count; i++) {
+            byte b = buffer.get(offset + i);
+            if ((b & 0xc0) != 0x80) {
+                return 0xfffd;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3f);
+        }
+        return codePoint;
     }
 
+    private static char toChar(int codePoint) {
+        return Character.isBmpCodePoint(codePoint) ? (char) codePoint : '\ufffd';
+    }
+
+    /**
+     * 把偏移换算成行列号，行号和列号从 0 开始，列号按 UTF-16 字符计数
+     */
+    public Pos posOf(int offset) {
+        int[] lineStarts = this.lineStarts;
+        if (lineStarts == null) {
+            lineStarts = buildLineStarts();
+        }
+        int low = 0;
+        int high = lineStarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int col = 0;
+        int start = lineStarts[low];
+        LastPos last = lastPos;
+        if (low == last.line && offset >= last.offset) {
+            col = last.col;
+            start = last.offset;
+        }
+        int end = Math.min(offset, dataLength);
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= 0) {
+                col++;
+            } else if ((b & 0xc0) != 0x80) {
+                col += (b & 0xf8) == 0xf0 ? 2 : 1;
+            }
+        }
+        if (offset <= dataLength) {
+            lastPos = new LastPos(low, offset, col);
+        }
+        return new Pos(low, col + offset - end);
+    }
+
+    private synchronized int[] buildLineStarts() {
+        if (lineStarts != null) {
+            return lineStarts;
+        }
+        int[] starts = new int[64];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 0; i < length; i++) {
+            int lineBreak = i >= dataLength ? 1 : lineBreakLength(i);
+            if (lineBreak > 0) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                i += lineBreak - 1;
+                starts[count++] = i + 1;
+            }
+        }
+        lineStarts = Arrays.copyOf(starts, count);
+        return lineStarts;
+    }
 }
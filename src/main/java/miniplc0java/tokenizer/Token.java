@@ -10,6 +10,10 @@ public class Token {
     private Object value;
     private Pos startPos;
     private Pos endPos;
+    // 位置以偏移量保存，需要时再通过 source 换算成行列号
+    private int startOffset;
+    private int endOffset;
+    private StringIter source;
 
     public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
         this.tokenType = tokenType;
@@ -18,11 +22,22 @@ public class Token {
         this.endPos = endPos;
     }
 
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, StringIter source) {
+        this.tokenType = tokenType;
+        this.value = value;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.source = source;
+    }
+
     public Token(Token token) {
         this.tokenType = token.tokenType;
         this.value = token.value;
         this.startPos = token.startPos;
         this.endPos = token.endPos;
+        this.startOffset = token.startOffset;
+        this.endOffset = token.endOffset;
+        this.source = token.source;
     }
 
     @Override
@@ -33,12 +48,12 @@ public class Token {
             return false;
         Token token = (Token) o;
         return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+                && Objects.equals(getStartPos(), token.getStartPos()) && Objects.equals(getEndPos(), token.getEndPos());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, value, getStartPos(), getEndPos());
     }
 
     public String getValueString() {
@@ -65,6 +80,9 @@ public class Token {
     }
 
     public Pos getStartPos() {
+        if (startPos == null && source != null) {
+            startPos = source.posOf(startOffset);
+        }
         return startPos;
     }
 
@@ -73,9 +91,20 @@ public class Token {
     }
 
     public Pos getEndPos() {
+        if (endPos == null && source != null) {
+            endPos = source.posOf(endOffset);
+        }
         return endPos;
     }
 
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    public int getEndOffset() {
+        return endOffset;
+    }
+
     public void setEndPos(Pos endPos) {
         this.endPos = endPos;
     }
@@ -83,8 +112,9 @@ public class Token {
     @Override
     public String toString() {
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        Pos startPos = getStartPos();
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
         sb.append("Value: ").append(this.value);
         return sb.toString();
@@ -92,6 +122,6 @@ public class Token {
 
     public String toStringAlt() {
         return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+                .append("at: ").append(getStartPos()).toString();
     }
 }
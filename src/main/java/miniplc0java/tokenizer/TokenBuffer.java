@@ -0,0 +1,320 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.Pos;
+
+/**
+ * 按列存储的 token 流
+ * 每个 token 只占用 kinds/starts/ends/literals 四个数组中的一格，字面量的值放在旁边的表里：
+ * UINT_LITERAL 和 DOUBLE_LITERAL 的 literal 是 longs/doubles 的下标，
+ * IDENT 的 literal 是 IdentPool 中的标识符 ID，STRING_LITERAL 的 literal 是 strings 的下标（相同的字符串只保存一份），
+ * CHAR_LITERAL 的 literal 就是字符本身
+ * token 在第一次被访问时才向 Tokenizer 读取，所以词法错误抛出的时机与逐个读取时相同
+ * 下标始终是 token 在整个文件中的序号；discardBefore 可以丢弃不再访问的 token，数组只保留之后的部分
+ * 遇到词法错误后，再访问之后的 token 会抛出同一个错误；
+ * 读到 EOF 或词法错误以后不再修改，之后可以被多个线程同时读取
+ * 流水线模式下 Tokenizer 在自己的线程中运行，token 经过 TokenRing 传过来，词法和语法分析同时进行
+ */
+public class TokenBuffer {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final Tokenizer tokenizer;
+    // 流水线模式下 token 的来源，为 null 时在当前线程直接调用 tokenizer
+    private final TokenRing ring;
+    private final StringIter source;
+    private final IdentPool identPool;
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int[] literals = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    // 数组第 0 格对应的 token 序号
+    private int base = 0;
+    // 是否已经读到了 EOF
+    private boolean finished = false;
+    // 读取时遇到的词法错误
+    private TokenizeError error;
+
+    private long[] longs = new long[64];
+    private int longCount = 0;
+    private double[] doubles = new double[64];
+    private int doubleCount = 0;
+    private String[] strings = new String[64];
+    private int stringCount = 0;
+    private HashMap<String, Integer> stringIndex = new HashMap<>();
+
+    public TokenBuffer(Tokenizer tokenizer) {
+        this(tokenizer, false);
+    }
+
+    /**
+     * @param pipelined 是否在另一个线程中运行 tokenizer，之后不能再在当前线程中使用 tokenizer
+     */
+    public TokenBuffer(Tokenizer tokenizer, boolean pipelined) {
+        this.tokenizer = tokenizer;
+        this.source = tokenizer.getSource();
+        this.identPool = tokenizer.getIdentPool();
+        this.ring = pipelined ? TokenRing.start(tokenizer) : null;
+    }
+
+    /**
+     * 保证下标为 index 的 token 已经读入，返回实际可用的下标
+     * 读到 EOF 以后再往后的下标都指向 EOF
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public int fill(int index) throws TokenizeError {
+        while (base + size <= index) {
+            if (finished) {
+                return base + size - 1;
+            }
+            advance();
+        }
+        return index;
+    }
+
+    /**
+     * 读入全部 token，返回 token 个数（含 EOF）
+     */
+    public int fillAll() throws TokenizeError {
+        while (!finished) {
+            advance();
+        }
+        return base + size;
+    }
+
+    private void advance() throws TokenizeError {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            if (ring != null) {
+                TokenType type = ring.take();
+                append(type, ring.getStartOffset(), ring.getEndOffset(), ring.getLiteralBits(), ring.getStringValue());
+            } else {
+                TokenType type = tokenizer.advance();
+                append(type, tokenizer.getStartOffset(), tokenizer.getEndOffset(), tokenizer.getLiteralBits(type), tokenizer.getStringValue());
+            }
+        } catch (TokenizeError e) {
+            error = e;
+            throw e;
+        }
+    }
+
+    /**
+     * 已经读入的 token 个数
+     */
+    public int size() {
+        return base + size;
+    }
+
+    /**
+     * 丢弃序号小于 index 的 token，之后不能再访问它们
+     * 数值字面量表中只被这些 token 引用的部分也一起丢弃
+     */
+    public void discardBefore(int index) {
+        int count = Math.min(index - base, size);
+        if (count <= 0) {
+            return;
+        }
+        int firstLong = longCount;
+        int firstDouble = doubleCount;
+        for (int i = count; i < size; i++) {
+            if (kinds[i] == TokenType.UINT_LITERAL.ordinal()) {
+                firstLong = Math.min(firstLong, literals[i]);
+            } else if (kinds[i] == TokenType.DOUBLE_LITERAL.ordinal()) {
+                firstDouble = Math.min(firstDouble, literals[i]);
+            }
+        }
+        for (int i = count; i < size; i++) {
+            if (kinds[i] == TokenType.UINT_LITERAL.ordinal()) {
+                literals[i] -= firstLong;
+            } else if (kinds[i] == TokenType.DOUBLE_LITERAL.ordinal()) {
+                literals[i] -= firstDouble;
+            }
+        }
+        System.arraycopy(longs, firstLong, longs, 0, longCount - firstLong);
+        longCount -= firstLong;
+        System.arraycopy(doubles, firstDouble, doubles, 0, doubleCount - firstDouble);
+        doubleCount -= firstDouble;
+        System.arraycopy(kinds, count, kinds, 0, size - count);
+        System.arraycopy(starts, count, starts, 0, size - count);
+        System.arraycopy(ends, count, ends, 0, size - count);
+        System.arraycopy(literals, count, literals, 0, size - count);
+        size -= count;
+        base += count;
+    }
+
+    /**
+     * @param literalBits Tokenizer.getLiteralBits() 的结果
+     * @param string      STRING_LITERAL 的值，其它类型忽略
+     */
+    private void append(TokenType type, int start, int end, long literalBits, String string) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+        }
+        int literal = 0;
+        switch (type) {
+            case UINT_LITERAL:
+                if (longCount == longs.length) {
+                    longs = Arrays.copyOf(longs, longCount * 2);
+                }
+                literal = longCount;
+                longs[longCount++] = literalBits;
+                break;
+            case DOUBLE_LITERAL:
+                if (doubleCount == doubles.length) {
+                    doubles = Arrays.copyOf(doubles, doubleCount * 2);
+                }
+                literal = doubleCount;
+                doubles[doubleCount++] = Double.longBitsToDouble(literalBits);
+                break;
+            case CHAR_LITERAL:
+            case IDENT:
+                literal = (int) literalBits;
+                break;
+            case STRING_LITERAL:
+                literal = intern(string);
+                break;
+            case EOF:
+                finished = true;
+                break;
+            default:
+                break;
+        }
+        kinds[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        literals[size] = literal;
+        size++;
+    }
+
+    private int intern(String string) {
+        Integer index = stringIndex.get(string);
+        if (index != null) {
+            return index;
+        }
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        }
+        strings[stringCount] = string;
+        stringIndex.put(string, stringCount);
+        return stringCount++;
+    }
+
+    // 以下方法只能访问已经读入的 token
+
+    public TokenType getTokenType(int index) {
+        return TOKEN_TYPES[kinds[index - base]];
+    }
+
+    public int getStartOffset(int index) {
+        return starts[index - base];
+    }
+
+    public int getEndOffset(int index) {
+        return ends[index - base];
+    }
+
+    public Pos getStartPos(int index) {
+        return source.posOf(starts[index - base]);
+    }
+
+    public Pos getEndPos(int index) {
+        return source.posOf(ends[index - base]);
+    }
+
+    public long getLong(int index) {
+        return longs[literals[index - base]];
+    }
+
+    public double getDouble(int index) {
+        return doubles[literals[index - base]];
+    }
+
+    public char getChar(int index) {
+        return (char) literals[index - base];
+    }
+
+    /**
+     * IDENT 或 STRING_LITERAL 的值
+     */
+    public String getString(int index) {
+        if (kinds[index - base] == TokenType.IDENT.ordinal()) {
+            return identPool.getName(literals[index - base]);
+        }
+        return strings[literals[index - base]];
+    }
+
+    /**
+     * IDENT 的标识符 ID
+     */
+    public int getIdent(int index) {
+        return literals[index - base];
+    }
+
+    public IdentPool getIdentPool() {
+        return identPool;
+    }
+
+    /**
+     * 与 Token.getValue() 相同的值，会装箱，只用于报错和输出
+     */
+    public Object getValue(int index) {
+        switch (getTokenType(index)) {
+            case UINT_LITERAL:
+                return getLong(index);
+            case DOUBLE_LITERAL:
+                return getDouble(index);
+            case CHAR_LITERAL:
+                return getChar(index);
+            case IDENT:
+            case STRING_LITERAL:
+                return getString(index);
+            default:
+                return Tokenizer.valueOf(getTokenType(index));
+        }
+    }
+
+    /**
+     * 把下标为 index 的 token 转换成 Token 对象，用于报错
+     */
+    public Token getToken(int index) {
+        return new Token(getTokenType(index), getValue(index), starts[index - base], ends[index - base], source);
+    }
+
+    /**
+     * 与 Token.toString() 格式相同
+     */
+    public String toString(int index) {
+        Pos startPos = getStartPos(index);
+        var sb = new StringBuilder();
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
+        sb.append("Type: ").append(getTokenType(index)).append(' ');
+        sb.append("Value: ");
+        switch (getTokenType(index)) {
+            case UINT_LITERAL:
+                sb.append(getLong(index));
+                break;
+            case DOUBLE_LITERAL:
+                sb.append(getDouble(index));
+                break;
+            case CHAR_LITERAL:
+                sb.append(getChar(index));
+                break;
+            default:
+                sb.append(getValue(index));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 词法分析线程和语法分析线程之间的单生产者、单消费者环形缓冲区，不加锁
+ * 生产者线程不断调用 Tokenizer.advance()，把 token 写入 tail 处的格子再推进 tail；
+ * 消费者读 head 处的格子，读完（下一次取 token 时）再推进 head。两边各自只写自己的下标，
+ * 下标用 lazySet 发布，写格子发生在发布之前，所以读到新下标时一定能读到格子的内容
+ * 词法错误也占一个格子，按顺序交给消费者，在读到它时抛出；生产者线程的其它异常（包括 Error）同样发布成错误格子，
+ * 包装后在消费者线程中抛出，消费者不会一直等待
+ */
+class TokenRing implements Runnable {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    // 格子个数，必须是 2 的幂
+    private static final int CAPACITY = 1 << 12;
+    private static final int MASK = CAPACITY - 1;
+    // 错误格子的 kind
+    private static final byte FAILED = -1;
+    // 缓冲区空或满时先忙等这么多次，之后让出 CPU
+    private static final int SPIN_LIMIT = 100;
+
+    private final Tokenizer tokenizer;
+
+    private final byte[] kinds = new byte[CAPACITY];
+    private final int[] starts = new int[CAPACITY];
+    private final int[] ends = new int[CAPACITY];
+    private final long[] literals = new long[CAPACITY];
+    private final String[] strings = new String[CAPACITY];
+    // 生产者遇到的错误，在错误格子发布之前写入
+    private Throwable error;
+
+    // 下一个要写的格子（只由生产者修改）和下一个要读的格子（只由消费者修改）
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // 各自对另一方下标的缓存，只有看起来满或空时才重新读取
+    private long cachedHead = 0;
+    private long cachedTail = 0;
+
+    // 消费者下一个要取的 token 的序号，以及最近一次取出的格子
+    // 取出的格子在下一次 take 之前还要被读取，所以 head 推迟到下一次 take 时才越过它
+    private long next = 0;
+    private int current;
+
+    private TokenRing(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * 启动一个词法分析线程，返回它写入的缓冲区
+     * 线程是守护线程，语法分析提前结束（比如遇到错误）时不会阻止程序退出
+     */
+    static TokenRing start(Tokenizer tokenizer) {
+        TokenRing ring = new TokenRing(tokenizer);
+        Thread thread = new Thread(ring, "tokenizer");
+        thread.setDaemon(true);
+        thread.start();
+        return ring;
+    }
+
+    // 以下是生产者
+
+    @Override
+    public void run() {
+        TokenType type;
+        do {
+            long index = tail.get();
+            waitForSpace(index);
+            int slot = (int) index & MASK;
+            try {
+                type = tokenizer.advance();
+                starts[slot] = tokenizer.getStartOffset();
+                ends[slot] = tokenizer.getEndOffset();
+                literals[slot] = tokenizer.getLiteralBits(type);
+                strings[slot] = type == TokenType.STRING_LITERAL ? tokenizer.getStringValue() : null;
+                kinds[slot] = (byte) type.ordinal();
+            } catch (Throwable e) {
+                error = e;
+                kinds[slot] = FAILED;
+                tail.lazySet(index + 1);
+                return;
+            }
+            tail.lazySet(index + 1);
+        } while (type != TokenType.EOF);
+    }
+
+    private void waitForSpace(long index) {
+        for (int spins = 0; index - cachedHead >= CAPACITY; spins++) {
+            cachedHead = head.get();
+            backOff(spins);
+        }
+    }
+
+    // 以下是消费者
+
+    /**
+     * 取出下一个 token，缓冲区为空时等待，结果通过 getStartOffset() 等方法读取
+     *
+     * @throws TokenizeError 取到的是词法错误时抛出
+     * @throws IllegalStateException 词法分析线程出现其它异常时抛出，cause 是原来的异常
+     */
+    TokenType take() throws TokenizeError {
+        long index = next;
+        // 释放上一个格子
+        head.lazySet(index);
+        for (int spins = 0; index >= cachedTail; spins++) {
+            cachedTail = tail.get();
+            if (index < cachedTail) {
+                break;
+            }
+            backOff(spins);
+        }
+        current = (int) index & MASK;
+        byte kind = kinds[current];
+        if (kind == FAILED) {
+            if (error instanceof TokenizeError) {
+                throw (TokenizeError) error;
+            }
+            throw new IllegalStateException(error);
+        }
+        next = index + 1;
+        return TOKEN_TYPES[kind];
+    }
+
+    int getStartOffset() {
+        return starts[current];
+    }
+
+    int getEndOffset() {
+        return ends[current];
+    }
+
+    long getLiteralBits() {
+        return literals[current];
+    }
+
+    String getStringValue() {
+        return strings[current];
+    }
+
+    private static void backOff(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+}
@@ -2,14 +2,313 @@ package miniplc0java.tokenizer;
 
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
 
+/**
+ * 表驱动的词法分析器
+ * ASCII 字符先通过 CHAR_CLASS 归类，再由 TRANSITION 状态转移表驱动一个循环完成识别，
+ * 非 ASCII 字符、数字、字符串和字符字面量走单独的路径
+ */
 public class Tokenizer {
 
+    // 字符类别
+    private static final int C_OTHER = 0;
+    private static final int C_SPACE = 1;
+    private static final int C_NEWLINE = 2;
+    private static final int C_DIGIT = 3;
+    private static final int C_ALPHA = 4;
+    private static final int C_UNDERLINE = 5;
+    private static final int C_DOUBLE_QUOTE = 6;
+    private static final int C_SINGLE_QUOTE = 7;
+    private static final int C_PLUS = 8;
+    private static final int C_MINUS = 9;
+    private static final int C_MUL = 10;
+    private static final int C_DIV = 11;
+    private static final int C_ASSIGN = 12;
+    private static final int C_BANG = 13;
+    private static final int C_LT = 14;
+    private static final int C_GT = 15;
+    private static final int C_L_PAREN = 16;
+    private static final int C_R_PAREN = 17;
+    private static final int C_L_BRACE = 18;
+    private static final int C_R_BRACE = 19;
+    private static final int C_COMMA = 20;
+    private static final int C_COLON = 21;
+    private static final int C_SEMICOLON = 22;
+    private static final int C_NON_ASCII = 23;
+    private static final int C_EOF = 24;
+    private static final int CLASS_COUNT = 25;
+
+    // 状态
+    private static final int S_START = 0;
+    private static final int S_IDENT = 1;
+    private static final int S_MINUS = 2;
+    private static final int S_DIV = 3;
+    private static final int S_ASSIGN = 4;
+    private static final int S_BANG = 5;
+    private static final int S_LT = 6;
+    private static final int S_GT = 7;
+    private static final int S_COMMENT = 8;
+    private static final int STATE_COUNT = 9;
+
+    // 动作，高位是动作种类，低 8 位是目标状态或 TokenType 的序号
+    private static final int VALUE_MASK = 0xff;
+    private static final int ACTION_MASK = ~VALUE_MASK;
+    /** 吃掉当前字符，转到目标状态 */
+    private static final int GOTO = 1 << 8;
+    /** 吃掉当前字符，并从这里重新开始一个 token（空白和注释） */
+    private static final int SKIP = 2 << 8;
+    /** 当前字符不属于这个 token，接受 */
+    private static final int ACCEPT = 3 << 8;
+    /** 吃掉当前字符后接受 */
+    private static final int ACCEPT_NEXT = 4 << 8;
+    private static final int NUMBER = 5 << 8;
+    private static final int STRING = 6 << 8;
+    private static final int CHAR = 7 << 8;
+    private static final int END = 8 << 8;
+    private static final int ERROR = 9 << 8;
+    private static final int SLOW_START = 10 << 8;
+    private static final int SLOW_IDENT = 11 << 8;
+
+    private static final byte[] CHAR_CLASS = new byte[256];
+    private static final int[] TRANSITION = new int[STATE_COUNT * CLASS_COUNT];
+    // 运算符、关键字和 EOF 的值是固定的，按 TokenType 的序号存放
+    private static final Object[] TOKEN_VALUE = new Object[TokenType.values().length];
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    // 关键字的完美哈希：(首字母 + 4 * 长度) & 15
+    private static final TokenType[] KEYWORD_TYPES = new TokenType[16];
+    private static final byte[][] KEYWORD_BYTES = new byte[16][];
+
+    static {
+        for (int c = 0x80; c < 0x100; c++) {
+            CHAR_CLASS[c] = C_NON_ASCII;
+        }
+        // 与 Character.isWhitespace 在 ASCII 范围内一致
+        for (char c: new char[]{' ', '\t', '\r', 0x0b, '\f', 0x1c, 0x1d, 0x1e, 0x1f}) {
+            CHAR_CLASS[c] = C_SPACE;
+        }
+        CHAR_CLASS['\n'] = C_NEWLINE;
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = C_DIGIT;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASS[c] = C_ALPHA;
+            CHAR_CLASS[Character.toUpperCase(c)] = C_ALPHA;
+        }
+        CHAR_CLASS['_'] = C_UNDERLINE;
+        CHAR_CLASS['\"'] = C_DOUBLE_QUOTE;
+        CHAR_CLASS['\''] = C_SINGLE_QUOTE;
+        CHAR_CLASS['+'] = C_PLUS;
+        CHAR_CLASS['-'] = C_MINUS;
+        CHAR_CLASS['*'] = C_MUL;
+        CHAR_CLASS['/'] = C_DIV;
+        CHAR_CLASS['='] = C_ASSIGN;
+        CHAR_CLASS['!'] = C_BANG;
+        CHAR_CLASS['<'] = C_LT;
+        CHAR_CLASS['>'] = C_GT;
+        CHAR_CLASS['('] = C_L_PAREN;
+        CHAR_CLASS[')'] = C_R_PAREN;
+        CHAR_CLASS['{'] = C_L_BRACE;
+        CHAR_CLASS['}'] = C_R_BRACE;
+        CHAR_CLASS[','] = C_COMMA;
+        CHAR_CLASS[':'] = C_COLON;
+        CHAR_CLASS[';'] = C_SEMICOLON;
+
+        // 初始状态
+        setTransitions(S_START, ERROR);
+        TRANSITION[S_START * CLASS_COUNT + C_SPACE] = SKIP;
+        TRANSITION[S_START * CLASS_COUNT + C_NEWLINE] = SKIP;
+        TRANSITION[S_START * CLASS_COUNT + C_DIGIT] = NUMBER;
+        TRANSITION[S_START * CLASS_COUNT + C_ALPHA] = GOTO | S_IDENT;
+        TRANSITION[S_START * CLASS_COUNT + C_DOUBLE_QUOTE] = STRING;
+        TRANSITION[S_START * CLASS_COUNT + C_SINGLE_QUOTE] = CHAR;
+        TRANSITION[S_START * CLASS_COUNT + C_PLUS] = ACCEPT_NEXT | TokenType.PLUS.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_MINUS] = GOTO | S_MINUS;
+        TRANSITION[S_START * CLASS_COUNT + C_MUL] = ACCEPT_NEXT | TokenType.MUL.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_DIV] = GOTO | S_DIV;
+        TRANSITION[S_START * CLASS_COUNT + C_ASSIGN] = GOTO | S_ASSIGN;
+        TRANSITION[S_START * CLASS_COUNT + C_BANG] = GOTO | S_BANG;
+        TRANSITION[S_START * CLASS_COUNT + C_LT] = GOTO | S_LT;
+        TRANSITION[S_START * CLASS_COUNT + C_GT] = GOTO | S_GT;
+        TRANSITION[S_START * CLASS_COUNT + C_L_PAREN] = ACCEPT_NEXT | TokenType.L_PAREN.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_R_PAREN] = ACCEPT_NEXT | TokenType.R_PAREN.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_L_BRACE] = ACCEPT_NEXT | TokenType.L_BRACE.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_R_BRACE] = ACCEPT_NEXT | TokenType.R_BRACE.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_COMMA] = ACCEPT_NEXT | TokenType.COMMA.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_COLON] = ACCEPT_NEXT | TokenType.COLON.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_SEMICOLON] = ACCEPT_NEXT | TokenType.SEMICOLON.ordinal();
+        TRANSITION[S_START * CLASS_COUNT + C_NON_ASCII] = SLOW_START;
+        TRANSITION[S_START * CLASS_COUNT + C_EOF] = END;
+
+        // 标识符
+        setTransitions(S_IDENT, ACCEPT | TokenType.IDENT.ordinal());
+        TRANSITION[S_IDENT * CLASS_COUNT + C_DIGIT] = GOTO | S_IDENT;
+        TRANSITION[S_IDENT * CLASS_COUNT + C_ALPHA] = GOTO | S_IDENT;
+        TRANSITION[S_IDENT * CLASS_COUNT + C_UNDERLINE] = GOTO | S_IDENT;
+        TRANSITION[S_IDENT * CLASS_COUNT + C_NON_ASCII] = SLOW_IDENT;
+
+        // 双字符运算符
+        setTransitions(S_MINUS, ACCEPT | TokenType.MINUS.ordinal());
+        TRANSITION[S_MINUS * CLASS_COUNT + C_GT] = ACCEPT_NEXT | TokenType.ARROW.ordinal();
+        setTransitions(S_ASSIGN, ACCEPT | TokenType.ASSIGN.ordinal());
+        TRANSITION[S_ASSIGN * CLASS_COUNT + C_ASSIGN] = ACCEPT_NEXT | TokenType.EQ.ordinal();
+        setTransitions(S_BANG, ERROR);
+        TRANSITION[S_BANG * CLASS_COUNT + C_ASSIGN] = ACCEPT_NEXT | TokenType.NEQ.ordinal();
+        setTransitions(S_LT, ACCEPT | TokenType.LT.ordinal());
+        TRANSITION[S_LT * CLASS_COUNT + C_ASSIGN] = ACCEPT_NEXT | TokenType.LE.ordinal();
+        setTransitions(S_GT, ACCEPT | TokenType.GT.ordinal());
+        TRANSITION[S_GT * CLASS_COUNT + C_ASSIGN] = ACCEPT_NEXT | TokenType.GE.ordinal();
+
+        // 除号和注释，注释一直到行尾
+        setTransitions(S_DIV, ACCEPT | TokenType.DIV.ordinal());
+        TRANSITION[S_DIV * CLASS_COUNT + C_DIV] = GOTO | S_COMMENT;
+        setTransitions(S_COMMENT, GOTO | S_COMMENT);
+        TRANSITION[S_COMMENT * CLASS_COUNT + C_NEWLINE] = SKIP;
+        TRANSITION[S_COMMENT * CLASS_COUNT + C_EOF] = END;
+
+        TOKEN_VALUE[TokenType.PLUS.ordinal()] = '+';
+        TOKEN_VALUE[TokenType.MINUS.ordinal()] = '-';
+        TOKEN_VALUE[TokenType.MUL.ordinal()] = '*';
+        TOKEN_VALUE[TokenType.DIV.ordinal()] = '/';
+        TOKEN_VALUE[TokenType.ASSIGN.ordinal()] = '=';
+        TOKEN_VALUE[TokenType.EQ.ordinal()] = "==";
+        TOKEN_VALUE[TokenType.NEQ.ordinal()] = "!=";
+        TOKEN_VALUE[TokenType.LT.ordinal()] = '<';
+        TOKEN_VALUE[TokenType.GT.ordinal()] = '>';
+        TOKEN_VALUE[TokenType.LE.ordinal()] = "<=";
+        TOKEN_VALUE[TokenType.GE.ordinal()] = ">=";
+        TOKEN_VALUE[TokenType.ARROW.ordinal()] = "->";
+        TOKEN_VALUE[TokenType.L_PAREN.ordinal()] = '(';
+        TOKEN_VALUE[TokenType.R_PAREN.ordinal()] = ')';
+        TOKEN_VALUE[TokenType.L_BRACE.ordinal()] = '{';
+        TOKEN_VALUE[TokenType.R_BRACE.ordinal()] = '}';
+        TOKEN_VALUE[TokenType.COMMA.ordinal()] = ',';
+        TOKEN_VALUE[TokenType.COLON.ordinal()] = ':';
+        TOKEN_VALUE[TokenType.SEMICOLON.ordinal()] = ';';
+        TOKEN_VALUE[TokenType.EOF.ordinal()] = "";
+
+        addKeyword("fn", TokenType.FN_KW);
+        addKeyword("let", TokenType.LET_KW);
+        addKeyword("const", TokenType.CONST_KW);
+        addKeyword("as", TokenType.AS_KW);
+        addKeyword("while", TokenType.WHILE_KW);
+        addKeyword("if", TokenType.IF_KW);
+        addKeyword("else", TokenType.ELSE_KW);
+        addKeyword("return", TokenType.RETURN_KW);
+        addKeyword("break", TokenType.BREAK_KW);
+        addKeyword("continue", TokenType.CONTINUE_KW);
+    }
+
+    private static void setTransitions(int state, int action) {
+        for (int c = 0; c < CLASS_COUNT; c++) {
+            TRANSITION[state * CLASS_COUNT + c] = action;
+        }
+    }
+
+    /**
+     * 运算符、关键字和 EOF 的固定值
+     */
+    static Object valueOf(TokenType tokenType) {
+        return TOKEN_VALUE[tokenType.ordinal()];
+    }
+
+    private static int keywordHash(int first, int length) {
+        return (first + (length << 2)) & 15;
+    }
+
+    private static void addKeyword(String name, TokenType tokenType) {
+        int hash = keywordHash(name.charAt(0), name.length());
+        if (KEYWORD_TYPES[hash] != null) {
+            throw new Error("keyword hash collision: " + name);
+        }
+        KEYWORD_TYPES[hash] = tokenType;
+        KEYWORD_BYTES[hash] = name.getBytes();
+        TOKEN_VALUE[tokenType.ordinal()] = name;
+    }
+
     private StringIter it;
+    private IdentPool identPool;
+    private int tokenCount = 0;
+
+    // 最近一次识别出的 token，只有与类型对应的那个字面量字段有意义
+    private int tokenStart;
+    private int tokenEnd;
+    private long longValue;
+    private double doubleValue;
+    private char charValue;
+    private String stringValue;
+    private int identValue;
 
     public Tokenizer(StringIter it) {
+        this(it, new IdentPool());
+    }
+
+    public Tokenizer(StringIter it, IdentPool identPool) {
         this.it = it;
+        this.identPool = identPool;
+    }
+
+    public IdentPool getIdentPool() {
+        return identPool;
+    }
+
+    /**
+     * 已经识别出的 token 个数（不含 EOF），用于统计吞吐量
+     */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    StringIter getSource() {
+        return it;
+    }
+
+    int getStartOffset() {
+        return tokenStart;
+    }
+
+    int getEndOffset() {
+        return tokenEnd;
+    }
+
+    long getLongValue() {
+        return longValue;
+    }
+
+    double getDoubleValue() {
+        return doubleValue;
+    }
+
+    char getCharValue() {
+        return charValue;
+    }
+
+    String getStringValue() {
+        return stringValue;
+    }
+
+    int getIdentValue() {
+        return identValue;
+    }
+
+    /**
+     * 最近一次识别出的 token 的数值字面量压缩成一个 long：
+     * UINT_LITERAL 是数值本身，DOUBLE_LITERAL 是 double 的二进制表示，CHAR_LITERAL 是字符，IDENT 是标识符 ID，
+     * 其它类型（包括 STRING_LITERAL）为 0
+     */
+    long getLiteralBits(TokenType type) {
+        switch (type) {
+            case UINT_LITERAL:
+                return longValue;
+            case DOUBLE_LITERAL:
+                return Double.doubleToRawLongBits(doubleValue);
+            case CHAR_LITERAL:
+                return charValue;
+            case IDENT:
+                return identValue;
+            default:
+                return 0;
+        }
     }
 
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
@@ -20,30 +319,220 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
-        it.readAll();
+        TokenType type = advance();
+        Object value;
+        switch (type) {
+            case UINT_LITERAL:
+                value = longValue;
+                break;
+            case DOUBLE_LITERAL:
+                value = doubleValue;
+                break;
+            case CHAR_LITERAL:
+                value = charValue;
+                break;
+            case IDENT:
+                value = identPool.getName(identValue);
+                break;
+            case STRING_LITERAL:
+                value = stringValue;
+                break;
+            default:
+                value = TOKEN_VALUE[type.ordinal()];
+        }
+        return new Token(type, value, tokenStart, tokenEnd, it);
+    }
+
+    /**
+     * 识别下一个 token，但不创建 Token 对象，结果通过 getStartOffset() 等方法读取
+     *
+     * @return 识别出的 token 类型
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    TokenType advance() throws TokenizeError {
+        TokenType type;
+        do {
+            type = scan();
+        } while (type == null);
+        if (type != TokenType.EOF) {
+            tokenCount++;
+        }
+        return type;
+    }
 
-        // 跳过之前的所有空白字符
-        skipSpaceCharacters();
+    private TokenType accept(TokenType type, int start, int end) {
+        this.tokenStart = start;
+        this.tokenEnd = end;
+        return type;
+    }
 
-        if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+    // 状态机主循环，返回 null 表示跳过了一个非 ASCII 空白字符，需要重新开始
+    private TokenType scan() throws TokenizeError {
+        int pos = it.getOffset();
+        int start = pos;
+        int state = S_START;
+        while (true) {
+            int b = it.byteAt(pos);
+            int action = TRANSITION[state * CLASS_COUNT + (b < 0 ? C_EOF : CHAR_CLASS[b])];
+            switch (action & ACTION_MASK) {
+                case GOTO:
+                    state = action & VALUE_MASK;
+                    pos++;
+                    break;
+                case SKIP:
+                    state = S_START;
+                    start = ++pos;
+                    break;
+                case ACCEPT_NEXT:
+                    pos++;
+                    it.setOffset(pos);
+                    return accept(TOKEN_TYPES[action & VALUE_MASK], start, pos);
+                case ACCEPT:
+                    it.setOffset(pos);
+                    if (state == S_IDENT) {
+                        return identOrKeyword(start, pos);
+                    }
+                    return accept(TOKEN_TYPES[action & VALUE_MASK], start, pos);
+                case END:
+                    it.setOffset(pos);
+                    return accept(TokenType.EOF, pos, pos);
+                default:
+                    it.setOffset(start);
+                    return scanSlow(action);
+            }
         }
+    }
 
-        char peek = it.peekChar();
-        if (Character.isDigit(peek)) {
-            return numberLiteral();
-        } else if (Character.isAlphabetic(peek)) {
-            return lexIdentOrKeyword();
-        } else if (peek == '\"') {
-            return lexStringLiteral();
-        } else if (peek == '\'') {
-            return lexCharLiteral();
+    private TokenType scanSlow(int action) throws TokenizeError {
+        switch (action) {
+            case NUMBER:
+                return numberLiteral();
+            case STRING:
+                return lexStringLiteral();
+            case CHAR:
+                return lexCharLiteral();
+            case SLOW_IDENT:
+                return lexIdentOrKeyword();
+            case SLOW_START:
+                char peek = it.peekChar();
+                if (Character.isWhitespace(peek)) {
+                    it.nextChar();
+                    return null;
+                } else if (Character.isDigit(peek)) {
+                    return numberLiteralSlow();
+                } else if (Character.isAlphabetic(peek)) {
+                    return lexIdentOrKeyword();
+                }
+                it.nextChar();
+                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            default:
+                it.nextChar();
+                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+        }
+    }
+
+    private static final int MAX_EXPONENT_DIGITS_VALUE = 100000;
+
+    // 直接在源码字节上识别数字，整数边读边累加并检查溢出，浮点数只记录有效数字和十进制指数，
+    // 由 DoubleParser 转换，不创建任何中间字符串
+    // 遇到非 ASCII 字符（可能是其它语言的数字）时交给 numberLiteralSlow() 从头处理
+    private TokenType numberLiteral() throws TokenizeError {
+        int start = it.getOffset();
+        int pos = start;
+        long mantissa = 0;          // 最多 19 位有效数字，按无符号数解释
+        int digitCount = 0;         // mantissa 中的有效数字个数，不含前导零
+        boolean truncated = false;  // 有效数字超过 19 位
+        int fractionDigits = 0;     // 计入 mantissa 的小数位数
+        boolean isDouble = false;
+        boolean inExponent = false;
+        boolean malformed = false;  // 出现了第二个指数部分，原来的 parseDouble 会失败
+        int exponent = 0;
+        boolean negativeExponent = false;
+        while (true) {
+            int b = it.byteAt(pos);
+            if (b >= '0' && b <= '9') {
+                int digit = b - '0';
+                if (inExponent) {
+                    if (exponent < MAX_EXPONENT_DIGITS_VALUE) {
+                        exponent = exponent * 10 + digit;
+                    }
+                } else if (digitCount == 0 && digit == 0) {
+                    if (isDouble) {
+                        fractionDigits++;
+                    }
+                } else if (digitCount < 19) {
+                    mantissa = mantissa * 10 + digit;
+                    digitCount++;
+                    if (isDouble) {
+                        fractionDigits++;
+                    }
+                } else {
+                    truncated = true;
+                }
+                pos++;
+            } else if (b == '.' && !isDouble) {
+                pos++;
+                if (!checkDigitAfter(pos)) {
+                    return numberLiteralSlow();
+                }
+                isDouble = true;
+            } else if ((b == 'e' || b == 'E') && isDouble) {
+                malformed |= inExponent;
+                inExponent = true;
+                exponent = 0;
+                pos++;
+                b = it.byteAt(pos);
+                if (b == '+' || b == '-') {
+                    negativeExponent = b == '-';
+                    pos++;
+                }
+                if (!checkDigitAfter(pos)) {
+                    return numberLiteralSlow();
+                }
+            } else if (b >= 0x80) {
+                return numberLiteralSlow();
+            } else {
+                break;
+            }
+        }
+        it.setOffset(pos);
+        if (isDouble) {
+            if (malformed) {
+                throw new TokenizeError(ErrorCode.DoubleOverflow ,it.currentPos());
+            }
+            double value = Double.NaN;
+            if (!truncated) {
+                int q = (negativeExponent ? -exponent : exponent) - fractionDigits;
+                value = DoubleParser.toDouble(mantissa, q);
+            }
+            if (Double.isNaN(value)) {
+                value = Double.parseDouble(it.substring(start, pos));
+            }
+            doubleValue = value;
+            return accept(TokenType.DOUBLE_LITERAL, start, pos);
         } else {
-            return lexOperatorOrCommentOrUnknown();
+            if (truncated || mantissa < 0) {
+                throw new TokenizeError(ErrorCode.IntegerOverflow ,it.currentPos());
+            }
+            longValue = mantissa;
+            return accept(TokenType.UINT_LITERAL, start, pos);
+        }
+    }
+
+    // 小数点和指数后面必须是数字，否则报错；是非 ASCII 字符时返回 false，交给慢速路径判断
+    private boolean checkDigitAfter(int pos) throws TokenizeError {
+        int b = it.byteAt(pos);
+        if (b >= '0' && b <= '9') {
+            return true;
+        } else if (b >= 0x80) {
+            return false;
         }
+        it.setOffset(pos);
+        throw new TokenizeError(ErrorCode.InvalidDouble ,it.currentPos());
     }
 
-    private Token numberLiteral() throws TokenizeError {
+    // 含有非 ASCII 数字的数字字面量，逐个字符处理
+    private TokenType numberLiteralSlow() throws TokenizeError {
         // 请填空：
         // 直到查看下一个字符不是数字为止:
         // -- 前进一个字符，并存储这个字符
@@ -54,7 +543,7 @@ public class Tokenizer {
         // Token 的 Value 应填写数字的值
         boolean isDouble = false;
         StringBuilder stringBuilder = new StringBuilder();
-        Pos start = it.currentPos();
+        int start = it.getOffset();
         while(!it.isEOF()) {
             char peek = it.peekChar();
             if (Character.isDigit(peek)) {
@@ -82,16 +571,18 @@ public class Tokenizer {
             }
         }
         String result = stringBuilder.toString();
-        Pos end = it.currentPos();
+        int end = it.getOffset();
         if (isDouble) {
             try {
-                return new Token(TokenType.DOUBLE_LITERAL, Double.parseDouble(result), start, end);
+                doubleValue = Double.parseDouble(result);
+                return accept(TokenType.DOUBLE_LITERAL, start, end);
             } catch (NumberFormatException e) {
                 throw new TokenizeError(ErrorCode.DoubleOverflow ,it.currentPos());
             }
         } else {
             try {
-                return new Token(TokenType.UINT_LITERAL, Long.parseLong(result), start, end);
+                longValue = Long.parseLong(result);
+                return accept(TokenType.UINT_LITERAL, start, end);
             } catch (NumberFormatException e) {
                 throw new TokenizeError(ErrorCode.IntegerOverflow ,it.currentPos());
             }
@@ -99,18 +590,38 @@ public class Tokenizer {
         }
     }
 
-    private Token lexIdentOrKeyword() {
-        // 请填空：
-        // 直到查看下一个字符不是数字或字母为止:
-        // -- 前进一个字符，并存储这个字符
-        //
-        // 尝试将存储的字符串解释为关键字
-        // -- 如果是关键字，则返回关键字类型的 token
-        // -- 否则，返回标识符
-        //
-        // Token 的 Value 应填写标识符或关键字的字符串
+    // 纯 ASCII 标识符的快速路径，只有标识符第一次出现时才创建字符串
+    private TokenType identOrKeyword(int start, int end) {
+        int keyword = lookupKeyword(start, end);
+        if (keyword >= 0) {
+            return accept(KEYWORD_TYPES[keyword], start, end);
+        }
+        identValue = identPool.intern(it, start, end, null);
+        return accept(TokenType.IDENT, start, end);
+    }
+
+    private int lookupKeyword(int start, int end) {
+        int length = end - start;
+        if (length < 2 || length > 8) {
+            return -1;
+        }
+        int hash = keywordHash(it.byteAt(start), length);
+        byte[] keyword = KEYWORD_BYTES[hash];
+        if (keyword == null || keyword.length != length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            if (it.byteAt(start + i) != keyword[i]) {
+                return -1;
+            }
+        }
+        return hash;
+    }
+
+    // 含有非 ASCII 字符的标识符
+    private TokenType lexIdentOrKeyword() {
         StringBuilder stringBuilder = new StringBuilder();
-        Pos start = it.currentPos();
+        int start = it.getOffset();
         while(!it.isEOF()) {
             char peek = it.peekChar();
             if (Character.isLetterOrDigit(peek) || peek == '_') {
@@ -119,49 +630,18 @@ public class Tokenizer {
                 break;
             }
         }
-        String result = stringBuilder.toString();
-        Pos end = it.currentPos();
-        TokenType tokenType;
-        switch (result) {
-            case "fn":
-                tokenType = TokenType.FN_KW;
-                break;
-            case "let":
-                tokenType = TokenType.LET_KW;
-                break;
-            case "const":
-                tokenType = TokenType.CONST_KW;
-                break;
-            case "as":
-                tokenType = TokenType.AS_KW;
-                break;
-            case "while":
-                tokenType = TokenType.WHILE_KW;
-                break;
-            case "if":
-                tokenType = TokenType.IF_KW;
-                break;
-            case "else":
-                tokenType = TokenType.ELSE_KW;
-                break;
-            case "return":
-                tokenType = TokenType.RETURN_KW;
-                break;
-            case "break":
-                tokenType = TokenType.BREAK_KW;
-                break;
-            case "continue":
-                tokenType = TokenType.CONTINUE_KW;
-                break;
-            default:
-                tokenType = TokenType.IDENT;
+        int end = it.getOffset();
+        int keyword = lookupKeyword(start, end);
+        if (keyword >= 0) {
+            return accept(KEYWORD_TYPES[keyword], start, end);
         }
-        return new Token(tokenType, result, start, end);
+        identValue = identPool.intern(it, start, end, stringBuilder.toString());
+        return accept(TokenType.IDENT, start, end);
     }
 
-    private Token lexStringLiteral() throws TokenizeError {
+    private TokenType lexStringLiteral() throws TokenizeError {
         StringBuilder stringBuilder = new StringBuilder();
-        Pos start = it.currentPos();
+        int start = it.getOffset();
         it.nextChar();
         while(!it.isEOF()) {
             char peek = it.peekChar();
@@ -201,17 +681,17 @@ public class Tokenizer {
                 it.nextChar();
                 break;
             } else {
-                stringBuilder.append(it.nextChar());
+                stringBuilder.appendCodePoint(it.nextCodePoint());
             }
         }
-        String result = stringBuilder.toString();
-        Pos end = it.currentPos();
-        return new Token(TokenType.STRING_LITERAL, result, start, end);
+        stringValue = stringBuilder.toString();
+        int end = it.getOffset();
+        return accept(TokenType.STRING_LITERAL, start, end);
     }
 
-    private Token lexCharLiteral() throws TokenizeError {
+    private TokenType lexCharLiteral() throws TokenizeError {
         char result;
-        Pos start = it.currentPos();
+        int start = it.getOffset();
         it.nextChar();
         char peek = it.peekChar();
         if (peek == '\\') {
@@ -244,127 +724,9 @@ public class Tokenizer {
             result = it.nextChar();
         }
         it.nextChar();
-        Pos end = it.currentPos();
+        int end = it.getOffset();
         // TODO: 2020/12/4 字符字面量 的语义是被包裹的字符的 ASCII 编码无符号扩展到 64 位的整数值，类型是 int
-        return new Token(TokenType.CHAR_LITERAL, result, start, end);
-    }
-
-    private Token lexOperatorOrCommentOrUnknown() throws TokenizeError {
-        switch (it.nextChar()) {
-            case '+':
-                return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
-
-            case '-':
-                // 填入返回语句
-                if (it.peekChar() == '>') {
-                    Pos startPos = it.previousPos();
-                    it.nextChar();
-                    return new Token(TokenType.ARROW, "->", startPos, it.currentPos());
-                } else {
-                    return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
-                }
-
-            case '*':
-                // 填入返回语句
-                return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
-
-            case '/':
-                // 填入返回语句
-                if (it.peekChar() == '/') { //注释功能
-                    it.nextChar();
-                    while (it.nextChar() != '\n' && !it.isEOF()) {
-                        it.nextChar();
-//                        System.out.println();
-                    }
-                    return nextToken();
-
-//                    Pos startPos = it.previousPos();
-//                    it.nextChar();
-//                    StringBuilder stringBuilder = new StringBuilder();
-//                    while (it.nextChar() != '\n') {
-//                        stringBuilder.append(it.nextChar());
-//                    }
-//                    String result = stringBuilder.toString();
-//                    Pos endPos = it.currentPos();
-//                    return new Token(TokenType.COMMENT, result, startPos, endPos);
-                } else {
-                    return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
-                }
-
-            // 填入更多状态和返回语句
-            case '=':
-                if (it.peekChar() == '=') {
-                    Pos startPos = it.previousPos();
-                    it.nextChar();
-                    return new Token(TokenType.EQ, "==", startPos, it.currentPos());
-                } else {
-                    return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
-                }
-
-            case '!':
-                if (it.peekChar() == '=') {
-                    Pos startPos = it.previousPos();
-                    it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", startPos, it.currentPos());
-                } else {
-                    throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-                }
-
-            case '<':
-                if (it.peekChar() == '=') {
-                    Pos startPos = it.previousPos();
-                    it.nextChar();
-                    return new Token(TokenType.LE, "<=", startPos, it.currentPos());
-                } else {
-                    return new Token(TokenType.LT, '<', it.previousPos(), it.currentPos());
-                }
-
-            case '>':
-                if (it.peekChar() == '=') {
-                    Pos startPos = it.previousPos();
-                    it.nextChar();
-                    return new Token(TokenType.GE, ">=", startPos, it.currentPos());
-                } else {
-                    return new Token(TokenType.GT, '>', it.previousPos(), it.currentPos());
-                }
-
-            case '(':
-                // 填入返回语句
-                return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
-
-            case ')':
-                // 填入返回语句
-                return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
-
-            case '{':
-                // 填入返回语句
-                return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
-
-            case '}':
-                // 填入返回语句
-                return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
-
-            case ',':
-                // 填入返回语句
-                return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
-
-            case ':':
-                // 填入返回语句
-                return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
-
-            case ';':
-                // 填入返回语句
-                return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
-
-            default:
-                // 不认识这个输入，摸了
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        }
-    }
-
-    private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
-        }
+        charValue = result;
+        return accept(TokenType.CHAR_LITERAL, start, end);
     }
 }
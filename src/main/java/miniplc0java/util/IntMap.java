@@ -0,0 +1,91 @@
+package miniplc0java.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 以非负 int 为键的哈希表（开放定址），用于按标识符 ID 查找符号
+ */
+public class IntMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public IntMap() {
+        this(4);
+    }
+
+    public IntMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 4) * 4 - 1);
+        this.keys = new int[length];
+        this.values = new Object[length];
+        Arrays.fill(keys, -1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+            if (keys[slot] < 0) {
+                return null;
+            }
+        }
+    }
+
+    public void put(int key, V value) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] >= 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] < 0) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        ArrayList<V> result = new ArrayList<>(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] >= 0) {
+                result.add((V) values[slot]);
+            }
+        }
+        return result;
+    }
+
+    private static int mix(int key) {
+        return key * 0x9e3779b9 >>> 7;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        Arrays.fill(keys, -1);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] >= 0) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (keys[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
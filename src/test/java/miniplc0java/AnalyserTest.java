@@ -1,8 +1,72 @@
 package miniplc0java;
 
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 public class AnalyserTest {
 
+    /**
+     * 用 parallelism 个线程分析，返回分析结果或报告的错误
+     */
+    private static String analyse(String source, int parallelism) throws Exception {
+        Analyser analyser = new Analyser(new TokenBuffer(new Tokenizer(new StringIter(source))), false);
+        try {
+            return analyser.analyse(parallelism).toString();
+        } catch (CompileError e) {
+            return e.toString();
+        }
+    }
+
+    /**
+     * 函数之间穿插全局变量，函数体中有字符串字面量，全局变量的编号取决于分析的顺序
+     * errors 中的函数的函数体有错误
+     */
+    private static String program(int functionCount, int... errors) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functionCount; i++) {
+            if (i % 10 == 0) {
+                sb.append("let g").append(i).append(": int = ").append(i).append(";\n");
+            }
+            sb.append("fn f").append(i).append("(x: int) -> int {\n")
+                    .append("    putstr(\"f").append(i).append("\");\n")
+                    .append("    let y: double = 1.5;\n");
+            for (int error: errors) {
+                if (error == i) {
+                    sb.append("    y = x;\n");
+                }
+            }
+            sb.append("    return x + g").append(i / 10 * 10).append(";\n")
+                    .append("}\n");
+        }
+        sb.append("fn main() -> void { putint(f0(1)); }\n");
+        return sb.toString();
+    }
+
+    @Test
+    public void parallelAnalysisMatchesSequential() throws Exception {
+        String source = program(300);
+        String expected = analyse(source, 1);
+        assertTrue(expected.contains("functionName:f299"));
+        for (int parallelism: new int[] {2, 4, 8}) {
+            assertEquals("-j " + parallelism, expected, analyse(source, parallelism));
+        }
+    }
+
+    @Test
+    public void parallelAnalysisReportsFirstError() throws Exception {
+        String source = program(300, 287, 213);
+        String expected = analyse(source, 1);
+        // f213 中的错误
+        assertEquals("Analyze Error: TypeMisMatch, at: Pos(row: 1090, col: 6)", expected);
+        for (int parallelism: new int[] {2, 4, 8}) {
+            for (int run = 0; run < 5; run++) {
+                assertEquals("-j " + parallelism, expected, analyse(source, parallelism));
+            }
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package miniplc0java;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.Analyser;
+import miniplc0java.generator.Generator;
+import miniplc0java.generator.O0Writer;
+import miniplc0java.generator.StreamingGenerator;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * 不同的输出方式得到的 o0 必须逐字节相同
+ */
+public class GeneratorTest {
+
+    /**
+     * 有全局变量、字符串、浮点数和相互调用的多个函数的程序
+     */
+    private static String program(int functionCount) {
+        StringBuilder sb = new StringBuilder("let total: int = 0;\nconst scale: double = 1.5;\n");
+        for (int i = 0; i < functionCount; i++) {
+            sb.append("fn f").append(i).append("(x: int) -> int {\n")
+                    .append("    let d: double = x as double * scale;\n")
+                    .append("    while x > ").append(i).append(" { x = x - 1; total = total + 1; }\n")
+                    .append("    putstr(\"f").append(i).append("\");\n");
+            if (i > 0) {
+                sb.append("    return f").append(i - 1).append("(x + d as int);\n");
+            } else {
+                sb.append("    return x;\n");
+            }
+            sb.append("}\n");
+        }
+        sb.append("fn main() -> void { putint(f").append(functionCount - 1).append("(3)); putint(total); }\n");
+        return sb.toString();
+    }
+
+    private static Analyser analyser(String source) throws Exception {
+        return new Analyser(new TokenBuffer(new Tokenizer(new StringIter(source))), false);
+    }
+
+    private static byte[] generate(String source, int jobs) throws Exception {
+        Generator generator = new Generator(analyser(source).analyse(jobs));
+        generator.generate(jobs);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.write(new O0Writer(out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void streamedOutputMatchesGenerator() throws Exception {
+        String source = program(200);
+        Path path = Files.createTempFile("stream", ".o0");
+        try {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                 StreamingGenerator streamingGenerator = new StreamingGenerator(channel)) {
+                Analyser analyser = analyser(source);
+                analyser.setFunctionListener(streamingGenerator);
+                AnalyseResult result = analyser.analyse(1);
+                streamingGenerator.finish(result.getSymbolList());
+            }
+            assertArrayEquals(generate(source, 1), Files.readAllBytes(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void gatheringWriteMatchesWriterAtAnyParallelism() throws Exception {
+        String source = program(200);
+        byte[] expected = generate(source, 1);
+        for (int jobs: new int[] {1, 4}) {
+            assertArrayEquals("-j " + jobs, expected, generate(source, jobs));
+            Generator generator = new Generator(analyser(source).analyse(jobs));
+            generator.generate(jobs);
+            Path path = Files.createTempFile("gather", ".o0");
+            try {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    generator.write(channel);
+                }
+                assertArrayEquals("-j " + jobs, expected, Files.readAllBytes(path));
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package miniplc0java;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * 测试用的 o0 解释器：解析编译器输出的二进制并执行，返回程序的输出
+ * 全局变量的初值都是 0；栈上的每个格子是一个 long，地址也存成 long，栈上的地址为下标，全局变量的地址为 -1 - 编号
+ * 出错（栈下溢、越界的格子、除以 0、超过步数上限）时抛出 IllegalStateException
+ */
+class O0Vm {
+    private static final int MAGIC = 0x72303b3e;
+    // 执行的指令数上限，防止死循环
+    private static final long STEP_LIMIT = 50_000_000L;
+
+    private final byte[][] globals;
+    private final long[] globalValues;
+    private final ArrayList<Function> functions = new ArrayList<>();
+    private long[] stack = new long[1024];
+    private int top;
+    private long steps;
+    private int maxCallDepth;
+
+    private static class Function {
+        int name;
+        int returnSlots;
+        int paramSlots;
+        int locSlots;
+        int[] opcodes;
+        long[] operands;
+    }
+
+    private static class Frame {
+        final Function function;
+        final int pc;
+        final int argBase;
+        final int locBase;
+
+        Frame(Function function, int pc, int argBase, int locBase) {
+            this.function = function;
+            this.pc = pc;
+            this.argBase = argBase;
+            this.locBase = locBase;
+        }
+    }
+
+    O0Vm(byte[] binary) {
+        ByteBuffer buffer = ByteBuffer.wrap(binary);
+        check(buffer.getInt() == MAGIC, "bad magic");
+        check(buffer.getInt() == 1, "bad version");
+        globals = new byte[buffer.getInt()][];
+        globalValues = new long[globals.length];
+        for (int i = 0; i < globals.length; i++) {
+            buffer.get();
+            globals[i] = new byte[buffer.getInt()];
+            buffer.get(globals[i]);
+        }
+        int functionCount = buffer.getInt();
+        for (int i = 0; i < functionCount; i++) {
+            Function function = new Function();
+            function.name = buffer.getInt();
+            function.returnSlots = buffer.getInt();
+            function.paramSlots = buffer.getInt();
+            function.locSlots = buffer.getInt();
+            int count = buffer.getInt();
+            function.opcodes = new int[count];
+            function.operands = new long[count];
+            for (int j = 0; j < count; j++) {
+                int opcode = buffer.get() & 0xff;
+                function.opcodes[j] = opcode;
+                if (opcode == 0x01) {
+                    function.operands[j] = buffer.getLong();
+                } else if (hasU32Operand(opcode)) {
+                    function.operands[j] = buffer.getInt();
+                }
+            }
+            functions.add(function);
+        }
+        check(!buffer.hasRemaining(), "trailing bytes");
+    }
+
+    int getGlobalCount() {
+        return globals.length;
+    }
+
+    long getSteps() {
+        return steps;
+    }
+
+    int getMaxCallDepth() {
+        return maxCallDepth;
+    }
+
+    /**
+     * 从 _start 开始执行
+     *
+     * @param input scan_i、scan_c 和 scan_f 读取的以空白分隔的输入
+     */
+    String run(String input) {
+        Scanner scanner = new Scanner(input);
+        StringBuilder out = new StringBuilder();
+        ArrayList<Frame> frames = new ArrayList<>();
+        Function function = findStart();
+        int argBase = 0;
+        int locBase = 0;
+        allocate(function.locSlots);
+        int pc = 0;
+        while (true) {
+            check(++steps <= STEP_LIMIT, "step limit");
+            if (pc == function.opcodes.length) {
+                check(frames.isEmpty(), "fell off function end");
+                return out.toString();
+            }
+            int opcode = function.opcodes[pc];
+            long x = function.operands[pc];
+            pc++;
+            long a;
+            long b;
+            switch (opcode) {
+                case 0x00:
+                    break;
+                case 0x01:
+                    push(x);
+                    break;
+                case 0x02:
+                    pop();
+                    break;
+                case 0x0a:
+                    check(x >= 0 && x < function.locSlots, "loca " + x + " out of " + function.locSlots);
+                    push(locBase + x);
+                    break;
+                case 0x0b:
+                    check(x >= 0 && x < function.returnSlots + function.paramSlots, "arga " + x);
+                    push(argBase + x);
+                    break;
+                case 0x0c:
+                    check(x >= 0 && x < globals.length, "globa " + x);
+                    push(-1 - x);
+                    break;
+                case 0x13:
+                    a = pop();
+                    push(a < 0 ? globalValues[(int) (-1 - a)] : stackAt(a));
+                    break;
+                case 0x17:
+                    b = pop();
+                    a = pop();
+                    if (a < 0) {
+                        globalValues[(int) (-1 - a)] = b;
+                    } else {
+                        check(a < top, "store out of stack");
+                        stack[(int) a] = b;
+                    }
+                    break;
+                case 0x1a:
+                    allocate((int) x);
+                    break;
+                case 0x20:
+                    b = pop();
+                    push(pop() + b);
+                    break;
+                case 0x21:
+                    b = pop();
+                    push(pop() - b);
+                    break;
+                case 0x22:
+                    b = pop();
+                    push(pop() * b);
+                    break;
+                case 0x23:
+                    b = pop();
+                    check(b != 0, "divide by zero");
+                    push(pop() / b);
+                    break;
+                case 0x24:
+                    b = pop();
+                    push(fromDouble(toDouble(pop()) + toDouble(b)));
+                    break;
+                case 0x25:
+                    b = pop();
+                    push(fromDouble(toDouble(pop()) - toDouble(b)));
+                    break;
+                case 0x26:
+                    b = pop();
+                    push(fromDouble(toDouble(pop()) * toDouble(b)));
+                    break;
+                case 0x27:
+                    b = pop();
+                    push(fromDouble(toDouble(pop()) / toDouble(b)));
+                    break;
+                case 0x28:
+                    b = pop();
+                    check(b != 0, "divide by zero");
+                    push(Long.divideUnsigned(pop(), b));
+                    break;
+                case 0x30:
+                    b = pop();
+                    push(Long.compare(pop(), b));
+                    break;
+                case 0x31:
+                    b = pop();
+                    push(Long.compareUnsigned(pop(), b));
+                    break;
+                case 0x32:
+                    b = pop();
+                    a = pop();
+                    push(toDouble(a) < toDouble(b) ? -1 : toDouble(a) > toDouble(b) ? 1 : 0);
+                    break;
+                case 0x34:
+                    push(-pop());
+                    break;
+                case 0x35:
+                    push(fromDouble(-toDouble(pop())));
+                    break;
+                case 0x36:
+                    push(fromDouble(pop()));
+                    break;
+                case 0x37:
+                    push((long) toDouble(pop()));
+                    break;
+                case 0x39:
+                    push(pop() < 0 ? 1 : 0);
+                    break;
+                case 0x3a:
+                    push(pop() > 0 ? 1 : 0);
+                    break;
+                case 0x41:
+                    pc += x;
+                    break;
+                case 0x42:
+                    if (pop() == 0) {
+                        pc += x;
+                    }
+                    break;
+                case 0x43:
+                    if (pop() != 0) {
+                        pc += x;
+                    }
+                    break;
+                case 0x48:
+                    check(x >= 0 && x < functions.size(), "call " + x);
+                    frames.add(new Frame(function, pc, argBase, locBase));
+                    maxCallDepth = Math.max(maxCallDepth, frames.size());
+                    function = functions.get((int) x);
+                    argBase = top - function.paramSlots - function.returnSlots;
+                    check(argBase >= 0, "missing arguments");
+                    // 旧的 bp、pc 和 sp 各占一个格子
+                    allocate(3);
+                    locBase = top;
+                    allocate(function.locSlots);
+                    pc = 0;
+                    break;
+                case 0x49:
+                    if (frames.isEmpty()) {
+                        return out.toString();
+                    }
+                    top = argBase + function.returnSlots;
+                    Frame frame = frames.remove(frames.size() - 1);
+                    function = frame.function;
+                    pc = frame.pc;
+                    argBase = frame.argBase;
+                    locBase = frame.locBase;
+                    break;
+                case 0x50:
+                    push(scanner.nextLong());
+                    break;
+                case 0x51:
+                    push(scanner.next().charAt(0));
+                    break;
+                case 0x52:
+                    push(fromDouble(scanner.nextDouble()));
+                    break;
+                case 0x54:
+                    out.append(pop());
+                    break;
+                case 0x55:
+                    out.append((char) (pop() & 0xff));
+                    break;
+                case 0x56:
+                    out.append(String.format(Locale.ROOT, "%.6f", toDouble(pop())));
+                    break;
+                case 0x57:
+                    a = pop();
+                    check(a >= 0 && a < globals.length, "print_s " + a);
+                    out.append(new String(globals[(int) a], StandardCharsets.UTF_8));
+                    break;
+                case 0x58:
+                    out.append('\n');
+                    break;
+                default:
+                    throw new IllegalStateException("bad opcode " + opcode);
+            }
+        }
+    }
+
+    private Function findStart() {
+        for (Function function: functions) {
+            if (new String(globals[function.name], StandardCharsets.UTF_8).equals("_start")) {
+                return function;
+            }
+        }
+        return functions.get(0);
+    }
+
+    private long stackAt(long address) {
+        check(address < top, "load out of stack");
+        return stack[(int) address];
+    }
+
+    private void push(long value) {
+        if (top == stack.length) {
+            check(top < 1 << 24, "stack overflow");
+            stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top++] = value;
+    }
+
+    private long pop() {
+        check(top > 0, "stack underflow");
+        return stack[--top];
+    }
+
+    private void allocate(int count) {
+        for (int i = 0; i < count; i++) {
+            push(0);
+        }
+    }
+
+    private static double toDouble(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long fromDouble(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static boolean hasU32Operand(int opcode) {
+        switch (opcode) {
+            case 0x03:
+            case 0x0a:
+            case 0x0b:
+            case 0x0c:
+            case 0x1a:
+            case 0x41:
+            case 0x42:
+            case 0x43:
+            case 0x48:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
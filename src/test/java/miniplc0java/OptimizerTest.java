@@ -0,0 +1,495 @@
+package miniplc0java;
+
+import miniplc0java.analyser.AnalyseResult;
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.FunctionEntry;
+import miniplc0java.generator.Generator;
+import miniplc0java.generator.O0Writer;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.PassManager;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 优化遍的回归测试：每个程序在各个优化级别下和每个优化遍单独运行时编译，用 O0Vm 执行，输出都必须是期望的输出；
+ * 再检查优化遍确实改写了指令
+ */
+public class OptimizerTest {
+
+    private static byte[] compile(String source, PassManager passManager, int jobs) throws Exception {
+        Analyser analyser = new Analyser(new TokenBuffer(new Tokenizer(new StringIter(source))), false);
+        AnalyseResult program = analyser.analyse(jobs);
+        if (!passManager.isEmpty()) {
+            passManager.run(program, jobs);
+        }
+        Generator generator = new Generator(program);
+        generator.generate(jobs);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.write(new O0Writer(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] compile(String source, int level) throws Exception {
+        return compile(source, PassManager.forLevel(level), 1);
+    }
+
+    /**
+     * 各个优化级别、多线程的最高级别以及每个优化遍单独运行时，输出都是 expected
+     */
+    private static void assertOutput(String source, String input, String expected) throws Exception {
+        for (int level = 0; level <= PassManager.MAX_LEVEL; level++) {
+            assertEquals("-O" + level, expected, new O0Vm(compile(source, level)).run(input));
+        }
+        byte[] parallel = compile(source, PassManager.forLevel(PassManager.MAX_LEVEL), 4);
+        assertEquals("-O" + PassManager.MAX_LEVEL + " -j 4", expected, new O0Vm(parallel).run(input));
+        for (String name: PassManager.getPassNames()) {
+            assertEquals("--passes " + name, expected, new O0Vm(compile(source, PassManager.parse(name), 1)).run(input));
+        }
+    }
+
+    private static void assertOutput(String source, String expected) throws Exception {
+        assertOutput(source, "", expected);
+    }
+
+    /**
+     * 分析之后运行 passes（逗号分隔，为 null 时不优化），返回名为 name 的函数
+     */
+    private static FunctionEntry function(String source, String passes, String name) throws Exception {
+        Analyser analyser = new Analyser(new TokenBuffer(new Tokenizer(new StringIter(source))), false);
+        AnalyseResult program = analyser.analyse();
+        if (passes != null) {
+            PassManager.parse(passes).run(program, 1);
+        }
+        for (FunctionEntry function: program.getFunctionList()) {
+            if (function.getName().equals(name)) {
+                return function;
+            }
+        }
+        fail("no function " + name);
+        return null;
+    }
+
+    /**
+     * 函数中操作为 operation 的指令条数
+     */
+    private static int count(FunctionEntry function, Operation operation) {
+        InstructionBuffer instructions = function.getInstructions();
+        int count = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.getOperation(i) == operation) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * caller 中调用 callee 的 call 指令条数
+     */
+    private static int calls(FunctionEntry caller, FunctionEntry callee) {
+        InstructionBuffer instructions = caller.getInstructions();
+        int count = 0;
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.getOperation(i) == Operation.call && instructions.getIntValue(i) == callee.getStackOffset()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 每条指令所在的循环层数：向后跳的 br 和它的目标之间的指令在一层循环中；
+     * 范围中有 ret 时是放到函数末尾的块（例如外提出来的指令）跳回去，不算循环，所以只适用于循环中没有 return 的函数
+     */
+    private static int[] loopDepths(FunctionEntry function) {
+        InstructionBuffer instructions = function.getInstructions();
+        int[] depths = new int[instructions.size()];
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.getOperation(i) != Operation.br || instructions.getIntValue(i) >= 0) {
+                continue;
+            }
+            int target = i + 1 + instructions.getIntValue(i);
+            boolean returns = false;
+            for (int j = target; j < i; j++) {
+                returns |= instructions.getOperation(j) == Operation.ret;
+            }
+            for (int j = target; j <= i && !returns; j++) {
+                depths[j]++;
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * 循环层数至少为 depth 的 operation 指令条数
+     */
+    private static int countInLoops(FunctionEntry function, Operation operation, int depth) {
+        int[] depths = loopDepths(function);
+        int count = 0;
+        for (int i = 0; i < depths.length; i++) {
+            if (function.getInstructions().getOperation(i) == operation && depths[i] >= depth) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void deadFunctionsKeepStringLiteralStoredInVariable() throws Exception {
+        assertOutput("fn dead() -> void { putstr(\"never\"); }\n"
+                + "fn main() -> void { let s: int = \"hello\"; putstr(s); putln(); putstr(\"world\"); putln(); }\n",
+                "hello\nworld\n");
+    }
+
+    @Test
+    public void deadFunctionsKeepStringLiteralReturnedFromInlinedFunction() throws Exception {
+        assertOutput("fn dead() -> void { putstr(\"never\"); }\n"
+                + "fn greeting() -> int { return \"hi\"; }\n"
+                + "fn main() -> void { putstr(greeting()); putln(); putstr(\"there\"); putln(); }\n",
+                "hi\nthere\n");
+    }
+
+    /**
+     * 被删除的函数的名字也被删除，之后的全局变量和字符串字面量重新编号
+     */
+    @Test
+    public void deadFunctionsRemoveNamesAndRenumberGlobals() throws Exception {
+        String source = "fn dead() -> void { putstr(\"never\"); }\n"
+                + "let g: int = 7;\n"
+                + "fn unused(x: int) -> int { return x + g; }\n"
+                + "fn show(s: int) -> void { putstr(s); putint(g); putln(); }\n"
+                + "fn main() -> void { let s: int = \"a\"; show(s); g = g + 1; show(\"b\"); }\n";
+        assertOutput(source, "a7\nb8\n");
+        int globals = new O0Vm(compile(source, 0)).getGlobalCount();
+        assertEquals(globals - 2, new O0Vm(compile(source, PassManager.parse("dead-functions"), 1)).getGlobalCount());
+        // -O2 内联 show 之后它的名字也被删除
+        assertEquals(globals - 3, new O0Vm(compile(source, 2)).getGlobalCount());
+    }
+
+    @Test
+    public void deadFunctionsIgnoreIntegerPrintedAsString() throws Exception {
+        String source = "fn dead() -> void { putstr(\"never\"); }\n"
+                + "fn main() -> void { putstr(100); }\n";
+        for (int level = 0; level <= PassManager.MAX_LEVEL; level++) {
+            byte[] binary = compile(source, level);
+            // 全局变量没有 100 个，执行时才出错
+            try {
+                new O0Vm(binary).run("");
+                fail("-O" + level);
+            } catch (IllegalStateException e) {
+                assertEquals("print_s 100", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void peepholeComparesWithZeroBySign() throws Exception {
+        assertOutput("fn sign(x: int) -> int { if x < 0 { return 0 - 1; } if x > 0 { return 1; } return 0; }\n"
+                + "fn positive(x: int) -> int { if x <= 0 { return 0; } return 1; }\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0 - 2;\n"
+                + "    while i <= 2 { putint(sign(i)); putint(positive(i)); putln(); i = i + 1; }\n"
+                + "}\n",
+                "-10\n-10\n00\n11\n11\n");
+    }
+
+    /**
+     * 嵌套循环中的 break、continue 和 return，以及 return 之后不可达的代码
+     */
+    @Test
+    public void controlFlowWithBreakContinueAndEarlyReturn() throws Exception {
+        String source = "fn find(limit: int) -> int {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < limit {\n"
+                + "        let j: int = 0;\n"
+                + "        while j < limit {\n"
+                + "            if i * j == 12 { return i * 100 + j; }\n"
+                + "            j = j + 1;\n"
+                + "        }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    return 0 - 1;\n"
+                + "    putint(99);\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 20 {\n"
+                + "        i = i + 1;\n"
+                + "        if i == 3 { continue; }\n"
+                + "        if i > 15 { break; }\n"
+                + "        let k: int = i;\n"
+                + "        while 1 {\n"
+                + "            k = k - 4;\n"
+                + "            if k < 0 { break; }\n"
+                + "            s = s + 1;\n"
+                + "        }\n"
+                + "        s = s + i;\n"
+                + "    }\n"
+                + "    putint(s); putln();\n"
+                + "    putint(find(10)); putln();\n"
+                + "    putint(find(3)); putln();\n"
+                + "}\n";
+        assertOutput(source, "141\n206\n-1\n");
+        // return 之后的 putint(99) 所在的块不可达，simplify-cfg 删除它
+        assertEquals(1, count(function(source, null, "find"), Operation.print_i));
+        FunctionEntry find = function(source, "simplify-cfg", "find");
+        assertEquals(0, count(find, Operation.print_i));
+        assertEquals(Operation.ret, find.getInstructions().getOperation(find.getInstructions().size() - 1));
+    }
+
+    /**
+     * 输入的值不能被折叠，只能在块之间以 SSA 值传递：循环中交换的变量、double 的累积和分支中的赋值
+     * pick 中 unused 的值没有被使用，经过 SSA 形式之后它的计算被删除
+     */
+    @Test
+    public void ssaValuesAcrossBlocksFromInput() throws Exception {
+        String source = "fn pick(c: int, a: int, b: int) -> int {\n"
+                + "    let r: int = a;\n"
+                + "    let unused: int = a * b;\n"
+                + "    if c > 0 { r = b; } else { if c == 0 { r = a + b; } }\n"
+                + "    return r;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let n: int = getint();\n"
+                + "    let x: double = getdouble();\n"
+                + "    let c: int = getchar();\n"
+                + "    let a: int = n;\n"
+                + "    let b: int = n * 2;\n"
+                + "    let i: int = 0;\n"
+                + "    while i < n {\n"
+                + "        let t: int = a;\n"
+                + "        a = b;\n"
+                + "        b = t + b;\n"
+                + "        x = x * 2.0 - 1.0;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(a); putchar(32); putint(b); putchar(32); putdouble(x); putchar(32); putchar(c); putln();\n"
+                + "    putint(pick(0 - 1, n, 5)); putint(pick(0, n, 5)); putint(pick(1, n, 5)); putln();\n"
+                + "}\n";
+        assertOutput(source, "6 1.5 Q", "126 204 33.000000 Q\n6115\n");
+        assertEquals(1, count(function(source, null, "pick"), Operation.mul_i));
+        FunctionEntry pick = function(source, "ssa-cleanup", "pick");
+        assertEquals(0, count(pick, Operation.mul_i));
+        assertEquals(1, count(pick, Operation.add_i));
+        // 循环中的计算仍然保留
+        FunctionEntry main = function(source, "ssa-cleanup", "main");
+        assertEquals(1, count(main, Operation.mul_f));
+        assertEquals(1, count(main, Operation.sub_f));
+    }
+
+    /**
+     * 折叠 double 运算时与虚拟机的结果一致：溢出时 as int 取边界值，NaN 的比较，整数溢出回绕，除法向 0 取整
+     */
+    @Test
+    public void constantFoldingOfDoublesAndOverflow() throws Exception {
+        String source = "const big: double = 1.0e300;\n"
+                + "const day: int = 60 * 60 * 24;\n"
+                + "const third: double = 1.0 / 3.0;\n"
+                + "fn f(x: double) -> int { return (x * big) as int; }\n"
+                + "fn main() -> void {\n"
+                + "    putint(day); putln();\n"
+                + "    putint((1.0 / 3.0 * 3.0e20) as int); putln();\n"
+                + "    putint(f(1.0e10)); putln();\n"
+                + "    putint(-f(-1.0e10)); putln();\n"
+                + "    putdouble(0.1 + 0.2); putln();\n"
+                + "    putdouble(third * 3.0); putln();\n"
+                + "    putdouble(-(0.0 - 2.5) / 0.5); putln();\n"
+                + "    putint(9223372036854775807 + 1); putln();\n"
+                + "    if 0.0 / 0.0 < 1.0 { putint(1); } else { putint(2); }\n"
+                + "    if 0.0 / 0.0 == 0.0 / 0.0 { putint(1); } else { putint(2); }\n"
+                + "    if 1.0 / 0.0 > 1.0e308 { putint(1); } else { putint(2); }\n"
+                + "    putln();\n"
+                + "    putint(-(-5) * 1 + 0 - 0); putln();\n"
+                + "    putint(7 / -2); putln();\n"
+                + "    putdouble(7 as double / 2.0); putln();\n"
+                + "}\n";
+        assertOutput(source, "86400\n9223372036854775807\n9223372036854775807\n-9223372036854775808\n0.300000\n1.000000\n5.000000\n-9223372036854775808\n211\n5\n-3\n3.500000\n");
+        // main 中只剩对调用结果的取负，常量全局变量的读取也换成了它的值
+        assertTrue(count(function(source, null, "main"), Operation.globa) > 0);
+        FunctionEntry main = function(source, "const-fold", "main");
+        Operation[] folded = {Operation.add_i, Operation.sub_i, Operation.mul_i, Operation.div_i, Operation.add_f,
+                Operation.sub_f, Operation.mul_f, Operation.div_f, Operation.neg_f, Operation.itof, Operation.ftoi,
+                Operation.cmp_i, Operation.cmp_f, Operation.globa};
+        for (Operation operation: folded) {
+            assertEquals(operation.toString(), 0, count(main, operation));
+        }
+        assertEquals(1, count(main, Operation.neg_i));
+        assertEquals(0, count(function(source, "const-fold", "f"), Operation.globa));
+    }
+
+    /**
+     * 内联作为其它调用参数的调用：参数中有分支的被调用者、有副作用的被调用者，以及参数的求值顺序
+     */
+    @Test
+    public void inliningInsideArguments() throws Exception {
+        String source = "let g: int = 0;\n"
+                + "fn sq(x: int) -> int { return x * x; }\n"
+                + "fn add3(a: int, b: int, c: int) -> int { return a + b * 10 + c * 100; }\n"
+                + "fn bump() -> int { g = g + 1; return g; }\n"
+                + "fn clamp(x: int) -> int { if x > 5 { return 5; } if x < 0 { return 0; } return x; }\n"
+                + "fn show(x: int) -> void { if x < 0 { putchar(45); putint(0 - x); return; } putint(x); }\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 8 {\n"
+                + "        putint(add3(sq(i), clamp(i - 1), add3(1, bump(), sq(sq(2)))));\n"
+                + "        putchar(32);\n"
+                + "        show(clamp(i) - 3);\n"
+                + "        putln();\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(add3(bump(), bump(), bump())); putln();\n"
+                + "    putint(sq(add3(clamp(bump()), clamp(9), clamp(0 - 4)))); putln();\n"
+                + "}\n";
+        assertOutput(source, "161100 -3\n162101 -2\n163114 -1\n164129 0\n165146 1\n166165 2\n167186 2\n168199 2\n1209\n3025\n");
+        FunctionEntry before = function(source, null, "main");
+        FunctionEntry after = function(source, "inline", "main");
+        // 没有跳转的小函数在参数中的调用全部展开
+        for (String name: new String[] {"sq", "add3", "bump"}) {
+            FunctionEntry callee = function(source, null, name);
+            assertTrue(name, calls(before, callee) > 0);
+            assertEquals(name, 0, calls(after, callee));
+        }
+        assertTrue(count(after, Operation.call) < count(before, Operation.call));
+    }
+
+    /**
+     * 尾递归改写成循环：深度 100000 的递归、交换参数、有局部变量的函数、没有返回值和 double 参数的函数，以及不是尾调用的 fact
+     */
+    @Test
+    public void tailRecursion() throws Exception {
+        String source = "let total: int = 0;\n"
+                + "fn sum(n: int, acc: int) -> int { if n == 0 { return acc; } return sum(n - 1, acc + n); }\n"
+                + "fn gcd(a: int, b: int) -> int { if b == 0 { return a; } return gcd(b, a - a / b * b); }\n"
+                + "fn swapdown(a: int, b: int, n: int) -> int { if n == 0 { return a * 10 + b; } return swapdown(b, a, n - 1); }\n"
+                + "fn loop2(n: int) -> void { if n == 0 { return; } total = total + n; loop2(n - 1); }\n"
+                + "fn withlocal(n: int) -> int { let x: int = n * 2; if n == 0 { return x; } return withlocal(n - 1); }\n"
+                + "fn dsum(n: int, acc: double) -> double { if n == 0 { return acc; } return dsum(n - 1, acc + 0.5); }\n"
+                + "fn fact(n: int) -> int { if n <= 1 { return 1; } return n * fact(n - 1); }\n"
+                + "fn main() -> void {\n"
+                + "    putint(sum(100000, 0)); putln();\n"
+                + "    putint(gcd(1071, 462)); putln();\n"
+                + "    putint(swapdown(1, 2, 5)); putln();\n"
+                + "    loop2(1000); putint(total); putln();\n"
+                + "    putint(withlocal(5)); putln();\n"
+                + "    putdouble(dsum(10, 0.0)); putln();\n"
+                + "    putint(fact(10)); putln();\n"
+                + "}\n";
+        assertOutput(source, "5000050000\n21\n21\n500500\n0\n5.000000\n3628800\n");
+        for (String name: new String[] {"sum", "gcd", "swapdown", "loop2", "withlocal", "dsum"}) {
+            FunctionEntry before = function(source, null, name);
+            FunctionEntry after = function(source, "tail-calls", name);
+            assertEquals(name, 1, calls(before, before));
+            assertEquals(name, 0, calls(after, after));
+            // 递归调用换成跳回函数开头的 br
+            InstructionBuffer instructions = after.getInstructions();
+            boolean backward = false;
+            for (int i = 0; i < instructions.size(); i++) {
+                backward |= instructions.getOperation(i) == Operation.br && instructions.getIntValue(i) < 0;
+            }
+            assertTrue(name, backward);
+        }
+        FunctionEntry fact = function(source, "tail-calls", "fact");
+        assertEquals(1, calls(fact, fact));
+    }
+
+    @Test
+    public void tailRecursionDoesNotGrowTheCallStack() throws Exception {
+        String source = "fn sum(n: int, acc: int) -> int { if n == 0 { return acc; } return sum(n - 1, acc + n); }\n"
+                + "fn main() -> void { putint(sum(100000, 0)); }\n";
+        O0Vm unoptimised = new O0Vm(compile(source, 0));
+        assertEquals("5000050000", unoptimised.run(""));
+        // main 和 100001 层 sum
+        assertEquals(100002, unoptimised.getMaxCallDepth());
+        for (int level = 1; level <= PassManager.MAX_LEVEL; level++) {
+            O0Vm vm = new O0Vm(compile(source, level));
+            assertEquals("5000050000", vm.run(""));
+            assertTrue("-O" + level, vm.getMaxCallDepth() <= 2);
+        }
+    }
+
+    /**
+     * 兄弟作用域中的局部变量、循环中的局部变量和内联两次的函数的局部变量共用格子
+     */
+    @Test
+    public void localSlotSharing() throws Exception {
+        String source = "fn mix(x: int, y: int) -> int {\n"
+                + "    let p: int = x * 3;\n"
+                + "    let q: int = y - p;\n"
+                + "    return p + q * 2;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let total: int = 0;\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 {\n"
+                + "        let a: int = i * 2;\n"
+                + "        total = total + a;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    {\n"
+                + "        let b: int = 10;\n"
+                + "        let c: int = b + total;\n"
+                + "        total = c;\n"
+                + "    }\n"
+                + "    {\n"
+                + "        let d: int = 100;\n"
+                + "        let e: int = d + total;\n"
+                + "        total = e;\n"
+                + "    }\n"
+                + "    let f: int = mix(total, 1) + mix(2, total);\n"
+                + "    let h: int = f * 2;\n"
+                + "    putint(f); putchar(32); putint(h); putln();\n"
+                + "}\n";
+        assertOutput(source, "-120 -240\n");
+        int unoptimised = function(source, null, "main").getSizeOfListOfSymbolTable();
+        int shared = function(source, "slot-alloc", "main").getSizeOfListOfSymbolTable();
+        assertTrue(shared + " < " + unoptimised, shared < unoptimised);
+        // 内联的两份 mix 的局部变量不再各占格子
+        int inlined = function(source, "inline", "main").getSizeOfListOfSymbolTable();
+        int inlinedShared = function(source, "inline,slot-alloc", "main").getSizeOfListOfSymbolTable();
+        assertTrue(inlined > unoptimised);
+        assertTrue(inlinedShared + " <= " + shared, inlinedShared <= shared);
+    }
+
+    /**
+     * 循环中的调用（直接或间接地）写全局变量时不能外提它的读取；一次也不执行的循环中的除以 0 不能外提
+     */
+    @Test
+    public void loopInvariantCodeMotionAroundCalls() throws Exception {
+        String source = "let g: int = 1;\n"
+                + "let h: int = 7;\n"
+                + "fn setg(x: int) -> void { g = x; }\n"
+                + "fn touch(x: int) -> int { setg(g + x); return x; }\n"
+                + "fn read() -> int { return h * 2; }\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 4 { s = s + g * 3 + read(); touch(1); i = i + 1; }\n"
+                + "    putint(s); putchar(32); putint(g); putln();\n"
+                + "    i = 0;\n"
+                + "    while i < 3 { s = s + g * 10; setg(g + 1); i = i + 1; }\n"
+                + "    putint(s); putchar(32); putint(g); putln();\n"
+                + "    let n: int = 0;\n"
+                + "    let z: int = 0;\n"
+                + "    while n < 0 { s = s + 10 / z; n = n + 1; }\n"
+                + "    while n < 3 { let j: int = 0; while j < 3 { s = s + h * g; j = j + 1; } g = g + 1; n = n + 1; }\n"
+                + "    putint(s); putchar(32); putint(g); putln();\n"
+                + "}\n";
+        assertOutput(source, "86 5\n266 8\n833 11\n");
+        FunctionEntry before = function(source, null, "main");
+        FunctionEntry after = function(source, "licm", "main");
+        assertEquals(1, countInLoops(before, Operation.mul_i, 2));
+        assertEquals(3, countInLoops(before, Operation.mul_i, 1));
+        // 内层循环的 h * g 外提到外层循环中，前两个循环的 g * 3 和 g * 10 留在循环中
+        assertEquals(0, countInLoops(after, Operation.mul_i, 2));
+        assertEquals(3, countInLoops(after, Operation.mul_i, 1));
+        assertEquals(1, countInLoops(after, Operation.div_i, 1));
+    }
+}
@@ -1,8 +1,222 @@
 package miniplc0java;
 
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
 import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 public class TokenizerTest {
 
+    /**
+     * 和 -t 的输出一样每个 token 一行（包括 EOF），出错时最后一行是错误
+     */
+    private static String tokenize(String source) {
+        return tokenize(new StringIter(source));
+    }
+
+    private static String tokenize(StringIter source) {
+        return tokenize(source, false);
+    }
+
+    /**
+     * @param pipelined 和 --pipeline 一样在另一个线程中运行 tokenizer
+     */
+    private static String tokenize(StringIter source, boolean pipelined) {
+        TokenBuffer tokens = new TokenBuffer(new Tokenizer(source), pipelined);
+        StringBuilder sb = new StringBuilder();
+        try {
+            // 逐个读入，出错时错误之前的 token 都已经输出
+            for (int i = 0; tokens.fill(i) == i; i++) {
+                sb.append(tokens.toString(i)).append('\n');
+            }
+        } catch (Exception e) {
+            sb.append(e).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void crlfAndCrBreakLinesLikeLf() {
+        String source = "fn main() -> void {\n    putstr(\"ab\ncd\");\n    putchar('\n');\n}\n";
+        String expected = tokenize(source);
+        assertEquals(expected, tokenize(source.replace("\n", "\r\n")));
+        assertEquals(expected, tokenize(source.replace("\n", "\r")));
+        assertEquals(expected, tokenize(source.replace("\n", " ")));
+    }
+
+    @Test
+    public void crReportsErrorPositionsLikeLf() {
+        String source = "fn main() -> void {\n    let x: int = 1;\n    x = @;\n}\n";
+        String expected = tokenize(source);
+        assertTrue(expected, expected.contains("Error"));
+        assertEquals(expected, tokenize(source.replace("\n", "\r")));
+        assertEquals(expected, tokenize(source.replace("\n", "\r\n")));
+    }
+
+    @Test
+    public void mappedCrlfFileTokenizesLikeLf() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("fn f").append(i).append("(x: int) -> int {\n")
+                    .append("    putstr(\"line\n").append(i).append("\");\n")
+                    .append("    return x * ").append(i).append(" + 1.5e3 as int;\n")
+                    .append("}\n\n");
+        }
+        sb.append("fn main() -> void {\n    putint(f1(2));\n}\n\n\n");
+        String source = sb.toString();
+        Path path = Files.createTempFile("crlf", ".c0");
+        try {
+            Files.write(path, source.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+            assertEquals(tokenize(source), tokenize(StringIter.map(path)));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void pipelineReportsLexicalErrorAtItsToken() {
+        String source = "fn main() -> void {\n    let x: int = 1;\n    x = 2 $ 3;\n}\n";
+        String expected = tokenize(source);
+        assertTrue(expected, expected.endsWith("Type: UnsignedInteger Value: 2\nTokenize Error: InvalidInput, at: Pos(row: 2, col: 10)\n"));
+        assertEquals(expected, tokenize(new StringIter(source), true));
+    }
+
+    @Test
+    public void pipelineMatchesDirectTokenizingAcrossRingWraps() {
+        // 远多于环形缓冲区的 4096 个格子，缓冲区要绕很多圈
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("fn f").append(i).append("(x: double) -> int {\n")
+                    .append("    putstr(\"s").append(i % 7).append("\");\n")
+                    .append("    return x as int * ").append(i).append(" + 'c' - 1.5e-3 as int;\n")
+                    .append("}\n");
+        }
+        String source = sb.toString();
+        String expected = tokenize(source);
+        assertEquals(expected, tokenize(new StringIter(source), true));
+        String failing = source + "fn g() -> void { x = 1.5e; }\n";
+        expected = tokenize(failing);
+        assertTrue(expected, expected.endsWith("Type: AssignSign Value: =\nTokenize Error: InvalidDouble, at: Pos(row: 12000, col: 25)\n"));
+        assertEquals(expected, tokenize(new StringIter(failing), true));
+    }
+
+    /**
+     * 把 literal 作为浮点数字面量读入，结果必须和 Double.parseDouble 逐位相同
+     */
+    private static void assertParsesLikeJava(String literal) throws Exception {
+        TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(literal)));
+        tokens.fill(0);
+        assertEquals(literal, "DOUBLE_LITERAL", tokens.getTokenType(0).name());
+        assertEquals(literal, Double.doubleToRawLongBits(Double.parseDouble(literal)),
+                Double.doubleToRawLongBits(tokens.getDouble(0)));
+    }
+
+    /**
+     * 有效数字为 digits、十进制指数（digits 当作整数时）为 q 的字面量
+     */
+    private static String literal(String digits, int q) {
+        return digits.charAt(0) + "." + (digits.length() > 1 ? digits.substring(1) : "0") + "e" + (q + digits.length() - 1);
+    }
+
+    @Test
+    public void doubleLiteralEdgeCases() throws Exception {
+        String[] literals = {
+                // 两个 double 正中间，按偶数舍入
+                "9007199254740993.0", "9007199254740995.0", "1.00000000000000011102230246251565404236316680908203125",
+                "1.00000000000000011102230246251566", "1.00000000000000011102230246251564", "0.5000000000000000277555756156289135105907917022705078125",
+                // 非规格化数及其边界
+                "4.9406564584124654e-324", "2.4703282292062327e-324", "2.4703282292062328e-324", "2.2250738585072009e-308",
+                "2.2250738585072011e-308", "2.2250738585072012e-308", "2.2250738585072014e-308", "1.0e-320", "3.0e-324",
+                // 最大的 double 和溢出
+                "1.7976931348623157e308", "1.7976931348623158e308", "1.7976931348623159e308", "1.8e308",
+                // 快速路径的边界
+                "9007199254740992.0e22", "9007199254740992.0e23", "1.0e-22", "1.0e-23", "123456789.0e-30",
+                // 大于 2^63 的 19 位有效数字，以及超过 19 位的有效数字
+                "9223372036854775808.0", "9999999999999999999.0", "9.999999999999999999e-300", "18446744073709551615.0",
+                "1.234567890123456789e200", "12345678901234567890123.0e-10", "0.000000000000000000000000012345678901234567891",
+        };
+        for (String literal: literals) {
+            assertParsesLikeJava(literal);
+        }
+        // 十进制指数在 Eisel-Lemire 表的两端（-342 和 308）附近
+        String[] mantissas = {"1", "9", "17976931348623157", "9223372036854775808", "9999999999999999999", "4940656458412465"};
+        for (String digits: mantissas) {
+            for (int q = -345; q <= -320; q++) {
+                assertParsesLikeJava(literal(digits, q));
+            }
+            for (int q = 285; q <= 310; q++) {
+                assertParsesLikeJava(literal(digits, q));
+            }
+        }
+    }
+
+    @Test
+    public void randomDoubleLiteralsParseLikeJava() throws Exception {
+        Random random = new Random(20201213);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder digits = new StringBuilder().append(1 + random.nextInt(9));
+            int length = 1 + random.nextInt(i % 2 == 0 ? 19 : 25);
+            while (digits.length() < length) {
+                digits.append(random.nextInt(10));
+            }
+            assertParsesLikeJava(literal(digits.toString(), random.nextInt(700) - 360));
+        }
+    }
+
+    /**
+     * 像分析器一样边读边丢弃已经不用的 token，数组和数值字面量表滑动之后，
+     * 剩下的 token 的位置、值和之后报告的词法错误都和全部保留时相同
+     */
+    @Test
+    public void discardingKeepsPositionsAndFirstError() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("let v").append(i).append(": double = ").append(i).append(".25 * ").append(i * 7)
+                    .append(" as double; // ").append(i).append("\n");
+        }
+        String source = sb.toString() + "let bad: int = 1 # 2;\nlet after: int = 3;\n";
+        String[] expected = tokenize(source).split("\n");
+        String error = expected[expected.length - 1];
+        assertTrue(error, error.startsWith("Tokenize Error: InvalidInput"));
+        for (boolean pipelined: new boolean[] {false, true}) {
+            TokenBuffer tokens = new TokenBuffer(new Tokenizer(new StringIter(source)), pipelined);
+            TokenizeError first = null;
+            for (int i = 0; i < expected.length; i++) {
+                try {
+                    assertEquals(i, tokens.fill(i));
+                } catch (TokenizeError e) {
+                    assertEquals(expected.length - 1, i);
+                    assertEquals(error, e.toString());
+                    first = e;
+                    break;
+                }
+                assertEquals(expected[i], tokens.toString(i));
+                if (i % 37 == 0) {
+                    tokens.discardBefore(i - 5);
+                    // 丢弃之后窗口中剩下的 token 不变
+                    for (int j = Math.max(0, i - 5); j <= i; j++) {
+                        assertEquals(expected[j], tokens.toString(j));
+                    }
+                }
+            }
+            assertNotNull(first);
+            tokens.discardBefore(expected.length - 2);
+            assertEquals(expected[expected.length - 2], tokens.toString(expected.length - 2));
+            try {
+                tokens.fill(expected.length);
+                fail();
+            } catch (TokenizeError e) {
+                assertSame(first, e);
+            }
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package miniplc0java.tokenizer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class StringIterTest {
+
+    /**
+     * 映射的文件不管用哪种换行都不复制到堆上
+     */
+    @Test
+    public void mappedCrlfFileStaysDirect() throws IOException {
+        Path path = Files.createTempFile("crlf", ".c0");
+        try {
+            Files.write(path, "fn main() -> void {\r\n    putint(1);\r\n}\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            StringIter source = StringIter.map(path);
+            assertTrue(source.buffer.isDirect());
+            while (!source.isEOF()) {
+                source.nextChar();
+            }
+            assertTrue(source.buffer.isDirect());
+            assertEquals(3, source.posOf(source.getOffset()).row);
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenRingTest {
+
+    /**
+     * 读到第 limit 个 token 时抛出 Error 的 tokenizer
+     */
+    private static class FailingTokenizer extends Tokenizer {
+        private final int limit;
+        private int count = 0;
+
+        FailingTokenizer(String source, int limit) {
+            super(new StringIter(source));
+            this.limit = limit;
+        }
+
+        @Override
+        TokenType advance() throws TokenizeError {
+            if (count++ == limit) {
+                throw new AssertionError("tokenizer failed");
+            }
+            return super.advance();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void errorInTokenizerThreadReachesConsumer() throws TokenizeError {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("let x").append(i).append(": int = ").append(i).append(";\n");
+        }
+        TokenBuffer tokens = new TokenBuffer(new FailingTokenizer(sb.toString(), 7000), true);
+        assertEquals(6999, tokens.fill(6999));
+        try {
+            tokens.fill(7000);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+    }
+}